@@ -24,4 +24,16 @@ public interface FormulaFilter {
 
     boolean isValid(MolecularFormula formula);
 
+    /**
+     * Decides if the formula given as compomere is valid. This method is called by the decomposer for each
+     * decomposition, so filters should override it to avoid creating a formula object for each decomposition.
+     * @param compomere compomere[i] is the amount of element alphabet.get(characterIds[i])
+     * @param characterIds indizes of the elements in the alphabet in the same order as in the compomere
+     */
+    default boolean isValid(int[] compomere, int[] characterIds, ChemicalAlphabet alphabet) {
+        final int[] amounts = new int[alphabet.size()];
+        for (int i=0; i < compomere.length; ++i) amounts[characterIds[i]] = compomere[i];
+        return isValid(alphabet.decompositionToFormula(amounts));
+    }
+
 }
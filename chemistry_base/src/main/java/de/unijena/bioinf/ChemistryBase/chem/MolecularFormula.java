@@ -17,6 +17,7 @@
  */
 package de.unijena.bioinf.ChemistryBase.chem;
 
+import com.google.common.cache.Cache;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaVisitor;
 
 import java.util.*;
@@ -135,20 +136,32 @@ public abstract class MolecularFormula implements Cloneable, Iterable<Element>,
     }
 
     static MolecularFormula parse(String text, PeriodicTable pt) {
-        final ArrayList<Pair> pairs = new ArrayList<Pair>();
+        final Cache<String, MolecularFormula> formulaCache = pt.formulaCache;
+        if (formulaCache == null) return parseUncached(text, pt);
+        MolecularFormula formula = formulaCache.getIfPresent(text);
+        if (formula == null) {
+            formula = parseUncached(text, pt);
+            formulaCache.put(text, formula);
+        }
+        return formula;
+    }
+
+    private static MolecularFormula parseUncached(String text, PeriodicTable pt) {
+        // amounts are summed up by element id. Summing as int and casting to short afterwards is the same as summing as short
+        final int[] amounts = new int[pt.numberOfElements()];
+        final BitSet bitset = new BitSet(amounts.length);
         pt.parse(text, new FormulaVisitor<Object>() {
             @Override
             public Object visit(Element element, int amount) {
-                pairs.add(new Pair(element, amount));
+                amounts[element.getId()] += amount;
+                bitset.set(element.getId());
                 return null;
             }
         });
-        final BitSet bitset = new BitSet(pairs.size());
-        for (Pair e : pairs) bitset.set(e.element.getId());
         final TableSelection sel = pt.cache.getSelectionFor(bitset);
         final short[] buffer = new short[sel.size()];
-        for (Pair e : pairs) {
-            buffer[sel.indexOf(e.element)] += e.amount;
+        for (int id = bitset.nextSetBit(0); id >= 0; id = bitset.nextSetBit(id + 1)) {
+            buffer[sel.indexOf(pt.get(id))] = (short) amounts[id];
         }
         return new ImmutableMolecularFormula(sel, buffer);
     }
@@ -891,15 +904,5 @@ public abstract class MolecularFormula implements Cloneable, Iterable<Element>,
         }
     }
 
-    private static class Pair {
-        private final Element element;
-        private final int amount;
-
-        private Pair(Element element, int amount) {
-            this.element = element;
-            this.amount = amount;
-        }
-    }
-
 
 }
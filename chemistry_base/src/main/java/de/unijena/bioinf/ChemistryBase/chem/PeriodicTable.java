@@ -17,6 +17,8 @@
  */
 package de.unijena.bioinf.ChemistryBase.chem;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import de.unijena.bioinf.ChemistryBase.chem.utils.*;
@@ -586,6 +588,10 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
      * Regular Expression for molecular formulas regarding all chemical elements in PeriodicTable
      */
     private Pattern pattern;
+    /**
+     * elements by the first character of their symbol, longest symbols first. Same matching as the pattern.
+     */
+    private Element[][] symbolTable;
     private final HashMap<String, Element> nameMap;
     private final ArrayList<Element> elements;
     private IsotopicDistribution distribution;
@@ -597,6 +603,13 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
      */
     final TableSelectionCache cache;
 
+    public final static String FORMULA_CACHE_SIZE_PROPERTY = "de.unijena.bioinf.sirius.chem.formulaCacheSize";
+    /**
+     * Optional intern table for {@link MolecularFormula#parse(String)}. Repeatedly parsed formulas share the same
+     * immutable instance. null if disabled.
+     */
+    volatile Cache<String, MolecularFormula> formulaCache;
+
     PeriodicTable() {
         this.elements = new ArrayList<>();
         this.nameMap = new HashMap<>();
@@ -605,12 +618,14 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
         this.ionizationToAdduct = new HashMap<>();
         this.distribution = new IsotopicDistribution(this);
         this.emptyFormula = null;
+        setFormulaCacheSize(PropertyManager.getIntProperty(FORMULA_CACHE_SIZE_PROPERTY, 0));
     }
 
     PeriodicTable(PeriodicTable pt) {
         this.elements = new ArrayList<>(pt.elements);
         this.nameMap = new HashMap<>(pt.nameMap);
         this.pattern = pt.pattern;
+        this.symbolTable = pt.symbolTable;
         this.knownIonTypes = new HashMap<>();
         this.ionizationToAdduct = new HashMap<>();
         // new cache =(
@@ -618,6 +633,19 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
         this.emptyFormula = null;
         this.distribution = new IsotopicDistribution(this);
         distribution.merge(pt.distribution);
+        setFormulaCacheSize(PropertyManager.getIntProperty(FORMULA_CACHE_SIZE_PROPERTY, 0));
+    }
+
+    /**
+     * Enables an intern table for parsed molecular formulas: {@link MolecularFormula#parse(String)} returns the same
+     * instance for the same string as long as it is in the table. Useful when reading many repeated formulas, e.g.
+     * from project spaces or candidate lists. The table is disabled by default or by
+     * the property {@link #FORMULA_CACHE_SIZE_PROPERTY}.
+     * @param maximumSize maximal number of cached formulas. 0 disables the table.
+     */
+    public void setFormulaCacheSize(int maximumSize) {
+        if (maximumSize < 0) throw new IllegalArgumentException("cache size must not be negative: " + maximumSize);
+        this.formulaCache = maximumSize == 0 ? null : CacheBuilder.newBuilder().maximumSize(maximumSize).<String, MolecularFormula>build();
     }
 
     /**
@@ -635,6 +663,8 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
         elements.add(new Element(elements.size(), name, symbol, mass, valence));
         nameMap.put(symbol, elements.get(elements.size() - 1));
         pattern = null;
+        symbolTable = null;
+        if (formulaCache != null) formulaCache.invalidateAll();
     }
 
     /**
@@ -756,6 +786,7 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
     private void refreshRegularExpression() {
         if (elements.isEmpty()) {
             pattern = Pattern.compile("");
+            symbolTable = new Element[0][];
             return;
         }
         final StringBuilder buffer = new StringBuilder();
@@ -774,6 +805,21 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
         }
         buffer.append(")(\\d*)|\\(");
         this.pattern = Pattern.compile(buffer.toString());
+        // orderedElements are sorted by symbol length, longest first
+        final List<List<Element>> byFirstChar = new ArrayList<List<Element>>(128);
+        for (int c = 0; c < 128; ++c) byFirstChar.add(null);
+        for (Element e : orderedElements) {
+            final char c = e.getSymbol().charAt(0);
+            if (c >= 128) continue;
+            if (byFirstChar.get(c) == null) byFirstChar.set(c, new ArrayList<Element>());
+            byFirstChar.get(c).add(e);
+        }
+        final Element[][] symbolTable = new Element[128][];
+        for (int c = 0; c < 128; ++c) {
+            final List<Element> elements = byFirstChar.get(c);
+            if (elements != null) symbolTable[c] = elements.toArray(new Element[elements.size()]);
+        }
+        this.symbolTable = symbolTable;
     }
 
 
@@ -1135,7 +1181,8 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
      */
     public void parse(String formula, FormulaVisitor<?> visitor) {
         if (formula.indexOf('(') < 0) {
-            parseUnstackedFormula(formula, visitor);
+            if (formula.indexOf(')') < 0) tokenizeUnstackedFormula(formula, visitor);
+            else parseUnstackedFormula(formula, visitor);
         } else {
             parseStackedFormula(formula, visitor);
         }
@@ -1188,7 +1235,56 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
         }
     }
 
-    private void parseUnstackedFormula(String formula, FormulaVisitor<?> visitor) {
+    /**
+     * Same as {@link #parseUnstackedFormula(String, FormulaVisitor)} for formulas without parentheses, but reads the
+     * formula character by character instead of using the regular expression.
+     */
+    void tokenizeUnstackedFormula(String formula, FormulaVisitor<?> visitor) {
+        final int n = formula.length();
+        if (n == 0) return;
+        int i = 0;
+        final int multiplier;
+        if (Character.isDigit(formula.charAt(0))) {
+            while (i < n && Character.isDigit(formula.charAt(i))) ++i;
+            multiplier = Integer.parseInt(formula.substring(0, i));
+        } else multiplier = 1;
+        Element[][] symbolTable = this.symbolTable;
+        if (symbolTable == null) {
+            refreshRegularExpression();
+            symbolTable = this.symbolTable;
+        }
+        while (i < n) {
+            final char c = formula.charAt(i);
+            Element element = null;
+            if (c < 128 && symbolTable[c] != null) {
+                for (Element e : symbolTable[c]) {
+                    if (formula.startsWith(e.getSymbol(), i)) {
+                        element = e;
+                        break;
+                    }
+                }
+            }
+            if (element == null) {
+                // as Matcher.find: skip characters which do not start a match
+                ++i;
+                continue;
+            }
+            i += element.getSymbol().length();
+            final int start = i;
+            while (i < n && formula.charAt(i) >= '0' && formula.charAt(i) <= '9') ++i;
+            final int amount;
+            if (i == start) amount = 1;
+            else if (i - start > 9) amount = Integer.parseInt(formula.substring(start, i)); // might overflow
+            else {
+                int a = 0;
+                for (int k = start; k < i; ++k) a = a * 10 + (formula.charAt(k) - '0');
+                amount = a;
+            }
+            visitor.visit(element, multiplier * amount);
+        }
+    }
+
+    void parseUnstackedFormula(String formula, FormulaVisitor<?> visitor) {
         final int multiplier;
         if (formula.isEmpty()) return;
         if (Character.isDigit(formula.charAt(0))) {
@@ -17,6 +17,8 @@
  */
 package de.unijena.bioinf.ChemistryBase.chem;
 
+import gnu.trove.map.hash.TLongObjectHashMap;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -24,7 +26,13 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
-
+/**
+ * Element sets whose element ids are all smaller than 64 are looked up without locking: every answer of
+ * {@link #getSelectionFor(BitSet)} is remembered in a registry which maps the element set, encoded as long, to its
+ * selection. The registry is copy-on-write: it is never modified after it is published, a new element set creates
+ * a copy. As selections are only extended, never shrunk, a remembered selection stays valid until the cache is
+ * cleared. Only new element sets have to search the selections under the lock.
+ */
 class TableSelectionCache {
 	
 	final static int DEFAULT_MAX_COMPOMERE_SIZE = 12;
@@ -37,6 +45,8 @@ class TableSelectionCache {
 	private final PeriodicTable table;
 	private final ReadWriteLock lock;
 	private int modificationCount;
+	// element mask -> selection containing all these elements. Never modified after publication.
+	private volatile TLongObjectHashMap<TableSelection> registry;
 	
 	
 	TableSelectionCache(PeriodicTable table, int defaultCompomereSize) {
@@ -45,18 +55,67 @@ class TableSelectionCache {
 		this.table = table;
 		this.lock = new ReentrantReadWriteLock();
 		this.modificationCount = 0;
+		this.registry = new TLongObjectHashMap<TableSelection>();
 	}
 
     void addDefaultAlphabet() {
-        cache.add(TableSelection.fromString(table, DEFAULT_ALPHABET));
+        lock.writeLock().lock();
+        try {
+            cache.add(TableSelection.fromString(table, DEFAULT_ALPHABET));
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 	
 	void clearCache() {
-		cache.clear();
-		cache.add(TableSelection.fromString(table, DEFAULT_ALPHABET));
+		lock.writeLock().lock();
+		try {
+			++modificationCount;
+			cache.clear();
+			cache.add(TableSelection.fromString(table, DEFAULT_ALPHABET));
+			registry = new TLongObjectHashMap<TableSelection>();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 	
 	TableSelection getSelectionFor(BitSet bitset) {
+		final long mask = toMask(bitset);
+		if (mask != NO_MASK) {
+			final TableSelection selection = registry.get(mask);
+			if (selection != null) return selection;
+		}
+		final TableSelection selection = searchOrCreateSelection(bitset);
+		if (mask != NO_MASK) register(mask, selection);
+		return selection;
+	}
+
+	private final static long NO_MASK = -1L;
+
+	/**
+	 * @return the element set as long or NO_MASK if it contains an element with id &gt;= 63
+	 */
+	private static long toMask(BitSet bitset) {
+		if (bitset.length() > 63) return NO_MASK;
+		if (bitset.isEmpty()) return 0L;
+		return bitset.toLongArray()[0];
+	}
+
+	private void register(long mask, TableSelection selection) {
+		lock.writeLock().lock();
+		try {
+			// the selection might be from an old cache generation if the cache was cleared meanwhile
+			if (!cache.contains(selection) || registry.containsKey(mask)) return;
+			final TLongObjectHashMap<TableSelection> copy = new TLongObjectHashMap<TableSelection>(registry.size() * 2 + 8);
+			copy.putAll(registry);
+			copy.put(mask, selection);
+			registry = copy;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private TableSelection searchOrCreateSelection(BitSet bitset) {
 		// naive implementation
 		lock.readLock().lock();
 		final int mod = modificationCount;
@@ -85,11 +144,15 @@ class TableSelectionCache {
 	private SearchResult searchForSelection(BitSet bitset) {
 		int min2add = Integer.MAX_VALUE;
 		TableSelection best = null;
+		final int cardinality = bitset.cardinality();
+		final BitSet diff = new BitSet();
 		for (TableSelection selection : cache) {
 			final BitSet mask = selection.bitmask;
-			final BitSet diff = (BitSet)bitset.clone();
-			diff.andNot(mask);
-			final int toAdd = diff.cardinality();
+			// number of elements in bitset which are not in mask
+			diff.clear();
+			diff.or(bitset);
+			diff.and(mask);
+			final int toAdd = cardinality - diff.cardinality();
 			if (toAdd == 0) return new SearchResult(selection, true);
 			if (toAdd + mask.cardinality() <= defaultCompomereSize && toAdd < min2add) {
 				min2add = toAdd;
@@ -19,6 +19,7 @@ package de.unijena.bioinf.ChemistryBase.chem.utils;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
 import de.unijena.bioinf.ChemistryBase.chem.FormulaFilter;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
@@ -54,6 +55,13 @@ public class FormulaFilterList implements FormulaFilter, Parameterized {
         return true;
     }
 
+    @Override
+    public boolean isValid(int[] compomere, int[] characterIds, ChemicalAlphabet alphabet) {
+        for (FormulaFilter filter : filters)
+            if (!filter.isValid(compomere, characterIds, alphabet)) return false;
+        return true;
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         filters.clear();
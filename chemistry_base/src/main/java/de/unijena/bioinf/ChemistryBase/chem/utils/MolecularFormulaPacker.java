@@ -36,6 +36,11 @@ import java.util.List;
  * Comparing two PackedFormula is slightly faster than comparing
  * molecular formulas. So use PackedFormula if you have a huge set
  * of formulas you only want to compare
+ * <p>
+ * Arithmetic on packed formulas ({@link #add(long, long)}, {@link #subtract(long, long)},
+ * {@link #isSubtractable(long, long)} and {@link #union(long, long)}) works on all elements at once: the carries and
+ * borrows out of each element's bit field are computed with a few word operations, so over- and underflows are
+ * detected without decoding the formulas.
  */
 public class MolecularFormulaPacker {
 
@@ -66,7 +71,10 @@ public class MolecularFormulaPacker {
     // first bit is sign. Some operation doesn't work with sign because 2 complement
     private final static int NUMBER_OF_BITS = 63;
 
-    private final long OverflowFastPath;
+    // highest bit of each element's bit field
+    private final long HIGH_BITS;
+    // element index of the bit field whose highest bit is at the given position, or -1
+    private final byte[] FIELD_OF_HIGH_BIT;
 
     /**
      * Creates a new MolecularFormulaPacker such that all formulas given in the formulas array can be encoded
@@ -200,7 +208,7 @@ public class MolecularFormulaPacker {
         int b = 0;
         for (int i = 0; i < BIT_SIZES.length; ++i) {
             SHIFTS[i] = b;
-            UNSHIFTED_MASKS[i] = ((1 << BIT_SIZES[i]) - 1);
+            UNSHIFTED_MASKS[i] = ((1L << BIT_SIZES[i]) - 1);
             MASKS[i] = UNSHIFTED_MASKS[i] << b;
             b += BIT_SIZES[i];
         }
@@ -212,13 +220,16 @@ public class MolecularFormulaPacker {
         H = (byte) elementMapper.get(table.getByName("H").getId());
         N = (byte) elementMapper.get(table.getByName("N").getId());
         O = (byte) elementMapper.get(table.getByName("O").getId());
-        b = 0;
-        k = 0;
+        long highBits = 0L;
+        FIELD_OF_HIGH_BIT = new byte[64];
+        Arrays.fill(FIELD_OF_HIGH_BIT, (byte) -1);
         for (int i = 0; i < BIT_SIZES.length; ++i) {
-            k += BIT_SIZES[i];
-            b |= ((1 << k) - 1);
+            if (BIT_SIZES[i] == 0) continue;
+            final int highBit = SHIFTS[i] + BIT_SIZES[i] - 1;
+            highBits |= (1L << highBit);
+            FIELD_OF_HIGH_BIT[highBit] = (byte) i;
         }
-        OverflowFastPath = b;
+        HIGH_BITS = highBits;
     }
 
     /**
@@ -404,44 +415,82 @@ public class MolecularFormulaPacker {
     }
 
 
+    /**
+     * @return true if a contains at least as many atoms of each element as b, such that a - b can be encoded
+     */
     public boolean isSubtractable(long a, long b) {
-        if ((a & b) == a) return true;
-        for (int k = 0; k < BIT_SIZES.length; ++k) {
-            final int elemA = numberOfXthElement(a, k);
-            final int elemB = numberOfXthElement(b, k);
-            if (elemA - elemB < 0) return false;
-        }
-        return true;
+        return borrows(a, b) == 0;
     }
 
-
+    /**
+     * @return the sum of both formulas
+     * @throws FormulaEncodingError if the amount of an element in the sum cannot be encoded
+     */
     public long add(long a, long b) {
-        if ((OverflowFastPath & a) == a && (OverflowFastPath & b) == b) {
-            return a + b;
-        } else {
-            // slow path: check each element independend from each other
-            for (int k = 0; k < BIT_SIZES.length; ++k) {
-                final int elemA = numberOfXthElement(a, k);
-                if (elemA == 0) continue;
-                final int elemB = numberOfXthElement(b, k);
-                if (elemB == 0) continue;
-                final int sum = elemA + elemB;
-                if (sum >= (1 << BIT_SIZES[k]))
-                    throw new FormulaEncodingError("Bit overflow. Sum of both formulas " + a + " and " + b
-                            + " cannot be decoded with 64 bits");
-
-            }
-            return a + b;
-        }
+        if (carries(a, b) != 0)
+            throw new FormulaEncodingError("Bit overflow. Sum of both formulas " + a + " and " + b
+                    + " cannot be decoded with 64 bits");
+        return a + b;
     }
 
+    /**
+     * @return the sum of both formulas or -1 if the amount of an element in the sum cannot be encoded
+     */
+    public long tryAdd(long a, long b) {
+        return carries(a, b) == 0 ? a + b : -1;
+    }
 
+    /**
+     * @return the difference of both formulas
+     * @throws FormulaEncodingError if b contains more atoms of an element than a
+     */
     public long subtract(long a, long b) {
-        if (!isSubtractable(a, b))
+        if (borrows(a, b) != 0)
             throw new FormulaEncodingError("Cannot decode molecular formulas with negative amounts of elements");
         return a - b;
     }
 
+    /**
+     * @return the difference of both formulas or -1 if b contains more atoms of an element than a
+     */
+    public long trySubtract(long a, long b) {
+        return borrows(a, b) == 0 ? a - b : -1;
+    }
+
+    /**
+     * @return the formula with the maximal amount of each element in a and b
+     */
+    public long union(long a, long b) {
+        long borrows = borrows(a, b);
+        long union = a;
+        while (borrows != 0) {
+            final int k = FIELD_OF_HIGH_BIT[Long.numberOfTrailingZeros(borrows)];
+            union = (union & ~MASKS[k]) | (b & MASKS[k]);
+            borrows &= borrows - 1;
+        }
+        return union;
+    }
+
+    /**
+     * The bit fields are added without their highest bits, so no carry can leave a bit field. The carry out of
+     * a bit field is then computed from its highest bits like in a full adder.
+     * @return the highest bits of all bit fields whose sum overflows
+     */
+    private long carries(long a, long b) {
+        final long carryIn = ((a & ~HIGH_BITS) + (b & ~HIGH_BITS)) & HIGH_BITS;
+        return ((a & b) | ((a ^ b) & carryIn)) & HIGH_BITS;
+    }
+
+    /**
+     * The highest bit of each bit field in a is set before subtracting, so no borrow can leave a bit field. The
+     * borrow out of a bit field is then computed from its highest bits like in a full subtractor.
+     * @return the highest bits of all bit fields in which a is smaller than b
+     */
+    private long borrows(long a, long b) {
+        final long borrowIn = ~((a | HIGH_BITS) - (b & ~HIGH_BITS)) & HIGH_BITS;
+        return ((~a & b) | (~(a ^ b) & borrowIn)) & HIGH_BITS;
+    }
+
     public short[] buffer(final long formula) {
         return buffer(formula, tableSelection());
     }
@@ -475,7 +524,7 @@ public class MolecularFormulaPacker {
 
     /**
      * returns a negative value if molecular formula cannot be encoded by
-     * this encoding. Otherwise, returns the encoded value for this formula
+     * this encoding, e.g. if it contains negative amounts of elements. Otherwise, returns the encoded value for this formula
      * @param formula
      * @return -1 iff encoding error, otherwise encoded formula
      */
@@ -485,6 +534,36 @@ public class MolecularFormulaPacker {
         return encoder.errorFlag ? -1 : encoder.bits;
     }
 
+    /**
+     * encodes a decomposition without creating a molecular formula object
+     * @param compomere compomere[i] is the amount of element alphabet.get(characterIds[i])
+     * @param characterIds indizes of the elements in the alphabet in the same order as in the compomere
+     * @return the encoded formula
+     */
+    public long encode(int[] compomere, int[] characterIds, ChemicalAlphabet alphabet) {
+        final long bits = tryEncode(compomere, characterIds, alphabet);
+        if (bits < 0) throw new FormulaEncodingError("Cannot encode decomposition " + Arrays.toString(compomere) + " over " + alphabet);
+        return bits;
+    }
+
+    /**
+     * @see #encode(int[], int[], ChemicalAlphabet)
+     * @return -1 iff encoding error, otherwise encoded formula
+     */
+    public long tryEncode(int[] compomere, int[] characterIds, ChemicalAlphabet alphabet) {
+        long bits = 0L;
+        for (int i = 0; i < compomere.length; ++i) {
+            final int amount = compomere[i];
+            if (amount < 0) return -1;
+            if (amount > 0) {
+                final int pos = elementMapper.get(alphabet.get(characterIds[i]).getId());
+                if (pos < 0 || amount >= (1L << BIT_SIZES[pos])) return -1;
+                bits |= ((long) amount << SHIFTS[pos]);
+            }
+        }
+        return bits;
+    }
+
     private final class Encoder implements FormulaVisitor {
 
         private long bits = 0l;
@@ -494,7 +573,7 @@ public class MolecularFormulaPacker {
             if (amount > 0) {
                 final int pos = elementMapper.get(element.getId());
                 if (pos < 0) throw new FormulaEncodingError(element + " is not part of encoding");
-                if (amount < (1 << BIT_SIZES[pos])) {
+                if (amount < (1L << BIT_SIZES[pos])) {
                     bits |= ((long) amount << SHIFTS[pos]);
                 } else {
                     throw new FormulaEncodingError("Cannot encode element " + element + " with amount of " + amount + " in "
@@ -512,13 +591,17 @@ public class MolecularFormulaPacker {
         @Override
         public Object visit(Element element, int amount) {
             if (errorFlag) return null;
+            if (amount < 0) {
+                errorFlag = true;
+                return null;
+            }
             if (amount > 0) {
                 final int pos = elementMapper.get(element.getId());
                 if (pos < 0) {
                     errorFlag=true;
                     return null;
                 }
-                if (amount < (1 << BIT_SIZES[pos])) {
+                if (amount < (1L << BIT_SIZES[pos])) {
                     bits |= ((long) amount << SHIFTS[pos]);
                 } else {
                     errorFlag = true;
@@ -529,7 +612,13 @@ public class MolecularFormulaPacker {
     }
 
     public MolecularFormula decode(final long formula) {
-        final TableSelection selection = tableSelection();
+        return decode(formula, tableSelection());
+    }
+
+    /**
+     * decodes the formula using the given table selection, which has to contain all elements of the formula
+     */
+    public MolecularFormula decode(final long formula, TableSelection selection) {
         return MolecularFormula.fromCompomer(selection, buffer(formula, selection));
     }
 
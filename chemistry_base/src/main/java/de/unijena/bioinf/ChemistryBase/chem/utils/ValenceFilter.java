@@ -19,6 +19,7 @@ package de.unijena.bioinf.ChemistryBase.chem.utils;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.HasParameters;
 import de.unijena.bioinf.ChemistryBase.algorithm.Parameter;
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
 import de.unijena.bioinf.ChemistryBase.chem.FormulaFilter;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 
@@ -46,6 +47,15 @@ public class ValenceFilter implements FormulaFilter {
         return formula.doubledRDBE() >= minValenceInt;
     }
 
+    @Override
+    public boolean isValid(int[] compomere, int[] characterIds, ChemicalAlphabet alphabet) {
+        int rdbe = 2;
+        for (int i=0; i < compomere.length; ++i) {
+            rdbe += compomere[i] * (alphabet.valenceOf(characterIds[i]) - 2);
+        }
+        return rdbe >= minValenceInt;
+    }
+
     public double getMinValence() {
         return minValence;
     }
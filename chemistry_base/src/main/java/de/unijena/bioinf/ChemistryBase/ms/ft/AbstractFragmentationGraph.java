@@ -430,14 +430,25 @@ abstract class AbstractFragmentationGraph implements Iterable<Fragment> {
     protected Loss addLoss(Fragment u, Fragment v, MolecularFormula f) {
         final Loss l = getLoss(u, v);
         if (l != null) return l;
+        return addLossWithoutCheck(u, v, f);
+    }
+
+    /**
+     * adds a new edge from u to v without checking if there is already such an edge. Checking for existing edges
+     * takes linear time in the degree of u and v, so this method should be used when building graphs with many
+     * edges where duplicates are impossible.
+     */
+    protected Loss addLossWithoutCheck(Fragment u, Fragment v, MolecularFormula f) {
         final Loss loss = new Loss(u, v, f, 0d);
+        // grow edge arrays geometrically, otherwise adding many edges to a vertex takes quadratic time.
+        // Fragment.compact() can be used to trim the arrays afterwards
         if (u.outgoingEdges.length <= u.outDegree) {
-            u.outgoingEdges = Arrays.copyOf(u.outgoingEdges, u.outDegree + 1);
+            u.outgoingEdges = Arrays.copyOf(u.outgoingEdges, u.outDegree + 1 + (u.outDegree >> 1));
         }
         u.outgoingEdges[u.outDegree] = loss;
         loss.sourceEdgeOffset = u.outDegree++;
         if (v.incomingEdges.length <= v.inDegree) {
-            v.incomingEdges = Arrays.copyOf(v.incomingEdges, v.inDegree + 1);
+            v.incomingEdges = Arrays.copyOf(v.incomingEdges, v.inDegree + 1 + (v.inDegree >> 1));
         }
         v.incomingEdges[v.inDegree] = loss;
         loss.targetEdgeOffset = v.inDegree++;
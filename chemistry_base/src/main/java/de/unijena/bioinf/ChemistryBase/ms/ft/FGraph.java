@@ -267,6 +267,21 @@ public class FGraph extends AbstractFragmentationGraph {
         return super.addLoss(u, v);
     }
 
+    /**
+     * adds a new edge from u to v. The caller has to ensure that there is no edge from u to v yet.
+     */
+    public Loss addLossWithoutCheck(Fragment u, Fragment v) {
+        return super.addLossWithoutCheck(u, v, u.getFormula().subtract(v.getFormula()));
+    }
+
+    /**
+     * adds a new edge from u to v with the given loss formula, which has to be the difference of the formulas of u
+     * and v. The caller has to ensure that there is no edge from u to v yet.
+     */
+    public Loss addLossWithoutCheck(Fragment u, Fragment v, MolecularFormula loss) {
+        return super.addLossWithoutCheck(u, v, loss);
+    }
+
     public void deleteLoss(Loss l) {
         super.deleteLoss(l);
     }
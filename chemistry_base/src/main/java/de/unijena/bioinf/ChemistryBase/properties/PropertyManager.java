@@ -117,6 +117,11 @@ public class PropertyManager {
         return v == null ? defaultValue : Integer.valueOf(v);
     }
 
+    public static long getLongProperty(String key, long defaultValue) {
+        String v = getProperty(key);
+        return v == null ? defaultValue : Long.valueOf(v);
+    }
+
     public static double getDoubleProperty(String key, double defaultValue) {
         String v = getProperty(key);
         return v == null ? defaultValue : Double.valueOf(v);
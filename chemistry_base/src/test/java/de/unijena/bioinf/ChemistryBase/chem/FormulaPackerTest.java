@@ -25,6 +25,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 
@@ -98,6 +99,74 @@ public class FormulaPackerTest {
         }
     }
 
+    @Test
+    public void testArithmeticOnPackedFormulas() {
+        final MolecularFormulaPacker packer = MolecularFormulaPacker.newPacker(ChemicalAlphabet.alphabetFor(MolecularFormula.parse("CHNOPS")), new int[]{40, 80, 10, 10, 3, 3});
+        final MolecularFormula chnops = MolecularFormula.parse("CHNOPS");
+        final Random random = new Random(42);
+        for (int k = 0; k < 10000; ++k) {
+            final MolecularFormula a = randomFormula(random, chnops, packer), b = randomFormula(random, chnops, packer);
+            final long x = packer.encode(a), y = packer.encode(b);
+            assertEquals(a.isSubtractable(b), packer.isSubtractable(x, y));
+            assertEquals(a.isSubtractable(b) ? packer.encode(a.subtract(b)) : -1, packer.trySubtract(x, y));
+            assertEquals(packer.tryEncode(a.add(b)), packer.tryAdd(x, y));
+            assertEquals(packer.encode(a.union(b)), packer.union(x, y));
+        }
+    }
+
+    @Test
+    public void testFormulasWithNegativeAmountsCannotBeEncoded() {
+        final MolecularFormulaPacker packer = MolecularFormulaPacker.newPacker(ChemicalAlphabet.alphabetFor(MolecularFormula.parse("CHNOPS")), new int[]{40, 80, 10, 10, 3, 3});
+        final MolecularFormula negative = MolecularFormula.parse("C6H12O6").subtract(MolecularFormula.parse("N"));
+        assertEquals(-1, negative.numberOf("N"));
+        assertEquals(-1, packer.tryEncode(negative));
+        assertEquals(-1, packer.tryEncode(MolecularFormula.parse("C2H6").subtract(MolecularFormula.parse("C3"))));
+        assertEquals(packer.encode(MolecularFormula.parse("C6H12O6")), packer.tryEncode(negative.add(MolecularFormula.parse("N"))));
+    }
+
+    @Test
+    public void testEncodingWithWideBitFields() {
+        final ChemicalAlphabet alphabet = ChemicalAlphabet.alphabetFor(MolecularFormula.parse("CHO"));
+        for (int wideBits : new int[]{31, 32, 40}) {
+            final int[] bitsizes = new int[alphabet.size()];
+            for (int i = 0; i < bitsizes.length; ++i)
+                bitsizes[i] = alphabet.get(i).getSymbol().equals("C") ? wideBits : 10;
+            final MolecularFormulaPacker packer = MolecularFormulaPacker.newPackerWithEncoding(alphabet, bitsizes);
+            final MolecularFormula formula = MolecularFormula.parse("C1000H1000O10");
+            assertEquals(formula, packer.decode(packer.encode(formula)));
+            assertEquals(packer.encode(formula), packer.tryEncode(formula));
+
+            final int[] compomere = new int[alphabet.size()], characterIds = new int[alphabet.size()];
+            for (int i = 0; i < compomere.length; ++i) {
+                compomere[i] = alphabet.get(i).getSymbol().equals("C") ? Integer.MAX_VALUE : 5;
+                characterIds[i] = i;
+            }
+            assertEquals(true, packer.tryEncode(compomere, characterIds, alphabet) >= 0);
+            for (int i = 0; i < compomere.length; ++i)
+                if (compomere[i] == Integer.MAX_VALUE) compomere[i] = 1000;
+            assertEquals(packer.encode(formula.subtract(MolecularFormula.parse("H995O5"))), packer.tryEncode(compomere, characterIds, alphabet));
+            // the narrow fields still reject amounts which do not fit
+            assertEquals(-1, packer.tryEncode(MolecularFormula.parse("C10H1024")));
+        }
+    }
+
+    private static MolecularFormula randomFormula(Random random, MolecularFormula elements, MolecularFormulaPacker packer) {
+        final StringBuilder buffer = new StringBuilder();
+        for (Element e : elements.elementArray()) {
+            final int maxAmount = (1 << numberOfBits(packer, e)) - 1;
+            buffer.append(e.getSymbol()).append(random.nextBoolean() ? random.nextInt(maxAmount + 1) : maxAmount - random.nextInt(2));
+        }
+        return MolecularFormula.parse(buffer.toString());
+    }
+
+    private static int numberOfBits(MolecularFormulaPacker packer, Element e) {
+        for (String line : packer.serializeToString().split("\n")) {
+            final String[] cols = line.split("\t");
+            if (cols[0].equals(e.getSymbol())) return Integer.parseInt(cols[1]);
+        }
+        return 0;
+    }
+
     final String[] SAMPLE = new String[]{"C23H38O2", "C9H13N3O", "C6H5N3O4", "C24H32O7", "C17H16O4", "C18H31N2O27S4",
             "C40H56", "C7H13NO4", "C44H69NO12", "C24H42O4", "C20H18O4", "C20H26Br2O2", "C32H57N5O9", "C8H15NO9S2",
             "C14H20N2O2", "C11H11N5", "C3H7NO6S", "C20H21NO3", "C11H19NOS", "C10H12ClNO4", "C28H48O", "C36H63N12O6",
@@ -17,8 +17,17 @@
  */
 package de.unijena.bioinf.ChemistryBase.chem;
 
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaVisitor;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static junit.framework.Assert.*;
 
 public class FormulaTest {
@@ -80,6 +89,97 @@ public class FormulaTest {
 		assertTrue(formula.contains(formula5));
 		assertTrue(formula.contains(null));
 	}
-	
+
+	@Test
+	public void testConcurrentCaching() throws Exception {
+		PeriodicTable.getInstance().cache.clearCache();
+		final String[] formulas = new String[]{"C6H12O6", "C6H12O6Cl2Fe6S3", "ZnMgMnC12I3", "C6H12O6Mg2", "C2H5Br",
+				"C3H7BrClF", "NaCl", "C5H11NO2Se", "H2O", "C2H3KO2", "CaCO3", "C10H15N5O10P2", "C9H8O4Si"};
+		final ExecutorService service = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; ++t) {
+				final int offset = t;
+				futures.add(service.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						for (int i = 0; i < 1000; ++i) {
+							final String f = formulas[(i + offset) % formulas.length];
+							final MolecularFormula formula = MolecularFormula.parse(f);
+							if (!formula.equals(MolecularFormula.parse(formula.formatByHill()))) return false;
+							for (Element e : formula.elementArray()) {
+								if (formula.getTableSelection().getIndexIfExist(e) < 0) return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> future : futures) assertTrue(future.get());
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * @return the tokens which are visited while parsing the formula, or the exception which is thrown
+	 */
+	private static List<String> tokens(String formula, boolean regularExpression) {
+		final List<String> tokens = new ArrayList<String>();
+		final FormulaVisitor<Object> visitor = new FormulaVisitor<Object>() {
+			@Override
+			public Object visit(Element element, int amount) {
+				tokens.add(element.getSymbol() + amount);
+				return null;
+			}
+		};
+		try {
+			if (regularExpression) PeriodicTable.getInstance().parseUnstackedFormula(formula, visitor);
+			else PeriodicTable.getInstance().tokenizeUnstackedFormula(formula, visitor);
+		} catch (RuntimeException e) {
+			tokens.add(e.getClass().getName());
+		}
+		return tokens;
+	}
+
+	@Test
+	public void testTokenizerEqualsRegularExpression() {
+		final String[] formulas = new String[]{"", "C6H12O6", "HgH2", "ClC", "C6H12O6Cl2Fe6S3", "2H2O", "12C6H6", "0CH4",
+				"C6 H12-O6+", "c2H5Br", "Xy3C2", "C2\u00f1H3\u00c4", "[C2H4]", "H2O*", "99", "C0", "C007",
+				"C1234567890", "C0000000001", "C12345678901", "C99999999999", "2147483647H", "C2147483647", "3C1000000000"};
+		for (String formula : formulas) {
+			assertEquals(formula, tokens(formula, true), tokens(formula, false));
+		}
+		// amounts with more than 9 digits are parsed as the regular expression does, including its overflow errors
+		assertEquals(Collections.singletonList("C1234567890"), tokens("C1234567890", false));
+		assertEquals(Collections.singletonList(NumberFormatException.class.getName()), tokens("C12345678901", false));
+	}
+
+	@Test
+	public void testFormulaCache() {
+		final PeriodicTable T = PeriodicTable.getInstance();
+		final String[] formulas = new String[]{"C6H12O6", "H2O", "CH4", "NH3", "C6H12O6", "H2O"};
+		final List<MolecularFormula> uncached = new ArrayList<MolecularFormula>();
+		for (String formula : formulas) uncached.add(MolecularFormula.parse(formula));
+		assertNotSame(uncached.get(0), uncached.get(4));
+		try {
+			T.setFormulaCacheSize(2);
+			final MolecularFormula glucose = MolecularFormula.parse("C6H12O6");
+			assertSame(glucose, MolecularFormula.parse("C6H12O6"));
+			assertNotSame(glucose, MolecularFormula.parse("H12C6O6"));
+			assertEquals(glucose, MolecularFormula.parse("H12C6O6"));
+			// the cache evicts formulas when it is full, but still gives equal formulas
+			for (int i = 0; i < formulas.length; ++i)
+				assertEquals(uncached.get(i), MolecularFormula.parse(formulas[i]));
+		} finally {
+			T.setFormulaCacheSize(0);
+		}
+		try {
+			T.setFormulaCacheSize(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
 
 }
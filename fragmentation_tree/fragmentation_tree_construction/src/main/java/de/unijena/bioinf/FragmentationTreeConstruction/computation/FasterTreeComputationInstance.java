@@ -1,6 +1,7 @@
 package de.unijena.bioinf.FragmentationTreeConstruction.computation;
 
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.HypothesenDrivenRecalibration2;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.SpectralRecalibration;
@@ -10,20 +11,24 @@ import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.
 import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.exceptions.TimeoutException;
+import gnu.trove.procedure.TObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class FasterTreeComputationInstance extends AbstractTreeComputationInstance {
 
+    /**
+     * if true (default), candidates whose score upper bound cannot reach the score of the k-th best tree are skipped
+     */
+    public static final String USE_SCORE_BOUNDS_PROPERTY = "de.unijena.bioinf.sirius.treecomputation.useScoreBounds";
+
     protected final Ms2Experiment experiment;
     protected final int numberOfResultsToKeep;
+    protected boolean useScoreBounds;
     // yet another workaround =/
     // 0 = unprocessed, 1 = validated, 2 =  preprocessed, 3 = scored
     protected int state = 0;
@@ -40,6 +45,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         this.experiment = input;
         this.numberOfResultsToKeep = numberOfResultsToKeep;
         this.ticks = new AtomicInteger(0);
+        this.useScoreBounds = PropertyManager.getBooleanProperty(USE_SCORE_BOUNDS_PROPERTY, true);
     }
 
 
@@ -58,6 +64,20 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         this.state = 3;
     }
 
+    public boolean isUsingScoreBounds() {
+        return useScoreBounds;
+    }
+
+    /**
+     * If enabled, the candidates are processed best-first: a cheap upper bound of the tree score is computed for each
+     * graph and the tree is only computed if this bound can reach the score of the k-th best tree found so far. Bounds
+     * of previous tree size iterations are reused, such that hopeless candidates are skipped without building their
+     * graph again. The resulting top k trees are the same as without bounds.
+     */
+    public void setUseScoreBounds(boolean useScoreBounds) {
+        this.useScoreBounds = useScoreBounds;
+    }
+
     public ProcessedInput validateInput() {
         if (state <= 0) {
             pinput = analyzer.performValidation(experiment);
@@ -157,6 +177,9 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         final int BATCH_SIZE = Math.min(4 * NCPUS, Math.max(30, NCPUS));
         final int MAX_GRAPH_CACHE_SIZE = Math.max(30, BATCH_SIZE);
         final int n = Math.min(decompositions.size(), numberOfResultsToKeep);
+        // we need exact scores for the trees which are recalibrated and for the trees used in the tree size check
+        final int k = Math.max(n + 10, MIN_NUMBER_OF_TREES_CHECK_FOR_INTENSITY);
+        final CandidateBounds bounds = useScoreBounds ? new CandidateBounds(decompositions) : null;
 
         TreeSizeScorer.TreeSizeBonus treeSizeBonus;
         final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analyzer.getFragmentPeakScorers());
@@ -169,6 +192,9 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         double inc = tss == null ? 0d : treeSizeBonus.score - tss.getTreeSizeScore();
         double treeSize = treeSizeBonus == null ? 0d : treeSizeBonus.score;
         final List<ExactResult> results = new ArrayList<>(decompositions.size());
+        // scored graphs and trees of the best candidates of the previous tree size iteration
+        final Map<Decomposition, ExactResult> previousResults = new IdentityHashMap<>();
+        double previousTreeSize = treeSize;
         // TREE SIZE
         while (inc <= MAX_TREESIZE_INCREASE) {
             configureProgress(2, useHeuristic ? 50 : 90,decompositions.size());
@@ -176,24 +202,44 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
             results.clear();
             final List<TreeComputationJob> jobs = new ArrayList<>(decompositions.size());
             final TreeBuilder builder = useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder();
-            for (Decomposition d : decompositions) {
-                if (Double.isInfinite(d.getScore())) continue;
-                final TreeComputationJob job = new TreeComputationJob(builder, null, d);
-                submitSubJob(job);
-                jobs.add(job);
+            final TopKThreshold threshold = bounds == null ? null : new TopKThreshold(k);
+            final DoubleEndWeightedQueue2<ExactResult> graphCache = newGraphCache(MAX_GRAPH_CACHE_SIZE);
+            final double treeSizeIncrease = treeSize - previousTreeSize;
+            if (bounds == null) {
+                for (Decomposition d : decompositions) {
+                    if (Double.isInfinite(d.getScore())) continue;
+                    final TreeComputationJob job = new TreeComputationJob(builder, graphCache, d, previousResults.get(d), treeSizeIncrease, null, -1, treeSize, null);
+                    submitSubJob(job);
+                    jobs.add(job);
+                }
+            } else {
+                for (int index : bounds.bestFirstOrder(treeSize)) {
+                    final Decomposition d = decompositions.get(index);
+                    if (Double.isInfinite(d.getScore())) continue;
+                    final TreeComputationJob job = new TreeComputationJob(builder, graphCache, d, previousResults.get(d), treeSizeIncrease, bounds, index, treeSize, threshold);
+                    submitSubJob(job);
+                    jobs.add(job);
+                }
             }
-            int counter = 0;
+            int counter = 0, skipped = 0;
             for (TreeComputationJob job : jobs) {
-                results.add(job.awaitResult());
+                final ExactResult r = job.awaitResult();
+                if (r != null) results.add(r);
+                else ++skipped;
                 if (++counter % 100 == 0) {
                     checkTimeout();
                 }
             }
+            if (skipped > 0)
+                LOG().debug("Skipped " + skipped + " of " + jobs.size() + " candidates with tree size " + treeSize + " due to their score upper bound");
             Collections.sort(results, Collections.reverseOrder());
             final int treeSizeCheck = Math.min(results.size(), MIN_NUMBER_OF_TREES_CHECK_FOR_INTENSITY);
             if (tss == null || checkForTreeQuality(results.subList(0, treeSizeCheck), false)) {
                 break;
             }
+            previousResults.clear();
+            for (ExactResult r : graphCache) previousResults.put(r.decomposition, r);
+            previousTreeSize = treeSize;
             inc += TREE_SIZE_INCREASE;
             treeSize += TREE_SIZE_INCREASE;
         }
@@ -226,6 +272,38 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         return exact;
     }
 
+    /**
+     * keeps the unreduced graphs of the best trees. The graph of a result is released when it is removed from the cache
+     */
+    static DoubleEndWeightedQueue2<ExactResult> newGraphCache(int capacity) {
+        final DoubleEndWeightedQueue2<ExactResult> cache = new DoubleEndWeightedQueue2<>(capacity, new Comparator<ExactResult>() {
+            @Override
+            public int compare(ExactResult o1, ExactResult o2) {
+                final int c = o1.decomposition.getCandidate().compareTo(o2.decomposition.getCandidate());
+                if (c != 0) return c;
+                return o1.decomposition.getIon().toString().compareTo(o2.decomposition.getIon().toString());
+            }
+        });
+        cache.setCallback(new TObjectProcedure<ExactResult>() {
+            @Override
+            public boolean execute(ExactResult r) {
+                r.graph = null;
+                return true;
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * @return the reduced graph of the given result. Uses the cached graph if available.
+     */
+    private FGraph getReducedGraph(ExactResult r) {
+        if (r.graph == null) return analyzer.buildGraph(pinput, r.decomposition);
+        final FGraph graph = analyzer.performGraphReduction(r.graph, 0d);
+        r.graph = null;
+        return graph;
+    }
+
     @NotNull
     private ExtendedCriticalPathHeuristicTreeBuilder getHeuristicTreeBuilder() {
         return new ExtendedCriticalPathHeuristicTreeBuilder();
@@ -246,7 +324,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph = analyzer.buildGraph(pinput, template.decomposition);
+            FGraph graph = getReducedGraph(template);
             final FTree tree = analyzer.getTreeBuilder().computeTree().withMultithreading(1).withTimeLimit(Math.min(restTime, secondsPerTree)).withMinimalScore(template.score - 1e-3)/*.withTemplate(template.tree)*/.solve(pinput, graph).tree;
             analyzer.addTreeAnnotations(graph, tree);
             recalculateScore(tree, "ExactJob");
@@ -264,7 +342,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph = analyzer.buildGraph(pinput, template.decomposition);
+            FGraph graph = getReducedGraph(template);
             final FTree tree = template.tree;
             analyzer.addTreeAnnotations(graph, tree);
             tick();
@@ -273,23 +351,74 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         }
     }
 
+    /**
+     * Computes the tree for a single candidate. If bounds are given, the job returns null without computing a tree
+     * if the score upper bound of the candidate is below the current threshold.
+     * If the candidate was computed in the previous tree size iteration and its graph is still cached, the new tree
+     * size bonus is applied to this graph instead of building it again. The previous tree is passed as template, which
+     * is used as start solution by solvers that support start values (Gurobi, CPLEX and branch and bound). GLPK and
+     * the heuristic ignore it.
+     * Results with a graph cache keep their unreduced graph if it is among the best ones.
+     */
     protected class TreeComputationJob extends BasicJJob<ExactResult> {
 
         protected final TreeBuilder treeBuilder;
         protected final DoubleEndWeightedQueue2<ExactResult> graphCache;
         protected final Decomposition decomposition;
+        protected final ExactResult previous;
+        protected final double treeSizeIncrease;
+        protected final CandidateBounds bounds;
+        protected final int index;
+        protected final double treeSize;
+        protected final TopKThreshold threshold;
 
         public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition) {
+            this(treeBuilder, graphCache, decomposition, null, 0d, null, -1, 0d, null);
+        }
+
+        public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition, ExactResult previous, double treeSizeIncrease, CandidateBounds bounds, int index, double treeSize, TopKThreshold threshold) {
             this.treeBuilder = treeBuilder;
             this.graphCache = graphCache;
             this.decomposition = decomposition;
+            this.previous = previous;
+            this.treeSizeIncrease = treeSizeIncrease;
+            this.bounds = bounds;
+            this.index = index;
+            this.treeSize = treeSize;
+            this.threshold = threshold;
         }
 
         @Override
         protected ExactResult compute() throws Exception {
-            final FGraph graph = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
-            final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pinput, graph).tree;
+            final boolean heuristic = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder;
+            // the bound of a previous tree size is still valid after shifting it, so we might not need the graph at all
+            if (bounds != null && threshold.isBelow(bounds.getUpperBound(index, treeSize))) {
+                if (previous != null) previous.graph = null;
+                tick();
+                return null;
+            }
+            // bounds and cached graphs are unreduced, as the reduction depends on the tree size
+            FGraph graph = null;
+            if (previous != null && previous.graph != null) {
+                if (TreeSizeScorer.fastReplace(previous.graph, treeSizeIncrease)) graph = previous.graph;
+                previous.graph = null;
+            }
+            if (graph == null)
+                graph = analyzer.buildGraphWithoutReduction(pinput, decomposition, heuristic || analyzer.getReduction() == null);
+            if (bounds != null) {
+                bounds.setUpperBound(index, graph, treeSize);
+                if (threshold.isBelow(bounds.getUpperBound(index, treeSize))) {
+                    tick();
+                    return null;
+                }
+            }
+            final FGraph reduced;
+            if (heuristic || analyzer.getReduction() == null) reduced = graph;
+            else reduced = analyzer.performGraphReduction(graphCache == null ? graph : new FGraph(graph), 0d);
+            final FTree template = previous == null ? null : previous.tree;
+            final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(template).solve(pinput, reduced).tree;
             final ExactResult er = new ExactResult(decomposition, null, tree, tree.getTreeWeight());
+            if (threshold != null) threshold.add(tree.getTreeWeight());
             if (graphCache != null) {
                 double score = graphCache.getWeightLowerbound();
                 if (tree.getTreeWeight() > score) {
@@ -307,6 +436,104 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         }
     }
 
+    /**
+     * Upper bounds on the tree scores of all candidates. The bound of a graph is the sum over all colors of the
+     * best (non-negative) weight of an edge into this color, as a tree contains at most one vertex of each color.
+     * Increasing the tree size by x increases each edge weight by at most x, so a bound computed for a smaller tree
+     * size stays valid if it is increased by x times the number of colors.
+     * There is no bound without the graph: loss scorers only score the losses of a graph and their maximal score is
+     * unknown, and graph scorers (e.g. the isotope pattern in MS2) depend on the root. So a candidate is only skipped
+     * without building its graph if it already has a bound from a previous tree size iteration.
+     */
+    protected static final class CandidateBounds {
+        private final List<Decomposition> decompositions;
+        private final double[] upperBounds, treeSizes;
+        private final int[] numberOfColors;
+
+        protected CandidateBounds(List<Decomposition> decompositions) {
+            this.decompositions = decompositions;
+            this.upperBounds = new double[decompositions.size()];
+            this.treeSizes = new double[decompositions.size()];
+            this.numberOfColors = new int[decompositions.size()];
+            Arrays.fill(upperBounds, Double.POSITIVE_INFINITY);
+        }
+
+        protected double getUpperBound(int index, double treeSize) {
+            final double ub = upperBounds[index];
+            if (Double.isInfinite(ub)) return ub;
+            return ub + Math.max(0d, treeSize - treeSizes[index]) * numberOfColors[index];
+        }
+
+        protected void setUpperBound(int index, FGraph graph, double treeSize) {
+            final double[] best = new double[graph.maxColor() + 1];
+            final boolean[] used = new boolean[best.length];
+            for (Fragment f : graph) {
+                final int color = f.getColor();
+                for (int i = 0, k = f.getInDegree(); i < k; ++i) {
+                    best[color] = Math.max(best[color], f.getIncomingEdge(i).getWeight());
+                    used[color] = true;
+                }
+            }
+            double ub = 0d;
+            int colors = 0;
+            for (int c = 0; c < best.length; ++c) {
+                if (used[c]) {
+                    ub += best[c];
+                    ++colors;
+                }
+            }
+            // each job writes only its own entry. They are read after the job is finished.
+            upperBounds[index] = ub;
+            treeSizes[index] = treeSize;
+            numberOfColors[index] = colors;
+        }
+
+        /**
+         * @return indizes of the candidates, ordered by decreasing upper bound. Candidates without bound are ordered
+         * by their decomposition score.
+         */
+        protected List<Integer> bestFirstOrder(final double treeSize) {
+            final List<Integer> order = new ArrayList<>(decompositions.size());
+            for (int i = 0; i < decompositions.size(); ++i) order.add(i);
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    final int c = Double.compare(getUpperBound(b, treeSize), getUpperBound(a, treeSize));
+                    if (c != 0) return c;
+                    return Double.compare(decompositions.get(b).getScore(), decompositions.get(a).getScore());
+                }
+            });
+            return order;
+        }
+    }
+
+    /**
+     * Score of the k-th best tree computed so far. Is negative infinity as long as less than k trees are computed.
+     */
+    protected static final class TopKThreshold {
+        // tolerance for rounding errors, as bounds and tree scores are summed up in different order
+        private static final double EPSILON = 1e-6;
+        private final int k;
+        private final PriorityQueue<Double> scores;
+        private volatile double threshold = Double.NEGATIVE_INFINITY;
+
+        protected TopKThreshold(int k) {
+            this.k = k;
+            this.scores = new PriorityQueue<>(k + 1);
+        }
+
+        protected synchronized void add(double score) {
+            if (scores.size() >= k && score <= scores.peek()) return;
+            scores.add(score);
+            if (scores.size() > k) scores.poll();
+            if (scores.size() >= k) threshold = scores.peek();
+        }
+
+        protected boolean isBelow(double upperBound) {
+            return upperBound + EPSILON < threshold;
+        }
+    }
+
     private void checkTimeout() {
         final long time = System.currentTimeMillis();
         final int elapsedTime = (int) ((time - startTime) / 1000);
@@ -325,10 +552,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph;
-            if (r.graph == null) {
-                graph = analyzer.buildGraph(pinput, r.decomposition);
-            } else graph = r.graph;
+            final FGraph graph = getReducedGraph(r);
             final FTree tree = r.tree;
             return recalibrate(pinput, tb, tree, graph);
         }
@@ -23,9 +23,12 @@ import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
 import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaEncodingError;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaVisitor;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
 import de.unijena.bioinf.ChemistryBase.chem.utils.scoring.Hetero2CarbonScorer;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.math.ExponentialDistribution;
 import de.unijena.bioinf.ChemistryBase.math.LogNormalDistribution;
 import de.unijena.bioinf.ChemistryBase.ms.*;
@@ -35,6 +38,7 @@ import de.unijena.bioinf.ChemistryBase.ms.inputValidators.Warning;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.filtering.*;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphReduction;
@@ -53,7 +57,11 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
 import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePattern;
 import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
 import gnu.trove.procedure.TLongProcedure;
 
@@ -112,6 +120,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     private GraphReduction reduction;
     private IsotopePatternInMs2Scorer isoInMs2Scorer;
     private IsotopeInMs2Handling isotopeInMs2Handling;
+    private final ScorerStatistics lossScorerStatistics = new ScorerStatistics();
+    private ScoreCache scoreCache;
 
     public enum IsotopeInMs2Handling {
         /**
@@ -518,22 +528,40 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         getDecomposersFor(pmds, constraints, decomposers, constraintList);
 
         decompositionList.set(parentPeak, new DecompositionList(decomps));
-        int j = 0;
-        for (ProcessedPeak peak : processedPeaks.subList(0, processedPeaks.size() - 1)) {
-            peak.setIndex(j++);
-            final List<Decomposition> decompositions = new ArrayList<>();
-            final double mz = peak.getMass();
-            for (Ionization ion : ionModes) {
-                final double mass = ion.subtractFromMass(mz);
+        // decompose all fragment peaks of one ionization in a single batch: the ERTs are prepared once, overlapping
+        // mass windows are decomposed only once and the peaks are distributed over the threads of the job manager
+        final List<ProcessedPeak> fragmentPeaks = processedPeaks.subList(0, processedPeaks.size() - 1);
+        final List<List<Decomposition>> decompositions = new ArrayList<>(fragmentPeaks.size());
+        for (int j=0; j < fragmentPeaks.size(); ++j) {
+            fragmentPeaks.get(j).setIndex(j);
+            decompositions.add(new ArrayList<Decomposition>());
+        }
+        for (Ionization ion : ionModes) {
+            final TIntArrayList peakIndizes = new TIntArrayList(fragmentPeaks.size());
+            final TDoubleArrayList masses = new TDoubleArrayList(fragmentPeaks.size());
+            final TDoubleArrayList tolerances = new TDoubleArrayList(fragmentPeaks.size());
+            for (int j=0; j < fragmentPeaks.size(); ++j) {
+                final ProcessedPeak peak = fragmentPeaks.get(j);
+                final double mass = ion.subtractFromMass(peak.getMass());
                 if (mass > 0) {
-                    final HashSet<MolecularFormula> formulas = new HashSet<>();
-                    for (int D=0; D < decomposers.size(); ++D) {
-                        formulas.addAll(decomposers.get(D).decomposeToFormulas(mass, fragmentDeviation.absoluteFor(peak.getMass()), constraintList.get(D)));
-                    }
-                    for (MolecularFormula f : formulas) decompositions.add(new Decomposition(f, ion, 0d));
+                    peakIndizes.add(j);
+                    masses.add(mass);
+                    tolerances.add(fragmentDeviation.absoluteFor(peak.getMass()));
                 }
             }
-            decompositionList.set(peak, new DecompositionList(decompositions));
+            final List<HashSet<MolecularFormula>> formulas = new ArrayList<>(peakIndizes.size());
+            for (int k=0; k < peakIndizes.size(); ++k) formulas.add(new HashSet<MolecularFormula>());
+            for (int D=0; D < decomposers.size(); ++D) {
+                final List<List<MolecularFormula>> batch = decomposers.get(D).decomposeToFormulas(masses.toArray(), tolerances.toArray(), constraintList.get(D), SiriusJobs.getGlobalJobManager());
+                for (int k=0; k < batch.size(); ++k) formulas.get(k).addAll(batch.get(k));
+            }
+            for (int k=0; k < peakIndizes.size(); ++k) {
+                final List<Decomposition> list = decompositions.get(peakIndizes.get(k));
+                for (MolecularFormula f : formulas.get(k)) list.add(new Decomposition(f, ion, 0d));
+            }
+        }
+        for (int j=0; j < fragmentPeaks.size(); ++j) {
+            decompositionList.set(fragmentPeaks.get(j), new DecompositionList(decompositions.get(j)));
         }
         parentPeak.setIndex(processedPeaks.size() - 1);
         assert parentPeak == processedPeaks.get(processedPeaks.size() - 1);
@@ -635,7 +663,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
                     double score = 0d;
                     int k = 0;
                     for (DecompositionScorer<?> scorer : decompositionScorers) {
-                        score += ((DecompositionScorer<Object>) scorer).score(f.getCandidate(),f.getIon(), processedPeaks.get(i), input, preparations.get(k++));
+                        score += scoreDecomposition((DecompositionScorer<Object>) scorer, f, processedPeaks.get(i), input, preparations.get(k++));
                     }
                     scored.add(new Decomposition(f.getCandidate(),f.getIon(), score));
                 }
@@ -652,7 +680,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
                 int k = 0;
                 final Decomposition f = scored.get(j);
                 for (DecompositionScorer<?> scorer : rootScorers) {
-                    score += ((DecompositionScorer<Object>) scorer).score(f.getCandidate(),f.getIon(), input.getParentPeak(), input, preparations.get(k++));
+                    score += scoreDecomposition((DecompositionScorer<Object>) scorer, f, input.getParentPeak(), input, preparations.get(k++));
                 }
                 scored.set(j, new Decomposition(scored.get(j).getCandidate(), scored.get(j).getIon(), score));
 
@@ -667,6 +695,12 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         return input;
     }
 
+    private double scoreDecomposition(DecompositionScorer<Object> scorer, Decomposition f, ProcessedPeak peak, ProcessedInput input, Object precomputed) {
+        if (scoreCache != null && scorer instanceof ContextFreeScorer)
+            return scoreCache.getDecompositionScore(scorer, f.getCandidate(), f.getIon(), peak, input, precomputed);
+        return scorer.score(f.getCandidate(), f.getIon(), peak, input, precomputed);
+    }
+
     ProcessedInput preprocessInputBeforeScoring(ProcessedInput input) {
         input = performPreprocessing(input);
         input = performNormalization(input);
@@ -698,6 +732,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      */
     public FragmentationPatternAnalysis() {
         this.decomposers = new DecomposerCache();
+        final int cacheSize = PropertyManager.getIntProperty(ScoreCache.CACHE_SIZE_PROPERTY, 0);
+        this.scoreCache = cacheSize > 0 ? new ScoreCache(cacheSize) : null;
         setInitial();
     }
 
@@ -1301,7 +1337,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         return buildGraphWithoutReduction(input,candidate,true);
     }
 
-    private FGraph buildGraphWithoutReduction(ProcessedInput input, Decomposition candidate, boolean topologicalSort) {
+    FGraph buildGraphWithoutReduction(ProcessedInput input, Decomposition candidate, boolean topologicalSort) {
         // build Graph
         FGraph graph = graphBuilder.fillGraph(
                 graphBuilder.addRoot(graphBuilder.initializeEmptyGraph(input),
@@ -1560,6 +1596,29 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         } else return parameterHelper.toClassName(someClass);
     }
 
+    /**
+     * @return the cache for scores of {@link ContextFreeScorer}s, or null if scores are not cached
+     */
+    public ScoreCache getScoreCache() {
+        return scoreCache;
+    }
+
+    /**
+     * The scores of {@link ContextFreeScorer}s are cached and shared between all compounds scored by this analysis.
+     * The cache has to be cleared if the parameters of a scorer are changed.
+     * @param scoreCache the cache or null to disable caching
+     */
+    public void setScoreCache(ScoreCache scoreCache) {
+        this.scoreCache = scoreCache;
+    }
+
+    /**
+     * @return time spent in each loss scorer during graph scoring
+     */
+    public ScorerStatistics getLossScorerStatistics() {
+        return lossScorerStatistics;
+    }
+
     public FGraph performGraphScoring(FGraph graph) {
         // score graph
         final Iterator<Loss> edges = graph.lossIterator();
@@ -1568,11 +1627,23 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         final double[] peakScores = scoring.getPeakScores();
         final double[][] peakPairScores = scoring.getPeakPairScores();
         final LossScorer[] lossScorers = this.lossScorers.toArray(new LossScorer[this.lossScorers.size()]);
-        final Object[] precomputeds = new Object[lossScorers.length];
         final ScoredFormulaMap map = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
         final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
-        for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = lossScorers[i].prepare(input);
-        while (edges.hasNext()) {
+        // the scores are computed column-wise: first the vertex and peak pair scores of all edges, then the scores
+        // of each loss scorer for all edges. Each edge is scored in the same order as before, so the sum is the same.
+        final Loss[] losses = new Loss[graph.numberOfEdges()];
+        final double[] scores = new double[losses.length];
+        // index of the loss formula in lossFormulas, -1 for edges from the pseudo root
+        final int[] lossFormulaIds = new int[losses.length];
+        final TObjectIntHashMap<MolecularFormula> lossFormulaIndex = new TObjectIntHashMap<>(losses.length, 0.75f, -1);
+        final List<MolecularFormula> lossFormulas = new ArrayList<>();
+        // losses are grouped by their packed formula, which is the difference of the packed fragment formulas.
+        // Losses whose fragments cannot be packed are grouped by their formula object.
+        final MolecularFormulaPacker packer = newPackerFor(graph);
+        final long[] packedFormulas = packer == null ? null : packFragmentFormulas(graph, packer);
+        final TLongIntHashMap packedLossFormulaIndex = new TLongIntHashMap(losses.length, 0.75f, -1, -1);
+        int numberOfLosses = 0;
+        for (int k = 0; edges.hasNext(); ++k) {
             final Loss loss = edges.next();
             final Fragment u = loss.getSource();
             final Fragment v = loss.getTarget();
@@ -1586,18 +1657,92 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
             if (!u.isRoot())
                 score += peakPairScores[peakAno.get(u).getIndex()][peakAno.get(v).getIndex()]; // TODO: Umdrehen!
             assert !Double.isInfinite(score);
-            // add the score of the loss
-            if (!u.isRoot())
-                for (int i = 0; i < lossScorers.length; ++i)
-                    score += lossScorers[i].score(loss, input, precomputeds[i]);
-            assert !Double.isInfinite(score);
-            loss.setWeight(score);
+            losses[k] = loss;
+            scores[k] = score;
+            if (u.isRoot()) {
+                lossFormulaIds[k] = -1;
+            } else {
+                ++numberOfLosses;
+                final long packedLoss = packedFormulas == null || packedFormulas[u.getVertexId()] < 0 || packedFormulas[v.getVertexId()] < 0
+                        ? -1 : packer.trySubtract(packedFormulas[u.getVertexId()], packedFormulas[v.getVertexId()]);
+                int id;
+                if (packedLoss >= 0) {
+                    id = packedLossFormulaIndex.get(packedLoss);
+                    if (id < 0) {
+                        id = lossFormulas.size();
+                        lossFormulas.add(loss.getFormula());
+                        packedLossFormulaIndex.put(packedLoss, id);
+                    }
+                } else {
+                    id = lossFormulaIndex.get(loss.getFormula());
+                    if (id < 0) {
+                        id = lossFormulas.size();
+                        lossFormulas.add(loss.getFormula());
+                        lossFormulaIndex.put(loss.getFormula(), id);
+                    }
+                }
+                lossFormulaIds[k] = id;
+            }
+        }
+        // add the score of the loss
+        final double[] column = new double[lossFormulas.size()];
+        for (LossScorer scorer : lossScorers) {
+            final long start = System.nanoTime();
+            final Object precomputed = scorer.prepare(input);
+            if (scorer instanceof LossFormulaScorer) {
+                // score each loss formula only once
+                final LossFormulaScorer formulaScorer = (LossFormulaScorer) scorer;
+                if (scoreCache != null && scorer instanceof ContextFreeScorer) {
+                    for (int i = 0; i < column.length; ++i)
+                        column[i] = scoreCache.getLossScore(formulaScorer, lossFormulas.get(i), input, precomputed);
+                } else {
+                    for (int i = 0; i < column.length; ++i)
+                        column[i] = formulaScorer.scoreLoss(lossFormulas.get(i), input, precomputed);
+                }
+                for (int k = 0; k < losses.length; ++k)
+                    if (lossFormulaIds[k] >= 0) scores[k] += column[lossFormulaIds[k]];
+                lossScorerStatistics.add(scorer, System.nanoTime() - start, column.length);
+            } else {
+                for (int k = 0; k < losses.length; ++k)
+                    if (lossFormulaIds[k] >= 0) scores[k] += scorer.score(losses[k], input, precomputed);
+                lossScorerStatistics.add(scorer, System.nanoTime() - start, numberOfLosses);
+            }
+        }
+        for (int k = 0; k < losses.length; ++k) {
+            assert !Double.isInfinite(scores[k]);
+            losses[k].setWeight(scores[k]);
         }
         scoreIsotopesInMs2(input, graph);
 
         return graph;
     }
 
+    /**
+     * @return a packer for all subformulas of the fragments below the pseudo root, or null if they cannot be packed
+     */
+    private static MolecularFormulaPacker newPackerFor(FGraph graph) {
+        final List<Fragment> children = graph.getRoot().getChildren();
+        if (children.isEmpty()) return null;
+        final MolecularFormula[] formulas = new MolecularFormula[children.size()];
+        for (int i = 0; i < formulas.length; ++i) formulas[i] = children.get(i).getFormula();
+        try {
+            return MolecularFormulaPacker.newPackerFor(formulas);
+        } catch (FormulaEncodingError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return packed formulas of the fragments by vertex id, -1 if a formula cannot be packed
+     */
+    private static long[] packFragmentFormulas(FGraph graph, MolecularFormulaPacker packer) {
+        final long[] packedFormulas = new long[graph.numberOfVertices()];
+        for (Fragment f : graph) {
+            packedFormulas[f.getVertexId()] = f.isRoot() ? -1 : packer.tryEncode(f.getFormula());
+        }
+        return packedFormulas;
+    }
+
     public boolean isScoringIsotopes(ProcessedInput input) {
         final boolean isBrukerMaxis = input.getAnnotation(MsInstrumentation.class, MsInstrumentation.Unknown).hasIsotopesInMs2();
         switch (isotopeInMs2Handling) {
@@ -1789,6 +1934,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         setInitial();
+        if (scoreCache != null) scoreCache.clear();
         fillList(preprocessors, helper, document, dictionary, "preProcessing");
         fillList(postProcessors, helper, document, dictionary, "postProcessing");
         fillList(rootScorers, helper, document, dictionary, "rootScorers");
@@ -1800,6 +1946,9 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
             this.isoInMs2Scorer = (IsotopePatternInMs2Scorer) helper.unwrap(document, document.getFromDictionary(dictionary,"isotopesInMs2"));
         }
         peakMerger = (PeakMerger) helper.unwrap(document, document.getFromDictionary(dictionary, "merge"));
+        if (document.hasKeyInDictionary(dictionary, "reduction")) {
+            this.reduction = (GraphReduction) helper.unwrap(document, document.getFromDictionary(dictionary, "reduction"));
+        }
         if (document.hasKeyInDictionary(dictionary, "default"))
             defaultProfile = new MutableMeasurementProfile((MeasurementProfile) helper.unwrap(document, document.getFromDictionary(dictionary, "default")));
         else
@@ -1845,6 +1994,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         document.addListToDictionary(dictionary, "lossScorers", list);
         document.addToDictionary(dictionary, "isotopesInMs2", helper.wrap(document, isoInMs2Scorer));
         document.addToDictionary(dictionary, "merge", helper.wrap(document, peakMerger));
+        if (reduction instanceof Parameterized)
+            document.addToDictionary(dictionary, "reduction", helper.wrap(document, reduction));
         if (withProfile)
             document.addToDictionary(dictionary, "default", helper.wrap(document, new MutableMeasurementProfile(defaultProfile)));
 
@@ -0,0 +1,64 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+/**
+ * Graph annotation which is set by {@link SimpleReduction} and
+ * {@link de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction.TMinimalController}: number of
+ * vertices and edges of the graph before and after the reduction.
+ */
+public final class ReductionStatistics {
+
+    private final int verticesBefore, verticesAfter, edgesBefore, edgesAfter;
+
+    public ReductionStatistics(int verticesBefore, int verticesAfter, int edgesBefore, int edgesAfter) {
+        this.verticesBefore = verticesBefore;
+        this.verticesAfter = verticesAfter;
+        this.edgesBefore = edgesBefore;
+        this.edgesAfter = edgesAfter;
+    }
+
+    public int getVerticesBefore() {
+        return verticesBefore;
+    }
+
+    public int getVerticesAfter() {
+        return verticesAfter;
+    }
+
+    public int getEdgesBefore() {
+        return edgesBefore;
+    }
+
+    public int getEdgesAfter() {
+        return edgesAfter;
+    }
+
+    public int getDeletedVertices() {
+        return verticesBefore - verticesAfter;
+    }
+
+    public int getDeletedEdges() {
+        return edgesBefore - edgesAfter;
+    }
+
+    @Override
+    public String toString() {
+        return "deleted " + getDeletedVertices() + " of " + verticesBefore + " vertices and " + getDeletedEdges() + " of " + edgesBefore + " edges";
+    }
+}
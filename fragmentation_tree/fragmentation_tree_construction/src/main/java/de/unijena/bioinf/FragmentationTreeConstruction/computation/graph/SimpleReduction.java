@@ -17,25 +17,37 @@
  */
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
 
+import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
+import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.procedure.TDoubleProcedure;
 import gnu.trove.procedure.TIntDoubleProcedure;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
  * Created by kaidu on 29.04.2015.
+ *
+ * Deletes edges whose weight plus the upper bound of the subtree below their target is negative, until no further
+ * edge can be deleted. The number of deleted vertices and edges is stored as {@link ReductionStatistics} annotation
+ * of the graph.
+ *
+ * The lowerbound is not used: the deleted edges cannot be part of any optimal tree, whatever its score is. Deleting
+ * more edges with the help of the lowerbound would require an upper bound of the whole tree through each edge,
+ * which these vertex upper bounds do not provide.
  */
-public class SimpleReduction implements GraphReduction {
+public class SimpleReduction implements GraphReduction, Parameterized {
 
     @Override
     public FGraph reduce(FGraph graph, double lowerbound) {
         graph.sortTopological();
-        final int N = graph.numberOfEdges();
+        final int verticesBefore = graph.numberOfVertices(), edgesBefore = graph.numberOfEdges();
         final double[] upperbounds = new double[graph.numberOfVertices()];
         final TIntDoubleHashMap2[] scoresPerColor = new TIntDoubleHashMap2[graph.numberOfVertices()];
         for (Fragment u : graph) {
@@ -50,9 +62,23 @@ public class SimpleReduction implements GraphReduction {
             f.compact();
         }
 
+        final ReductionStatistics statistics = new ReductionStatistics(verticesBefore, graph.numberOfVertices(), edgesBefore, graph.numberOfEdges());
+        graph.setAnnotation(ReductionStatistics.class, statistics);
+        LoggerFactory.getLogger(SimpleReduction.class).debug("graph reduction " + statistics);
+
         return graph;
     }
 
+    @Override
+    public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        // no parameters
+    }
+
+    @Override
+    public <G, D, L> void exportParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        // no parameters
+    }
+
     private int deleteEdges(FGraph graph, double[] upperbounds) {
         final int N = graph.numberOfVertices();
         int counter=0;
@@ -17,18 +17,20 @@
  */
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
 
+import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaEncodingError;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * @author Kai Dührkop
@@ -83,6 +85,36 @@ public class SubFormulaGraphBuilder implements GraphBuilder {
             }
         }
 
+        // all fragments in the graph are subformulas of pmd, so the index only has to consider the elements of pmd
+        final Element[] elements = pmd.elementArray();
+        final int[] maxAmounts = new int[elements.length];
+        for (int k = 0; k < elements.length; ++k) maxAmounts[k] = pmd.numberOf(elements[k]);
+        final HashMap<Ionization, FragmentIndex> indizes = new HashMap<>();
+        for (Fragment f : graph) {
+            if (f.isRoot()) continue;
+            getIndex(indizes, ion.get(f), elements, maxAmounts).add(f);
+        }
+
+        // the fragments are also packed into longs, such that each loss is computed by a single subtraction and
+        // equal losses share the same formula object
+        MolecularFormulaPacker packer;
+        try {
+            packer = MolecularFormulaPacker.newPackerFor(pmd);
+        } catch (FormulaEncodingError e) {
+            packer = null;
+        }
+        // packed formulas of the fragments by vertex id, -1 if a formula cannot be packed
+        final TLongArrayList packedFormulas = new TLongArrayList(graph.numberOfVertices());
+        for (int k = 0; k < graph.numberOfVertices(); ++k) packedFormulas.add(-1);
+        if (packer != null) {
+            for (Fragment f : graph) {
+                if (!f.isRoot()) packedFormulas.set(f.getVertexId(), packer.tryEncode(f.getFormula()));
+            }
+        }
+        final TLongObjectHashMap<MolecularFormula> losses = new TLongObjectHashMap<>();
+
+        final int[] amounts = new int[elements.length];
+        final ArrayList<Fragment> parents = new ArrayList<>();
         final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(graph.getAnnotationOrThrow(ProcessedInput.class).getMergedPeaks());
         Collections.sort(peaks, new ProcessedPeak.MassComparator());
         for (int i = peaks.size() - 1; i >= 0; --i) {
@@ -93,28 +125,130 @@ public class SubFormulaGraphBuilder implements GraphBuilder {
                 final MolecularFormula formula = decomposition.getCandidate();
                 final boolean hasEdge = formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula);
                 if (hasEdge) {
+                    final FragmentIndex index = getIndex(indizes, decomposition.getIon(), elements, maxAmounts);
+                    for (int k = 0; k < elements.length; ++k) amounts[k] = formula.numberOf(elements[k]);
+                    parents.clear();
+                    index.findSuperFormulas(amounts, parents);
+                    final long packedFormula = packer == null ? -1 : packer.tryEncode(formula);
                     Fragment newFragment = null;
-                    for (Fragment f : graph) {
-                        if (f.isRoot() || peakAno.get(f).getIndex() == pi || !ion.get(f).equals(decomposition.getIon())) continue;
+                    for (Fragment f : parents) {
+                        if (peakAno.get(f).getIndex() == pi) continue;
                         final MolecularFormula fragmentFormula = f.getFormula();
                         assert (peakAno.get(f).getMz() > peak.getMz());
-                        if (fragmentFormula.getMass() > formula.getMass() && fragmentFormula.isSubtractable(formula)) {
+                        if (fragmentFormula.getMass() > formula.getMass()) {
                             if (newFragment == null) {
                                 newFragment = graph.addFragment(decomposition.getCandidate());
                                 ion.set(newFragment, decomposition.getIon());
                                 peakAno.set(newFragment, peak);
                                 newFragment.setColor(peak.getIndex());
                                 scoring.put(decomposition.getCandidate(), decomposition.getScore());
+                                packedFormulas.add(packedFormula);
                             }
-                            graph.addLoss(f, newFragment);
+                            final long packedParent = packedFormulas.get(f.getVertexId());
+                            final MolecularFormula loss;
+                            if (packedParent >= 0 && packedFormula >= 0) {
+                                final long packedLoss = packer.subtract(packedParent, packedFormula);
+                                final MolecularFormula known = losses.get(packedLoss);
+                                if (known != null) {
+                                    loss = known;
+                                } else {
+                                    loss = packer.decode(packedLoss, pmd.getTableSelection());
+                                    losses.put(packedLoss, loss);
+                                }
+                            } else {
+                                loss = fragmentFormula.subtract(formula);
+                            }
+                            // each parent is reported only once, so there cannot be an edge yet
+                            graph.addLossWithoutCheck(f, newFragment, loss);
                         }
                     }
+                    if (newFragment != null) index.add(newFragment);
                 }
             }
         }
         return graph;
     }
 
+    private static FragmentIndex getIndex(HashMap<Ionization, FragmentIndex> indizes, Ionization ion, Element[] elements, int[] maxAmounts) {
+        FragmentIndex index = indizes.get(ion);
+        if (index == null) {
+            index = new FragmentIndex(elements, maxAmounts);
+            indizes.put(ion, index);
+        }
+        return index;
+    }
+
+    /**
+     * Index over the fragments of one ionization which finds all fragments whose formula contains a given formula.
+     * For each element e and each amount c there is a bitset of all fragments containing at least c atoms of e. The
+     * fragments containing a formula are the intersection of the bitsets of its element amounts, which is computed
+     * 64 fragments at a time. Fragments are reported in the order they were added.
+     *
+     * All formulas must have non-negative amounts, which holds for decompositions of peaks. A negative amount would
+     * be indexed like an amount of 0, so fragments which are not superformulas could be reported.
+     */
+    private static class FragmentIndex {
+        private final Element[] elements;
+        /**
+         * atLeast[e][c-1] is the bitset of all fragments with at least c atoms of element e
+         */
+        private final long[][][] atLeast;
+        private final ArrayList<Fragment> fragments;
+        private final long[][] selection;
+        private int capacity;
+
+        private FragmentIndex(Element[] elements, int[] maxAmounts) {
+            this.elements = elements;
+            this.capacity = 16;
+            this.atLeast = new long[elements.length][][];
+            for (int k = 0; k < elements.length; ++k) {
+                atLeast[k] = new long[maxAmounts[k]][capacity];
+            }
+            this.fragments = new ArrayList<>();
+            this.selection = new long[elements.length][];
+        }
+
+        private void add(Fragment fragment) {
+            assert fragment.getFormula().isAllPositiveOrZero();
+            final int id = fragments.size();
+            fragments.add(fragment);
+            final int word = id >>> 6;
+            final long bit = 1L << (id & 63);
+            if (word >= capacity) {
+                capacity *= 2;
+                for (long[][] bitsets : atLeast) {
+                    for (int c = 0; c < bitsets.length; ++c) bitsets[c] = Arrays.copyOf(bitsets[c], capacity);
+                }
+            }
+            final MolecularFormula formula = fragment.getFormula();
+            for (int k = 0; k < elements.length; ++k) {
+                final long[][] bitsets = atLeast[k];
+                final int amount = Math.min(formula.numberOf(elements[k]), bitsets.length);
+                for (int c = 0; c < amount; ++c) bitsets[c][word] |= bit;
+            }
+        }
+
+        /**
+         * adds all fragments containing at least amounts[e] atoms of each element e to the given list
+         * @param amounts non-negative amounts of the elements of the index
+         */
+        private void findSuperFormulas(int[] amounts, List<Fragment> result) {
+            final int words = (fragments.size() + 63) >>> 6;
+            int n = 0;
+            for (int k = 0; k < amounts.length; ++k) {
+                if (amounts[k] > 0) selection[n++] = atLeast[k][amounts[k] - 1];
+            }
+            for (int w = 0; w < words; ++w) {
+                long bits = w == words - 1 && (fragments.size() & 63) != 0 ? (1L << (fragments.size() & 63)) - 1 : -1L;
+                for (int k = 0; k < n && bits != 0; ++k) bits &= selection[k][w];
+                while (bits != 0) {
+                    result.add(fragments.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
     /*
 
     @Override
@@ -17,42 +17,117 @@
  */
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction;
 
+import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
+import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.ReductionStatistics;
+import org.slf4j.LoggerFactory;
 
 /**
  * Created by Spectar on 05.11.2014.
+ *
+ * Graph reduction with the vertex upper bounds of {@link TReduce}: an edge (u,v) is deleted if its weight plus the
+ * upper bound of the subtree below v is negative. Vertices which are not reachable afterwards are deleted, too. This
+ * is repeated until no further edge can be deleted. Edges of the pseudo root are never deleted, as the tree builder
+ * has to choose a root even if all of them have a negative score. The number of deleted vertices and edges is stored
+ * as {@link ReductionStatistics} annotation of the graph.
+ *
+ * The lowerbound is not used: as in {@link de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SimpleReduction},
+ * the deleted edges cannot be part of any optimal tree, whatever its score is.
+ *
+ * Sebastian's vertex upper bounds are only valid if each edge goes from a lower to a higher color. For other graphs
+ * (e.g. with isotope peaks in MS/MS) only Tim's vertex upper bounds are used.
  */
-public class TMinimalController implements GraphReduction {
+public class TMinimalController implements GraphReduction, Parameterized {
+
+    private boolean strengthenSebastianBounds;
+
+    public TMinimalController() {
+        this.strengthenSebastianBounds = true;
+    }
+
+    public boolean isStrengthenSebastianBounds() {
+        return strengthenSebastianBounds;
+    }
+
+    public void setStrengthenSebastianBounds(boolean strengthenSebastianBounds) {
+        this.strengthenSebastianBounds = strengthenSebastianBounds;
+    }
 
     @Override
     public FGraph reduce(FGraph graph, double lowerbound) {
 
         graph.sortTopological();
-
+        final int verticesBefore = graph.numberOfVertices(), edgesBefore = graph.numberOfEdges();
+        final boolean colorsAreOrdered = colorsAreOrdered(graph);
 
         TReduce reduceInstance = new TReduce(graph);
 
-        reduceInstance.DoCheckVerticesAreTopSorted("FOO");
-
         // this applies to the following reduction code:
-        // enable-seb-vub-strength tim-vertex-ubs reduce-vub * ( clear-vertex-ubs seb-vertex-ubs tim-vertex-ubs reduce-vub reduce-unreach )
-        reduceInstance.gShouldStrengthenSebVertexUbs = true;
-        reduceInstance.doTimVertexUpperBounds();
-        reduceInstance.reduceEdgesByVertexUpperBound();
+        // enable-seb-vub-strength * ( clear-vertex-ubs seb-vertex-ubs tim-vertex-ubs reduce-vub reduce-unreach )
+        reduceInstance.gShouldStrengthenSebVertexUbs = strengthenSebastianBounds;
 
         boolean hasDeletedLastTime; // more human readable
 
         do {
-            hasDeletedLastTime = false;
-
             reduceInstance.clearVertexUpperBounds(Double.POSITIVE_INFINITY);
-            reduceInstance.doSebastianVertexUpperBounds();
+            if (colorsAreOrdered) reduceInstance.doSebastianVertexUpperBounds();
             reduceInstance.doTimVertexUpperBounds();
-            hasDeletedLastTime |= reduceInstance.reduceEdgesByVertexUpperBound();
-            hasDeletedLastTime |= reduceInstance.reduceUnreachableEdges();
+            hasDeletedLastTime = reduceInstance.reduceEdgesByVertexUpperBound();
+            hasDeletedLastTime |= reduceInstance.reduceUnreachableVertices();
         } while (hasDeletedLastTime);
 
-        return reduceInstance.getGraph();
+        for (Fragment f : graph) {
+            f.compact();
+        }
+
+        final ReductionStatistics statistics = new ReductionStatistics(verticesBefore, graph.numberOfVertices(), edgesBefore, graph.numberOfEdges());
+        graph.setAnnotation(ReductionStatistics.class, statistics);
+        LoggerFactory.getLogger(TMinimalController.class).debug("graph reduction " + statistics);
+
+        return graph;
+    }
+
+    /**
+     * Computes the vertex upper bounds which are used by {@link #reduce(FGraph, double)} without changing the graph.
+     * The bound of a vertex v is an upper bound for the score of every colorful subtree rooted at v, without the
+     * incoming edge of v. Sebastian's bounds are only used if the graph is already sorted topologically, as the
+     * graph is not sorted here.
+     *
+     * @return upper bounds indexed by vertex id
+     */
+    public double[] computeVertexUpperBounds(FGraph graph) {
+        final TReduce reduceInstance = new TReduce(graph);
+        reduceInstance.gShouldStrengthenSebVertexUbs = strengthenSebastianBounds;
+        reduceInstance.clearVertexUpperBounds(Double.POSITIVE_INFINITY);
+        if (graph.isTopologicalOrdered() && colorsAreOrdered(graph)) reduceInstance.doSebastianVertexUpperBounds();
+        reduceInstance.doTimVertexUpperBounds();
+        return reduceInstance.getUB();
+    }
+
+    private static boolean colorsAreOrdered(FGraph graph) {
+        for (Fragment v : graph) {
+            if (v == graph.getRoot()) continue;
+            for (int i = 0, n = v.getOutDegree(); i < n; ++i) {
+                final Loss e = v.getOutgoingEdge(i);
+                if (v.getColor() >= e.getTarget().getColor()) return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        if (document.hasKeyInDictionary(dictionary, "strengthenSebastianBounds"))
+            strengthenSebastianBounds = document.getBooleanFromDictionary(dictionary, "strengthenSebastianBounds");
+    }
+
+    @Override
+    public <G, D, L> void exportParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        document.addToDictionary(dictionary, "strengthenSebastianBounds", strengthenSebastianBounds);
     }
 }
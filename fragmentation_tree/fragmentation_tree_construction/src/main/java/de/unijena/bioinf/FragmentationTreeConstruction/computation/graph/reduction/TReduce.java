@@ -17,6 +17,7 @@
  */
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction;
 
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
@@ -279,32 +280,29 @@ public class TReduce {
         }
 
         int edgesDeleted = 0;
+        final ArrayList<Loss> toDelete = new ArrayList<Loss>();
 
         for (Fragment v : gGraph.getFragments()) {
 
-            List<Loss> edges = v.getOutgoingEdges();
-            ListIterator<Loss> it = edges.listIterator(0);
-            Loss e;
-            int i = 0;
-
-            while (it.hasNext()) {
-
-                e = it.next();
+            // the solver has to choose one of the roots, even if all of them have a negative score
+            if (v == gGraph.getRoot())
+                continue;
 
-                // check if the edge should be deleted
-                if (e.getWeight() + this.gUB[e.getTarget().getVertexId()] > 0) {
-                    // this edge will survive
-                    gScaredEdge = Math.min(gScaredEdge, e.getWeight() + this.gUB[e.getTarget().getVertexId()]);
-                    i++; // proceed to next edge
+            for (int i = 0, n = v.getOutDegree(); i < n; ++i) {
+                final Loss e = v.getOutgoingEdge(i);
+                final double x = e.getWeight() + this.gUB[e.getTarget().getVertexId()];
+                if (x < 0) {
+                    // every subtree using this edge can be improved by removing the edge
+                    toDelete.add(e);
                 } else {
-                    gGraph.deleteLoss(e); // save & fast deletion procedure
-                    edgesDeleted++;
-                    // must do that to evade iterator-access violation
-                    // even i points onto the last element, it.hasNext() will return true, since it didn't return
-                    // anything yet
-                    it = edges.listIterator(i);
+                    gScaredEdge = Math.min(gScaredEdge, x);
                 }
             }
+            // delete after iterating, as deleting an edge changes the order of the remaining edges
+            for (Loss e : toDelete)
+                gGraph.deleteLoss(e);
+            edgesDeleted += toDelete.size();
+            toDelete.clear();
         }
 
         gDeletedEdges += edgesDeleted;
@@ -312,6 +310,46 @@ public class TReduce {
         return edgesDeleted > 0;
     }
 
+    /**
+     * deletes all vertices (and their edges) which cannot be reached from the root anymore.
+     * In contrast to reduceUnreachableEdges, this is done in one pass and the deleted vertices are removed from the
+     * graph. Requires a top sorted graph and keeps the topological order.
+     *
+     * @return true, if at least one vertex has been deleted
+     */
+    public boolean reduceUnreachableVertices() {
+
+        final boolean[] reachable = new boolean[gGraph.numberOfVertices()];
+        reachable[gGraph.getRoot().getVertexId()] = true;
+        final ArrayList<Fragment> toDelete = new ArrayList<Fragment>();
+        int edgesDeleted = 0;
+
+        for (Fragment v : gGraph.getFragments()) {
+
+            if (v == gGraph.getRoot())
+                continue;
+
+            for (int i = 0, n = v.getInDegree(); i < n; ++i) {
+                if (reachable[v.getIncomingEdge(i).getSource().getVertexId()]) {
+                    reachable[v.getVertexId()] = true;
+                    break;
+                }
+            }
+            if (!reachable[v.getVertexId()]) {
+                toDelete.add(v);
+                edgesDeleted += v.getOutDegree();
+            }
+        }
+
+        if (toDelete.isEmpty())
+            return false;
+
+        gGraph.deleteFragmentsKeepTopologicalOrder(toDelete);
+        gDeletedEdges += edgesDeleted;
+
+        return true;
+    }
+
 
     /**
      * CMD: reduce-slide-strong
@@ -548,10 +586,8 @@ public class TReduce {
      */
     public void clearVertexUpperBounds(double initValue) {
 
-        this.gUB = new double[gGraph.numberOfVertices() - 1];
-        for (int i = this.gUB.length - 1; i > 0; i--) {
-            this.gUB[i] = initValue;
-        }
+        this.gUB = new double[gGraph.numberOfVertices()];
+        Arrays.fill(this.gUB, initValue);
     }
 
     /**
@@ -651,7 +687,7 @@ public class TReduce {
     private void sebastianVertexUpperBounds() {
 
         // i create a new edge that is just right know to initiate null-pointers!
-        Fragment nonExistingVertex = new Fragment(gGraph.numberOfVertices());
+        Fragment nonExistingVertex = new Fragment(gGraph.numberOfVertices(), MolecularFormula.emptyFormula());
         nonExistingVertex.setColor(this.VertexColorCount + 1); // number of colors + 1
 
         final Loss nullEdge = new Loss(nonExistingVertex, nonExistingVertex);
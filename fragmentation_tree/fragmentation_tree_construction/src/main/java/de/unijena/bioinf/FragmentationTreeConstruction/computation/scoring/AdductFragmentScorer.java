@@ -19,6 +19,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
@@ -29,7 +30,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
  * during fragmentation. I exclude Cl as this element might also occur in organic compounds.
  */
 @Deprecated
-public class AdductFragmentScorer implements LossScorer<Element[]> {
+public class AdductFragmentScorer implements LossFormulaScorer<Element[]> {
 
     protected double penalty = Math.log(0.05);
 
@@ -45,8 +46,13 @@ public class AdductFragmentScorer implements LossScorer<Element[]> {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Element[] precomputed) {
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Element[] precomputed) {
         for (Element e : precomputed)
-            if (loss.getFormula().numberOf(e) > 0) {
+            if (lossFormula.numberOf(e) > 0) {
                 return penalty;
             }
         return 0d;
@@ -28,7 +28,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 
 @Called("Chemical Prior")
-public class ChemicalPriorScorer implements DecompositionScorer<Object> {
+public class ChemicalPriorScorer implements DecompositionScorer<Object>, ContextFreeScorer {
 
     public static final double LEARNED_NORMALIZATION_CONSTANT = 0.17546357436139415d;
     public static final double LEARNED_NORMALIZATION_CONSTANT_FOR_ROOT = 0.43916395724493595d;
@@ -35,7 +35,7 @@ import java.util.*;
 
 // TODO: Add normalization as field
 @Called("Common Fragments")
-public class CommonFragmentsScore implements DecompositionScorer<Object>, MolecularFormulaScorer {
+public class CommonFragmentsScore implements DecompositionScorer<Object>, MolecularFormulaScorer, ContextFreeScorer {
 
     private final TObjectDoubleHashMap<MolecularFormula> commonFragments;
     private TObjectDoubleHashMap<MolecularFormula> recombinatedFragments;
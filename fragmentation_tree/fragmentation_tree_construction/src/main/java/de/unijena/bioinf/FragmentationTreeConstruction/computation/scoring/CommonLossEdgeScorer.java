@@ -29,7 +29,7 @@ import gnu.trove.procedure.TObjectDoubleProcedure;
 
 import java.util.*;
 
-public class CommonLossEdgeScorer implements LossScorer {
+public class CommonLossEdgeScorer implements LossFormulaScorer, ContextFreeScorer {
 
     public final static String[] ales_list = new String[]{
             "H2", "H2O", "CH4", "C2H4", "C2H2",
@@ -181,7 +181,12 @@ public class CommonLossEdgeScorer implements LossScorer {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
-        return score(loss.getFormula());
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
+        return score(lossFormula);
     }
 
     @Override
@@ -0,0 +1,30 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+/**
+ * Marks a scorer whose scores can be shared between compounds, as they depend only on the parameters of the scorer
+ * and on
+ * <ul>
+ *     <li>the loss formula for a {@link LossFormulaScorer}</li>
+ *     <li>the formula, its ionization and whether the peak is the parent peak for a {@link DecompositionScorer}</li>
+ * </ul>
+ * but neither on the peak, the graph nor the input otherwise. See {@link ScoreCache}.
+ */
+public interface ContextFreeScorer {
+}
@@ -19,12 +19,13 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.Called;
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 
 @Called("Loss RDBE")
-public class DBELossScorer implements LossScorer {
+public class DBELossScorer implements LossFormulaScorer, ContextFreeScorer {
 
     private double score;
 
@@ -51,7 +52,12 @@ public class DBELossScorer implements LossScorer {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
-        final int rdbe = loss.getFormula().doubledRDBE();
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
+        final int rdbe = lossFormula.doubledRDBE();
         if (rdbe < 0) return Math.max(Math.log(0.05), Math.abs(rdbe) * score);
         else return 0;
     }
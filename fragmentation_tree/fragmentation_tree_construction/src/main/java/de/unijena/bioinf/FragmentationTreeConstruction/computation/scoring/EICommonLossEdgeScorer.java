@@ -18,7 +18,7 @@ import java.util.*;
  * To change this template use File | Settings | File Templates.
  */
 @Called("EI Common Losses")
-public class EICommonLossEdgeScorer implements LossScorer {
+public class EICommonLossEdgeScorer implements LossFormulaScorer, ContextFreeScorer {
     public final static List<String> neutralLossList;
 
     static {
@@ -142,7 +142,12 @@ public class EICommonLossEdgeScorer implements LossScorer {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
-        return score(loss.getFormula());
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
+        return score(lossFormula);
     }
 
     public double score(MolecularFormula formula) {
@@ -19,6 +19,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.Called;
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
@@ -31,7 +32,7 @@ import java.util.List;
  * Different to RelativeLossSizeScorer because it don't punishes if loss sizes don't grow with parent mass (?)
  */
 @Called("FractionOfParent")
-public class FractionOfParentLossScorer implements LossScorer {
+public class FractionOfParentLossScorer implements LossFormulaScorer {
     //todo implement as PeakPairScorer?...
     @Override
     public Double prepare(ProcessedInput inputh) {
@@ -51,9 +52,14 @@ public class FractionOfParentLossScorer implements LossScorer {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
         double comparableMass = (Double) precomputed;
         // Score with fraction of the parentmass or largest mass in spectrum.
-        return Math.log(1 - (loss.getFormula().getMass() / comparableMass));
+        return Math.log(1 - (lossFormula.getMass() / comparableMass));
     }
 
     @Override
@@ -32,7 +32,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 @Called("Free Radical")
-public class FreeRadicalEdgeScorer implements LossScorer, MolecularFormulaScorer {
+public class FreeRadicalEdgeScorer implements LossFormulaScorer, MolecularFormulaScorer, ContextFreeScorer {
 
     private final TObjectDoubleHashMap<MolecularFormula> freeRadicals;
     private double generalRadicalScore;
@@ -101,7 +101,12 @@ public class FreeRadicalEdgeScorer implements LossScorer, MolecularFormulaScorer
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object x_) {
-        return score(loss.getFormula()) - normalization;
+        return scoreLoss(loss.getFormula(), input, x_);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object x_) {
+        return score(lossFormula) - normalization;
     }
 
     @Override
@@ -0,0 +1,33 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+
+/**
+ * A {@link LossScorer} whose score depends only on the molecular formula of the loss, but not on its source and
+ * target fragment. Such scorers are evaluated once for each distinct loss formula of a graph instead of once for
+ * each edge. score(loss, input, precomputed) has to return the same value as
+ * scoreLoss(loss.getFormula(), input, precomputed).
+ */
+public interface LossFormulaScorer<T> extends LossScorer<T> {
+
+    double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, T precomputed);
+
+}
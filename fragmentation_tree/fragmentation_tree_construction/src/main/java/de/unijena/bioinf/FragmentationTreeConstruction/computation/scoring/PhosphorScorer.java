@@ -27,7 +27,7 @@ import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 
-public class PhosphorScorer implements DecompositionScorer<Element[]>, LossScorer<Element[]> {
+public class PhosphorScorer implements DecompositionScorer<Element[]>, LossFormulaScorer<Element[]>, ContextFreeScorer {
     @Override
     public Element[] prepare(ProcessedInput input) {
         return new Element[]{
@@ -38,10 +38,15 @@ public class PhosphorScorer implements DecompositionScorer<Element[]>, LossScore
 
     @Override
     public double score(Loss loss, ProcessedInput input, Element[] phosphorAndSulfur) {
-        final int pnum = loss.getFormula().numberOf(phosphorAndSulfur[0]);
+        return scoreLoss(loss.getFormula(), input, phosphorAndSulfur);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Element[] phosphorAndSulfur) {
+        final int pnum = lossFormula.numberOf(phosphorAndSulfur[0]);
         if (pnum > 0) {
             // expect either one Sulfur or one Oxygen for each phosphor loss
-            if (loss.getFormula().numberOfOxygens() < pnum && loss.getFormula().numberOf(phosphorAndSulfur[1]) < pnum)
+            if (lossFormula.numberOfOxygens() < pnum && lossFormula.numberOf(phosphorAndSulfur[1]) < pnum)
                 return Math.log(0.25d);
             else return 0d;
         } else return 0d;
@@ -25,7 +25,7 @@ import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 
-public class PureCarbonNitrogenLossScorer implements LossScorer<Element[]> {
+public class PureCarbonNitrogenLossScorer implements LossFormulaScorer<Element[]>, ContextFreeScorer {
 
     private double penalty;
 
@@ -45,7 +45,11 @@ public class PureCarbonNitrogenLossScorer implements LossScorer<Element[]> {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Element[] halogens) {
-        final MolecularFormula f = loss.getFormula();
+        return scoreLoss(loss.getFormula(), input, halogens);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula f, ProcessedInput input, Element[] halogens) {
         final int nitrogen = f.numberOfNitrogens();
         final int carbon = f.numberOfCarbons();
         final int both = nitrogen+carbon;
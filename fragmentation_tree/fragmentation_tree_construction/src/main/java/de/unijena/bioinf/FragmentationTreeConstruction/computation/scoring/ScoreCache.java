@@ -0,0 +1,123 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+
+/**
+ * Bounded, thread-safe cache for the scores of {@link ContextFreeScorer}s. The same losses and fragment formulas
+ * occur in the graphs of many compounds, so a cache which is shared by all compounds of a run avoids scoring them
+ * again and again.
+ *
+ * Scorers are identified by their instance. If the parameters of a scorer are changed, the cache has to be cleared.
+ */
+public final class ScoreCache {
+
+    /**
+     * maximal number of cached scores. The cache of a {@link de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis}
+     * is disabled if this is 0 (default)
+     */
+    public static final String CACHE_SIZE_PROPERTY = "de.unijena.bioinf.sirius.scoring.cacheSize";
+
+    private final Cache<Key, Double> scores;
+
+    public ScoreCache(long maximumSize) {
+        this.scores = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    public <T> double getLossScore(LossFormulaScorer<T> scorer, MolecularFormula lossFormula, ProcessedInput input, T precomputed) {
+        final Key key = new Key(scorer, lossFormula, null, false);
+        final Double score = scores.getIfPresent(key);
+        if (score != null) return score;
+        final double value = scorer.scoreLoss(lossFormula, input, precomputed);
+        scores.put(key, value);
+        return value;
+    }
+
+    public <T> double getDecompositionScore(DecompositionScorer<T> scorer, MolecularFormula formula, Ionization ion, ProcessedPeak peak, ProcessedInput input, T precomputed) {
+        final Key key = new Key(scorer, formula, ion, peak == input.getParentPeak());
+        final Double score = scores.getIfPresent(key);
+        if (score != null) return score;
+        final double value = scorer.score(formula, ion, peak, input, precomputed);
+        scores.put(key, value);
+        return value;
+    }
+
+    public void clear() {
+        scores.invalidateAll();
+    }
+
+    public long size() {
+        return scores.size();
+    }
+
+    /**
+     * @return number of hits and misses since the cache was created
+     */
+    public CacheStats getStatistics() {
+        return scores.stats();
+    }
+
+    public double getHitRate() {
+        return scores.stats().hitRate();
+    }
+
+    @Override
+    public String toString() {
+        final CacheStats stats = scores.stats();
+        return "ScoreCache(size=" + scores.size() + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount() + ", hit rate=" + stats.hitRate() + ")";
+    }
+
+    private static final class Key {
+        private final Object scorer;
+        private final MolecularFormula formula;
+        private final Ionization ion;
+        private final boolean parent;
+        private final int hash;
+
+        private Key(Object scorer, MolecularFormula formula, Ionization ion, boolean parent) {
+            this.scorer = scorer;
+            this.formula = formula;
+            this.ion = ion;
+            this.parent = parent;
+            int h = System.identityHashCode(scorer);
+            h = 31 * h + formula.hashCode();
+            h = 31 * h + (ion == null ? 0 : ion.hashCode());
+            this.hash = 31 * h + (parent ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key) o;
+            return hash == k.hash && scorer == k.scorer && parent == k.parent && formula.equals(k.formula) && (ion == null ? k.ion == null : ion.equals(k.ion));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe counters for the time spent in each scorer, summed up over all scored graphs. Scorers are identified
+ * by their class name.
+ */
+public final class ScorerStatistics {
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param scorer          the scorer
+     * @param nanos           time spent in the scorer (including its preparation)
+     * @param numberOfScores  number of values computed by the scorer
+     */
+    public void add(Object scorer, long nanos, int numberOfScores) {
+        final Counter counter = counters.computeIfAbsent(nameOf(scorer), k -> new Counter());
+        counter.nanos.add(nanos);
+        counter.calls.increment();
+        counter.scores.add(numberOfScores);
+    }
+
+    public List<String> getScorerNames() {
+        final List<String> names = new ArrayList<>(counters.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Long.compare(getNanos(o2), getNanos(o1));
+            }
+        });
+        return names;
+    }
+
+    /**
+     * @return total time spent in the given scorer in nanoseconds
+     */
+    public long getNanos(String scorerName) {
+        final Counter c = counters.get(scorerName);
+        return c == null ? 0 : c.nanos.sum();
+    }
+
+    /**
+     * @return number of times the scorer was applied to a graph
+     */
+    public long getNumberOfCalls(String scorerName) {
+        final Counter c = counters.get(scorerName);
+        return c == null ? 0 : c.calls.sum();
+    }
+
+    /**
+     * @return number of values computed by the scorer. For loss scorers this is the number of edges or the number of
+     * distinct loss formulas, respectively
+     */
+    public long getNumberOfScores(String scorerName) {
+        final Counter c = counters.get(scorerName);
+        return c == null ? 0 : c.scores.sum();
+    }
+
+    public void reset() {
+        counters.clear();
+    }
+
+    private static String nameOf(Object scorer) {
+        return scorer.getClass().getSimpleName();
+    }
+
+    /**
+     * @return one line per scorer, ordered by decreasing time
+     */
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder();
+        for (String name : getScorerNames()) {
+            buf.append(String.format(Locale.US, "%s: %.3f ms in %d calls, %d scores\n", name, getNanos(name) / 1e6, getNumberOfCalls(name), getNumberOfScores(name)));
+        }
+        return buf.toString();
+    }
+
+    private static final class Counter {
+        private final LongAdder nanos = new LongAdder(), calls = new LongAdder(), scores = new LongAdder();
+    }
+
+}
@@ -18,6 +18,7 @@
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
 import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
@@ -30,10 +31,12 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 
-public class StrangeElementLossScorer implements LossScorer {
+public class StrangeElementLossScorer implements LossFormulaScorer {
 
     private HashSet<MolecularFormula> lossList;
     private double score;
+    // known losses of the last prepared alphabet. They depend only on the alphabet and the loss list
+    private volatile PreparedLosses prepared;
 
     public StrangeElementLossScorer() {
         this.lossList = new HashSet<MolecularFormula>();
@@ -63,6 +66,15 @@ public class StrangeElementLossScorer implements LossScorer {
 
     @Override
     public Object prepare(ProcessedInput input) {
+        final ChemicalAlphabet alphabet = input.getMeasurementProfile().getFormulaConstraints().getChemicalAlphabet();
+        final PreparedLosses p = prepared;
+        if (p != null && p.alphabet.equals(alphabet)) return p.knownLosses;
+        final HashSet<MolecularFormula> knownLosses = computeKnownLosses(alphabet);
+        prepared = new PreparedLosses(alphabet, knownLosses);
+        return knownLosses;
+    }
+
+    private HashSet<MolecularFormula> computeKnownLosses(ChemicalAlphabet alphabet) {
         final ArrayList<MolecularFormula> specialElements = new ArrayList<MolecularFormula>();
         final PeriodicTable t = PeriodicTable.getInstance();
         final Element C = t.getByName("C");
@@ -70,7 +82,7 @@ public class StrangeElementLossScorer implements LossScorer {
         final Element N = t.getByName("N");
         final Element O = t.getByName("O");
         final MolecularFormula hydrogen = MolecularFormula.parse("H");
-        for (Element e : input.getMeasurementProfile().getFormulaConstraints().getChemicalAlphabet().getElements()) {
+        for (Element e : alphabet.getElements()) {
             if (e == C || e == H || e == N || e == O) continue;
             specialElements.add(MolecularFormula.singleElement(e));
         }
@@ -102,7 +114,12 @@ public class StrangeElementLossScorer implements LossScorer {
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
-        if (((HashSet<MolecularFormula>) precomputed).contains(loss.getFormula())) return score;
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
+        if (((HashSet<MolecularFormula>) precomputed).contains(lossFormula)) return score;
         else return 0d;
     }
 
@@ -111,12 +128,14 @@ public class StrangeElementLossScorer implements LossScorer {
         final L list = document.getListFromDictionary(dictionary, "losses");
         final int n = document.sizeOfList(list);
         this.lossList = new HashSet<MolecularFormula>((int) (n * 1.5));
+        this.prepared = null;
         for (int i = 0; i < n; ++i) addLoss((MolecularFormula.parse(document.getStringFromList(list, i))));
         this.score = document.getDoubleFromDictionary(dictionary, "score");
 
     }
 
     public boolean addLoss(MolecularFormula loss) {
+        prepared = null;
         return lossList.add(loss);
     }
 
@@ -127,4 +146,14 @@ public class StrangeElementLossScorer implements LossScorer {
         document.addListToDictionary(dictionary, "losses", losses);
         document.addToDictionary(dictionary, "score", score);
     }
+
+    private static final class PreparedLosses {
+        private final ChemicalAlphabet alphabet;
+        private final HashSet<MolecularFormula> knownLosses;
+
+        private PreparedLosses(ChemicalAlphabet alphabet, HashSet<MolecularFormula> knownLosses) {
+            this.alphabet = alphabet;
+            this.knownLosses = knownLosses;
+        }
+    }
 }
@@ -32,7 +32,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
  * Remark: You should add a StrangeElementInCommonLossScorer and a StrangeElementInSmallFragments scorer
  * to compensate this penality
  */
-public class StrangeElementRootScorer implements DecompositionScorer<Element[]> {
+public class StrangeElementRootScorer implements DecompositionScorer<Element[]>, ContextFreeScorer {
 
     private double penalty;
 
@@ -33,7 +33,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
  * elements in uncommon losses. So remark that you add this score to the CommonLossScorer to compensate this
  * penalty.
  */
-public class StrangeElementScorer implements LossScorer, MolecularFormulaScorer {
+public class StrangeElementScorer implements LossFormulaScorer, MolecularFormulaScorer {
 
     public static final double LEARNED_PENALTY = -1.9176802031231173d;
     public static final double LEARNED_NORMALIZATION = -0.13929596343581177d;
@@ -71,6 +71,11 @@ public class StrangeElementScorer implements LossScorer, MolecularFormulaScorer
 
     @Override
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
+        return scoreLoss(loss.getFormula(), input, precomputed);
+    }
+
+    @Override
+    public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
         final PrecursorIonType ion = input.getExperimentInformation().getPrecursorIonType();
         final int c;
         if (ion.isIonizationUnknown()) {
@@ -78,7 +83,7 @@ public class StrangeElementScorer implements LossScorer, MolecularFormulaScorer
         } else {
             c=0;
         }
-        return score(loss.getFormula(), (Element[]) precomputed, c);
+        return score(lossFormula, (Element[]) precomputed, c);
     }
 
     private double score(MolecularFormula loss, Element[] precomputed, int allowAdductsOf) {
@@ -29,7 +29,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
  * The idea behind it is, that it is very unlikely to find a small fragment with a strange element by random,
  * as the allowed mass deviation in small fragments is much smaller than in huge fragments
  */
-public class StrangeElementSmallFragmentScorer implements DecompositionScorer {
+public class StrangeElementSmallFragmentScorer implements DecompositionScorer, ContextFreeScorer {
 
     private double scoreCompensation, maximalMass;
 
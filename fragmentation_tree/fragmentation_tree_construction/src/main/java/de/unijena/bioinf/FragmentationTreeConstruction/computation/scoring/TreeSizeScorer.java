@@ -19,6 +19,11 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.IsotopicMarker;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.Scoring;
@@ -52,6 +57,29 @@ public class TreeSizeScorer implements PeakScorer {
 
     }
 
+    /**
+     * Applies a change of the tree size bonus to the edge weights of a graph that was scored with the old bonus. Each
+     * edge changes by the same value as the peak score of its target in {@link #fastReplace(ProcessedInput, TreeSizeBonus)},
+     * so the graph gets the same weights as if it was scored again.
+     * @param diff difference between the new and the old bonus, as returned by fastReplace
+     * @return false if the weights cannot be updated in place. This is the case for graphs with isotope peaks in MS/MS,
+     * as their edges are not scored by peak scores. The graph is not changed in this case.
+     */
+    public static boolean fastReplace(final FGraph graph, final double diff) {
+        if (graph.getFragmentAnnotationOrNull(IsotopicMarker.class) != null) return false;
+        if (Math.abs(diff) <= 1e-12) return true;
+        final int parentIndex = graph.getAnnotationOrThrow(ProcessedInput.class).getAnnotationOrThrow(Scoring.class).getPeakScores().length - 1;
+        final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+        for (Fragment f : graph) {
+            if (f.getInDegree() == 0 || peakAno.get(f).getIndex() >= parentIndex) continue;
+            for (int i = 0, n = f.getInDegree(); i < n; ++i) {
+                final Loss l = f.getIncomingEdge(i);
+                l.setWeight(l.getWeight() + diff);
+            }
+        }
+        return true;
+    }
+
     private TreeSizeBonus defaultBonus;
 
     public TreeSizeScorer() {
@@ -8,6 +8,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
 import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.BranchAndBoundSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.GLPKSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.IlpFactory;
 import org.slf4j.LoggerFactory;
@@ -37,7 +38,13 @@ public final class TreeBuilderFactory {
 
     private static TreeBuilderFactory INSTANCE = null;
 
-    public enum DefaultBuilder {GUROBI, CPLEX, GLPK}
+    /**
+     * BRANCH_AND_BOUND is a pure java solver without native dependencies. It is only fast enough for small and medium
+     * sized graphs, so it is not part of the default priorities and has to be chosen explicitly.
+     */
+    public enum DefaultBuilder {GUROBI, CPLEX, GLPK, BRANCH_AND_BOUND}
+
+    private static final DefaultBuilder[] DEFAULT_PRIORITIES = {DefaultBuilder.GUROBI, DefaultBuilder.CPLEX, DefaultBuilder.GLPK};
 
     private static DefaultBuilder[] builderPriorities = null;
 
@@ -91,7 +98,7 @@ public final class TreeBuilderFactory {
         if (builderPriorities != null) return builderPriorities.clone();
         DefaultBuilder[] b = parseBuilderPriority(PropertyManager.PROPERTIES.getProperty("de.unijena.bioinf.sirius.treebuilder"));
         if (b!=null && b.length>0) return b;
-        return DefaultBuilder.values();
+        return DEFAULT_PRIORITIES.clone();
     }
 
     public <T extends AbstractSolver> IlpFactory<T> getTreeBuilderFromClass(String className) {
@@ -130,6 +137,9 @@ public final class TreeBuilderFactory {
             case GLPK:
                 factory = getTreeBuilderFromClass(GLPKSolver.class); //we deliver the jar file so we can be sure that th class exists
                 break;
+            case BRANCH_AND_BOUND:
+                factory = getTreeBuilderFromClass(BranchAndBoundSolver.class);
+                break;
             case CPLEX:
                 factory = getTreeBuilderFromClass("de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.CPLEXSolver");
                 break;
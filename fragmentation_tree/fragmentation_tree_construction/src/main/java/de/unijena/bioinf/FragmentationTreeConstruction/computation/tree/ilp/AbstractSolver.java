@@ -204,22 +204,31 @@ abstract public class AbstractSolver {
      */
     abstract protected void defineVariables() throws Exception;
 
+    /**
+     * Maps the edges of the given tree to edges of the graph by the formulas of their targets and losses. The graph
+     * might not contain all edges of the tree, e.g. if the tree was computed on the graph before it was reduced. So
+     * only mapped edges which are connected to the root by other mapped edges are used, such that the start values
+     * always form a colorful tree.
+     */
     protected void setVariableStartValues(FTree presolvedTree) throws Exception {
         // map edges in presolved tree to edge ids
         final HashMap<MolecularFormula, Fragment> fragmentMap = new HashMap<>(presolvedTree.numberOfVertices());
         for (Fragment f : presolvedTree) fragmentMap.put(f.getFormula(), f);
 
-        int[] selectedEdges = new int[1 + presolvedTree.numberOfEdges()];
-        int k = 0, offset = 0;
+        final int[] parentEdge = new int[graph.numberOfVertices()];
+        Arrays.fill(parentEdge, -1);
+        int rootVertex = -1, offset = 0;
 
         // find pseudo root
         final MolecularFormula root = presolvedTree.getRoot().getFormula();
         for (int l = 0; l < graph.getRoot().getOutDegree(); ++l) {
             if (losses.get(edgeIds[l]).getTarget().getFormula().equals(root)) {
-                selectedEdges[k++] = edgeIds[l];
+                rootVertex = losses.get(edgeIds[l]).getTarget().getVertexId();
+                parentEdge[rootVertex] = edgeIds[l];
                 break;
             }
         }
+        if (rootVertex < 0) return;
 
         forEachFragment:
         for (int i = 1; i < this.graph.numberOfVertices(); ++i) {
@@ -234,7 +243,7 @@ abstract public class AbstractSolver {
                 for (int l = 0; l < fragment.getInDegree(); ++l) {
                     if (fragment.getIncomingEdge(l).getFormula().equals(lf)) {
                         // we find the correct edge
-                        selectedEdges[k++] = offset + l;
+                        parentEdge[i] = offset + l;
                         break forEachLoss;
                     }
                 }
@@ -242,6 +251,28 @@ abstract public class AbstractSolver {
             offset += fragment.getInDegree();
         }
 
+        // keep the edges which are connected to the root, and at most one vertex per color
+        final boolean[] inTree = new boolean[graph.numberOfVertices()];
+        final BitSet usedColors = new BitSet();
+        int[] selectedEdges = new int[1 + presolvedTree.numberOfEdges()];
+        int k = 0;
+        inTree[rootVertex] = true;
+        usedColors.set(graph.getFragmentAt(rootVertex).getColor());
+        selectedEdges[k++] = parentEdge[rootVertex];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int v = 0; v < parentEdge.length; ++v) {
+                if (parentEdge[v] < 0 || inTree[v] || usedColors.get(graph.getFragmentAt(v).getColor())) continue;
+                if (!inTree[losses.get(parentEdge[v]).getSource().getVertexId()]) continue;
+                inTree[v] = true;
+                usedColors.set(graph.getFragmentAt(v).getColor());
+                if (k == selectedEdges.length) selectedEdges = Arrays.copyOf(selectedEdges, 2 * k);
+                selectedEdges[k++] = parentEdge[v];
+                changed = true;
+            }
+        }
+
         if (k < selectedEdges.length)
             selectedEdges = Arrays.copyOf(selectedEdges, k);
         setVariableStartValues(selectedEdges);
@@ -0,0 +1,566 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction.TMinimalController;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.ExtendedCriticalPathHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Exact solver for the maximum colorful subtree problem which is written in pure Java and does not need any native
+ * library. Several instances can be used in parallel.
+ *
+ * The search decides for each vertex in topological order whether it is part of the tree. As all parents of a vertex
+ * are decided before the vertex itself, a vertex is always connected by its best incoming edge from the tree built so
+ * far. There are two upper bounds: the sum over all unused colors of the best incoming edge into an undecided vertex of
+ * this color, and the sum over all unused colors of the best edge from the tree into an undecided vertex of this color
+ * plus the vertex upper bound of {@link TMinimalController} for the subtree below this vertex. The search starts with
+ * the tree of the extended critical path heuristic (and the template, if given) as lower bound.
+ *
+ * Memory is linear in the size of the graph. The number of search nodes is limited by the property
+ * {@link #MAX_NODES_PROPERTY} (default {@link #DEFAULT_MAX_NODES}), so the computation stops after the same amount of
+ * work on every machine. If this limit or the time limit is reached, the solver reports a timeout like the ILP solvers.
+ *
+ * The solver is not part of the default priorities of the TreeBuilderFactory and has to be chosen explicitly.
+ */
+public class BranchAndBoundSolver extends AbstractSolver {
+
+    public static final String MAX_NODES_PROPERTY = "de.unijena.bioinf.sirius.treebuilder.bnb.maxNodes";
+    public static final long DEFAULT_MAX_NODES = 1000000L;
+
+    public final static IlpFactory<BranchAndBoundSolver> Factory = new IlpFactory<BranchAndBoundSolver>() {
+        @Override
+        public BranchAndBoundSolver create(ProcessedInput input, FGraph graph, TreeBuilder.FluentInterface options) {
+            return new BranchAndBoundSolver(graph, input, options);
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public String name() {
+            return "Branch and Bound";
+        }
+    };
+
+    private static final double EPSILON = 1e-9;
+
+    private final EdgeArrays edges;
+    private final long maxNodes;
+    private long timeLimitInMillis = 0;
+    private double minimalScore = Double.NEGATIVE_INFINITY;
+
+    // best solution so far
+    private boolean[] solution;
+    private double solutionScore = Double.NEGATIVE_INFINITY;
+
+    protected BranchAndBoundSolver(FGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        super(graph, input, options);
+        this.edges = new EdgeArrays(graph, losses);
+        this.maxNodes = PropertyManager.getLongProperty(MAX_NODES_PROPERTY, DEFAULT_MAX_NODES);
+    }
+
+    @Override
+    protected void setTimeLimitInSeconds(double timeLimitsInSeconds) throws Exception {
+        this.timeLimitInMillis = (long) (timeLimitsInSeconds * 1000);
+    }
+
+    @Override
+    protected void setNumberOfCpus(int numberOfCPUS) throws Exception {
+        // the search is single threaded
+    }
+
+    @Override
+    protected void initializeModel() throws Exception {
+        // there is no model to initialize
+    }
+
+    @Override
+    protected void setMinimalScoreConstraints(double minimalScore) throws Exception {
+        this.minimalScore = minimalScore;
+    }
+
+    @Override
+    protected void defineVariables() throws Exception {
+        // variables are the edges in 'losses'
+    }
+
+    @Override
+    protected void setVariableStartValues(int[] usedEdgeIds) throws Exception {
+        final boolean[] used = new boolean[losses.size()];
+        for (int e : usedEdgeIds) used[e] = true;
+        if (!isColorfulTree(used)) return;
+        double score = 0d;
+        for (int e : usedEdgeIds) score += edges.getWeight(e);
+        if (score > solutionScore) {
+            solution = used;
+            solutionScore = score;
+        }
+    }
+
+    // tree and color constraints are guaranteed by the search
+
+    @Override
+    protected void setTreeConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setColorConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setMinimalTreeSizeConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setObjective() throws Exception {
+    }
+
+    @Override
+    protected TreeBuilder.AbortReason solveMIP() throws Exception {
+        // the heuristic builds its tree below a single tree root. Its tree is only used if it is colorful and
+        // connected, so it is also safe on graphs with isotope peaks or colors which are not in topological order
+        if (edges.getOutDegree(edges.getRoot()) == 1) {
+            setVariableStartValues(new ExtendedCriticalPathHeuristic(graph).solve());
+        }
+        if (!new Search().run())
+            return TreeBuilder.AbortReason.TIMEOUT;
+        if (solution == null || solutionScore < minimalScore)
+            return TreeBuilder.AbortReason.NO_SOLUTION;
+        return TreeBuilder.AbortReason.COMPUTATION_CORRECT;
+    }
+
+    @Override
+    protected void pastBuildSolution() throws Exception {
+        // nothing to free
+    }
+
+    @Override
+    protected boolean[] getVariableAssignment() throws Exception {
+        return solution;
+    }
+
+    @Override
+    protected double getSolverScore() throws Exception {
+        return solutionScore;
+    }
+
+    /**
+     * @return true if the given edges form a colorful tree with exactly one edge from the pseudo root
+     */
+    private boolean isColorfulTree(boolean[] used) {
+        final EdgeArrays g = edges;
+        final boolean[] inTree = new boolean[g.numberOfVertices()];
+        final boolean[] usedColors = new boolean[g.maxColor() + 1];
+        int roots = 0;
+        for (int e = 0; e < used.length; ++e) {
+            if (!used[e]) continue;
+            final int v = g.getTarget(e);
+            if (inTree[v] || usedColors[g.getColor(v)]) return false;
+            inTree[v] = true;
+            usedColors[g.getColor(v)] = true;
+            if (g.getSource(e) == g.getRoot()) ++roots;
+        }
+        if (roots != 1) return false;
+        for (int e = 0; e < used.length; ++e) {
+            if (used[e] && g.getSource(e) != g.getRoot() && !inTree[g.getSource(e)]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * vertices and edges of the graph as arrays. Edge k is the k-th loss in 'losses', i.e. edges are grouped by
+     * their target. Outgoing edges are grouped by their source.
+     */
+    private static final class EdgeArrays {
+
+        private final int root, maxColor;
+        private final int[] colors, inOffsets, outOffsets;
+        private final int[] sources, targets;
+        private final double[] weights;
+        private final int[] outEdges;
+
+        private EdgeArrays(FGraph graph, List<Loss> losses) {
+            final int n = graph.numberOfVertices(), m = losses.size();
+            this.colors = new int[n];
+            this.inOffsets = new int[n + 1];
+            this.outOffsets = new int[n + 1];
+            int maxColor = 0;
+            for (int u = 0; u < n; ++u) {
+                final Fragment f = graph.getFragmentAt(u);
+                colors[u] = f.getColor();
+                maxColor = Math.max(maxColor, colors[u]);
+                inOffsets[u + 1] = inOffsets[u] + f.getInDegree();
+                outOffsets[u + 1] = outOffsets[u] + f.getOutDegree();
+            }
+            this.maxColor = maxColor;
+            this.root = graph.getRoot().getVertexId();
+            this.sources = new int[m];
+            this.targets = new int[m];
+            this.weights = new double[m];
+            this.outEdges = new int[m];
+            final int[] next = Arrays.copyOf(outOffsets, n);
+            for (int e = 0; e < m; ++e) {
+                final Loss l = losses.get(e);
+                sources[e] = l.getSource().getVertexId();
+                targets[e] = l.getTarget().getVertexId();
+                weights[e] = l.getWeight();
+                outEdges[next[sources[e]]++] = e;
+            }
+        }
+
+        private int numberOfVertices() {
+            return colors.length;
+        }
+
+        private int numberOfEdges() {
+            return sources.length;
+        }
+
+        private int getRoot() {
+            return root;
+        }
+
+        private int maxColor() {
+            return maxColor;
+        }
+
+        private int getColor(int vertex) {
+            return colors[vertex];
+        }
+
+        private int getInDegree(int vertex) {
+            return inOffsets[vertex + 1] - inOffsets[vertex];
+        }
+
+        private int getOutDegree(int vertex) {
+            return outOffsets[vertex + 1] - outOffsets[vertex];
+        }
+
+        private int getIncomingEdge(int vertex, int k) {
+            return inOffsets[vertex] + k;
+        }
+
+        private int getOutgoingEdge(int vertex, int k) {
+            return outEdges[outOffsets[vertex] + k];
+        }
+
+        private int getChild(int vertex, int k) {
+            return targets[getOutgoingEdge(vertex, k)];
+        }
+
+        private double getOutgoingWeight(int vertex, int k) {
+            return weights[getOutgoingEdge(vertex, k)];
+        }
+
+        private int getSource(int edge) {
+            return sources[edge];
+        }
+
+        private int getTarget(int edge) {
+            return targets[edge];
+        }
+
+        private double getWeight(int edge) {
+            return weights[edge];
+        }
+
+    }
+
+    /**
+     * depth first search over all vertices in topological order. Each level decides about one vertex: it is either
+     * excluded or included with its best incoming edge from the vertices included so far.
+     */
+    private class Search {
+
+        private static final byte FORCED = 1, FIRST = 2, SECOND = 3;
+
+        private final EdgeArrays g = edges;
+        private final int pseudoRoot = g.getRoot();
+        private final int[] order;
+        private final int n;
+
+        // static bounds: best incoming edge of each vertex and best incoming edge of all vertices with the same
+        // color which come later in the order
+        private final double[] colorBoundAfter;
+
+        // state of the search
+        private final double[] colorBound;
+        private final boolean[] usedColors;
+        private boolean rootChosen = false;
+        private double score = 0d, upperBound = 0d;
+        private final double[] bestIn;
+        private final int[] bestInEdge;
+        private final int[] trailVertex, trailEdge;
+        private final double[] trailValue;
+        private int trailSize = 0;
+
+        // decisions per level
+        private final byte[] step;
+        private final int[] chosenEdge, candidateEdge, trailMark;
+        private final double[] savedScore, savedUpperBound, savedColorBound;
+
+        // upper bound for the subtree below each vertex and buffers for the bound of the remaining vertices
+        private final double[] vertexUpperBound;
+        private final double[] colorMax;
+        private final int[] touchedColors;
+
+        private long nodes = 0;
+        private final long startTime = System.currentTimeMillis();
+
+        private Search() {
+            this.order = topologicalOrder();
+            this.n = order.length;
+            final int V = g.numberOfVertices();
+            final double[] maxIn = new double[V];
+            Arrays.fill(maxIn, Double.NEGATIVE_INFINITY);
+            for (int e = 0; e < g.numberOfEdges(); ++e) {
+                maxIn[g.getTarget(e)] = Math.max(maxIn[g.getTarget(e)], g.getWeight(e));
+            }
+            this.colorBound = new double[g.maxColor() + 1];
+            this.colorBoundAfter = new double[V];
+            for (int p = n - 1; p >= 0; --p) {
+                final int c = g.getColor(order[p]);
+                colorBoundAfter[order[p]] = colorBound[c];
+                colorBound[c] = Math.max(colorBound[c], maxIn[order[p]]);
+            }
+            for (double b : colorBound) upperBound += b;
+            this.usedColors = new boolean[colorBound.length];
+            this.bestIn = new double[V];
+            this.bestInEdge = new int[V];
+            Arrays.fill(bestIn, Double.NEGATIVE_INFINITY);
+            Arrays.fill(bestInEdge, -1);
+            for (int i = 0, k = g.getOutDegree(pseudoRoot); i < k; ++i) {
+                final int e = g.getOutgoingEdge(pseudoRoot, i);
+                if (g.getWeight(e) > bestIn[g.getTarget(e)]) {
+                    bestIn[g.getTarget(e)] = g.getWeight(e);
+                    bestInEdge[g.getTarget(e)] = e;
+                }
+            }
+            this.trailVertex = new int[g.numberOfEdges()];
+            this.trailEdge = new int[g.numberOfEdges()];
+            this.trailValue = new double[g.numberOfEdges()];
+            this.step = new byte[n];
+            this.chosenEdge = new int[n];
+            this.candidateEdge = new int[n];
+            this.trailMark = new int[n];
+            this.savedScore = new double[n];
+            this.savedUpperBound = new double[n];
+            this.savedColorBound = new double[n];
+            Arrays.fill(chosenEdge, -1);
+            this.vertexUpperBound = new TMinimalController().computeVertexUpperBounds(graph);
+            this.colorMax = new double[colorBound.length];
+            Arrays.fill(colorMax, Double.NEGATIVE_INFINITY);
+            this.touchedColors = new int[colorBound.length];
+        }
+
+        private int[] topologicalOrder() {
+            final int V = g.numberOfVertices();
+            final int[] order = new int[V - 1];
+            boolean sorted = true;
+            for (int e = 0; e < g.numberOfEdges() && sorted; ++e) {
+                sorted = g.getSource(e) < g.getTarget(e);
+            }
+            if (sorted && pseudoRoot == 0) {
+                for (int i = 0; i < order.length; ++i) order[i] = i + 1;
+                return order;
+            }
+            // Kahn's algorithm
+            final int[] inDegree = new int[V];
+            for (int v = 0; v < V; ++v) inDegree[v] = g.getInDegree(v);
+            final int[] queue = new int[V];
+            int head = 0, tail = 0;
+            queue[tail++] = pseudoRoot;
+            for (int v = 0; v < V; ++v) if (inDegree[v] == 0 && v != pseudoRoot) queue[tail++] = v;
+            while (head < tail) {
+                final int u = queue[head++];
+                for (int i = 0, k = g.getOutDegree(u); i < k; ++i) {
+                    final int v = g.getChild(u, i);
+                    if (--inDegree[v] == 0) queue[tail++] = v;
+                }
+            }
+            if (tail < V) throw new IllegalArgumentException("Graph contains a cycle");
+            System.arraycopy(queue, 1, order, 0, order.length);
+            return order;
+        }
+
+        /**
+         * @return true if the search space was completely explored
+         */
+        private boolean run() {
+            int p = 0;
+            boolean forward = true;
+            while (p >= 0) {
+                if (forward) {
+                    if (++nodes > maxNodes || ((nodes & 0xfff) == 0 && isOutOfTime())) return false;
+                    if (canBePruned(score + upperBound) || (p < n && canBePruned(score + subtreeBound(p)))) {
+                        forward = false;
+                        --p;
+                        continue;
+                    }
+                    if (p == n || (rootChosen && upperBound <= 0)) {
+                        // no further vertex can increase the score
+                        if (rootChosen && score > solutionScore) storeSolution(p);
+                        forward = false;
+                        --p;
+                        continue;
+                    }
+                    final int v = order[p];
+                    savedScore[p] = score;
+                    savedUpperBound[p] = upperBound;
+                    savedColorBound[p] = colorBound[g.getColor(v)];
+                    trailMark[p] = trailSize;
+                    final int edge = usedColors[g.getColor(v)] ? -1 : bestInEdge[v];
+                    candidateEdge[p] = edge;
+                    if (edge < 0 || (rootChosen && g.getSource(edge) == pseudoRoot) || (rootChosen && g.getOutDegree(v) == 0 && bestIn[v] <= 0)) {
+                        exclude(v);
+                        step[p] = FORCED;
+                    } else if (bestIn[v] > 0) {
+                        include(p, v, edge);
+                        step[p] = FIRST;
+                    } else {
+                        exclude(v);
+                        step[p] = FIRST;
+                    }
+                    ++p;
+                } else {
+                    final int v = order[p];
+                    final boolean wasIncluded = chosenEdge[p] >= 0;
+                    undo(p, v);
+                    if (step[p] == FIRST) {
+                        if (wasIncluded) exclude(v);
+                        else include(p, v, candidateEdge[p]);
+                        step[p] = SECOND;
+                        forward = true;
+                        ++p;
+                    } else {
+                        --p;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private boolean canBePruned(double bound) {
+            return (solution != null && bound <= solutionScore + EPSILON) || bound < minimalScore - EPSILON;
+        }
+
+        /**
+         * Every vertex which is added from now on is either connected by an edge from the tree or part of a subtree
+         * below such a vertex. So each unused color can contribute at most the best edge from the tree into an
+         * undecided vertex of this color plus the vertex upper bound of this vertex. If no root is chosen yet, the
+         * whole tree is a single such subtree. Requires a pass over the undecided vertices.
+         */
+        private double subtreeBound(int p) {
+            if (!rootChosen) {
+                double bound = Double.NEGATIVE_INFINITY;
+                for (int q = p; q < n; ++q) {
+                    final int v = order[q];
+                    if (bestInEdge[v] >= 0) bound = Math.max(bound, bestIn[v] + vertexUpperBound[v]);
+                }
+                return bound;
+            }
+            int touched = 0;
+            for (int q = p; q < n; ++q) {
+                final int v = order[q];
+                final int c = g.getColor(v);
+                if (usedColors[c] || bestInEdge[v] < 0 || g.getSource(bestInEdge[v]) == pseudoRoot) continue;
+                final double best = bestIn[v] + vertexUpperBound[v];
+                if (colorMax[c] == Double.NEGATIVE_INFINITY) touchedColors[touched++] = c;
+                if (best > colorMax[c]) colorMax[c] = best;
+            }
+            double bound = 0d;
+            for (int i = 0; i < touched; ++i) {
+                bound += Math.max(0d, colorMax[touchedColors[i]]);
+                colorMax[touchedColors[i]] = Double.NEGATIVE_INFINITY;
+            }
+            return bound;
+        }
+
+        private boolean isOutOfTime() {
+            return timeLimitInMillis > 0 && System.currentTimeMillis() - startTime > timeLimitInMillis;
+        }
+
+        private void include(int p, int v, int edge) {
+            final int c = g.getColor(v);
+            score += bestIn[v];
+            upperBound -= colorBound[c];
+            colorBound[c] = 0d;
+            usedColors[c] = true;
+            chosenEdge[p] = edge;
+            if (g.getSource(edge) == pseudoRoot) rootChosen = true;
+            for (int i = 0, k = g.getOutDegree(v); i < k; ++i) {
+                final int w = g.getChild(v, i);
+                final double weight = g.getOutgoingWeight(v, i);
+                if (weight > bestIn[w] || bestInEdge[w] < 0 || g.getSource(bestInEdge[w]) == pseudoRoot) {
+                    trailVertex[trailSize] = w;
+                    trailEdge[trailSize] = bestInEdge[w];
+                    trailValue[trailSize] = bestIn[w];
+                    ++trailSize;
+                    bestIn[w] = weight;
+                    bestInEdge[w] = g.getOutgoingEdge(v, i);
+                }
+            }
+        }
+
+        private void exclude(int v) {
+            final int c = g.getColor(v);
+            if (usedColors[c]) return;
+            upperBound += colorBoundAfter[v] - colorBound[c];
+            colorBound[c] = colorBoundAfter[v];
+        }
+
+        private void undo(int p, int v) {
+            final int c = g.getColor(v);
+            score = savedScore[p];
+            upperBound = savedUpperBound[p];
+            colorBound[c] = savedColorBound[p];
+            if (chosenEdge[p] >= 0) {
+                usedColors[c] = false;
+                if (g.getSource(chosenEdge[p]) == pseudoRoot) rootChosen = false;
+                chosenEdge[p] = -1;
+            }
+            while (trailSize > trailMark[p]) {
+                --trailSize;
+                bestIn[trailVertex[trailSize]] = trailValue[trailSize];
+                bestInEdge[trailVertex[trailSize]] = trailEdge[trailSize];
+            }
+        }
+
+        private void storeSolution(int p) {
+            final boolean[] used = new boolean[losses.size()];
+            for (int q = 0; q < p; ++q) {
+                if (chosenEdge[q] >= 0) used[chosenEdge[q]] = true;
+            }
+            solution = used;
+            solutionScore = score;
+        }
+
+    }
+
+}
@@ -94,7 +94,7 @@ public class GLPKSolver extends AbstractSolver {
 
     @Override
     protected void setVariableStartValues(int[] usedEdgeIds) throws Exception {
-        // not supported
+        // not supported: the GLPK branch and cut has no start values, so templates are ignored
     }
 
     @Override
@@ -0,0 +1,191 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction.TMinimalController;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.BranchAndBoundSolver;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FasterTreeComputationInstanceTest {
+
+    private FragmentationPatternAnalysis getAnalysis() throws IOException {
+        final FragmentationPatternAnalysis analysis = ReferenceSpectra.getDefaultAnalysis();
+        analysis.setReduction(new TMinimalController());
+        analysis.setTreeBuilder(new AbstractTreeBuilder<BranchAndBoundSolver>(BranchAndBoundSolver.Factory));
+        return analysis;
+    }
+
+    /**
+     * @return instance with scored input of the given spectrum
+     */
+    private FasterTreeComputationInstance getScoredInstance(FragmentationPatternAnalysis analysis, String resource) throws IOException {
+        final FasterTreeComputationInstance instance = new FasterTreeComputationInstance(analysis, ReferenceSpectra.getExperimentWithoutFormula(resource), 10);
+        instance.pinput = analysis.performPeakScoring(instance.precompute());
+        instance.state = 3;
+        return instance;
+    }
+
+    private static List<Decomposition> candidates(FasterTreeComputationInstance instance) {
+        final List<Decomposition> candidates = new ArrayList<>();
+        for (Decomposition d : instance.pinput.getAnnotationOrThrow(DecompositionList.class).getDecompositions())
+            if (!Double.isInfinite(d.getScore())) candidates.add(d);
+        return candidates;
+    }
+
+    private static <R> R run(BasicJJob<R> job) throws Exception {
+        return SiriusJobs.getGlobalJobManager().submitJob(job).awaitResult();
+    }
+
+    private static Map<String, Double> edges(FGraph graph) {
+        final Map<String, Double> edges = new HashMap<>();
+        for (Loss l : graph.losses())
+            edges.put(l.getSource().getFormula() + "/" + l.getSource().getColor() + " -> " + l.getTarget().getFormula() + "/" + l.getTarget().getColor(), l.getWeight());
+        return edges;
+    }
+
+    private static List<String> treeEdges(FTree tree) {
+        final List<String> edges = new ArrayList<>();
+        edges.add(tree.getRoot().getFormula().toString());
+        for (Fragment f : tree) {
+            if (!f.isRoot()) edges.add(f.getIncomingEdge().getSource().getFormula() + " -> " + f.getFormula());
+        }
+        Collections.sort(edges);
+        return edges;
+    }
+
+    /**
+     * The tree size loop applies the new tree size bonus to the cached graphs of the previous iteration and uses the
+     * previous trees as templates. This has to give the same graphs, trees and scores as building everything again.
+     */
+    @Test
+    public void testCachedGraphsGiveSameTreesAsRebuiltGraphs() throws Exception {
+        final FragmentationPatternAnalysis analysis = getAnalysis();
+        final FasterTreeComputationInstance instance = getScoredInstance(analysis, ReferenceSpectra.ADENOSINE);
+        final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analysis.getFragmentPeakScorers());
+        assertNotNull(tss);
+        final TreeBuilder builder = analysis.getTreeBuilder();
+        final List<Decomposition> candidates = candidates(instance);
+        assertFalse(candidates.isEmpty());
+
+        Map<Decomposition, FasterTreeComputationInstance.ExactResult> previous = new IdentityHashMap<>();
+        final double initialTreeSize = tss.getTreeSizeScore();
+        double previousTreeSize = initialTreeSize;
+        int reused = 0;
+        for (double treeSize = initialTreeSize; treeSize <= initialTreeSize + AbstractTreeComputationInstance.MAX_TREESIZE_INCREASE; treeSize += AbstractTreeComputationInstance.TREE_SIZE_INCREASE) {
+            final double increase = treeSize - previousTreeSize;
+            tss.fastReplace(instance.pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
+            // only some graphs fit into the cache, the other ones have to be built again
+            final DoubleEndWeightedQueue2<FasterTreeComputationInstance.ExactResult> cache = FasterTreeComputationInstance.newGraphCache(candidates.size() / 2);
+            for (Decomposition d : candidates) {
+                final FasterTreeComputationInstance.ExactResult before = previous.get(d);
+                if (before != null && before.graph != null) {
+                    final FGraph cached = new FGraph(before.graph);
+                    assertTrue(TreeSizeScorer.fastReplace(cached, increase));
+                    final Map<String, Double> expected = edges(analysis.buildGraphWithoutReduction(instance.pinput, d, false));
+                    final Map<String, Double> actual = edges(cached);
+                    assertEquals(expected.keySet(), actual.keySet());
+                    for (Map.Entry<String, Double> e : expected.entrySet())
+                        assertEquals(e.getKey(), e.getValue(), actual.get(e.getKey()), 1e-9);
+                    ++reused;
+                }
+                final FasterTreeComputationInstance.ExactResult incremental = run(instance.new TreeComputationJob(builder, cache, d, before, increase, null, -1, treeSize, null));
+                final FasterTreeComputationInstance.ExactResult rebuilt = run(instance.new TreeComputationJob(builder, null, d));
+                assertEquals(d.getCandidate() + " with tree size " + treeSize, rebuilt.score, incremental.score, 1e-9);
+                assertEquals(d.getCandidate() + " with tree size " + treeSize, treeEdges(rebuilt.tree), treeEdges(incremental.tree));
+            }
+            previous = new IdentityHashMap<>();
+            for (FasterTreeComputationInstance.ExactResult r : cache) previous.put(r.decomposition, r);
+            previousTreeSize = treeSize;
+        }
+        assertTrue(reused > 0);
+    }
+
+    /**
+     * Processing the candidates best-first and skipping candidates whose upper bound is below the k-th best tree
+     * has to give the same top k trees as computing the trees of all candidates, for every tree size. Bounds of
+     * previous tree sizes are reused as in the tree size loop.
+     */
+    @Test
+    public void testScoreBoundsKeepTopTrees() throws Exception {
+        final FragmentationPatternAnalysis analysis = getAnalysis();
+        final FasterTreeComputationInstance instance = getScoredInstance(analysis, ReferenceSpectra.ADENOSINE);
+        final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analysis.getFragmentPeakScorers());
+        final TreeBuilder builder = analysis.getTreeBuilder();
+        final List<Decomposition> candidates = candidates(instance);
+        final int k = 5;
+        assertTrue(candidates.size() > k);
+
+        final FasterTreeComputationInstance.CandidateBounds bounds = new FasterTreeComputationInstance.CandidateBounds(candidates);
+        Map<Decomposition, FasterTreeComputationInstance.ExactResult> previous = new IdentityHashMap<>();
+        final double initialTreeSize = tss.getTreeSizeScore();
+        double previousTreeSize = initialTreeSize;
+        int skipped = 0;
+        for (double treeSize = initialTreeSize; treeSize <= initialTreeSize + AbstractTreeComputationInstance.MAX_TREESIZE_INCREASE; treeSize += AbstractTreeComputationInstance.TREE_SIZE_INCREASE) {
+            tss.fastReplace(instance.pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
+            final List<FasterTreeComputationInstance.ExactResult> all = new ArrayList<>();
+            final Map<Decomposition, FasterTreeComputationInstance.ExactResult> unpruned = new IdentityHashMap<>();
+            for (Decomposition d : candidates) {
+                final FasterTreeComputationInstance.ExactResult r = run(instance.new TreeComputationJob(builder, null, d));
+                all.add(r);
+                unpruned.put(d, r);
+            }
+
+            final FasterTreeComputationInstance.TopKThreshold threshold = new FasterTreeComputationInstance.TopKThreshold(k);
+            final DoubleEndWeightedQueue2<FasterTreeComputationInstance.ExactResult> cache = FasterTreeComputationInstance.newGraphCache(2 * k);
+            final List<FasterTreeComputationInstance.ExactResult> pruned = new ArrayList<>();
+            for (int index : bounds.bestFirstOrder(treeSize)) {
+                final Decomposition d = candidates.get(index);
+                final FasterTreeComputationInstance.ExactResult r = run(instance.new TreeComputationJob(builder, cache, d, previous.get(d), treeSize - previousTreeSize, bounds, index, treeSize, threshold));
+                if (r == null) {
+                    ++skipped;
+                } else {
+                    assertTrue(d.getCandidate() + " with tree size " + treeSize, r.score <= bounds.getUpperBound(index, treeSize) + 1e-9);
+                    pruned.add(r);
+                }
+            }
+            Collections.sort(all, Collections.reverseOrder());
+            Collections.sort(pruned, Collections.reverseOrder());
+            assertTrue(pruned.size() >= k);
+            for (int i = 0; i < k; ++i) {
+                final FasterTreeComputationInstance.ExactResult r = pruned.get(i);
+                assertEquals("tree " + i + " with tree size " + treeSize, all.get(i).score, r.score, 1e-9);
+                assertEquals(r.decomposition.getCandidate() + " with tree size " + treeSize, treeEdges(unpruned.get(r.decomposition).tree), treeEdges(r.tree));
+            }
+            previous = new IdentityHashMap<>();
+            for (FasterTreeComputationInstance.ExactResult r : cache) previous.put(r.decomposition, r);
+            previousTreeSize = treeSize;
+        }
+        assertTrue(skipped > 0);
+    }
+}
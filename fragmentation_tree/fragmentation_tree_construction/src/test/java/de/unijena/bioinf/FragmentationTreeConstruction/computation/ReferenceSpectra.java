@@ -0,0 +1,57 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+
+import java.io.IOException;
+
+/**
+ * Reference spectra and the default profile for the tests of the tree computation
+ */
+public final class ReferenceSpectra {
+
+    public static final String ADENOSINE = "/Adenosine.ms";
+
+    public static final String[] ALL = new String[]{ADENOSINE};
+
+    private ReferenceSpectra() {
+    }
+
+    /**
+     * @return a new analysis with the default profile
+     */
+    public static FragmentationPatternAnalysis getDefaultAnalysis() throws IOException {
+        final JSONDocumentType document = new JSONDocumentType();
+        return FragmentationPatternAnalysis.loadFromProfile(document, document.wrapDictionary(JSONDocumentType.getJSON("/profiles/default.json", "default")));
+    }
+
+    /**
+     * @return the experiment of the given resource without its molecular formula, such that all decompositions of the
+     * precursor are candidates
+     */
+    public static MutableMs2Experiment getExperimentWithoutFormula(String resource) throws IOException {
+        final MutableMs2Experiment experiment = new MutableMs2Experiment(new GenericParser<Ms2Experiment>(new JenaMsParser()).parse(ReferenceSpectra.class.getResourceAsStream(resource)));
+        experiment.setMolecularFormula(null);
+        return experiment;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMeasurementProfile;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.ReferenceSpectra;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SubFormulaGraphBuilderTest {
+
+    /**
+     * compares each decomposition with all fragments in the graph, as it was done before the fragments were indexed
+     */
+    private static class PairwiseSubFormulaGraphBuilder extends SubFormulaGraphBuilder {
+        @Override
+        public FGraph fillGraph(FGraph graph) {
+            final FragmentAnnotation<Ionization> ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+            final HashSet<Ionization> allIons = new HashSet<>();
+            for (Fragment f : graph.getRoot().getChildren())
+                allIons.add(ion.get(f));
+            final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+            final ScoredFormulaMap scoring = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
+            final PeakAnnotation<DecompositionList> decompList =
+                    graph.getAnnotationOrThrow(ProcessedInput.class).getPeakAnnotationOrThrow(DecompositionList.class);
+
+            MolecularFormula pmd;
+            {
+                final Iterator<Fragment> roots = graph.getFragmentsWithoutRoot().iterator();
+                pmd = roots.next().getFormula();
+                while (roots.hasNext()) {
+                    pmd = pmd.union(roots.next().getFormula());
+                }
+            }
+
+            final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(graph.getAnnotationOrThrow(ProcessedInput.class).getMergedPeaks());
+            Collections.sort(peaks, new ProcessedPeak.MassComparator());
+            for (int i = peaks.size() - 1; i >= 0; --i) {
+                final ProcessedPeak peak = peaks.get(i);
+                final int pi = peak.getIndex();
+                for (Decomposition decomposition : decompList.get(peak).getDecompositions()) {
+                    if (!allIons.contains(decomposition.getIon())) continue;
+                    final MolecularFormula formula = decomposition.getCandidate();
+                    final boolean hasEdge = formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula);
+                    if (hasEdge) {
+                        Fragment newFragment = null;
+                        for (Fragment f : graph) {
+                            if (f.isRoot() || peakAno.get(f).getIndex() == pi || !ion.get(f).equals(decomposition.getIon())) continue;
+                            final MolecularFormula fragmentFormula = f.getFormula();
+                            if (fragmentFormula.getMass() > formula.getMass() && fragmentFormula.isSubtractable(formula)) {
+                                if (newFragment == null) {
+                                    newFragment = graph.addFragment(decomposition.getCandidate());
+                                    ion.set(newFragment, decomposition.getIon());
+                                    peakAno.set(newFragment, peak);
+                                    newFragment.setColor(peak.getIndex());
+                                    scoring.put(decomposition.getCandidate(), decomposition.getScore());
+                                }
+                                graph.addLoss(f, newFragment);
+                            }
+                        }
+                    }
+                }
+            }
+            return graph;
+        }
+    }
+
+    private static FGraph buildGraph(GraphBuilder builder, ProcessedInput input, List<Decomposition> roots) {
+        final FGraph graph = builder.initializeEmptyGraph(input);
+        builder.addRoot(graph, input.getParentPeak(), roots);
+        return builder.fillGraph(graph);
+    }
+
+    /**
+     * both graphs have to contain the same vertices and the same edges in the same order
+     */
+    private static void assertSameGraph(String name, FGraph expected, FGraph actual) {
+        assertEquals(name, expected.numberOfVertices(), actual.numberOfVertices());
+        assertEquals(name, expected.numberOfEdges(), actual.numberOfEdges());
+        final FragmentAnnotation<Ionization> expectedIon = expected.getFragmentAnnotationOrThrow(Ionization.class);
+        final FragmentAnnotation<Ionization> actualIon = actual.getFragmentAnnotationOrThrow(Ionization.class);
+        for (int k = 0; k < expected.numberOfVertices(); ++k) {
+            final Fragment e = expected.getFragmentAt(k), a = actual.getFragmentAt(k);
+            assertEquals(name, e.getFormula(), a.getFormula());
+            assertEquals(name, e.getColor(), a.getColor());
+            if (!e.isRoot()) assertEquals(name, expectedIon.get(e), actualIon.get(a));
+            assertEquals(name, e.getOutDegree(), a.getOutDegree());
+            for (int i = 0; i < e.getOutDegree(); ++i) {
+                final Loss el = e.getOutgoingEdge(i), al = a.getOutgoingEdge(i);
+                assertEquals(name, el.getTarget().getVertexId(), al.getTarget().getVertexId());
+                assertEquals(name, el.getFormula(), al.getFormula());
+            }
+        }
+    }
+
+    @Test
+    public void testGraphsOfReferenceSpectra() throws IOException {
+        final FragmentationPatternAnalysis analysis = ReferenceSpectra.getDefaultAnalysis();
+        for (String resource : ReferenceSpectra.ALL) {
+            final ProcessedInput input = analysis.preprocessing(ReferenceSpectra.getExperimentWithoutFormula(resource));
+            final List<Decomposition> candidates = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+            assertFalse(candidates.isEmpty());
+            for (Decomposition candidate : candidates) {
+                final List<Decomposition> roots = Collections.singletonList(candidate);
+                assertSameGraph(resource + " " + candidate.getCandidate(), buildGraph(new PairwiseSubFormulaGraphBuilder(), input, roots), buildGraph(new SubFormulaGraphBuilder(), input, roots));
+            }
+            assertSameGraph(resource, buildGraph(new PairwiseSubFormulaGraphBuilder(), input, candidates), buildGraph(new SubFormulaGraphBuilder(), input, candidates));
+        }
+    }
+
+    /**
+     * random subformulas of a large precursor with two ionizations, such that vertices have many parents
+     */
+    @Test
+    public void testGraphsOfRandomSubformulas() {
+        final Random r = new Random(1);
+        final PrecursorIonType protonated = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final Ionization[] ions = new Ionization[]{protonated.getIonization(), PrecursorIonType.getPrecursorIonType("[M+Na]+").getIonization()};
+        for (String precursor : new String[]{"C24H34N5O7PS", "C30H45N5O8S"}) {
+            final MolecularFormula pmd = MolecularFormula.parse(precursor);
+            final Element[] elements = pmd.elementArray();
+            final MutableMs2Experiment experiment = new MutableMs2Experiment();
+            experiment.setPrecursorIonType(protonated);
+            final ProcessedInput input = new ProcessedInput(experiment, experiment, new MutableMeasurementProfile());
+            final PeakAnnotation<DecompositionList> decompositions = input.getOrCreatePeakAnnotation(DecompositionList.class);
+            final List<ProcessedPeak> peaks = new ArrayList<>();
+            final ProcessedPeak parent = new ProcessedPeak();
+            parent.setMz(pmd.getMass() + 1);
+            parent.setIndex(0);
+            peaks.add(parent);
+            final List<Decomposition> roots = new ArrayList<>();
+            for (Ionization ion : ions) roots.add(new Decomposition(pmd, ion, 0d));
+            decompositions.set(parent, new DecompositionList(roots));
+            for (int p = 1; p < 150; ++p) {
+                final List<Decomposition> list = new ArrayList<>();
+                double mz = 0d;
+                final int n = 1 + r.nextInt(6);
+                for (int d = 0; d < n; ++d) {
+                    final StringBuilder buf = new StringBuilder();
+                    for (Element e : elements) buf.append(e.getSymbol()).append(r.nextInt(pmd.numberOf(e) + 1));
+                    final MolecularFormula formula = MolecularFormula.parse(buf.toString());
+                    if (formula.getMass() <= 0) continue;
+                    list.add(new Decomposition(formula, ions[r.nextInt(ions.length)], r.nextDouble()));
+                    mz = formula.getMass();
+                }
+                final ProcessedPeak peak = new ProcessedPeak();
+                // distinct masses, such that the order of the peaks is well defined
+                peak.setMz(mz + p * 1e-6);
+                peak.setIndex(p);
+                peaks.add(peak);
+                decompositions.set(peak, new DecompositionList(list));
+            }
+            input.setMergedPeaks(peaks);
+            input.setParentPeak(parent);
+            assertSameGraph(precursor, buildGraph(new PairwiseSubFormulaGraphBuilder(), input, roots), buildGraph(new SubFormulaGraphBuilder(), input, roots));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction;
+
+import com.google.gson.JsonObject;
+import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.ReferenceSpectra;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.ReductionStatistics;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SimpleReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.BranchAndBoundSolver;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TMinimalControllerTest {
+
+    private double computeScore(ProcessedInput input, FGraph graph) {
+        final FTree tree = new AbstractTreeBuilder<BranchAndBoundSolver>(BranchAndBoundSolver.Factory).computeTree().solve(input, graph).tree;
+        assertNotNull(tree);
+        return tree.getTreeWeight();
+    }
+
+    /**
+     * The reductions must not change the score of the optimal tree of any candidate
+     */
+    @Test
+    public void testTreeScoresOfReferenceSpectra() throws IOException {
+        final FragmentationPatternAnalysis analysis = ReferenceSpectra.getDefaultAnalysis();
+        for (String resource : ReferenceSpectra.ALL) {
+            final ProcessedInput input = analysis.preprocessing(ReferenceSpectra.getExperimentWithoutFormula(resource));
+            final List<Decomposition> candidates = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+            assertFalse(candidates.isEmpty());
+            for (Decomposition candidate : candidates) {
+                final FGraph graph = analysis.buildGraphWithoutReduction(input, candidate);
+                final double expectedScore = computeScore(input, new FGraph(graph));
+
+                for (GraphReduction reduction : new GraphReduction[]{new TMinimalController(), new SimpleReduction()}) {
+                    final FGraph reduced = reduction.reduce(new FGraph(graph), 0d);
+                    final ReductionStatistics statistics = reduced.getAnnotationOrThrow(ReductionStatistics.class);
+                    assertEquals(graph.numberOfVertices(), statistics.getVerticesBefore());
+                    assertEquals(reduced.numberOfVertices(), statistics.getVerticesAfter());
+                    assertEquals(graph.numberOfEdges(), statistics.getEdgesBefore());
+                    assertEquals(reduced.numberOfEdges(), statistics.getEdgesAfter());
+                    assertEquals(resource + " " + candidate.getCandidate() + " " + reduction.getClass().getSimpleName(), expectedScore, computeScore(input, reduced), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testProfileImportAndExport() {
+        final FragmentationPatternAnalysis analysis = new FragmentationPatternAnalysis();
+        final TMinimalController reduction = new TMinimalController();
+        reduction.setStrengthenSebastianBounds(false);
+        analysis.setReduction(reduction);
+        final ParameterHelper helper = ParameterHelper.getParameterHelper();
+        final JSONDocumentType document = new JSONDocumentType();
+        final JsonObject dictionary = document.newDictionary();
+        analysis.exportParameters(helper, document, dictionary);
+        final FragmentationPatternAnalysis loaded = new FragmentationPatternAnalysis();
+        loaded.importParameters(helper, document, dictionary);
+        assertTrue(loaded.getReduction() instanceof TMinimalController);
+        assertFalse(((TMinimalController) loaded.getReduction()).isStrengthenSebastianBounds());
+    }
+}
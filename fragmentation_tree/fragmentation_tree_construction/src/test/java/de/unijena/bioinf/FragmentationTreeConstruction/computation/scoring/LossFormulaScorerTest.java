@@ -0,0 +1,163 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.ReferenceSpectra;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LossFormulaScorerTest {
+
+    /**
+     * hides that a scorer only depends on the loss formula, such that it is called for each edge
+     */
+    private static class PerEdgeLossScorer implements LossScorer<Object> {
+        private final LossScorer<Object> scorer;
+
+        private PerEdgeLossScorer(LossScorer<Object> scorer) {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public Object prepare(ProcessedInput input) {
+            return scorer.prepare(input);
+        }
+
+        @Override
+        public double score(Loss loss, ProcessedInput input, Object precomputed) {
+            return scorer.score(loss, input, precomputed);
+        }
+
+        @Override
+        public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        }
+
+        @Override
+        public <G, D, L> void exportParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        }
+    }
+
+    /**
+     * the default profile with additional loss formula scorers
+     */
+    private static FragmentationPatternAnalysis getAnalysis() throws IOException {
+        final FragmentationPatternAnalysis analysis = ReferenceSpectra.getDefaultAnalysis();
+        analysis.getLossScorers().add(new FractionOfParentLossScorer());
+        analysis.getLossScorers().add(new StrangeElementScorer());
+        analysis.getLossScorers().add(new PhosphorScorer());
+        analysis.getLossScorers().add(new DBELossScorer());
+        analysis.getLossScorers().add(EICommonLossEdgeScorer.getDefaultGCMSCommonLossScorer());
+        return analysis;
+    }
+
+    private static ProcessedInput getInput(FragmentationPatternAnalysis analysis) throws IOException {
+        return analysis.preprocessing(ReferenceSpectra.getExperimentWithoutFormula(ReferenceSpectra.ADENOSINE));
+    }
+
+    @Test
+    public void testColumnWiseScoresEqualPerEdgeScores() throws IOException {
+        final FragmentationPatternAnalysis analysis = getAnalysis();
+        final FragmentationPatternAnalysis perEdge = getAnalysis();
+        int formulaScorers = 0;
+        final List<LossScorer> wrapped = new ArrayList<>();
+        for (LossScorer scorer : perEdge.getLossScorers()) {
+            if (scorer instanceof LossFormulaScorer) {
+                ++formulaScorers;
+                wrapped.add(new PerEdgeLossScorer(scorer));
+            } else {
+                wrapped.add(scorer);
+            }
+        }
+        assertTrue(formulaScorers > 5);
+        perEdge.getLossScorers().clear();
+        perEdge.getLossScorers().addAll(wrapped);
+
+        final ProcessedInput input = getInput(analysis);
+        final ProcessedInput perEdgeInput = getInput(perEdge);
+        final List<Decomposition> candidates = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        final List<Decomposition> perEdgeCandidates = perEdgeInput.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        assertEquals(candidates.size(), perEdgeCandidates.size());
+        for (int i = 0; i < candidates.size(); ++i) {
+            final FGraph graph = analysis.buildGraphWithoutReduction(input, candidates.get(i));
+            final FGraph expected = perEdge.buildGraphWithoutReduction(perEdgeInput, perEdgeCandidates.get(i));
+            assertEquals(expected.numberOfEdges(), graph.numberOfEdges());
+            final List<Loss> losses = new ArrayList<>(graph.losses()), expectedLosses = new ArrayList<>(expected.losses());
+            for (int k = 0; k < losses.size(); ++k) {
+                assertEquals(expectedLosses.get(k).getFormula(), losses.get(k).getFormula());
+                // the scores are summed up in the same order, so they are identical
+                assertEquals(candidates.get(i).getCandidate() + " " + losses.get(k), expectedLosses.get(k).getWeight(), losses.get(k).getWeight(), 0d);
+            }
+        }
+    }
+
+    /**
+     * the losses are grouped by their packed formulas, each distinct loss formula has to be scored exactly once
+     */
+    @Test
+    public void testEachLossFormulaIsScoredOnce() throws IOException {
+        final FragmentationPatternAnalysis analysis = getAnalysis();
+        final ProcessedInput input = getInput(analysis);
+        final List<Decomposition> candidates = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        final String name = StrangeElementScorer.class.getSimpleName();
+        for (Decomposition candidate : candidates) {
+            analysis.getLossScorerStatistics().reset();
+            final FGraph graph = analysis.buildGraphWithoutReduction(input, candidate);
+            final Set<MolecularFormula> lossFormulas = new HashSet<>();
+            for (Loss loss : graph.losses()) {
+                if (!loss.getSource().isRoot()) lossFormulas.add(loss.getFormula());
+            }
+            assertEquals(candidate.getCandidate().toString(), lossFormulas.size(), analysis.getLossScorerStatistics().getNumberOfScores(name));
+        }
+    }
+
+    /**
+     * score(loss) has to be the same as scoreLoss(loss formula) for every loss formula scorer
+     */
+    @Test
+    public void testScoreOfLossEqualsScoreOfLossFormula() throws IOException {
+        final FragmentationPatternAnalysis analysis = getAnalysis();
+        final ProcessedInput input = getInput(analysis);
+        final List<Decomposition> candidates = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        for (LossScorer scorer : analysis.getLossScorers()) {
+            if (!(scorer instanceof LossFormulaScorer)) continue;
+            final Object precomputed = scorer.prepare(input);
+            for (Decomposition candidate : candidates) {
+                for (Loss loss : analysis.buildGraphWithoutReduction(input, candidate).losses()) {
+                    if (loss.getSource().isRoot()) continue;
+                    assertEquals(scorer + " " + loss, ((LossFormulaScorer) scorer).scoreLoss(loss.getFormula(), input, precomputed), scorer.score(loss, input, precomputed), 0d);
+                }
+            }
+        }
+    }
+}
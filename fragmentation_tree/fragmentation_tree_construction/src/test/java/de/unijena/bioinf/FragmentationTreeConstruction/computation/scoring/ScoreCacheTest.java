@@ -0,0 +1,131 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.ReferenceSpectra;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ScoreCacheTest {
+
+    private static class CountingFractionOfParentLossScorer extends FractionOfParentLossScorer {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
+            calls.incrementAndGet();
+            return super.scoreLoss(lossFormula, input, precomputed);
+        }
+    }
+
+    private static class CountingStrangeElementScorer extends StrangeElementScorer {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public double scoreLoss(MolecularFormula lossFormula, ProcessedInput input, Object precomputed) {
+            calls.incrementAndGet();
+            return super.scoreLoss(lossFormula, input, precomputed);
+        }
+    }
+
+    private static FragmentationPatternAnalysis getAnalysis(ScoreCache cache) throws IOException {
+        final FragmentationPatternAnalysis analysis = ReferenceSpectra.getDefaultAnalysis();
+        analysis.setScoreCache(cache);
+        return analysis;
+    }
+
+    /**
+     * @return scores of all precursor candidates and the edge weights of their graphs
+     */
+    private static Map<String, Double> computeScores(FragmentationPatternAnalysis analysis) throws IOException {
+        final ProcessedInput input = analysis.preprocessing(ReferenceSpectra.getExperimentWithoutFormula(ReferenceSpectra.ADENOSINE));
+        final Map<String, Double> scores = new HashMap<>();
+        for (Decomposition d : input.getAnnotationOrThrow(DecompositionList.class).getDecompositions()) {
+            scores.put(d.getCandidate().toString(), d.getScore());
+            final FGraph graph = analysis.buildGraphWithoutReduction(input, d);
+            for (Loss l : graph.losses()) {
+                scores.put(d.getCandidate() + ": " + l.getSource().getFormula() + "/" + l.getSource().getColor() + " -> " + l.getTarget().getFormula() + "/" + l.getTarget().getColor(), l.getWeight());
+            }
+        }
+        return scores;
+    }
+
+    @Test
+    public void testCachedScoresEqualUncachedScores() throws IOException {
+        final Map<String, Double> expected = computeScores(getAnalysis(null));
+        assertFalse(expected.isEmpty());
+        // a small cache evicts scores while the graphs are scored
+        for (int size : new int[]{1 << 20, 10}) {
+            final ScoreCache cache = new ScoreCache(size);
+            final FragmentationPatternAnalysis analysis = getAnalysis(cache);
+            assertEquals(expected, computeScores(analysis));
+            // the second compound gets the scores of the first one from the cache
+            assertEquals(expected, computeScores(analysis));
+            assertTrue(cache.getStatistics().hitCount() > 0);
+            assertTrue(cache.size() <= size);
+        }
+    }
+
+    /**
+     * StrangeElementScorer depends on the ion type of the input and FractionOfParentLossScorer on its parent mass.
+     * Both have to be called for every compound, even if a cache is used.
+     */
+    @Test
+    public void testContextDependentScorersBypassCache() throws IOException {
+        assertFalse(new StrangeElementScorer() instanceof ContextFreeScorer);
+        assertFalse(new FractionOfParentLossScorer() instanceof ContextFreeScorer);
+
+        final FragmentationPatternAnalysis uncached = getAnalysis(null);
+        uncached.getLossScorers().add(new FractionOfParentLossScorer());
+        uncached.getLossScorers().add(new StrangeElementScorer());
+        final Map<String, Double> expected = computeScores(uncached);
+
+        final ScoreCache cache = new ScoreCache(1 << 20);
+        final FragmentationPatternAnalysis analysis = getAnalysis(cache);
+        final CountingFractionOfParentLossScorer fractionOfParent = new CountingFractionOfParentLossScorer();
+        final CountingStrangeElementScorer strangeElements = new CountingStrangeElementScorer();
+        analysis.getLossScorers().add(fractionOfParent);
+        analysis.getLossScorers().add(strangeElements);
+
+        assertEquals(expected, computeScores(analysis));
+        final int fractionOfParentCalls = fractionOfParent.calls.get(), strangeElementCalls = strangeElements.calls.get();
+        assertTrue(fractionOfParentCalls > 0);
+        assertTrue(strangeElementCalls > 0);
+        final long cachedScores = cache.size();
+
+        assertEquals(expected, computeScores(analysis));
+        assertEquals(2 * fractionOfParentCalls, fractionOfParent.calls.get());
+        assertEquals(2 * strangeElementCalls, strangeElements.calls.get());
+        assertTrue(cache.getStatistics().hitCount() > 0);
+        // only the context free scorers fill the cache, and their scores are already cached
+        assertEquals(cachedScores, cache.size());
+    }
+}
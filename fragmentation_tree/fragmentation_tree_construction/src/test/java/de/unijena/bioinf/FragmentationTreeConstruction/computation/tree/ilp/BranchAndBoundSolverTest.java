@@ -0,0 +1,252 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.ReferenceSpectra;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilderFactory;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.jjobs.exceptions.TimeoutException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundSolverTest {
+
+    /**
+     * @param sortedColors if true, the colors are in the same order as the vertices, like in graphs built from spectra
+     * @param roots number of vertices which are connected to the pseudo root
+     */
+    private static FGraph randomGraph(Random r, int n, int numberOfColors, boolean sortedColors, int roots, boolean negativeRootEdges) {
+        final FGraph graph = new FGraph();
+        final List<Fragment> vertices = new ArrayList<Fragment>();
+        for (int i = 0; i < n; ++i) {
+            final Fragment f = graph.addFragment(MolecularFormula.parse("C" + (100 - i)));
+            f.setColor(sortedColors ? (i < roots ? 1 : 1 + (i * numberOfColors) / n) : 1 + r.nextInt(numberOfColors));
+            vertices.add(f);
+        }
+        for (int i = 0; i < roots; ++i)
+            graph.addLoss(graph.getRoot(), vertices.get(i)).setWeight(negativeRootEdges ? -r.nextDouble() : r.nextDouble());
+        for (int j = roots; j < n; ++j) {
+            for (int i = 0; i < j; ++i) {
+                if (r.nextDouble() < 0.4) graph.addLoss(vertices.get(i), vertices.get(j)).setWeight(r.nextGaussian());
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * enumerates all choices of an incoming edge (or none) for each vertex
+     */
+    private static double bruteForce(FGraph graph) {
+        final List<Fragment> vertices = new ArrayList<Fragment>();
+        for (Fragment f : graph) if (f != graph.getRoot()) vertices.add(f);
+        final int n = vertices.size();
+        final int[] choice = new int[n];
+        double best = Double.NEGATIVE_INFINITY;
+        while (true) {
+            final Set<Integer> colors = new HashSet<Integer>();
+            final Set<Fragment> used = new HashSet<Fragment>();
+            boolean valid = true;
+            for (int i = 0; i < n; ++i) {
+                if (choice[i] > 0) {
+                    used.add(vertices.get(i));
+                    valid &= colors.add(vertices.get(i).getColor());
+                }
+            }
+            int roots = 0;
+            double score = 0d;
+            for (int i = 0; i < n && valid; ++i) {
+                if (choice[i] == 0) continue;
+                final Loss loss = vertices.get(i).getIncomingEdge(choice[i] - 1);
+                score += loss.getWeight();
+                if (loss.getSource() == graph.getRoot()) ++roots;
+                else valid = used.contains(loss.getSource());
+            }
+            if (valid && roots == 1 && score > best) best = score;
+            int k = 0;
+            while (k < n && ++choice[k] > vertices.get(k).getInDegree()) choice[k++] = 0;
+            if (k == n) return best;
+        }
+    }
+
+    /**
+     * enumerates all subsets of vertices. As the graph is acyclic, each vertex of a subset can take its best incoming
+     * edge from the subset, if exactly one vertex of the subset takes an edge from the pseudo root.
+     */
+    private static double bruteForceBySubsets(FGraph graph) {
+        final List<Fragment> vertices = new ArrayList<Fragment>();
+        for (Fragment f : graph) if (f != graph.getRoot()) vertices.add(f);
+        final int n = vertices.size();
+        final boolean[] inSubset = new boolean[graph.numberOfVertices()];
+        final double[] inner = new double[n], root = new double[n];
+        double best = Double.NEGATIVE_INFINITY;
+        for (int subset = 1; subset < (1 << n); ++subset) {
+            final Set<Integer> colors = new HashSet<Integer>();
+            boolean colorful = true;
+            for (int i = 0; i < n; ++i) {
+                inSubset[vertices.get(i).getVertexId()] = (subset & (1 << i)) != 0;
+                if (inSubset[vertices.get(i).getVertexId()]) colorful &= colors.add(vertices.get(i).getColor());
+            }
+            if (!colorful) continue;
+            double sum = 0d;
+            int withoutParent = 0, onlyRoot = -1;
+            for (int i = 0; i < n; ++i) {
+                if ((subset & (1 << i)) == 0) continue;
+                inner[i] = root[i] = Double.NEGATIVE_INFINITY;
+                final Fragment v = vertices.get(i);
+                for (int k = 0; k < v.getInDegree(); ++k) {
+                    final Loss l = v.getIncomingEdge(k);
+                    if (l.getSource() == graph.getRoot()) root[i] = Math.max(root[i], l.getWeight());
+                    else if (inSubset[l.getSource().getVertexId()]) inner[i] = Math.max(inner[i], l.getWeight());
+                }
+                if (inner[i] == Double.NEGATIVE_INFINITY) {
+                    ++withoutParent;
+                    onlyRoot = i;
+                } else {
+                    sum += inner[i];
+                }
+            }
+            if (withoutParent == 1) {
+                best = Math.max(best, sum + root[onlyRoot]);
+            } else if (withoutParent == 0) {
+                for (int i = 0; i < n; ++i)
+                    if ((subset & (1 << i)) != 0) best = Math.max(best, sum - inner[i] + root[i]);
+            }
+        }
+        return best;
+    }
+
+    private static TreeBuilder.Result solve(FGraph graph) {
+        return BranchAndBoundSolver.Factory.create(null, graph, new TreeBuilder.FluentInterface(null)).compute();
+    }
+
+    @Test
+    public void testOptimumOfRandomGraphs() {
+        final Random r = new Random(42);
+        for (int iteration = 0; iteration < 500; ++iteration) {
+            final int n = 3 + r.nextInt(6);
+            final FGraph graph = randomGraph(r, n, 2 + r.nextInt(n - 1), r.nextBoolean(), r.nextInt(4) == 0 ? 2 : 1, r.nextInt(5) == 0);
+            final double expected = bruteForce(graph);
+            final TreeBuilder.Result result = solve(graph);
+            assertNotNull("graph " + iteration, result.tree);
+            assertEquals("graph " + iteration, expected, result.tree.getTreeWeight(), 1e-9);
+        }
+    }
+
+    /**
+     * a template might contain edges which are not in the graph anymore, e.g. if it was computed before the graph
+     * was reduced
+     */
+    @Test
+    public void testTemplateWithRemovedEdges() {
+        final Random r = new Random(11);
+        for (int iteration = 0; iteration < 200; ++iteration) {
+            final int n = 4 + r.nextInt(5);
+            final FGraph graph = randomGraph(r, n, 2 + r.nextInt(n - 1), true, 1, false);
+            final FTree template = solve(graph).tree;
+            final Set<MolecularFormula> treeFormulas = new HashSet<MolecularFormula>();
+            for (Fragment f : template) treeFormulas.add(f.getFormula());
+            final FGraph reduced = new FGraph(graph);
+            for (Loss l : new ArrayList<Loss>(reduced.losses())) {
+                if (l.getSource() != reduced.getRoot() && treeFormulas.contains(l.getTarget().getFormula()) && r.nextBoolean())
+                    reduced.deleteLoss(l);
+            }
+            final TreeBuilder.Result result = BranchAndBoundSolver.Factory.create(null, reduced, new TreeBuilder.FluentInterface(null).withTemplate(template)).compute();
+            assertNotNull("graph " + iteration, result.tree);
+            assertEquals("graph " + iteration, bruteForce(reduced), result.tree.getTreeWeight(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testNodeLimitIsReadAsLong() {
+        PropertyManager.setProperty(BranchAndBoundSolver.MAX_NODES_PROPERTY, "10000000000");
+        try {
+            final FGraph graph = randomGraph(new Random(7), 8, 6, true, 1, false);
+            assertEquals(bruteForce(graph), solve(graph).tree.getTreeWeight(), 1e-9);
+        } finally {
+            PropertyManager.PROPERTIES.remove(BranchAndBoundSolver.MAX_NODES_PROPERTY);
+        }
+    }
+
+    /**
+     * graphs of the Adenosine spectrum for all precursor candidates, restricted to their first vertices such that the
+     * optimum can be enumerated
+     */
+    @Test
+    public void testOptimumOfGraphsFromSpectrum() throws IOException {
+        final int maxVertices = 14;
+        final FragmentationPatternAnalysis analysis = ReferenceSpectra.getDefaultAnalysis();
+        final ProcessedInput input = analysis.preprocessing(ReferenceSpectra.getExperimentWithoutFormula(ReferenceSpectra.ADENOSINE));
+        final List<Decomposition> candidates = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        assertFalse(candidates.isEmpty());
+        int largeGraphs = 0;
+        for (Decomposition candidate : candidates) {
+            final FGraph graph = analysis.buildGraphWithoutReduction(input, candidate);
+            if (graph.numberOfVertices() > maxVertices) ++largeGraphs;
+            final List<Fragment> toDelete = new ArrayList<Fragment>();
+            for (Fragment f : graph) if (f.getVertexId() > maxVertices) toDelete.add(f);
+            graph.deleteFragmentsKeepTopologicalOrder(toDelete);
+            final FTree tree = new AbstractTreeBuilder<BranchAndBoundSolver>(BranchAndBoundSolver.Factory).computeTree().solve(input, graph).tree;
+            assertNotNull(candidate.getCandidate().toString(), tree);
+            assertEquals(candidate.getCandidate().toString(), bruteForceBySubsets(graph), tree.getTreeWeight(), 1e-9);
+        }
+        assertTrue(largeGraphs > 0);
+    }
+
+    /**
+     * the heuristics are only used for graphs with one root, so the search cannot stop at its first node
+     */
+    @Test(expected = TimeoutException.class)
+    public void testNodeLimitAbortsSearch() {
+        PropertyManager.setProperty(BranchAndBoundSolver.MAX_NODES_PROPERTY, "1");
+        try {
+            solve(randomGraph(new Random(5), 20, 15, true, 2, false));
+        } finally {
+            PropertyManager.PROPERTIES.remove(BranchAndBoundSolver.MAX_NODES_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testBranchAndBoundHasToBeChosenExplicitly() {
+        final TreeBuilderFactory factory = TreeBuilderFactory.getInstance();
+        assertFalse(Arrays.asList(TreeBuilderFactory.getBuilderPriorities()).contains(TreeBuilderFactory.DefaultBuilder.BRANCH_AND_BOUND));
+        try {
+            assertTrue(TreeBuilderFactory.setBuilderPriorities("BRANCH_AND_BOUND"));
+            final TreeBuilder builder = factory.getTreeBuilder();
+            assertNotNull(builder);
+            assertEquals(factory.getTreeBuilder(TreeBuilderFactory.DefaultBuilder.BRANCH_AND_BOUND).toString(), builder.toString());
+            final FGraph graph = randomGraph(new Random(3), 7, 5, true, 1, false);
+            assertEquals(bruteForce(graph), builder.computeTree().solve(null, graph).tree.getTreeWeight(), 1e-9);
+        } finally {
+            TreeBuilderFactory.setBuilderPriorities((TreeBuilderFactory.DefaultBuilder[]) null);
+        }
+    }
+}
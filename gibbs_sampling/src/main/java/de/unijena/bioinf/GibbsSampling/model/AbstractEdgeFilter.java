@@ -2,21 +2,25 @@ package de.unijena.bioinf.GibbsSampling.model;
 
 import gnu.trove.list.array.TIntArrayList;
 
+import java.util.Arrays;
+
 /**
  * Created by ge28quv on 10/05/17.
  */
 public abstract class AbstractEdgeFilter implements EdgeFilter {
 
-    protected int[][] makeWeightsSymmetricAndCreateConnectionsArray(Graph graph) {
+    protected static int[][] makeWeightsSymmetricAndCreateConnectionsArray(Graph graph) {
         TIntArrayList[] connectionsList = new TIntArrayList[graph.getSize()];
 
         for(int i = 0; i < graph.getSize(); ++i) {
-            connectionsList[i] = new TIntArrayList(100);
+            connectionsList[i] = new TIntArrayList(graph.getNumberOfConnections(i));
         }
 
-        //todo easily speed up by going over all graph.getLogWeightConnections
+        //only pairs with a weight in at least one direction can be connected
         for(int i = 0; i < graph.getSize(); ++i) {
-            for(int j = i + 1; j < graph.getSize(); ++j) {
+            for (int j : graph.getLogWeightConnections(i)) {
+                //a pair (j,i) with j<i was already processed if i is in the connections of j
+                if (j == i || (j < i && graph.hasLogWeight(j, i))) continue;
                 double w1 = graph.getLogWeight(i, j);
                 double w2 = graph.getLogWeight(j, i);
                 double max;
@@ -44,8 +48,21 @@ public abstract class AbstractEdgeFilter implements EdgeFilter {
 
         for(int j = 0; j < connections.length; ++j) {
             connections[j] = connectionsList[j].toArray();
+            Arrays.sort(connections[j]);
         }
 
         return connections;
     }
+
+    /**
+     * @return scores of all candidates, as given to {@link EdgeFilter#filterEdgesAndSetThreshold(Graph, int, double[])}
+     */
+    static double[] toDenseScores(Graph graph, int[] candidates, double[] logEdgeScores, int numberOfScores, double otherLogEdgeScore) {
+        final double[] scores = new double[graph.getSize()];
+        Arrays.fill(scores, otherLogEdgeScore);
+        for (int k = 0; k < numberOfScores; ++k) {
+            scores[candidates[k]] = logEdgeScores[k];
+        }
+        return scores;
+    }
 }
@@ -3,7 +3,7 @@ package de.unijena.bioinf.GibbsSampling.model;
 import de.unijena.bioinf.GibbsSampling.model.EdgeFilter;
 import de.unijena.bioinf.GibbsSampling.model.Graph;
 
-public class EdgeThresholdFilter extends AbstractEdgeFilter {
+public class EdgeThresholdFilter extends AbstractEdgeFilter implements SparseEdgeFilter {
     private double threshold;
     private double logThres;
 
@@ -26,6 +26,26 @@ public class EdgeThresholdFilter extends AbstractEdgeFilter {
         }
     }
 
+    public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] candidates, double[] logEdgeScores, int numberOfScores, double otherLogEdgeScore) {
+        if (otherLogEdgeScore < this.logThres) {
+            //all other candidates are connected
+            filterEdgesAndSetThreshold(graph, candidateIdx, toDenseScores(graph, candidates, logEdgeScores, numberOfScores, otherLogEdgeScore));
+            return;
+        }
+        graph.setEdgeThreshold(candidateIdx, this.logThres);
+        int peakIdx = graph.getPeakIdx(candidateIdx);
+
+        for(int k = 0; k < numberOfScores; ++k) {
+            int i = candidates[k];
+            if(peakIdx != graph.getPeakIdx(i)) {
+                double score = logEdgeScores[k];
+                if(score < this.logThres) {
+                    graph.setLogWeight(candidateIdx, i, this.logThres - score);
+                }
+            }
+        }
+    }
+
     public void setThreshold(double threshold) {
         this.logThres = threshold;
     }
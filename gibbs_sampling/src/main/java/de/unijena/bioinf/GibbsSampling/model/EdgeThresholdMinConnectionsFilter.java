@@ -1,11 +1,10 @@
 package de.unijena.bioinf.GibbsSampling.model;
 
-import gnu.trove.list.array.TIntArrayList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 
-public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
+public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter implements SparseEdgeFilter {
     private double basicThreshold;
     private int numberOfCandidatesWithMinConnCount;
     private int minimumConnectionCount;
@@ -24,13 +23,29 @@ public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
     }
 
     public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, double[] logEdgeScores) {
+        int[] candidates = new int[logEdgeScores.length];
+        for (int i = 0; i < candidates.length; ++i) candidates[i] = i;
+        filterSparseEdges(graph, candidateIdx, candidates, logEdgeScores, logEdgeScores.length);
+    }
+
+    public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] candidates, double[] logEdgeScores, int numberOfScores, double otherLogEdgeScore) {
+        if (otherLogEdgeScore < 0) {
+            //all other candidates might be connected
+            filterEdgesAndSetThreshold(graph, candidateIdx, AbstractEdgeFilter.toDenseScores(graph, candidates, logEdgeScores, numberOfScores, otherLogEdgeScore));
+        } else {
+            //scores >= 0 are neither used for the threshold nor become an edge
+            filterSparseEdges(graph, candidateIdx, candidates, logEdgeScores, numberOfScores);
+        }
+    }
+
+    private void filterSparseEdges(Graph graph, int candidateIdx, int[] candidates, double[] logEdgeScores, int numberOfScores) {
         int peakIdx = graph.getPeakIdx(candidateIdx);
 
         double[] minThresholdPerPeak = new double[graph.numberOfCompounds()];
-        for(int i = 0; i < logEdgeScores.length; ++i) {
-            int peakIdxOther = graph.getPeakIdx(i);
+        for(int k = 0; k < numberOfScores; ++k) {
+            int peakIdxOther = graph.getPeakIdx(candidates[k]);
             if(peakIdx != peakIdxOther) {
-                double score = logEdgeScores[i];
+                double score = logEdgeScores[k];
                 //CHANGED just add edge if <0 (at least some matching fragments)
                 if (score>=0) continue;
 
@@ -70,10 +85,11 @@ public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
         }
 
 
-        for(int i = 0; i < logEdgeScores.length; ++i) {
+        for(int k = 0; k < numberOfScores; ++k) {
+            int i = candidates[k];
             int peakIdxOther = graph.getPeakIdx(i);
             if(peakIdx != peakIdxOther) {
-                double score = logEdgeScores[i];
+                double score = logEdgeScores[k];
                 if (score>=currentThreshold) continue;
 
                 graph.setLogWeight(candidateIdx, i, currentThreshold - score);
@@ -89,12 +105,6 @@ public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
     }
 
     public int[][] postprocessCompleteGraph(Graph graph) {
-        TIntArrayList[] connectionsList = new TIntArrayList[graph.getSize()];
-        
-        for(int i = 0; i < graph.getSize(); ++i) {
-            connectionsList[i] = new TIntArrayList(100);
-        }
-        
         for(int i = 0; i < graph.numberOfCompounds(); ++i) {
             int left = graph.getPeakLeftBoundary(i);
             int right = graph.getPeakRightBoundary(i);
@@ -128,37 +138,7 @@ public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
             }
         }
 
-        for(int i = 0; i < graph.getSize(); ++i) {
-            for(int j = i + 1; j < graph.getSize(); ++j) {
-                double a = graph.getLogWeight(i, j);
-                double b = graph.getLogWeight(j, i);
-                double max;
-                if(a < b) {
-                    graph.setLogWeight(i, j, b);
-                    max = b;
-                } else if(b < a) {
-                    graph.setLogWeight(j, i, a);
-                    max = a;
-                } else {
-                    max = a;
-                }
-
-                if(max > 0.0D) {
-                    connectionsList[i].add(j);
-                    connectionsList[j].add(i);
-                } else if (max < 0d) {
-                    throw new RuntimeException("Edge has a negative weight");
-                }
-            }
-        }
-
-        int[][] connections = new int[graph.getSize()][];
-
-        for(int i = 0; i < graph.getSize(); ++i) {
-            connections[i] = connectionsList[i].toArray();
-        }
-
-        return connections;
+        return AbstractEdgeFilter.makeWeightsSymmetricAndCreateConnectionsArray(graph);
     }
 
 }
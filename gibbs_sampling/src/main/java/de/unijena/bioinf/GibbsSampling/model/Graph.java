@@ -137,6 +137,10 @@ public class Graph<C extends Candidate<?>> {
         return relJ < 0?0.0D:this.weights[i].get(relJ);
     }
 
+    public boolean hasLogWeight(int i, int j) {
+        return this.indexMap[i].containsKey(j);
+    }
+
     public int getNumberOfConnections(int i) {
         return this.weights[i].size();
     }
@@ -7,6 +7,7 @@ import de.unijena.bioinf.GibbsSampling.model.distributions.ScoreProbabilityDistr
 import de.unijena.bioinf.jjobs.*;
 import gnu.trove.list.TDoubleList;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.procedure.TDoubleProcedure;
 import gnu.trove.set.hash.TIntHashSet;
 import org.slf4j.Logger;
@@ -15,12 +16,16 @@ import org.slf4j.LoggerFactory;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
 
 public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<C>> implements JobProgressEventListener{
     protected static final boolean THIN_OUT_GRAPH = false;//never improved somthing. is slow.
+    //edges of candidates are computed in blocks of compounds. Each block is one job.
+    private static final int CANDIDATES_PER_BLOCK = 128;
+    private static final int MIN_NUMBER_OF_BLOCKS = 64;
 
     Graph<C> graph;
     EdgeScorer<C>[] edgeScorers;
@@ -156,38 +161,67 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
 
         this.edgeFilter.setThreshold(minV);
         final Graph final_graph = graph;
-        size = graph.getSize();
+        final int[][] similarCompounds = getPossiblySimilarCompounds();
+        final double scoreOfDissimilar = getScoreOfDissimilar();
+        final SparseEdgeFilter sparseEdgeFilter = (edgeFilter instanceof SparseEdgeFilter) ? (SparseEdgeFilter)edgeFilter : null;
+        if (GibbsMFCorrectionNetwork.DEBUG) System.out.println("score only possibly similar compounds: "+(similarCompounds!=null));
+
+        final int[] blocks = getCompoundBlocks();
+        size = blocks.length-1;
         step = Math.max(size/20, 1);
         updateProgress(0, size,0, "Computing edges");
-        for(int i = 0; i < size; ++i) {
-            final int final_i = i;
-            final C candidate = graph.getPossibleFormulas1D(i).getCandidate();
-            //todo use worker jobs
+        for(int b = 0; b < size; ++b) {
+            final int firstCompound = blocks[b];
+            final int lastCompound = blocks[b+1];
             BasicJJob job = new BasicJJob() {
                 @Override
                 protected Object compute() throws Exception {
-                    TDoubleArrayList scores = new TDoubleArrayList(graph.getSize());
-
-                    for(int j = 0; j < graph.getSize(); ++j) {
-                        if(graph.getPeakIdx(final_i) == graph.getPeakIdx(j)) {
-                            scores.add(0.0D);
-                        } else {
-                            C candidate2 = graph.getPossibleFormulas1D(j).getCandidate();
-                            double score = 0.0D;
-
-                            for(int k = 0; k < edgeScorers.length; ++k) {
-                                EdgeScorer edgeScorer = edgeScorers[k];
-                                score += edgeScorer.score(candidate, candidate2);
+                    //scored candidates of the current candidate in ascending order
+                    int maxNumberOfScores = graph.getSize();
+                    if (similarCompounds!=null) {
+                        maxNumberOfScores = 0;
+                        for (int peak = firstCompound; peak < lastCompound; ++peak) {
+                            maxNumberOfScores = Math.max(maxNumberOfScores, numberOfCandidates(similarCompounds[peak]));
+                        }
+                    }
+                    final int[] indices = new int[maxNumberOfScores];
+                    final double[] scores = new double[maxNumberOfScores];
+
+                    for (int peak = firstCompound; peak < lastCompound; ++peak) {
+                        for (int i = graph.getPeakLeftBoundary(peak); i <= graph.getPeakRightBoundary(peak); ++i) {
+                            final C candidate = graph.getPossibleFormulas1D(i).getCandidate();
+                            int n = 0;
+                            if (similarCompounds==null) {
+                                for(int j = 0; j < graph.getSize(); ++j) {
+                                    if (graph.getPeakIdx(j)==peak) continue;
+                                    indices[n] = j;
+                                    scores[n++] = score(candidate, graph.getPossibleFormulas1D(j).getCandidate());
+                                }
+                            } else {
+                                for (int other : similarCompounds[peak]) {
+                                    for (int j = graph.getPeakLeftBoundary(other); j <= graph.getPeakRightBoundary(other); ++j) {
+                                        indices[n] = j;
+                                        scores[n++] = score(candidate, graph.getPossibleFormulas1D(j).getCandidate());
+                                    }
+                                }
                             }
 
-                            scores.add(score);
+                            if (sparseEdgeFilter!=null) {
+                                sparseEdgeFilter.filterEdgesAndSetThreshold(final_graph, i, indices, scores, n, similarCompounds==null ? 0d : scoreOfDissimilar);
+                            } else {
+                                final double[] allScores = new double[graph.getSize()];
+                                if (similarCompounds!=null) {
+                                    Arrays.fill(allScores, scoreOfDissimilar);
+                                    for (int j = graph.getPeakLeftBoundary(peak); j <= graph.getPeakRightBoundary(peak); ++j) allScores[j] = 0d;
+                                }
+                                for (int k = 0; k < n; ++k) allScores[indices[k]] = scores[k];
+                                edgeFilter.filterEdgesAndSetThreshold(final_graph, i, allScores);
+                            }
                         }
+                        checkForInterruption();
                     }
 
-                    edgeFilter.filterEdgesAndSetThreshold(final_graph, final_i, scores.toArray());
-
                     //progess is always fired if job done
-                    checkForInterruption();
                     return null;
                 }
             };
@@ -201,6 +235,83 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
 
     }
 
+    private double score(C candidate1, C candidate2) {
+        double score = 0.0D;
+
+        for(int k = 0; k < edgeScorers.length; ++k) {
+            EdgeScorer edgeScorer = edgeScorers[k];
+            score += edgeScorer.score(candidate1, candidate2);
+        }
+
+        return score;
+    }
+
+    /**
+     * @return for each compound the compounds (in ascending order) which might be connected with it.
+     * null if all edge scorers have to score all candidate pairs
+     */
+    private int[][] getPossiblySimilarCompounds() {
+        final int n = graph.numberOfCompounds();
+        final BitSet[] possiblySimilar = new BitSet[n];
+        for (int i = 0; i < n; ++i) possiblySimilar[i] = new BitSet();
+        for (EdgeScorer<C> edgeScorer : edgeScorers) {
+            if (!(edgeScorer instanceof SparseEdgeScorer)) return null;
+            for (int i = 0; i < n; ++i) {
+                final BitSet similar = ((SparseEdgeScorer<C>)edgeScorer).getPossiblySimilarCompounds(i);
+                if (similar==null) return null;
+                possiblySimilar[i].or(similar);
+            }
+        }
+
+        final TIntArrayList[] similarLists = new TIntArrayList[n];
+        for (int i = 0; i < n; ++i) similarLists[i] = new TIntArrayList();
+        for (int i = 0; i < n; ++i) {
+            for (int j = possiblySimilar[i].nextSetBit(i+1); j >= 0 && j < n; j = possiblySimilar[i].nextSetBit(j+1)) {
+                similarLists[i].add(j);
+                similarLists[j].add(i);
+            }
+        }
+        final int[][] similarCompounds = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            similarCompounds[i] = similarLists[i].toArray();
+            Arrays.sort(similarCompounds[i]);
+        }
+        return similarCompounds;
+    }
+
+    private double getScoreOfDissimilar() {
+        double score = 0.0D;
+        for (EdgeScorer<C> edgeScorer : edgeScorers) {
+            if (!(edgeScorer instanceof SparseEdgeScorer)) return Double.NaN;
+            score += ((SparseEdgeScorer<C>)edgeScorer).getScoreOfDissimilar();
+        }
+        return score;
+    }
+
+    private int numberOfCandidates(int[] compounds) {
+        int n = 0;
+        for (int c : compounds) n += graph.getPeakRightBoundary(c)-graph.getPeakLeftBoundary(c)+1;
+        return n;
+    }
+
+    /**
+     * splits the compounds into blocks of consecutive compounds with about CANDIDATES_PER_BLOCK candidates.
+     * All candidates of a block are computed in the same job.
+     * @return start compound of each block followed by the number of compounds
+     */
+    private int[] getCompoundBlocks() {
+        final int candidatesPerBlock = Math.max(1, Math.min(CANDIDATES_PER_BLOCK, graph.getSize()/MIN_NUMBER_OF_BLOCKS));
+        final TIntArrayList blocks = new TIntArrayList();
+        int candidatesInBlock = 0;
+        for (int peak = 0; peak < graph.numberOfCompounds(); ++peak) {
+            if (candidatesInBlock==0) blocks.add(peak);
+            candidatesInBlock += graph.getPeakRightBoundary(peak)-graph.getPeakLeftBoundary(peak)+1;
+            if (candidatesInBlock>=candidatesPerBlock) candidatesInBlock = 0;
+        }
+        blocks.add(graph.numberOfCompounds());
+        return blocks.toArray();
+    }
+
 
     private void setConnections() {
         long time = System.currentTimeMillis();
@@ -3,7 +3,7 @@ package de.unijena.bioinf.GibbsSampling.model;
 import de.unijena.bioinf.GibbsSampling.model.EdgeFilter;
 import de.unijena.bioinf.GibbsSampling.model.Graph;
 
-public class NoEdgeFilter extends AbstractEdgeFilter {
+public class NoEdgeFilter extends AbstractEdgeFilter implements SparseEdgeFilter {
     public NoEdgeFilter() {
     }
 
@@ -22,6 +22,26 @@ public class NoEdgeFilter extends AbstractEdgeFilter {
 
     }
 
+    public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] candidates, double[] logEdgeScores, int numberOfScores, double otherLogEdgeScore) {
+        if (otherLogEdgeScore != 0.0D && !Double.isInfinite(otherLogEdgeScore)) {
+            //all other candidates are connected
+            filterEdgesAndSetThreshold(graph, candidateIdx, toDenseScores(graph, candidates, logEdgeScores, numberOfScores, otherLogEdgeScore));
+            return;
+        }
+        graph.setEdgeThreshold(candidateIdx, 0.0D / 0.0);
+        int peakIdx = graph.getPeakIdx(candidateIdx);
+
+        for(int k = 0; k < numberOfScores; ++k) {
+            int i = candidates[k];
+            if(peakIdx != graph.getPeakIdx(i)) {
+                double score = logEdgeScores[k];
+                if(score != 0.0D && !Double.isInfinite(score)) {
+                    graph.setLogWeight(candidateIdx, i, score);
+                }
+            }
+        }
+    }
+
     public int[][] postprocessCompleteGraph(Graph graph) {
         return this.makeWeightsSymmetricAndCreateConnectionsArray(graph);
     }
@@ -0,0 +1,15 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+/**
+ * An {@link EdgeFilter} which can filter the edges of a candidate without a score for every other candidate.
+ */
+public interface SparseEdgeFilter extends EdgeFilter {
+
+    /**
+     * Same as {@link #filterEdgesAndSetThreshold(Graph, int, double[])}, but only the first numberOfScores entries of
+     * candidates and logEdgeScores are given. All other candidates have the score otherLogEdgeScore.
+     * @param candidates indices of the scored candidates in ascending order
+     */
+    void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] candidates, double[] logEdgeScores, int numberOfScores, double otherLogEdgeScore);
+
+}
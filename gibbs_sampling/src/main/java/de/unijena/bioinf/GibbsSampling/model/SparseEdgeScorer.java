@@ -0,0 +1,23 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import java.util.BitSet;
+
+/**
+ * An {@link EdgeScorer} which knows after {@link #prepare(Candidate[][])} which compounds can be connected at all.
+ * The {@link GraphBuilder} only scores candidate pairs of possibly similar compounds. All other pairs get
+ * {@link #getScoreOfDissimilar()} without calling {@link #score(Candidate, Candidate)}.
+ */
+public interface SparseEdgeScorer<C extends Candidate<?>> extends EdgeScorer<C> {
+
+    /**
+     * @param compoundIdx index of the compound in the array given to {@link #prepare(Candidate[][])}
+     * @return set of compounds j &gt; compoundIdx whose candidates might get a score different from
+     * {@link #getScoreOfDissimilar()} with the candidates of compoundIdx. null if every compound might be similar.
+     */
+    BitSet getPossiblySimilarCompounds(int compoundIdx);
+
+    /**
+     * @return the value {@link #score(Candidate, Candidate)} returns for candidates of compounds which are not possibly similar
+     */
+    double getScoreOfDissimilar();
+}
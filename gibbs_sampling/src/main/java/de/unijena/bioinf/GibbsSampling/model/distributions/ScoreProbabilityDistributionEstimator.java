@@ -4,13 +4,15 @@ import de.unijena.bioinf.ChemistryBase.math.HighQualityRandom;
 import de.unijena.bioinf.GibbsSampling.model.Candidate;
 import de.unijena.bioinf.GibbsSampling.model.EdgeScorer;
 import de.unijena.bioinf.GibbsSampling.model.GibbsMFCorrectionNetwork;
+import de.unijena.bioinf.GibbsSampling.model.SparseEdgeScorer;
 import gnu.trove.list.array.TDoubleArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.BitSet;
 
-public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> implements EdgeScorer<C> {
+public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> implements SparseEdgeScorer<C> {
     private static final Logger LOG = LoggerFactory.getLogger(ScoreProbabilityDistributionEstimator.class);
     protected final EdgeScorer<C> edgeScorer;
     protected ScoreProbabilityDistribution scoreProbabilityDistribution;
@@ -192,6 +194,21 @@ public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> imple
         return prob;
     }
 
+    /**
+     * @return the possibly similar compounds of the underlying scorer or null if it is no {@link SparseEdgeScorer}
+     */
+    @Override
+    public BitSet getPossiblySimilarCompounds(int compoundIdx) {
+        if (edgeScorer instanceof SparseEdgeScorer) return ((SparseEdgeScorer<C>)edgeScorer).getPossiblySimilarCompounds(compoundIdx);
+        return null;
+    }
+
+    @Override
+    public double getScoreOfDissimilar() {
+        if (edgeScorer instanceof SparseEdgeScorer) return this.scoreProbabilityDistribution.toLogPvalue(((SparseEdgeScorer<C>)edgeScorer).getScoreOfDissimilar());
+        return Double.NaN;
+    }
+
     public ScoreProbabilityDistribution getProbabilityDistribution() {
         return this.scoreProbabilityDistribution;
     }
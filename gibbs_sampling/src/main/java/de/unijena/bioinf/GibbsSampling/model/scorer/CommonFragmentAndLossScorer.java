@@ -8,12 +8,13 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.util.*;
 
-public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidate> {
+public class CommonFragmentAndLossScorer implements SparseEdgeScorer<FragmentsCandidate> {
     protected TObjectIntHashMap<Ms2Experiment> idxMap;
     protected BitSet[] maybeSimilar;
     protected TObjectDoubleHashMap<Ms2Experiment> normalizationMap;
     protected double threshold;
     protected  double MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES = 5;//changed from 3
+    private FragmentIndex fragmentIndex, lossIndex;
     public CommonFragmentAndLossScorer(double threshold) {
         this.threshold = threshold;
     }
@@ -52,20 +53,30 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         }
 
 
+        // the merge only runs for compound pairs whose upper bound passes both filters
+        final PeakExplanationIndex fragmentPeakIndex = new PeakExplanationIndex(this, allFragmentPeaks);
+        final PeakExplanationIndex lossPeakIndex = new PeakExplanationIndex(this, allLossPeaks);
+        final PeakExplanationIndex.Bounds bounds = new PeakExplanationIndex.Bounds(candidates.length);
         for(int i = 0; i < allFragmentPeaks.length; ++i) {
-            for(int j = i + 1; j < allFragmentPeaks.length; ++j) {
-                final double commonL = this.scoreCommons(allFragmentPeaks[i], allFragmentPeaks[j]);
-                final double commonF = this.scoreCommons(allLossPeaks[i], allLossPeaks[j]);
-                final double score = ((commonF + commonL) / norm[i]) + ((commonF + commonL) / norm[j]);
-
-                if((commonF + commonL) >= minimum_numer_matched_peaks_losses && (score >= this.threshold)){
-                    this.maybeSimilar[i].set(j);
-
+            bounds.clear();
+            fragmentPeakIndex.addUpperBounds(i, bounds);
+            lossPeakIndex.addUpperBounds(i, bounds);
+            if (minimum_numer_matched_peaks_losses <= 0) {
+                // compounds without common formula may pass as well
+                for(int j = i + 1; j < allFragmentPeaks.length; ++j) {
+                    testSimilar(i, j, bounds.getBound(j), allFragmentPeaks, allLossPeaks, norm, minimum_numer_matched_peaks_losses);
+                }
+            } else {
+                for (int k = 0; k < bounds.numberOfTouched(); ++k) {
+                    final int j = bounds.getTouched(k);
+                    testSimilar(i, j, bounds.getBound(j), allFragmentPeaks, allLossPeaks, norm, minimum_numer_matched_peaks_losses);
                 }
-
             }
         }
 
+        this.fragmentIndex = new FragmentIndex(this, candidates, true);
+        this.lossIndex = new FragmentIndex(this, candidates, false);
+
         int sum = 0;
         for (BitSet bitSet : this.maybeSimilar) {
             sum += bitSet.cardinality();
@@ -73,6 +84,18 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         if (GibbsMFCorrectionNetwork.DEBUG) System.out.println("compounds: " + this.maybeSimilar.length + " | maybeSimilar: " + sum + " | threshold was "+threshold);
     }
 
+    private void testSimilar(int i, int j, int upperBound, PeakWithExplanation[][] allFragmentPeaks, PeakWithExplanation[][] allLossPeaks, double[] norm, double minimum_numer_matched_peaks_losses) {
+        if (upperBound < minimum_numer_matched_peaks_losses) return;
+        if (norm[i] > 0 && norm[j] > 0 && (upperBound / norm[i]) + (upperBound / norm[j]) < this.threshold) return;
+        final double commonL = this.scoreCommons(allFragmentPeaks[i], allFragmentPeaks[j]);
+        final double commonF = this.scoreCommons(allLossPeaks[i], allLossPeaks[j]);
+        final double score = ((commonF + commonL) / norm[i]) + ((commonF + commonL) / norm[j]);
+
+        if((commonF + commonL) >= minimum_numer_matched_peaks_losses && (score >= this.threshold)){
+            this.maybeSimilar[i].set(j);
+        }
+    }
+
 //    private void prepareData(){
 //
 //    }
@@ -201,8 +224,8 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
             }
         }
 
-        final double commonF = this.scoreCommons(candidate1.getFragments(), candidate2.getFragments());
-        final double commonL = this.scoreCommons(candidate1.getLosses(), candidate2.getLosses());
+        final double commonF = this.scoreCommonFragments(candidate1, candidate2, true);
+        final double commonL = this.scoreCommonLosses(candidate1, candidate2, true);
 
         if (commonF+commonL<MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES) return 0;
 
@@ -215,8 +238,8 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
 
     @Override
     public double scoreWithoutThreshold(FragmentsCandidate candidate1, FragmentsCandidate candidate2) {
-        final double commonF = this.scoreCommons(candidate1.getFragments(), candidate2.getFragments());
-        final double commonL = this.scoreCommons(candidate1.getLosses(), candidate2.getLosses());
+        final double commonF = this.scoreCommonFragments(candidate1, candidate2, false);
+        final double commonL = this.scoreCommonLosses(candidate1, candidate2, false);
         final double norm1 = this.normalizationMap.get(candidate1.getExperiment());
         final double norm2 = this.normalizationMap.get(candidate2.getExperiment());
 
@@ -227,6 +250,16 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         return score;
     }
 
+    @Override
+    public BitSet getPossiblySimilarCompounds(int compoundIdx) {
+        return this.maybeSimilar == null ? null : this.maybeSimilar[compoundIdx];
+    }
+
+    @Override
+    public double getScoreOfDissimilar() {
+        return 0d;
+    }
+
     @Override
     public void setThreshold(double threshold) {
         this.threshold = threshold;
@@ -241,6 +274,8 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         this.idxMap.clear();
         this.idxMap = null;
         this.maybeSimilar = null;
+        this.fragmentIndex = null;
+        this.lossIndex = null;
     }
 
     public double[] normalization(FragmentsCandidate[][] candidates) {
@@ -322,6 +357,29 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
     }
 
 
+    /**
+     * @param scoreRow true if the candidate is scored against many others (e.g. when building the graph). Then the
+     *                 common fragments with all other candidates are computed at once.
+     * @return same as scoreCommons(candidate1.getFragments(), candidate2.getFragments())
+     */
+    private double scoreCommonFragments(FragmentsCandidate candidate1, FragmentsCandidate candidate2, boolean scoreRow) {
+        final double common = scoreCommons(fragmentIndex, candidate1, candidate2, scoreRow);
+        return common >= 0 ? common : this.scoreCommons(candidate1.getFragments(), candidate2.getFragments());
+    }
+
+    /**
+     * @return same as scoreCommons(candidate1.getLosses(), candidate2.getLosses())
+     */
+    private double scoreCommonLosses(FragmentsCandidate candidate1, FragmentsCandidate candidate2, boolean scoreRow) {
+        final double common = scoreCommons(lossIndex, candidate1, candidate2, scoreRow);
+        return common >= 0 ? common : this.scoreCommons(candidate1.getLosses(), candidate2.getLosses());
+    }
+
+    private double scoreCommons(FragmentIndex index, FragmentsCandidate candidate1, FragmentsCandidate candidate2, boolean scoreRow) {
+        if (index == null) return -1;
+        return scoreRow ? index.scoreCommons(candidate1, candidate2) : index.scoreCommonsOfPair(candidate1, candidate2);
+    }
+
     protected double scoreCommons(FragmentWithIndex[] fragments1, FragmentWithIndex[] fragments2) {
         int commonCounter = 0;
         int i = 0;
@@ -15,6 +15,7 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.Transformation;
 import de.unijena.bioinf.GibbsSampling.model.Candidate;
 import de.unijena.bioinf.GibbsSampling.model.EdgeScorer;
 import de.unijena.bioinf.GibbsSampling.model.FragmentsCandidate;
+import de.unijena.bioinf.GibbsSampling.model.SparseEdgeScorer;
 import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
@@ -27,7 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class CommonFragmentScorer implements EdgeScorer<FragmentsCandidate> {
+public class CommonFragmentScorer implements SparseEdgeScorer<FragmentsCandidate> {
     protected static final int MIN_COMMON = 0;
     protected final double alpha;
     protected final boolean normalizePerInstance;
@@ -231,6 +232,16 @@ public class CommonFragmentScorer implements EdgeScorer<FragmentsCandidate> {
         return commonCounter < 0?0.0D:(this.normalizePerInstance?this.alpha * (1.0D * (double)commonCounter / (double)fragments1.length + 1.0D * (double)commonCounter / (double)fragments2.length):this.alpha * (double)commonCounter / this.normalizationMap.get(candidate2.getExperiment()));
     }
 
+    @Override
+    public BitSet getPossiblySimilarCompounds(int compoundIdx) {
+        return this.maybeSimilar == null ? null : this.maybeSimilar[compoundIdx];
+    }
+
+    @Override
+    public double getScoreOfDissimilar() {
+        return 0d;
+    }
+
     @Override
     public void setThreshold(double threshold) {
         this.threshold = threshold;
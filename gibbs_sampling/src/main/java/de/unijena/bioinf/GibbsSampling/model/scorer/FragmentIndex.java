@@ -0,0 +1,180 @@
+package de.unijena.bioinf.GibbsSampling.model.scorer;
+
+import de.unijena.bioinf.GibbsSampling.model.FragmentWithIndex;
+import de.unijena.bioinf.GibbsSampling.model.FragmentsCandidate;
+import gnu.trove.map.custom_hash.TObjectIntCustomHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.strategy.IdentityHashingStrategy;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index from fragment (or loss) formulas to the candidates which contain them.
+ *
+ * Formulas are interned to dense int ids. The k-th occurrence of a formula in the sorted fragment array of a
+ * candidate gets its own id, so a common id corresponds exactly to a match of the merge in
+ * {@link CommonFragmentAndLossScorer#scoreCommons(FragmentWithIndex[], FragmentWithIndex[])}. Ids are ordered as the
+ * formulas, so matches are visited in the same order as by the merge and the summed scores are identical.
+ *
+ * The common scores of one candidate with all other candidates are computed in one sweep over the posting lists of
+ * its fragments. The last computed row is cached per thread, as candidate pairs are usually scored row by row.
+ */
+class FragmentIndex {
+
+    private final CommonFragmentAndLossScorer scorer;
+    private final TObjectIntCustomHashMap<FragmentsCandidate> candidateIndices;
+    private final FragmentWithIndex[][] fragments;
+    private final int[][] ids;
+    // for each id: candidates containing it (ascending) and position of the fragment in the candidates' array
+    private final int[][] postingCandidates, postingPositions;
+    private final ThreadLocal<Row> rows;
+
+    /**
+     * @param useFragments true: index the fragments, false: index the losses of the candidates
+     */
+    FragmentIndex(CommonFragmentAndLossScorer scorer, FragmentsCandidate[][] candidates, boolean useFragments) {
+        this.scorer = scorer;
+        this.candidateIndices = new TObjectIntCustomHashMap<>(new IdentityHashingStrategy<FragmentsCandidate>(), 16, 0.75f, -1);
+        int n = 0;
+        for (FragmentsCandidate[] compoundCandidates : candidates) {
+            for (FragmentsCandidate candidate : compoundCandidates) {
+                if (!candidateIndices.containsKey(candidate)) candidateIndices.put(candidate, n++);
+            }
+        }
+        this.fragments = new FragmentWithIndex[n][];
+        for (FragmentsCandidate[] compoundCandidates : candidates) {
+            for (FragmentsCandidate candidate : compoundCandidates) {
+                fragments[candidateIndices.get(candidate)] = useFragments ? candidate.getFragments() : candidate.getLosses();
+            }
+        }
+
+        // number of ids per formula: maximal number of occurrences in a single candidate
+        final TObjectIntHashMap<String> occurrences = new TObjectIntHashMap<>(n, 0.75f, 0);
+        for (FragmentWithIndex[] f : fragments) {
+            int rank = 0;
+            for (int k = 0; k < f.length; ++k) {
+                rank = (k > 0 && f[k].getFormula().equals(f[k - 1].getFormula())) ? rank + 1 : 0;
+                if (rank >= occurrences.get(f[k].getFormula())) occurrences.put(f[k].getFormula(), rank + 1);
+            }
+        }
+        final String[] formulas = occurrences.keys(new String[occurrences.size()]);
+        Arrays.sort(formulas);
+        final TObjectIntHashMap<String> offsets = new TObjectIntHashMap<>(formulas.length, 0.75f, -1);
+        int numberOfIds = 0;
+        for (String formula : formulas) {
+            offsets.put(formula, numberOfIds);
+            numberOfIds += occurrences.get(formula);
+        }
+
+        this.ids = new int[n][];
+        final int[] postingSizes = new int[numberOfIds];
+        for (int c = 0; c < n; ++c) {
+            final FragmentWithIndex[] f = fragments[c];
+            ids[c] = new int[f.length];
+            int rank = 0;
+            for (int k = 0; k < f.length; ++k) {
+                rank = (k > 0 && f[k].getFormula().equals(f[k - 1].getFormula())) ? rank + 1 : 0;
+                final int id = offsets.get(f[k].getFormula()) + rank;
+                ids[c][k] = id;
+                ++postingSizes[id];
+            }
+        }
+        this.postingCandidates = new int[numberOfIds][];
+        this.postingPositions = new int[numberOfIds][];
+        for (int id = 0; id < numberOfIds; ++id) {
+            postingCandidates[id] = new int[postingSizes[id]];
+            postingPositions[id] = new int[postingSizes[id]];
+            postingSizes[id] = 0;
+        }
+        for (int c = 0; c < n; ++c) {
+            for (int k = 0; k < ids[c].length; ++k) {
+                final int id = ids[c][k];
+                postingCandidates[id][postingSizes[id]] = c;
+                postingPositions[id][postingSizes[id]++] = k;
+            }
+        }
+
+        final int numberOfCandidates = n;
+        this.rows = new ThreadLocal<Row>() {
+            @Override
+            protected Row initialValue() {
+                return new Row(numberOfCandidates);
+            }
+        };
+    }
+
+    /**
+     * @return the common score of both candidates as computed by
+     * {@link CommonFragmentAndLossScorer#scoreCommons(FragmentWithIndex[], FragmentWithIndex[])} or -1 if one of
+     * the candidates is not indexed
+     */
+    double scoreCommons(FragmentsCandidate candidate1, FragmentsCandidate candidate2) {
+        final int i = candidateIndices.get(candidate1), j = candidateIndices.get(candidate2);
+        if (i < 0 || j < 0) return -1;
+        final Row row = rows.get();
+        if (row.candidate != i) computeRow(row, i);
+        return row.common[j];
+    }
+
+    /**
+     * Same as {@link #scoreCommons(FragmentsCandidate, FragmentsCandidate)} but merges the id arrays of both candidates
+     * instead of computing a row. Use it for single candidate pairs.
+     */
+    double scoreCommonsOfPair(FragmentsCandidate candidate1, FragmentsCandidate candidate2) {
+        final int c1 = candidateIndices.get(candidate1), c2 = candidateIndices.get(candidate2);
+        if (c1 < 0 || c2 < 0) return -1;
+        final int[] ids1 = ids[c1], ids2 = ids[c2];
+        int commonCounter = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids1.length && j < ids2.length) {
+            if (ids1[i] < ids2[j]) {
+                ++i;
+            } else if (ids1[i] > ids2[j]) {
+                ++j;
+            } else {
+                commonCounter += scorer.scoreMatchedFragments(fragments[c1][i], fragments[c2][j]);
+                ++i;
+                ++j;
+            }
+        }
+
+        return commonCounter;
+    }
+
+    private void computeRow(Row row, int c1) {
+        for (int k = 0; k < row.numberOfTouched; ++k) row.common[row.touched[k]] = 0;
+        row.numberOfTouched = 0;
+        final FragmentWithIndex[] fragments1 = fragments[c1];
+        for (int k = 0; k < ids[c1].length; ++k) {
+            final int id = ids[c1][k];
+            final int[] candidates = postingCandidates[id], positions = postingPositions[id];
+            for (int p = 0; p < candidates.length; ++p) {
+                final int c2 = candidates[p];
+                if (!row.isTouched[c2]) {
+                    row.isTouched[c2] = true;
+                    row.touched[row.numberOfTouched++] = c2;
+                }
+                // same (int) accumulation as in the merge
+                row.common[c2] += scorer.scoreMatchedFragments(fragments1[k], fragments[c2][positions[p]]);
+            }
+        }
+        for (int k = 0; k < row.numberOfTouched; ++k) row.isTouched[row.touched[k]] = false;
+        row.candidate = c1;
+    }
+
+    private static class Row {
+        private int candidate = -1;
+        private final int[] common;
+        private final int[] touched;
+        private final boolean[] isTouched;
+        private int numberOfTouched;
+
+        private Row(int numberOfCandidates) {
+            this.common = new int[numberOfCandidates];
+            this.touched = new int[numberOfCandidates];
+            this.isTouched = new boolean[numberOfCandidates];
+        }
+    }
+}
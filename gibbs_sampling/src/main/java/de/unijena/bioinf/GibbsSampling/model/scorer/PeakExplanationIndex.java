@@ -0,0 +1,149 @@
+package de.unijena.bioinf.GibbsSampling.model.scorer;
+
+import de.unijena.bioinf.GibbsSampling.model.scorer.CommonFragmentAndLossScorer.PeakWithExplanation;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index from the explanation formulas of the peaks of all compounds to the compounds and peaks which
+ * contain them.
+ *
+ * {@link CommonFragmentAndLossScorer#scoreCommons(PeakWithExplanation[], PeakWithExplanation[])} walks both peak
+ * lists by mass and matches peaks greedily, so its result is not a plain intersection of formula ids and cannot be
+ * read off the posting lists. Instead, one sweep over the posting lists of a compound gives an upper bound of this
+ * score for every compound it shares a formula with: each match uses a different peak of the compound, and a peak
+ * contributes at most its best score against any peak of the other compound with a common formula. Compounds
+ * without common formula have a score of 0.
+ */
+class PeakExplanationIndex {
+
+    private final CommonFragmentAndLossScorer scorer;
+    private final PeakWithExplanation[][] peaks;
+    // for each compound and peak: ids of the explanation formulas
+    private final int[][][] ids;
+    // for each id: compounds and peaks containing it
+    private final int[][] postingCompounds, postingPeaks;
+
+    PeakExplanationIndex(CommonFragmentAndLossScorer scorer, PeakWithExplanation[][] peaks) {
+        this.scorer = scorer;
+        this.peaks = peaks;
+        final TObjectIntHashMap<String> formulaIds = new TObjectIntHashMap<>(peaks.length, 0.75f, -1);
+        this.ids = new int[peaks.length][][];
+        int[] postingSizes = new int[16];
+        for (int c = 0; c < peaks.length; ++c) {
+            ids[c] = new int[peaks[c].length][];
+            for (int p = 0; p < peaks[c].length; ++p) {
+                final String[] formulas = peaks[c][p].formulas;
+                ids[c][p] = new int[formulas.length];
+                for (int k = 0; k < formulas.length; ++k) {
+                    int id = formulaIds.get(formulas[k]);
+                    if (id < 0) {
+                        id = formulaIds.size();
+                        formulaIds.put(formulas[k], id);
+                        if (id >= postingSizes.length) postingSizes = Arrays.copyOf(postingSizes, 2 * postingSizes.length);
+                    }
+                    ids[c][p][k] = id;
+                    ++postingSizes[id];
+                }
+            }
+        }
+        final int numberOfIds = formulaIds.size();
+        this.postingCompounds = new int[numberOfIds][];
+        this.postingPeaks = new int[numberOfIds][];
+        for (int id = 0; id < numberOfIds; ++id) {
+            postingCompounds[id] = new int[postingSizes[id]];
+            postingPeaks[id] = new int[postingSizes[id]];
+            postingSizes[id] = 0;
+        }
+        for (int c = 0; c < peaks.length; ++c) {
+            for (int p = 0; p < ids[c].length; ++p) {
+                for (int id : ids[c][p]) {
+                    postingCompounds[id][postingSizes[id]] = c;
+                    postingPeaks[id][postingSizes[id]++] = p;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds upper bounds of {@code scoreCommons(peaks[c1], peaks[c2])} to the bounds of all compounds {@code c2 > c1}
+     * which share at least one formula with compound c1. These compounds are marked as touched.
+     */
+    void addUpperBounds(int c1, Bounds bounds) {
+        final PeakWithExplanation[] peaks1 = peaks[c1];
+        for (int p = 0; p < peaks1.length; ++p) {
+            // best score of peak p against each compound, collected in bounds.peakScore
+            bounds.numberOfPeakTouched = 0;
+            for (int id : ids[c1][p]) {
+                final int[] compounds = postingCompounds[id], positions = postingPeaks[id];
+                for (int k = 0; k < compounds.length; ++k) {
+                    final int c2 = compounds[k];
+                    if (c2 <= c1) continue;
+                    // the merge accumulates into an int, negative scores can only lower the sum
+                    final int score = Math.max(0, (int) scorer.scoreMatchedPeaks(peaks1[p], peaks[c2][positions[k]]));
+                    if (!bounds.isPeakTouched[c2]) {
+                        bounds.isPeakTouched[c2] = true;
+                        bounds.peakTouched[bounds.numberOfPeakTouched++] = c2;
+                        bounds.peakScore[c2] = score;
+                    } else if (score > bounds.peakScore[c2]) {
+                        bounds.peakScore[c2] = score;
+                    }
+                }
+            }
+            for (int k = 0; k < bounds.numberOfPeakTouched; ++k) {
+                final int c2 = bounds.peakTouched[k];
+                bounds.isPeakTouched[c2] = false;
+                if (!bounds.isTouched[c2]) {
+                    bounds.isTouched[c2] = true;
+                    bounds.touched[bounds.numberOfTouched++] = c2;
+                }
+                bounds.bound[c2] += bounds.peakScore[c2];
+            }
+        }
+    }
+
+    /**
+     * Upper bounds of the common scores of one compound with all other compounds. Only touched compounds have a
+     * non-zero bound.
+     */
+    static class Bounds {
+        private final int[] bound;
+        private final int[] touched;
+        private final boolean[] isTouched;
+        private int numberOfTouched;
+        private final int[] peakScore;
+        private final int[] peakTouched;
+        private final boolean[] isPeakTouched;
+        private int numberOfPeakTouched;
+
+        Bounds(int numberOfCompounds) {
+            this.bound = new int[numberOfCompounds];
+            this.touched = new int[numberOfCompounds];
+            this.isTouched = new boolean[numberOfCompounds];
+            this.peakScore = new int[numberOfCompounds];
+            this.peakTouched = new int[numberOfCompounds];
+            this.isPeakTouched = new boolean[numberOfCompounds];
+        }
+
+        int numberOfTouched() {
+            return numberOfTouched;
+        }
+
+        int getTouched(int k) {
+            return touched[k];
+        }
+
+        int getBound(int compound) {
+            return bound[compound];
+        }
+
+        void clear() {
+            for (int k = 0; k < numberOfTouched; ++k) {
+                bound[touched[k]] = 0;
+                isTouched[touched[k]] = false;
+            }
+            numberOfTouched = 0;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Scoring only candidates of possibly similar compounds and filtering these sparse scores has to give the same graph
+ * as scoring and filtering all candidate pairs.
+ */
+public class GraphBuilderTest {
+
+    /**
+     * candidate which knows its compound and its index in the graph
+     */
+    private static class IndexedCandidate extends Candidate<int[]> {
+        private IndexedCandidate(int compound, int index) {
+            super(new int[]{compound, index}, 0d);
+        }
+    }
+
+    /**
+     * scores candidate pairs of randomly chosen similar compounds with random scores
+     */
+    private static class RandomSparseScorer implements SparseEdgeScorer<IndexedCandidate> {
+        private final long seed;
+        private final double scoreOfDissimilar;
+        private BitSet[] maybeSimilar;
+        private double[][] scores;
+
+        private RandomSparseScorer(long seed, double scoreOfDissimilar) {
+            this.seed = seed;
+            this.scoreOfDissimilar = scoreOfDissimilar;
+        }
+
+        @Override
+        public void prepare(IndexedCandidate[][] candidates) {
+            final Random r = new Random(seed);
+            maybeSimilar = new BitSet[candidates.length];
+            int n = 0;
+            for (int i = 0; i < candidates.length; ++i) {
+                maybeSimilar[i] = new BitSet();
+                for (int j = i + 1; j < candidates.length; ++j) {
+                    if (r.nextDouble() < 0.3) maybeSimilar[i].set(j);
+                }
+                n += candidates[i].length;
+            }
+            scores = new double[n][n];
+            for (double[] row : scores) {
+                // similar compounds might have candidates without any common fragments
+                for (int j = 0; j < n; ++j) row[j] = r.nextDouble() < 0.3 ? 0d : -4 * r.nextDouble();
+            }
+        }
+
+        @Override
+        public double score(IndexedCandidate candidate1, IndexedCandidate candidate2) {
+            final int[] c1 = candidate1.getCandidate(), c2 = candidate2.getCandidate();
+            final boolean similar = c1[0] < c2[0] ? maybeSimilar[c1[0]].get(c2[0]) : maybeSimilar[c2[0]].get(c1[0]);
+            return similar ? scores[c1[1]][c2[1]] : scoreOfDissimilar;
+        }
+
+        @Override
+        public double scoreWithoutThreshold(IndexedCandidate candidate1, IndexedCandidate candidate2) {
+            return score(candidate1, candidate2);
+        }
+
+        @Override
+        public BitSet getPossiblySimilarCompounds(int compoundIdx) {
+            return maybeSimilar[compoundIdx];
+        }
+
+        @Override
+        public double getScoreOfDissimilar() {
+            return scoreOfDissimilar;
+        }
+
+        @Override
+        public void setThreshold(double threshold) {
+        }
+
+        @Override
+        public double getThreshold() {
+            return -1d;
+        }
+
+        @Override
+        public void clean() {
+        }
+
+        @Override
+        public double[] normalization(IndexedCandidate[][] candidates) {
+            return new double[candidates.length];
+        }
+    }
+
+    /**
+     * hides that the scorer is sparse, so all candidate pairs are scored
+     */
+    private static class DenseScorer implements EdgeScorer<IndexedCandidate> {
+        private final EdgeScorer<IndexedCandidate> scorer;
+
+        private DenseScorer(EdgeScorer<IndexedCandidate> scorer) {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void setThreshold(double threshold) {
+            scorer.setThreshold(threshold);
+        }
+
+        @Override
+        public double getThreshold() {
+            return scorer.getThreshold();
+        }
+
+        @Override
+        public void prepare(IndexedCandidate[][] candidates) {
+            scorer.prepare(candidates);
+        }
+
+        @Override
+        public double score(IndexedCandidate candidate1, IndexedCandidate candidate2) {
+            return scorer.score(candidate1, candidate2);
+        }
+
+        @Override
+        public double scoreWithoutThreshold(IndexedCandidate candidate1, IndexedCandidate candidate2) {
+            return scorer.scoreWithoutThreshold(candidate1, candidate2);
+        }
+
+        @Override
+        public void clean() {
+            scorer.clean();
+        }
+
+        @Override
+        public double[] normalization(IndexedCandidate[][] candidates) {
+            return scorer.normalization(candidates);
+        }
+    }
+
+    /**
+     * hides that the filter is sparse, so it gets the scores of all candidates
+     */
+    private static class DenseFilter implements EdgeFilter {
+        private final EdgeFilter filter;
+
+        private DenseFilter(EdgeFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, double[] logEdgeScores) {
+            filter.filterEdgesAndSetThreshold(graph, candidateIdx, logEdgeScores);
+        }
+
+        @Override
+        public int[][] postprocessCompleteGraph(Graph graph) {
+            return filter.postprocessCompleteGraph(graph);
+        }
+
+        @Override
+        public void setThreshold(double threshold) {
+            filter.setThreshold(threshold);
+        }
+    }
+
+    private interface FilterFactory {
+        EdgeFilter newFilter();
+    }
+
+    private static Graph<IndexedCandidate> randomGraph(Random r) {
+        final int numberOfCompounds = 2 + r.nextInt(30);
+        final String[] ids = new String[numberOfCompounds];
+        final Scored<IndexedCandidate>[][] candidates = new Scored[numberOfCompounds][];
+        int n = 0;
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            ids[i] = "c" + i;
+            candidates[i] = new Scored[1 + r.nextInt(5)];
+            for (int j = 0; j < candidates[i].length; ++j) {
+                candidates[i][j] = new Scored<IndexedCandidate>(new IndexedCandidate(i, n++), Math.log(r.nextDouble()));
+            }
+        }
+        return Graph.getGraph(ids, candidates);
+    }
+
+    private static Graph<IndexedCandidate> build(Graph<IndexedCandidate> graph, EdgeScorer<IndexedCandidate> scorer, EdgeFilter filter) throws Exception {
+        final GraphBuilder<IndexedCandidate> builder = new GraphBuilder<IndexedCandidate>(graph, new EdgeScorer[]{scorer}, filter, IndexedCandidate.class);
+        return SiriusJobs.getGlobalJobManager().submitJob(builder).awaitResult();
+    }
+
+    private static void assertSameGraph(Graph<IndexedCandidate> expected, Graph<IndexedCandidate> actual) {
+        assertEquals(expected.getSize(), actual.getSize());
+        for (int i = 0; i < expected.getSize(); ++i) {
+            assertEquals(expected.getEdgeThreshold(i), actual.getEdgeThreshold(i), 0d);
+            assertArrayEquals(expected.getConnections(i), actual.getConnections(i));
+            for (int j = 0; j < expected.getSize(); ++j) {
+                assertEquals(i + " " + j, expected.getLogWeight(i, j), actual.getLogWeight(i, j), 0d);
+            }
+        }
+    }
+
+    private static void assertSparseEqualsDense(FilterFactory filters, long seed) throws Exception {
+        final Random r = new Random(seed);
+        for (int iteration = 0; iteration < 50; ++iteration) {
+            final long graphSeed = r.nextLong();
+            // with a dissimilar score of 0 the filters drop these pairs, with a negative one they connect them
+            for (double scoreOfDissimilar : new double[]{0d, -2d}) {
+                final Graph<IndexedCandidate> dense = build(randomGraph(new Random(graphSeed)), new DenseScorer(new RandomSparseScorer(graphSeed, scoreOfDissimilar)), new DenseFilter(filters.newFilter()));
+                final Graph<IndexedCandidate> sparseScores = build(randomGraph(new Random(graphSeed)), new RandomSparseScorer(graphSeed, scoreOfDissimilar), new DenseFilter(filters.newFilter()));
+                final Graph<IndexedCandidate> sparse = build(randomGraph(new Random(graphSeed)), new RandomSparseScorer(graphSeed, scoreOfDissimilar), filters.newFilter());
+                assertSameGraph(dense, sparseScores);
+                assertSameGraph(dense, sparse);
+            }
+        }
+    }
+
+    @Test
+    public void testEdgeThresholdFilter() throws Exception {
+        assertSparseEqualsDense(new FilterFactory() {
+            @Override
+            public EdgeFilter newFilter() {
+                return new EdgeThresholdFilter(0.5);
+            }
+        }, 1);
+    }
+
+    @Test
+    public void testEdgeThresholdMinConnectionsFilter() throws Exception {
+        assertSparseEqualsDense(new FilterFactory() {
+            @Override
+            public EdgeFilter newFilter() {
+                return new EdgeThresholdMinConnectionsFilter(0.5, 2, 3);
+            }
+        }, 2);
+    }
+
+    /**
+     * symmetrizes the weights by iterating over all candidate pairs, as it was done before only the stored weights
+     * were visited
+     */
+    private static int[][] symmetrizeAllPairs(Graph graph) {
+        final TIntArrayList[] connectionsList = new TIntArrayList[graph.getSize()];
+        for (int i = 0; i < graph.getSize(); ++i) connectionsList[i] = new TIntArrayList();
+        for (int i = 0; i < graph.getSize(); ++i) {
+            for (int j = i + 1; j < graph.getSize(); ++j) {
+                final double w1 = graph.getLogWeight(i, j);
+                final double w2 = graph.getLogWeight(j, i);
+                final double max;
+                if (w1 < w2) {
+                    graph.setLogWeight(i, j, w2);
+                    max = w2;
+                } else if (w2 < w1) {
+                    graph.setLogWeight(j, i, w1);
+                    max = w1;
+                } else {
+                    max = w1;
+                }
+                if (max > 0d) {
+                    connectionsList[i].add(j);
+                    connectionsList[j].add(i);
+                }
+            }
+        }
+        final int[][] connections = new int[graph.getSize()][];
+        for (int i = 0; i < connections.length; ++i) connections[i] = connectionsList[i].toArray();
+        return connections;
+    }
+
+    @Test
+    public void testSparseSymmetrization() {
+        final Random r = new Random(3);
+        for (int iteration = 0; iteration < 200; ++iteration) {
+            final long graphSeed = r.nextLong();
+            final Graph<IndexedCandidate> expected = randomGraph(new Random(graphSeed));
+            final Graph<IndexedCandidate> actual = randomGraph(new Random(graphSeed));
+            // weights in one or both directions, some of them 0
+            for (int i = 0; i < expected.getSize(); ++i) {
+                for (int j = 0; j < expected.getSize(); ++j) {
+                    if (i == j || r.nextDouble() < 0.7) continue;
+                    final double w = r.nextDouble() < 0.2 ? 0d : r.nextDouble();
+                    expected.setLogWeight(i, j, w);
+                    actual.setLogWeight(i, j, w);
+                }
+            }
+            final int[][] expectedConnections = symmetrizeAllPairs(expected);
+            final int[][] connections = AbstractEdgeFilter.makeWeightsSymmetricAndCreateConnectionsArray(actual);
+            for (int i = 0; i < expected.getSize(); ++i) {
+                assertArrayEquals(expectedConnections[i], connections[i]);
+                for (int j = 0; j < expected.getSize(); ++j) {
+                    assertEquals(expected.getLogWeight(i, j), actual.getLogWeight(i, j), 0d);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.unijena.bioinf.GibbsSampling.model.scorer;
+
+import de.unijena.bioinf.GibbsSampling.model.FragmentWithIndex;
+import de.unijena.bioinf.GibbsSampling.model.FragmentsAndLosses;
+import de.unijena.bioinf.GibbsSampling.model.FragmentsCandidate;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The index has to give the same common scores as the sorted merge of the fragment arrays.
+ */
+public class FragmentIndexTest {
+
+    /**
+     * sorted fragments with formulas from a small alphabet, such that formulas occur several times within a candidate
+     */
+    private static FragmentWithIndex[] randomFragments(Random r) {
+        final FragmentWithIndex[] fragments = new FragmentWithIndex[r.nextInt(15)];
+        for (int k = 0; k < fragments.length; ++k) {
+            fragments[k] = new FragmentWithIndex("C" + (1 + r.nextInt(12)) + "H" + r.nextInt(3), (short) k, 3 * r.nextGaussian());
+        }
+        Arrays.sort(fragments);
+        return fragments;
+    }
+
+    private static FragmentsCandidate[][] randomCandidates(Random r) {
+        final FragmentsCandidate[][] candidates = new FragmentsCandidate[2 + r.nextInt(5)][];
+        for (int i = 0; i < candidates.length; ++i) {
+            candidates[i] = new FragmentsCandidate[1 + r.nextInt(6)];
+            for (int j = 0; j < candidates[i].length; ++j) {
+                final FragmentsAndLosses fragmentsAndLosses = new FragmentsAndLosses(randomFragments(r), randomFragments(r));
+                candidates[i][j] = new FragmentsCandidate(fragmentsAndLosses, 0d, null, null, null) {
+                };
+            }
+        }
+        return candidates;
+    }
+
+    private static void assertSameScores(CommonFragmentAndLossScorer scorer, long seed) {
+        final Random r = new Random(seed);
+        for (int iteration = 0; iteration < 100; ++iteration) {
+            final FragmentsCandidate[][] candidates = randomCandidates(r);
+            final FragmentIndex fragmentIndex = new FragmentIndex(scorer, candidates, true);
+            final FragmentIndex lossIndex = new FragmentIndex(scorer, candidates, false);
+            // row by row as in the graph builder, but also switching rows for every pair
+            for (boolean rowByRow : new boolean[]{true, false}) {
+                for (FragmentsCandidate[] compound1 : candidates) {
+                    for (FragmentsCandidate c1 : compound1) {
+                        for (FragmentsCandidate[] compound2 : candidates) {
+                            for (FragmentsCandidate c2 : compound2) {
+                                final double fragments = scorer.scoreCommons(c1.getFragments(), c2.getFragments());
+                                final double losses = scorer.scoreCommons(c1.getLosses(), c2.getLosses());
+                                assertEquals(fragments, fragmentIndex.scoreCommonsOfPair(c1, c2), 0d);
+                                assertEquals(losses, lossIndex.scoreCommonsOfPair(c1, c2), 0d);
+                                if (rowByRow) {
+                                    assertEquals(fragments, fragmentIndex.scoreCommons(c1, c2), 0d);
+                                    assertEquals(losses, lossIndex.scoreCommons(c1, c2), 0d);
+                                } else {
+                                    assertEquals(fragments, fragmentIndex.scoreCommons(c2, c1), 0d);
+                                    assertEquals(losses, lossIndex.scoreCommons(c2, c1), 0d);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCommonFragmentAndLossScorer() {
+        assertSameScores(new CommonFragmentAndLossScorer(0d), 1);
+    }
+
+    /**
+     * matched fragments are scored by their tree scores and the sum is truncated to int after each match, so the
+     * matches have to be visited in the same order as by the merge
+     */
+    @Test
+    public void testCommonFragmentAndLossWithTreeScoresScorer() {
+        assertSameScores(new CommonFragmentAndLossWithTreeScoresScorer(0d), 2);
+    }
+
+    @Test
+    public void testCandidatesWhichAreNotIndexed() {
+        final Random r = new Random(3);
+        final CommonFragmentAndLossScorer scorer = new CommonFragmentAndLossScorer(0d);
+        final FragmentsCandidate[][] candidates = randomCandidates(r);
+        final FragmentsCandidate other = randomCandidates(r)[0][0];
+        final FragmentIndex index = new FragmentIndex(scorer, candidates, true);
+        assertEquals(-1d, index.scoreCommons(candidates[0][0], other), 0d);
+        assertEquals(-1d, index.scoreCommonsOfPair(other, candidates[0][0]), 0d);
+    }
+}
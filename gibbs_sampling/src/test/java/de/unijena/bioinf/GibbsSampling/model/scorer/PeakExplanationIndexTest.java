@@ -0,0 +1,73 @@
+package de.unijena.bioinf.GibbsSampling.model.scorer;
+
+import de.unijena.bioinf.GibbsSampling.model.scorer.CommonFragmentAndLossScorer.PeakWithExplanation;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bounds of the index have to be at least the common scores of the sorted merge, and compounds which are not
+ * touched by the sweep must not have any common peak.
+ */
+public class PeakExplanationIndexTest {
+
+    /**
+     * peaks sorted by mass with explanations from a small alphabet, such that formulas are shared by several peaks
+     */
+    private static PeakWithExplanation[] randomPeaks(CommonFragmentAndLossScorer scorer, Random r) {
+        final PeakWithExplanation[] peaks = new PeakWithExplanation[r.nextInt(12)];
+        for (int k = 0; k < peaks.length; ++k) {
+            final Set<String> formulas = new HashSet<>();
+            final int n = 1 + r.nextInt(3);
+            for (int i = 0; i < n; ++i) formulas.add("C" + (1 + r.nextInt(15)) + "H" + r.nextInt(3));
+            peaks[k] = scorer.new PeakWithExplanation(formulas.toArray(new String[0]), 500 * r.nextDouble(), 3 * r.nextGaussian());
+        }
+        Arrays.sort(peaks);
+        return peaks;
+    }
+
+    private static void assertBounds(CommonFragmentAndLossScorer scorer, long seed) {
+        final Random r = new Random(seed);
+        for (int iteration = 0; iteration < 100; ++iteration) {
+            final PeakWithExplanation[][] peaks = new PeakWithExplanation[1 + r.nextInt(20)][];
+            for (int c = 0; c < peaks.length; ++c) peaks[c] = randomPeaks(scorer, r);
+            final PeakExplanationIndex index = new PeakExplanationIndex(scorer, peaks);
+            final PeakExplanationIndex.Bounds bounds = new PeakExplanationIndex.Bounds(peaks.length);
+            for (int i = 0; i < peaks.length; ++i) {
+                bounds.clear();
+                index.addUpperBounds(i, bounds);
+                final boolean[] touched = new boolean[peaks.length];
+                for (int k = 0; k < bounds.numberOfTouched(); ++k) {
+                    final int j = bounds.getTouched(k);
+                    assertTrue(j > i);
+                    touched[j] = true;
+                }
+                for (int j = 0; j < peaks.length; ++j) {
+                    final double common = scorer.scoreCommons(peaks[i], peaks[j]);
+                    if (j <= i || !touched[j]) {
+                        assertEquals(0, bounds.getBound(j));
+                        if (j > i) assertEquals(0d, common, 0d);
+                    } else {
+                        assertTrue(common <= bounds.getBound(j));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCommonFragmentAndLossScorer() {
+        assertBounds(new CommonFragmentAndLossScorer(0d), 1);
+    }
+
+    @Test
+    public void testCommonFragmentAndLossWithTreeScoresScorer() {
+        assertBounds(new CommonFragmentAndLossWithTreeScoresScorer(0d), 2);
+    }
+}
@@ -1,6 +1,7 @@
 package de.unijena.bioinf.babelms;
 
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.babelms.mgf.MgfParsingJJob;
 import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JJob;
 
@@ -9,6 +10,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Parses all given files. MGF files are parsed in parallel chunks by a {@link MgfParsingJJob}, which stores the index
+ * of the file next to it and reuses it when the same file is parsed again.
+ */
 public class MSExperimentParsingJJob extends BasicMasterJJob<List<Ms2Experiment>> {
     private final List<File> inputFiles;
 
@@ -22,7 +27,8 @@ public class MSExperimentParsingJJob extends BasicMasterJJob<List<Ms2Experiment>
         MsExperimentParser p = new MsExperimentParser();
         checkForInterruption();
         for (File file : inputFiles) {
-            submitSubJob(new GenericParserJJob<>(p.getParser(file), file));
+            if (file.getName().toLowerCase().endsWith(".mgf")) submitSubJob(new MgfParsingJJob(file, true));
+            else submitSubJob(new GenericParserJJob<>(p.getParser(file), file));
         }
 
         checkForInterruption();
@@ -20,6 +20,8 @@ package de.unijena.bioinf.babelms;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.babelms.mgf.MgfParser;
 import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import de.unijena.bioinf.babelms.mzml.MzMLParser;
+import de.unijena.bioinf.babelms.mzml.MzXMLParser;
 
 import java.io.File;
 import java.util.HashMap;
@@ -56,5 +58,7 @@ public class MsExperimentParser {
         knownEndings.put(".ms", JenaMsParser.class);
         knownEndings.put(".mgf", MgfParser.class);
         knownEndings.put(".zip", ZippedSpectraParser.class);
+        knownEndings.put(".mzml", MzMLParser.class);
+        knownEndings.put(".mzxml", MzXMLParser.class);
     }
 }
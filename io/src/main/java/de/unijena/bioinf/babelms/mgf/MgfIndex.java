@@ -0,0 +1,287 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mgf;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Byte offsets of the BEGIN IONS ... END IONS blocks of an MGF file and, after the file was parsed once, the blocks
+ * belonging to each compound. The offsets are found with a single scan over the memory-mapped file, without decoding
+ * it. The index can be stored next to the MGF file and is reused as long as the file is not modified.
+ */
+public class MgfIndex {
+
+    private static final int MAGIC = 0x4D474649; // MGFI
+    private static final int VERSION = 1;
+    private static final long MAPPING_SIZE = 1L << 30;
+    private static final byte[] BEGIN_IONS = "BEGIN IONS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_IONS = "END IONS".getBytes(StandardCharsets.US_ASCII);
+
+    private final long fileLength, lastModified;
+    private final long[] blockStarts, blockEnds;
+    private final boolean keywordsBetweenBlocks;
+    // first and last block and index of each compound, null if the compounds are not known yet
+    private int[] firstBlocks, lastBlocks, compoundIndices;
+
+    private MgfIndex(long fileLength, long lastModified, long[] blockStarts, long[] blockEnds, boolean keywordsBetweenBlocks) {
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.blockStarts = blockStarts;
+        this.blockEnds = blockEnds;
+        this.keywordsBetweenBlocks = keywordsBetweenBlocks;
+    }
+
+    /**
+     * scans the given MGF file for its blocks
+     */
+    public static MgfIndex build(File file) throws IOException {
+        final long lastModified = file.lastModified();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            final Scanner scanner = new Scanner();
+            for (long offset = 0; offset < length; offset += MAPPING_SIZE) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAPPING_SIZE, length - offset));
+                scanner.scan(buffer, offset);
+            }
+            scanner.endOfLine();
+            return new MgfIndex(length, lastModified, scanner.starts.toArray(), scanner.ends.toArray(), scanner.keywordsBetweenBlocks);
+        }
+    }
+
+    /**
+     * @return the file in which the index of the given MGF file is stored
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".index");
+    }
+
+    /**
+     * loads the stored index of the given MGF file
+     * @return the index or null if there is no index or the file was modified since the index was stored
+     */
+    public static MgfIndex load(File file) throws IOException {
+        final File indexFile = getIndexFile(file);
+        if (!indexFile.exists()) return null;
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            final long fileLength = in.readLong(), lastModified = in.readLong();
+            if (fileLength != file.length() || lastModified != file.lastModified()) return null;
+            final boolean keywordsBetweenBlocks = in.readBoolean();
+            final int numberOfBlocks = in.readInt();
+            final long[] starts = new long[numberOfBlocks], ends = new long[numberOfBlocks];
+            for (int k = 0; k < numberOfBlocks; ++k) {
+                starts[k] = in.readLong();
+                ends[k] = in.readLong();
+            }
+            final MgfIndex index = new MgfIndex(fileLength, lastModified, starts, ends, keywordsBetweenBlocks);
+            final int numberOfCompounds = in.readInt();
+            if (numberOfCompounds >= 0) {
+                index.firstBlocks = new int[numberOfCompounds];
+                index.lastBlocks = new int[numberOfCompounds];
+                index.compoundIndices = new int[numberOfCompounds];
+                for (int k = 0; k < numberOfCompounds; ++k) {
+                    index.firstBlocks[k] = in.readInt();
+                    index.lastBlocks[k] = in.readInt();
+                    index.compoundIndices[k] = in.readInt();
+                }
+            }
+            return index;
+        }
+    }
+
+    /**
+     * stores the index next to the given MGF file
+     */
+    public void store(File file) throws IOException {
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(file))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeLong(lastModified);
+            out.writeBoolean(keywordsBetweenBlocks);
+            out.writeInt(blockStarts.length);
+            for (int k = 0; k < blockStarts.length; ++k) {
+                out.writeLong(blockStarts[k]);
+                out.writeLong(blockEnds[k]);
+            }
+            if (isGrouped()) {
+                out.writeInt(firstBlocks.length);
+                for (int k = 0; k < firstBlocks.length; ++k) {
+                    out.writeInt(firstBlocks[k]);
+                    out.writeInt(lastBlocks[k]);
+                    out.writeInt(compoundIndices[k]);
+                }
+            } else {
+                out.writeInt(-1);
+            }
+        }
+    }
+
+    public int numberOfBlocks() {
+        return blockStarts.length;
+    }
+
+    public long getBlockStart(int block) {
+        return blockStarts[block];
+    }
+
+    public long getBlockEnd(int block) {
+        return blockEnds[block];
+    }
+
+    /**
+     * @return true if there are keywords between the blocks. Such keywords apply to all following blocks, so the
+     * blocks cannot be parsed independently from each other.
+     */
+    public boolean hasKeywordsBetweenBlocks() {
+        return keywordsBetweenBlocks;
+    }
+
+    /**
+     * @return true if the index knows which blocks belong to which compound
+     */
+    public boolean isGrouped() {
+        return firstBlocks != null;
+    }
+
+    public int numberOfCompounds() {
+        return isGrouped() ? firstBlocks.length : -1;
+    }
+
+    public int getFirstBlockOfCompound(int compoundIdx) {
+        return firstBlocks[compoundIdx];
+    }
+
+    public int getLastBlockOfCompound(int compoundIdx) {
+        return lastBlocks[compoundIdx];
+    }
+
+    /**
+     * @return the {@link de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index} of the compound
+     */
+    public int getIndexOfCompound(int compoundIdx) {
+        return compoundIndices[compoundIdx];
+    }
+
+    /**
+     * @param compounds first block, last block and index of each compound
+     */
+    void setCompounds(List<int[]> compounds) {
+        final int[] firstBlocks = new int[compounds.size()], lastBlocks = new int[compounds.size()], indices = new int[compounds.size()];
+        for (int k = 0; k < firstBlocks.length; ++k) {
+            final int[] compound = compounds.get(k);
+            firstBlocks[k] = compound[0];
+            lastBlocks[k] = compound[1];
+            indices[k] = compound[2];
+        }
+        this.lastBlocks = lastBlocks;
+        this.compoundIndices = indices;
+        this.firstBlocks = firstBlocks;
+    }
+
+    /**
+     * @return the bytes in front of the first block
+     */
+    byte[] readHeader(File file) throws IOException {
+        return read(file, 0, blockStarts.length > 0 ? blockStarts[0] : fileLength);
+    }
+
+    /**
+     * @return the bytes from the start of block from to the end of block to - 1
+     */
+    byte[] readBlocks(File file, int from, int to) throws IOException {
+        return read(file, blockStarts[from], blockEnds[to - 1]);
+    }
+
+    private static byte[] read(File file, long from, long to) throws IOException {
+        if (to - from > Integer.MAX_VALUE) throw new IOException("Cannot read more than 2 GB of " + file.getName() + " at once.");
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) < 0)
+                    throw new EOFException(file.getName() + " is shorter than its index.");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Finds the blocks line by line in the same way as the MgfParser does: a block starts with a line beginning with
+     * BEGIN IONS outside of a block and ends with the next line beginning with END IONS. Lines outside of blocks
+     * which contain a '=' are keywords.
+     */
+    private static class Scanner {
+        private final TLongArrayList starts = new TLongArrayList(), ends = new TLongArrayList();
+        private boolean keywordsBetweenBlocks = false;
+        private boolean inBlock = false;
+        private boolean atLineStart = true, lineStartedInBlock, isBeginLine, hasEquals;
+        private long lineStart, blockStart;
+        private int column;
+
+        private void scan(ByteBuffer buffer, long offset) {
+            final int limit = buffer.limit();
+            for (int i = 0; i < limit; ++i) {
+                final byte c = buffer.get(i);
+                if (c == '\n' || c == '\r') {
+                    endOfLine();
+                    continue;
+                }
+                if (atLineStart) {
+                    atLineStart = false;
+                    lineStart = offset + i;
+                    lineStartedInBlock = inBlock;
+                    isBeginLine = false;
+                    hasEquals = false;
+                    column = 0;
+                }
+                if (c == '=') hasEquals = true;
+                if (column >= 0) {
+                    final byte[] prefix = lineStartedInBlock ? END_IONS : BEGIN_IONS;
+                    if (c != prefix[column]) {
+                        column = -1;
+                    } else if (++column == prefix.length) {
+                        column = -1;
+                        if (lineStartedInBlock) {
+                            inBlock = false;
+                            starts.add(blockStart);
+                            ends.add(lineStart + END_IONS.length);
+                        } else {
+                            inBlock = true;
+                            isBeginLine = true;
+                            blockStart = lineStart;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void endOfLine() {
+            if (atLineStart) return;
+            if (!lineStartedInBlock && !isBeginLine && hasEquals && !starts.isEmpty()) keywordsBetweenBlocks = true;
+            atLineStart = true;
+        }
+    }
+}
@@ -27,8 +27,11 @@ import de.unijena.bioinf.babelms.SpectralParser;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,7 +42,7 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
         UNKNOWN, MS1, MSMS, CORRELATED;
     }
 
-    private static class MgfSpec {
+    static class MgfSpec {
 
         private String featureId;
         private MutableMs2Spectrum spectrum;
@@ -49,6 +52,8 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
         private RetentionTime retentionTime;
         private MsInstrumentation instrumentation = MsInstrumentation.Unknown;
         private SpecType type;
+        // index of the block in the MgfIndex, or -1 if the spectrum was read sequentially
+        private int block = -1;
 
         public MgfSpec(MgfSpec s) {
             this.spectrum = new MutableMs2Spectrum(s.spectrum);
@@ -69,17 +74,54 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
         }
     }
 
+    /**
+     * A single BEGIN IONS ... END IONS block parsed on its own. spec is null if the block could not be parsed. The
+     * text of the block is only kept if there was a parsing error in it.
+     */
+    static class ParsedBlock {
+        private final MgfSpec spec;
+        private final String errorText;
+
+        private ParsedBlock(MgfSpec spec, String errorText) {
+            this.spec = spec;
+            this.errorText = errorText;
+        }
+    }
+
     private static class MgfParserInstance {
         private final MgfSpec prototype;
         private final ArrayDeque<MgfSpec> buffer;
         private final BufferedReader reader;
+        // if not null, the spectra are taken from these blocks instead of the reader
+        private final Iterator<ParsedBlock> parsedBlocks;
         private int specIndex = 0;
+        private int lastPolledBlock = -1;
+        private boolean hasErrors = false;
         protected boolean ignoreUnsupportedIonTypes;
 
         public MgfParserInstance(BufferedReader reader) {
+            this(reader, new MgfSpec(), null);
+        }
+
+        /**
+         * reads the spectra from the given reader. The prototype is not modified as long as the reader only
+         * contains BEGIN IONS ... END IONS blocks, so it can be shared between threads.
+         */
+        private MgfParserInstance(BufferedReader reader, MgfSpec prototype) {
+            this(reader, prototype, null);
+        }
+
+        /**
+         * takes the spectra from already parsed blocks, in the same order as they occur in the file
+         */
+        private MgfParserInstance(Iterator<ParsedBlock> parsedBlocks, MgfSpec prototype) {
+            this(null, prototype, parsedBlocks);
+        }
+
+        private MgfParserInstance(BufferedReader reader, MgfSpec prototype, Iterator<ParsedBlock> parsedBlocks) {
             this.reader = reader;
-            this.prototype = new MgfSpec();
-            this.prototype.spectrum = new MutableMs2Spectrum();
+            this.prototype = prototype;
+            this.parsedBlocks = parsedBlocks;
             this.buffer = new ArrayDeque<MgfSpec>();
             this.ignoreUnsupportedIonTypes = true;
         }
@@ -96,16 +138,36 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
 
         public MgfSpec pollNext() throws IOException {
             addNextEntry();
-            return buffer.pollFirst();
+            final MgfSpec s = buffer.pollFirst();
+            if (s != null) lastPolledBlock = s.block;
+            return s;
         }
 
         private void addNextEntry() throws IOException {
             if (!buffer.isEmpty()) return;
-            MgfSpec s = readNext();
+            MgfSpec s = parsedBlocks != null ? nextParsedBlock() : readNext();
             if (s != null)
                 buffer.addLast(s);
         }
 
+        private MgfSpec nextParsedBlock() throws IOException {
+            while (parsedBlocks.hasNext()) {
+                final ParsedBlock block = parsedBlocks.next();
+                if (block.errorText != null) {
+                    // counting the not-parsed compounds depends on the preceding blocks, so the block is read again
+                    final MgfParserInstance blockInst = new MgfParserInstance(new BufferedReader(new StringReader(block.errorText)), prototype);
+                    blockInst.lastErrorFeatureId = lastErrorFeatureId;
+                    blockInst.readNext();
+                    specIndex += blockInst.specIndex;
+                    lastErrorFeatureId = blockInst.lastErrorFeatureId;
+                } else if (block.spec != null) {
+                    lastErrorFeatureId = null;
+                }
+                if (block.spec != null) return block.spec;
+            }
+            return null;
+        }
+
         private static Pattern CHARGE_PATTERN = Pattern.compile("([+-]?\\d+)([+-])?");
         private static Pattern NOT_AVAILABLE = Pattern.compile("\\s*N/A\\s*");
 
@@ -222,6 +284,7 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
                         if (i >= 0) handleKeyword(prototype, line.substring(0, i), line.substring(i + 1));
                     }
                 } catch (RuntimeException e) {
+                    hasErrors = true;
                     //increase index for not-parsed compounds.
                     boolean increasedIndex = false;
                     if (spec.featureId != null && !spec.featureId.equals(lastErrorFeatureId)) {
@@ -299,6 +362,75 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
     @Override
     public synchronized Ms2Experiment parse(BufferedReader reader, URL source) throws IOException {
         if (inst == null || inst.reader != reader) inst = new MgfParserInstance(reader);
+        return readExperiment(inst, source);
+    }
+
+    /**
+     * Parses a single compound of an MGF file without reading the other compounds. The index has to know the
+     * compounds of the file, i.e. it has to be taken from a {@link MgfParsingJJob} which parsed the file before, or
+     * loaded from the file stored by such a job.
+     * @return the compound with the given index, in the same way as returned by {@link #parse(BufferedReader, URL)}
+     */
+    public Ms2Experiment parse(File file, MgfIndex index, int compoundIdx) throws IOException {
+        if (!index.isGrouped())
+            throw new IllegalArgumentException("Index does not contain the compounds of " + file.getName());
+        final int firstBlock = index.getFirstBlockOfCompound(compoundIdx);
+        final MgfSpec prototype = parsePrototype(file, index);
+        final ParsedBlock[] blocks = parseBlocks(file, index, prototype, firstBlock, index.getLastBlockOfCompound(compoundIdx) + 1);
+        final MgfParserInstance compoundInst = new MgfParserInstance(Arrays.asList(blocks).iterator(), prototype);
+        // read the first spectrum before setting the index, such that errors in front of it are not counted again
+        compoundInst.hasNext();
+        compoundInst.specIndex = index.getIndexOfCompound(compoundIdx) - 1;
+        return readExperiment(compoundInst, file.toURI().toURL());
+    }
+
+    /**
+     * parses the keywords in front of the first spectrum, which apply to all spectra of the file
+     */
+    MgfSpec parsePrototype(File file, MgfIndex index) throws IOException {
+        final MgfParserInstance headerInst = new MgfParserInstance(new BufferedReader(new StringReader(
+                new String(index.readHeader(file), Charset.defaultCharset()))));
+        headerInst.readNext();
+        return headerInst.prototype;
+    }
+
+    /**
+     * parses the blocks from (inclusive) to (exclusive) of the file independently from each other
+     */
+    ParsedBlock[] parseBlocks(File file, MgfIndex index, MgfSpec prototype, int from, int to) throws IOException {
+        final ParsedBlock[] blocks = new ParsedBlock[to - from];
+        if (from >= to) return blocks;
+        final byte[] bytes = index.readBlocks(file, from, to);
+        final long offset = index.getBlockStart(from);
+        for (int b = from; b < to; ++b) {
+            final String text = new String(bytes, (int) (index.getBlockStart(b) - offset), (int) (index.getBlockEnd(b) - index.getBlockStart(b)), Charset.defaultCharset());
+            final MgfParserInstance blockInst = new MgfParserInstance(new BufferedReader(new StringReader(text)), prototype);
+            final MgfSpec spec = blockInst.readNext();
+            if (spec != null) spec.block = b;
+            blocks[b - from] = new ParsedBlock(spec, blockInst.hasErrors ? text : null);
+        }
+        return blocks;
+    }
+
+    /**
+     * groups the parsed blocks of a file into compounds, in the same way as {@link #parse(BufferedReader, URL)}
+     * does. The compounds are stored in the index.
+     */
+    List<Ms2Experiment> parseBlocksToExperiments(Iterator<ParsedBlock> blocks, MgfSpec prototype, URL source, MgfIndex index) throws IOException {
+        final MgfParserInstance blockInst = new MgfParserInstance(blocks, prototype);
+        final List<Ms2Experiment> experiments = new ArrayList<>();
+        final List<int[]> compounds = new ArrayList<>();
+        while (blockInst.hasNext()) {
+            final int firstBlock = blockInst.peekNext().block;
+            final Ms2Experiment exp = readExperiment(blockInst, source);
+            experiments.add(exp);
+            compounds.add(new int[]{firstBlock, blockInst.lastPolledBlock, exp.getAnnotation(Index.class).index});
+        }
+        index.setCompounds(compounds);
+        return experiments;
+    }
+
+    private Ms2Experiment readExperiment(MgfParserInstance inst, URL source) throws IOException {
         if (!inst.hasNext()) return null;
         ++inst.specIndex;
         final MutableMs2Experiment exp = new MutableMs2Experiment();
@@ -0,0 +1,175 @@
+package de.unijena.bioinf.babelms.mgf;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses all compounds of an MGF file. The blocks of the file are found with an {@link MgfIndex} and parsed in
+ * chunks. Afterwards, the parsed blocks are grouped into compounds in the same way as the {@link MgfParser} does
+ * when reading the file sequentially. The grouped index can be used to read single compounds with
+ * {@link MgfParser#parse(File, MgfIndex, int)} later on.
+ *
+ * The chunks are taken from a shared counter by this job and by its sub jobs. This job never waits for a sub job
+ * which did not start yet, so it cannot block a thread which is needed to run its sub jobs.
+ */
+public class MgfParsingJJob extends BasicMasterJJob<List<Ms2Experiment>> {
+
+    // minimal number of bytes parsed by a single chunk
+    private static final long BYTES_PER_JOB = 4L << 20;
+
+    private final File input;
+    private final boolean storeIndex;
+    private final long bytesPerJob;
+    private final MgfParser parser;
+    private MgfIndex index;
+
+    public MgfParsingJJob(File input) {
+        this(input, false);
+    }
+
+    /**
+     * @param storeIndex if true, the index of the file is stored next to the file
+     */
+    public MgfParsingJJob(File input, boolean storeIndex) {
+        this(input, storeIndex, BYTES_PER_JOB);
+    }
+
+    MgfParsingJJob(File input, boolean storeIndex, long bytesPerJob) {
+        super(JobType.IO);
+        this.input = input;
+        this.storeIndex = storeIndex;
+        this.bytesPerJob = bytesPerJob;
+        this.parser = new MgfParser();
+    }
+
+    /**
+     * @return the index of the parsed file, or null if the job is not finished yet. The index does not know the
+     * compounds if the file had to be read sequentially, see {@link MgfIndex#hasKeywordsBetweenBlocks()}.
+     */
+    public MgfIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    protected List<Ms2Experiment> compute() throws Exception {
+        checkForInterruption();
+        final MgfIndex index = loadOrBuildIndex();
+        checkForInterruption();
+        if (index.hasKeywordsBetweenBlocks()) {
+            // keywords between the blocks change all following blocks, so the file has to be read sequentially
+            final List<Ms2Experiment> experiments = new GenericParser<Ms2Experiment>(parser).parseFromFile(input);
+            this.index = index;
+            return experiments;
+        }
+        final MgfParser.MgfSpec prototype = parser.parsePrototype(input, index);
+
+        final List<int[]> chunks = new ArrayList<>();
+        for (int from = 0; from < index.numberOfBlocks(); ) {
+            int to = from + 1;
+            while (to < index.numberOfBlocks() && index.getBlockEnd(to) - index.getBlockStart(from) < bytesPerJob) ++to;
+            chunks.add(new int[]{from, to});
+            from = to;
+        }
+        final Chunks work = new Chunks(index, prototype, chunks);
+        final int helpers = Math.min(chunks.size(), SiriusJobs.getGlobalJobManager().getIOThreads()) - 1;
+        final List<ChunkParsingJJob> jobs = new ArrayList<>();
+        for (int k = 0; k < helpers; ++k) jobs.add(submitSubJob(new ChunkParsingJJob(work)));
+        while (work.parseNext()) checkForInterruption();
+        work.done.await();
+        // sub jobs which start from now on find no chunks left and return immediately
+        for (ChunkParsingJJob job : jobs) job.cancel(false);
+        checkForInterruption();
+
+        final List<MgfParser.ParsedBlock> blocks = new ArrayList<>(index.numberOfBlocks());
+        for (int k = 0; k < chunks.size(); ++k) {
+            if (work.errors[k] != null) throw new ExecutionException(work.errors[k]);
+            blocks.addAll(Arrays.asList(work.results[k]));
+        }
+        checkForInterruption();
+
+        final boolean wasGrouped = index.isGrouped();
+        final List<Ms2Experiment> experiments = parser.parseBlocksToExperiments(blocks.iterator(), prototype, input.toURI().toURL(), index);
+        if (storeIndex && !wasGrouped) {
+            try {
+                index.store(input);
+            } catch (IOException e) {
+                LOG().warn("Cannot store index of " + input.getName() + ": " + e.getMessage());
+            }
+        }
+        this.index = index;
+        return experiments;
+    }
+
+    private MgfIndex loadOrBuildIndex() throws IOException {
+        try {
+            final MgfIndex index = MgfIndex.load(input);
+            if (index != null) return index;
+        } catch (IOException e) {
+            LOG().warn("Cannot read index of " + input.getName() + ": " + e.getMessage());
+        }
+        return MgfIndex.build(input);
+    }
+
+    private class Chunks {
+        private final MgfIndex index;
+        private final MgfParser.MgfSpec prototype;
+        private final List<int[]> chunks;
+        private final MgfParser.ParsedBlock[][] results;
+        private final Throwable[] errors;
+        private final AtomicInteger next = new AtomicInteger(0);
+        private final CountDownLatch done;
+
+        private Chunks(MgfIndex index, MgfParser.MgfSpec prototype, List<int[]> chunks) {
+            this.index = index;
+            this.prototype = prototype;
+            this.chunks = chunks;
+            this.results = new MgfParser.ParsedBlock[chunks.size()][];
+            this.errors = new Throwable[chunks.size()];
+            this.done = new CountDownLatch(chunks.size());
+        }
+
+        /**
+         * parses the next chunk which is not taken yet
+         * @return false if there are no chunks left
+         */
+        private boolean parseNext() {
+            final int k = next.getAndIncrement();
+            if (k >= chunks.size()) return false;
+            try {
+                results[k] = parser.parseBlocks(input, index, prototype, chunks.get(k)[0], chunks.get(k)[1]);
+            } catch (Throwable e) {
+                errors[k] = e;
+            } finally {
+                done.countDown();
+            }
+            return true;
+        }
+    }
+
+    private class ChunkParsingJJob extends BasicJJob<Void> {
+        private final Chunks work;
+
+        private ChunkParsingJJob(Chunks work) {
+            super(JobType.IO);
+            this.work = work;
+        }
+
+        @Override
+        protected Void compute() throws Exception {
+            while (work.parseNext()) checkForInterruption();
+            return null;
+        }
+    }
+}
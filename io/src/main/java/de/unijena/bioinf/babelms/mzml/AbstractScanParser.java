@@ -0,0 +1,169 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mzml;
+
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.Parser;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the scans of an mzML or mzXML file one after another and returns an experiment for each MS2 scan, together
+ * with its MS1 survey scan. Only the last MS1 scans are kept in memory, such that arbitrary large runs can be parsed.
+ */
+abstract class AbstractScanParser implements Parser<Ms2Experiment> {
+
+    // number of recent MS1 scans in which the survey scan of a MS2 scan is searched
+    private static final int MS1_CACHE_SIZE = 64;
+
+    interface ScanReader {
+        /**
+         * @return the next scan or null if there are no scans left
+         */
+        Scan next() throws IOException, XMLStreamException;
+
+        /**
+         * releases the resources of the reader which are not released by closing the xml stream
+         */
+        void close();
+    }
+
+    protected abstract ScanReader newScanReader(XMLStreamReader xml);
+
+    private ParserInstance inst;
+
+    @Override
+    public synchronized Ms2Experiment parse(BufferedReader reader, URL source) throws IOException {
+        if (inst == null || inst.reader != reader) {
+            if (inst != null) inst.scans.close();
+            inst = new ParserInstance(reader);
+        }
+        try {
+            return inst.next(source);
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private class ParserInstance {
+        private final BufferedReader reader;
+        private final XMLStreamReader xml;
+        private final ScanReader scans;
+        private final LinkedHashMap<String, SimpleSpectrum> recentMs1 = new LinkedHashMap<String, SimpleSpectrum>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SimpleSpectrum> eldest) {
+                return size() > MS1_CACHE_SIZE;
+            }
+        };
+        private SimpleSpectrum lastMs1;
+        private int specIndex = 0;
+        private boolean finished = false;
+
+        private ParserInstance(BufferedReader reader) throws IOException {
+            this.reader = reader;
+            final XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            try {
+                this.xml = factory.createXMLStreamReader(reader);
+            } catch (XMLStreamException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            this.scans = newScanReader(xml);
+        }
+
+        private Ms2Experiment next(URL source) throws IOException, XMLStreamException {
+            while (!finished) {
+                final Scan scan = scans.next();
+                if (scan == null) {
+                    finished = true;
+                    xml.close();
+                    scans.close();
+                    break;
+                }
+                if (scan.msLevel == 1) {
+                    lastMs1 = toSpectrum(scan);
+                    if (scan.id != null) recentMs1.put(scan.id, lastMs1);
+                } else if (scan.msLevel == 2) {
+                    if (scan.precursorMz <= 0) {
+                        LoggerFactory.getLogger(this.getClass()).warn("Scan " + scan.id + " ignored because its precursor is unknown.");
+                    } else if (Math.abs(scan.precursorCharge) > 1) {
+                        LoggerFactory.getLogger(this.getClass()).warn("Scan " + scan.id + " ignored. SIRIUS does not support multiple charged compounds.");
+                    } else {
+                        return toExperiment(scan, source);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private Ms2Experiment toExperiment(Scan scan, URL source) throws IOException {
+            // charge states are usually written without sign, so the sign is taken from the polarity of the scan
+            final boolean negative = scan.polarity != 0 ? scan.polarity < 0 : scan.precursorCharge < 0;
+            final int charge = (scan.precursorCharge != 0 ? Math.abs(scan.precursorCharge) : 1) * (negative ? -1 : 1);
+            final PrecursorIonType ionType = PrecursorIonType.unknown(charge);
+
+            final MutableMs2Spectrum ms2 = new MutableMs2Spectrum(toSpectrum(scan));
+            ms2.setMsLevel(2);
+            ms2.setPrecursorMz(scan.precursorMz);
+            ms2.setIonization(ionType.getIonization());
+            ms2.setScanNumber(scan.scanNumber);
+            if (!Double.isNaN(scan.collisionEnergy))
+                ms2.setCollisionEnergy(new CollisionEnergy(scan.collisionEnergy, scan.collisionEnergy));
+
+            final SimpleSpectrum survey = scan.precursorRef != null && recentMs1.containsKey(scan.precursorRef) ? recentMs1.get(scan.precursorRef) : lastMs1;
+
+            final MutableMs2Experiment exp = new MutableMs2Experiment();
+            exp.setMs2Spectra(new ArrayList<>(Collections.singletonList(ms2)));
+            exp.setMs1Spectra(survey == null ? new ArrayList<SimpleSpectrum>() : new ArrayList<>(Collections.singletonList(survey)));
+            exp.setIonMass(scan.precursorMz);
+            exp.setPrecursorIonType(ionType);
+            exp.setName(scan.id != null ? scan.id : "SCAN_" + (specIndex + 1));
+            exp.setAnnotation(Index.class, new Index(++specIndex));
+            if (!Double.isNaN(scan.retentionTime))
+                exp.setAnnotation(RetentionTime.class, new RetentionTime(scan.retentionTime));
+            exp.setSource(source);
+            return exp;
+        }
+
+        private SimpleSpectrum toSpectrum(Scan scan) throws IOException {
+            if (scan.mz == null || scan.intensity == null) return new SimpleSpectrum(new double[0], new double[0]);
+            if (scan.mz.length != scan.intensity.length)
+                throw new IOException("Scan " + scan.id + " has " + scan.mz.length + " m/z values but " + scan.intensity.length + " intensities.");
+            return new SimpleSpectrum(scan.mz, scan.intensity);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mzml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the base64 encoded binary arrays of mzML and mzXML files into double arrays.
+ */
+class BinaryDataDecoder {
+
+    enum Compression {NONE, NUMPRESS_LINEAR, NUMPRESS_PIC, NUMPRESS_SLOF}
+
+    enum DataType {
+        FLOAT32(4), FLOAT64(8), INT32(4), INT64(8);
+
+        private final int bytes;
+
+        DataType(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    DataType dataType = DataType.FLOAT64;
+    Compression compression = Compression.NONE;
+    boolean zlib = false;
+    ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+
+    // created for the first zlib compressed array and reused for all further arrays until close is called
+    private Inflater inflater;
+
+    void reset(ByteOrder byteOrder) {
+        this.dataType = DataType.FLOAT64;
+        this.compression = Compression.NONE;
+        this.zlib = false;
+        this.byteOrder = byteOrder;
+    }
+
+    /**
+     * @param expectedLength expected number of values, or -1 if unknown
+     */
+    double[] decode(String base64, int expectedLength) throws IOException {
+        final byte[] encoded;
+        try {
+            encoded = Base64.getMimeDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64 encoding of binary array.", e);
+        }
+        final byte[] data = zlib ? inflate(encoded, expectedLength < 0 ? -1 : expectedLength * dataType.bytes) : encoded;
+        switch (compression) {
+            case NUMPRESS_LINEAR:
+                return Numpress.decodeLinear(data);
+            case NUMPRESS_PIC:
+                return Numpress.decodePic(data);
+            case NUMPRESS_SLOF:
+                return Numpress.decodeSlof(data);
+            default:
+                return toDoubles(data);
+        }
+    }
+
+    private double[] toDoubles(byte[] data) throws IOException {
+        if (data.length % dataType.bytes != 0)
+            throw new IOException("Length of binary array is not a multiple of " + dataType.bytes + " bytes.");
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(byteOrder);
+        final double[] values = new double[data.length / dataType.bytes];
+        switch (dataType) {
+            case FLOAT32:
+                for (int i = 0; i < values.length; ++i) values[i] = buffer.getFloat();
+                break;
+            case FLOAT64:
+                buffer.asDoubleBuffer().get(values);
+                break;
+            case INT32:
+                for (int i = 0; i < values.length; ++i) values[i] = buffer.getInt();
+                break;
+            case INT64:
+                for (int i = 0; i < values.length; ++i) values[i] = buffer.getLong();
+                break;
+        }
+        return values;
+    }
+
+    /**
+     * releases the native memory of the zlib decompression. The decoder can still be used afterwards.
+     */
+    void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private byte[] inflate(byte[] data, int expectedLength) throws IOException {
+        if (inflater == null) inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] buffer = new byte[expectedLength > 0 ? expectedLength : Math.max(64, data.length * 4)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                final int n = inflater.inflate(buffer, length, buffer.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated zlib compressed binary array.");
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid zlib compressed binary array.", e);
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mzml;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Streaming parser for mzML files. Each MS2 spectrum becomes an experiment containing its survey MS1 spectrum.
+ * Binary arrays may be zlib and/or MS-Numpress compressed.
+ */
+public class MzMLParser extends AbstractScanParser {
+
+    @Override
+    protected ScanReader newScanReader(XMLStreamReader xml) {
+        return new MzMLScanReader(xml);
+    }
+
+    private enum Context {SPECTRUM, SCAN, PRECURSOR, ISOLATION_WINDOW, SELECTED_ION, ACTIVATION, BINARY_DATA_ARRAY, OTHER}
+
+    private enum ArrayType {UNKNOWN, MZ, INTENSITY}
+
+    private static class MzMLScanReader implements ScanReader {
+        private final XMLStreamReader xml;
+        // cvParams (accession, value, unit accession) of the referenceable param groups
+        private final HashMap<String, List<String[]>> paramGroups = new HashMap<>();
+        private final BinaryDataDecoder decoder = new BinaryDataDecoder();
+
+        private Scan scan;
+        private double isolationTarget;
+        private ArrayType arrayType;
+
+        private MzMLScanReader(XMLStreamReader xml) {
+            this.xml = xml;
+        }
+
+        @Override
+        public void close() {
+            decoder.close();
+        }
+
+        @Override
+        public Scan next() throws IOException, XMLStreamException {
+            while (xml.hasNext()) {
+                if (xml.next() != XMLStreamConstants.START_ELEMENT) continue;
+                switch (xml.getLocalName()) {
+                    case "referenceableParamGroup":
+                        readParamGroup();
+                        break;
+                    case "spectrum":
+                        return readSpectrum();
+                }
+            }
+            return null;
+        }
+
+        private void readParamGroup() throws XMLStreamException {
+            final List<String[]> params = new ArrayList<>();
+            paramGroups.put(xml.getAttributeValue(null, "id"), params);
+            while (xml.hasNext()) {
+                final int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("cvParam")) {
+                    params.add(new String[]{xml.getAttributeValue(null, "accession"), xml.getAttributeValue(null, "value"), xml.getAttributeValue(null, "unitAccession")});
+                } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("referenceableParamGroup")) {
+                    return;
+                }
+            }
+        }
+
+        private Scan readSpectrum() throws IOException, XMLStreamException {
+            scan = new Scan();
+            scan.id = xml.getAttributeValue(null, "id");
+            scan.scanNumber = parseScanNumber(scan.id);
+            isolationTarget = 0d;
+            final int defaultArrayLength = parseInt(xml.getAttributeValue(null, "defaultArrayLength"), -1);
+            int arrayLength = -1;
+            String binary = null;
+
+            final ArrayDeque<Context> contexts = new ArrayDeque<>();
+            contexts.push(Context.SPECTRUM);
+            while (xml.hasNext()) {
+                final int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "cvParam":
+                            handleParam(contexts.peek(), xml.getAttributeValue(null, "accession"), xml.getAttributeValue(null, "value"), xml.getAttributeValue(null, "unitAccession"));
+                            break;
+                        case "referenceableParamGroupRef":
+                            final List<String[]> group = paramGroups.get(xml.getAttributeValue(null, "ref"));
+                            if (group != null) {
+                                for (String[] param : group) handleParam(contexts.peek(), param[0], param[1], param[2]);
+                            }
+                            break;
+                        case "binary":
+                            binary = xml.getElementText();
+                            break;
+                        case "scan":
+                            contexts.push(Context.SCAN);
+                            break;
+                        case "precursor":
+                            contexts.push(Context.PRECURSOR);
+                            if (scan.precursorRef == null) scan.precursorRef = xml.getAttributeValue(null, "spectrumRef");
+                            break;
+                        case "isolationWindow":
+                            contexts.push(contexts.peek() == Context.PRECURSOR ? Context.ISOLATION_WINDOW : Context.OTHER);
+                            break;
+                        case "selectedIon":
+                            contexts.push(Context.SELECTED_ION);
+                            break;
+                        case "activation":
+                            contexts.push(Context.ACTIVATION);
+                            break;
+                        case "binaryDataArray":
+                            contexts.push(Context.BINARY_DATA_ARRAY);
+                            decoder.reset(ByteOrder.LITTLE_ENDIAN);
+                            arrayType = ArrayType.UNKNOWN;
+                            arrayLength = parseInt(xml.getAttributeValue(null, "arrayLength"), defaultArrayLength);
+                            binary = null;
+                            break;
+                        default:
+                            contexts.push(Context.OTHER);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "cvParam":
+                        case "referenceableParamGroupRef":
+                            break;
+                        case "spectrum":
+                            if (scan.precursorMz <= 0) scan.precursorMz = isolationTarget;
+                            final Scan result = scan;
+                            scan = null;
+                            return result;
+                        case "binaryDataArray":
+                            // arrays of scans which are never used are not decoded
+                            if (binary != null && scan.msLevel <= 2) {
+                                if (arrayType == ArrayType.MZ) scan.mz = decoder.decode(binary, arrayLength);
+                                else if (arrayType == ArrayType.INTENSITY) scan.intensity = decoder.decode(binary, arrayLength);
+                            }
+                            contexts.pop();
+                            break;
+                        default:
+                            contexts.pop();
+                    }
+                }
+            }
+            throw new IOException("Unexpected end of file in spectrum " + scan.id);
+        }
+
+        private void handleParam(Context context, String accession, String value, String unit) throws IOException {
+            if (accession == null) return;
+            switch (context) {
+                case SPECTRUM:
+                    if (accession.equals("MS:1000511")) scan.msLevel = (int) parseDouble(accession, value);
+                    else if (accession.equals("MS:1000130")) scan.polarity = 1;
+                    else if (accession.equals("MS:1000129")) scan.polarity = -1;
+                    break;
+                case SCAN:
+                    if (accession.equals("MS:1000016")) {
+                        final double time = parseDouble(accession, value);
+                        // scan start time is given in minutes or seconds
+                        scan.retentionTime = "UO:0000031".equals(unit) ? time * 60d : time;
+                    }
+                    break;
+                case ISOLATION_WINDOW:
+                    if (accession.equals("MS:1000827")) isolationTarget = parseDouble(accession, value);
+                    break;
+                case SELECTED_ION:
+                    if (accession.equals("MS:1000744") && scan.precursorMz <= 0)
+                        scan.precursorMz = parseDouble(accession, value);
+                    else if (accession.equals("MS:1000041") && scan.precursorCharge == 0)
+                        scan.precursorCharge = (int) parseDouble(accession, value);
+                    break;
+                case ACTIVATION:
+                    if (accession.equals("MS:1000045") && Double.isNaN(scan.collisionEnergy))
+                        scan.collisionEnergy = parseDouble(accession, value);
+                    break;
+                case BINARY_DATA_ARRAY:
+                    handleBinaryParam(accession);
+                    break;
+            }
+        }
+
+        private void handleBinaryParam(String accession) {
+            switch (accession) {
+                case "MS:1000514":
+                    arrayType = ArrayType.MZ;
+                    break;
+                case "MS:1000515":
+                    arrayType = ArrayType.INTENSITY;
+                    break;
+                case "MS:1000521":
+                    decoder.dataType = BinaryDataDecoder.DataType.FLOAT32;
+                    break;
+                case "MS:1000523":
+                    decoder.dataType = BinaryDataDecoder.DataType.FLOAT64;
+                    break;
+                case "MS:1000519":
+                    decoder.dataType = BinaryDataDecoder.DataType.INT32;
+                    break;
+                case "MS:1000522":
+                    decoder.dataType = BinaryDataDecoder.DataType.INT64;
+                    break;
+                case "MS:1000574":
+                    decoder.zlib = true;
+                    break;
+                case "MS:1002312":
+                    decoder.compression = BinaryDataDecoder.Compression.NUMPRESS_LINEAR;
+                    break;
+                case "MS:1002313":
+                    decoder.compression = BinaryDataDecoder.Compression.NUMPRESS_PIC;
+                    break;
+                case "MS:1002314":
+                    decoder.compression = BinaryDataDecoder.Compression.NUMPRESS_SLOF;
+                    break;
+                case "MS:1002746":
+                    decoder.compression = BinaryDataDecoder.Compression.NUMPRESS_LINEAR;
+                    decoder.zlib = true;
+                    break;
+                case "MS:1002747":
+                    decoder.compression = BinaryDataDecoder.Compression.NUMPRESS_PIC;
+                    decoder.zlib = true;
+                    break;
+                case "MS:1002748":
+                    decoder.compression = BinaryDataDecoder.Compression.NUMPRESS_SLOF;
+                    decoder.zlib = true;
+                    break;
+            }
+        }
+
+        private double parseDouble(String accession, String value) throws IOException {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new IOException("Invalid value '" + value + "' of " + accession + " in spectrum " + scan.id, e);
+            }
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            if (value == null) return defaultValue;
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        /**
+         * @return the number of native ids like "controllerType=0 controllerNumber=1 scan=42", or -1
+         */
+        private static int parseScanNumber(String id) {
+            if (id == null) return -1;
+            final int i = id.indexOf("scan=");
+            if (i < 0) return -1;
+            int j = i + 5;
+            while (j < id.length() && Character.isDigit(id.charAt(j))) ++j;
+            return parseInt(id.substring(i + 5, j), -1);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mzml;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming parser for mzXML files. Each MS2 scan becomes an experiment containing its survey MS1 scan. MS2 scans
+ * may be nested into their MS1 scan.
+ */
+public class MzXMLParser extends AbstractScanParser {
+
+    @Override
+    protected ScanReader newScanReader(XMLStreamReader xml) {
+        return new MzXMLScanReader(xml);
+    }
+
+    private static class MzXMLScanReader implements ScanReader {
+        private final XMLStreamReader xml;
+        private final BinaryDataDecoder decoder = new BinaryDataDecoder();
+        // innermost open scan which is not returned yet. Scans containing other scans are returned as soon as
+        // the first nested scan starts, as their peaks precede the nested scans.
+        private Scan current;
+        private int peaksCount;
+
+        private MzXMLScanReader(XMLStreamReader xml) {
+            this.xml = xml;
+        }
+
+        @Override
+        public void close() {
+            decoder.close();
+        }
+
+        @Override
+        public Scan next() throws IOException, XMLStreamException {
+            while (xml.hasNext()) {
+                final int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "scan":
+                            final Scan outer = current;
+                            current = readScanAttributes();
+                            if (outer != null) return outer;
+                            break;
+                        case "precursorMz":
+                            if (current != null) readPrecursor();
+                            break;
+                        case "peaks":
+                            if (current != null) readPeaks();
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("scan") && current != null) {
+                    final Scan scan = current;
+                    current = null;
+                    return scan;
+                }
+            }
+            return null;
+        }
+
+        private Scan readScanAttributes() throws IOException {
+            final Scan scan = new Scan();
+            final String num = xml.getAttributeValue(null, "num");
+            scan.id = num == null ? null : "scan=" + num;
+            scan.scanNumber = parseInt(num, -1);
+            scan.msLevel = parseInt(xml.getAttributeValue(null, "msLevel"), 1);
+            final String polarity = xml.getAttributeValue(null, "polarity");
+            if ("+".equals(polarity)) scan.polarity = 1;
+            else if ("-".equals(polarity)) scan.polarity = -1;
+            final String retentionTime = xml.getAttributeValue(null, "retentionTime");
+            if (retentionTime != null) scan.retentionTime = parseDuration(retentionTime);
+            final String collisionEnergy = xml.getAttributeValue(null, "collisionEnergy");
+            if (collisionEnergy != null) scan.collisionEnergy = parseDouble(collisionEnergy);
+            peaksCount = parseInt(xml.getAttributeValue(null, "peaksCount"), -1);
+            return scan;
+        }
+
+        private void readPrecursor() throws IOException, XMLStreamException {
+            final String ref = xml.getAttributeValue(null, "precursorScanNum");
+            final int charge = parseInt(xml.getAttributeValue(null, "precursorCharge"), 0);
+            final double mz = parseDouble(xml.getElementText().trim());
+            // MSn scans list the precursors of all stages, the first one belongs to the survey scan
+            if (current.precursorMz <= 0) {
+                current.precursorMz = mz;
+                current.precursorCharge = charge;
+                if (ref != null) current.precursorRef = "scan=" + ref.trim();
+            }
+        }
+
+        private void readPeaks() throws IOException, XMLStreamException {
+            decoder.reset(ByteOrder.BIG_ENDIAN);
+            final boolean doublePrecision = "64".equals(xml.getAttributeValue(null, "precision"));
+            decoder.dataType = doublePrecision ? BinaryDataDecoder.DataType.FLOAT64 : BinaryDataDecoder.DataType.FLOAT32;
+            decoder.zlib = "zlib".equals(xml.getAttributeValue(null, "compressionType"));
+            String contentType = xml.getAttributeValue(null, "contentType");
+            if (contentType == null) contentType = xml.getAttributeValue(null, "pairOrder");
+            final String text = xml.getElementText();
+            // peaks of scans which are never used are not decoded
+            if (current.msLevel > 2 || (contentType != null && !contentType.equals("m/z-int"))) return;
+            final double[] pairs = decoder.decode(text, peaksCount < 0 ? -1 : 2 * peaksCount);
+            if (pairs.length % 2 != 0) throw new IOException("Odd number of values in the peaks of " + current.id);
+            current.mz = new double[pairs.length / 2];
+            current.intensity = new double[pairs.length / 2];
+            for (int i = 0; i < current.mz.length; ++i) {
+                current.mz[i] = pairs[2 * i];
+                current.intensity[i] = pairs[2 * i + 1];
+            }
+        }
+
+        private double parseDouble(String value) throws IOException {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number '" + value + "' in " + (current == null ? "scan" : current.id), e);
+            }
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            if (value == null) return defaultValue;
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        /**
+         * @return the seconds of a xs:duration like PT62.5S or PT1M2.5S
+         */
+        private double parseDuration(String value) throws IOException {
+            final String duration = value.trim();
+            if (!duration.startsWith("P")) throw new IOException("Invalid retention time '" + value + "'");
+            double seconds = 0d;
+            boolean time = false;
+            int start = 1;
+            for (int i = 1; i < duration.length(); ++i) {
+                final char c = duration.charAt(i);
+                if (Character.isDigit(c) || c == '.') continue;
+                if (c == 'T') {
+                    time = true;
+                } else {
+                    final double number = parseDouble(duration.substring(start, i));
+                    if (c == 'D') seconds += number * 86400d;
+                    else if (c == 'H' && time) seconds += number * 3600d;
+                    else if (c == 'M' && time) seconds += number * 60d;
+                    else if (c == 'S' && time) seconds += number;
+                    else throw new IOException("Invalid retention time '" + value + "'");
+                }
+                start = i + 1;
+            }
+            return seconds;
+        }
+    }
+}
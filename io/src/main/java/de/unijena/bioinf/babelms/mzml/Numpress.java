@@ -0,0 +1,136 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mzml;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decoder for the MS-Numpress compressions of mzML binary arrays: linear prediction (m/z values), positive integer
+ * (intensities) and short logged float (intensities). Integers are stored as half bytes: a head half byte gives the
+ * number of leading zero (head &lt;= 8) or leading 0xf (head &gt; 8) half bytes, the remaining half bytes follow
+ * with the least significant first.
+ */
+final class Numpress {
+
+    private Numpress() {
+    }
+
+    static double[] decodeLinear(byte[] data) throws IOException {
+        if (data.length < 8) throw new IOException("Corrupt numpress linear data.");
+        final double fixedPoint = decodeFixedPoint(data);
+        if (data.length == 8) return new double[0];
+        if (data.length == 12) return new double[]{readUnsignedInt(data, 8) / fixedPoint};
+        if (data.length < 16) throw new IOException("Corrupt numpress linear data.");
+        final double[] result = new double[2 + (data.length - 16) * 2];
+        long previous = readUnsignedInt(data, 8), current = readUnsignedInt(data, 12);
+        result[0] = previous / fixedPoint;
+        result[1] = current / fixedPoint;
+        int size = 2;
+        final HalfByteReader reader = new HalfByteReader(data, 16);
+        while (reader.hasNext()) {
+            final long y = current + (current - previous) + reader.next();
+            result[size++] = y / fixedPoint;
+            previous = current;
+            current = y;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    static double[] decodePic(byte[] data) throws IOException {
+        final double[] result = new double[data.length * 2];
+        int size = 0;
+        final HalfByteReader reader = new HalfByteReader(data, 0);
+        while (reader.hasNext()) {
+            result[size++] = reader.next() & 0xffffffffL;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    static double[] decodeSlof(byte[] data) throws IOException {
+        if (data.length < 8) throw new IOException("Corrupt numpress slof data.");
+        final double fixedPoint = decodeFixedPoint(data);
+        final double[] result = new double[(data.length - 8) / 2];
+        for (int i = 0; i < result.length; ++i) {
+            final int x = (data[8 + 2 * i] & 0xff) | ((data[9 + 2 * i] & 0xff) << 8);
+            result[i] = Math.exp(x / fixedPoint) - 1;
+        }
+        return result;
+    }
+
+    private static double decodeFixedPoint(byte[] data) {
+        long bits = 0;
+        for (int i = 0; i < 8; ++i) {
+            bits = (bits << 8) | (data[i] & 0xff);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long readUnsignedInt(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; ++i) {
+            value |= (data[offset + i] & 0xffL) << (8 * i);
+        }
+        return value;
+    }
+
+    private static final class HalfByteReader {
+        private final byte[] data;
+        private int pos;
+        private boolean half = false;
+
+        private HalfByteReader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private boolean hasNext() {
+            if (pos >= data.length) return false;
+            // the last half byte is padding unless it encodes a zero
+            return !(pos == data.length - 1 && half && (data[pos] & 0xf) != 0x8);
+        }
+
+        private int nextHalfByte() throws IOException {
+            if (pos >= data.length) throw new IOException("Corrupt numpress data.");
+            final int halfByte;
+            if (!half) {
+                halfByte = (data[pos] & 0xff) >> 4;
+            } else {
+                halfByte = data[pos++] & 0xf;
+            }
+            half = !half;
+            return halfByte;
+        }
+
+        private int next() throws IOException {
+            final int head = nextHalfByte();
+            int value = 0;
+            final int n;
+            if (head <= 8) {
+                n = head;
+            } else {
+                n = head - 8;
+                for (int i = 0; i < n; ++i) value |= 0xf0000000 >>> (4 * i);
+            }
+            for (int i = n; i < 8; ++i) {
+                value |= nextHalfByte() << ((i - n) * 4);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mzml;
+
+/**
+ * A single scan of an mzML or mzXML file
+ */
+class Scan {
+    String id;
+    int scanNumber = -1;
+    int msLevel = 1;
+    double[] mz, intensity;
+    // in seconds
+    double retentionTime = Double.NaN;
+    // +1, -1 or 0 if unknown
+    int polarity = 0;
+
+    double precursorMz = 0d;
+    int precursorCharge = 0;
+    // id of the survey scan, null if unknown
+    String precursorRef;
+    double collisionEnergy = Double.NaN;
+}
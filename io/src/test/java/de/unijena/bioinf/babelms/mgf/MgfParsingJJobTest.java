@@ -0,0 +1,167 @@
+package de.unijena.bioinf.babelms.mgf;
+
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.MSExperimentParsingJJob;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing an MGF file in chunks has to give the same compounds as parsing it sequentially with the MgfParser.
+ */
+public class MgfParsingJJobTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * writes compounds with several spectra grouped by FEATURE_ID, TITLE or precursor mass, with lines outside of
+     * blocks, peaks which cannot be parsed and blocks which are never closed
+     */
+    private File writeMgf(long seed, boolean keywordsBetweenBlocks) throws IOException {
+        final Random r = new Random(seed);
+        final File file = folder.newFile("test" + seed + ".mgf");
+        try (final PrintWriter w = new PrintWriter(file)) {
+            w.println("CHARGE=1+");
+            w.println("SOMEKEY=abc");
+            int feature = 0;
+            for (int c = 0; c < 300; ++c) {
+                if (r.nextInt(3) > 0) ++feature;
+                final int numberOfSpectra = 1 + r.nextInt(3);
+                for (int s = 0; s < numberOfSpectra; ++s) {
+                    if (r.nextInt(20) == 0) w.println("JUNK LINE");
+                    if (keywordsBetweenBlocks && r.nextInt(50) == 0) w.println("OTHER=x" + c);
+                    w.println("BEGIN IONS");
+                    if (r.nextInt(4) > 0) w.println("FEATURE_ID=" + feature);
+                    if (r.nextInt(4) == 0) w.println("TITLE=t" + (feature + r.nextInt(2)));
+                    w.println("PEPMASS=" + (100 + feature * 0.5 + (r.nextInt(10) == 0 ? 0.01 : 0)));
+                    w.println("MSLEVEL=" + (r.nextInt(3) == 0 ? 1 : 2));
+                    if (r.nextInt(5) == 0) w.println("RTINSECONDS=" + r.nextInt(1000));
+                    if (r.nextInt(8) == 0) w.println("CHARGE=" + (r.nextBoolean() ? "1-" : "1+"));
+                    if (r.nextInt(20) == 0) w.println("CUSTOM" + r.nextInt(3) + "=v");
+                    final int numberOfPeaks = r.nextInt(20);
+                    for (int p = 0; p < numberOfPeaks; ++p) {
+                        if (r.nextInt(100) == 0) w.println("12.5 abc");
+                        else w.println((50 + r.nextInt(100000) / 100.0) + " " + r.nextInt(1000));
+                    }
+                    if (r.nextInt(40) == 0) {
+                        w.println("BEGIN IONS");
+                        w.println("PEPMASS=12");
+                    }
+                    w.println("END IONS");
+                    if (r.nextInt(10) == 0) w.println();
+                }
+            }
+            w.println("BEGIN IONS\nPEPMASS=1\n1 2");
+        }
+        return file;
+    }
+
+    private static String describe(Ms2Experiment exp) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(exp.getName()).append('|').append(exp.getAnnotation(Index.class).index).append('|')
+                .append(exp.getIonMass()).append('|').append(exp.getPrecursorIonType()).append('|');
+        for (Spectrum<?> spec : exp.getMs1Spectra()) appendPeaks(buf.append("MS1"), spec);
+        for (Ms2Spectrum<?> spec : exp.getMs2Spectra()) appendPeaks(buf.append("MS2"), spec);
+        final RetentionTime rt = exp.getAnnotation(RetentionTime.class);
+        if (rt != null) {
+            buf.append('|').append(rt.getMiddleTime());
+            if (rt.isInterval()) buf.append(':').append(rt.getStartTime()).append('-').append(rt.getEndTime());
+        }
+        buf.append('|').append(exp.getAnnotation(Map.class)).append('|').append(exp.getSource());
+        return buf.toString();
+    }
+
+    private static void appendPeaks(StringBuilder buf, Spectrum<?> spec) {
+        for (int i = 0; i < spec.size(); ++i) buf.append(' ').append(spec.getMzAt(i)).append('/').append(spec.getIntensityAt(i));
+    }
+
+    private static List<String> describeAll(List<Ms2Experiment> experiments) {
+        final List<String> descriptions = new ArrayList<>();
+        for (Ms2Experiment exp : experiments) descriptions.add(describe(exp));
+        return descriptions;
+    }
+
+    private static List<Ms2Experiment> run(MgfParsingJJob job) throws Exception {
+        return SiriusJobs.getGlobalJobManager().submitJob(job).awaitResult();
+    }
+
+    @Test
+    public void testChunksAreParsedLikeSequentialFile() throws Exception {
+        for (long seed = 1; seed <= 5; ++seed) {
+            final File file = writeMgf(seed, false);
+            final List<String> expected = describeAll(new GenericParser<Ms2Experiment>(new MgfParser()).parseFromFile(file));
+            // small chunks, such that compounds and not-parsed compounds are split between chunks
+            final MgfParsingJJob job = new MgfParsingJJob(file, false, 512);
+            assertEquals(expected, describeAll(run(job)));
+
+            final MgfIndex index = job.getIndex();
+            assertTrue(index.isGrouped());
+            assertFalse(index.hasKeywordsBetweenBlocks());
+            assertEquals(expected.size(), index.numberOfCompounds());
+            final MgfParser parser = new MgfParser();
+            for (int k = 0; k < index.numberOfCompounds(); ++k) {
+                assertEquals(expected.get(k), describe(parser.parse(file, index, k)));
+            }
+        }
+    }
+
+    @Test
+    public void testStoredIndexIsReused() throws Exception {
+        final File file = writeMgf(7, false);
+        final List<String> expected = describeAll(new GenericParser<Ms2Experiment>(new MgfParser()).parseFromFile(file));
+
+        run(new MgfParsingJJob(file));
+        assertFalse("index is only stored on request", MgfIndex.getIndexFile(file).exists());
+
+        run(new MgfParsingJJob(file, true, 512));
+        assertTrue(MgfIndex.getIndexFile(file).exists());
+        final MgfIndex stored = MgfIndex.load(file);
+        assertNotNull(stored);
+        assertTrue(stored.isGrouped());
+        assertEquals(expected.get(expected.size() - 1), describe(new MgfParser().parse(file, stored, expected.size() - 1)));
+        assertEquals(expected, describeAll(run(new MgfParsingJJob(file, true, 1024))));
+    }
+
+    @Test
+    public void testExperimentParsingStoresAndReusesIndex() throws Exception {
+        final File file = writeMgf(13, false);
+        final List<String> expected = describeAll(new GenericParser<Ms2Experiment>(new MgfParser()).parseFromFile(file));
+        final List<File> files = Collections.singletonList(file);
+
+        assertEquals(expected, describeAll(SiriusJobs.getGlobalJobManager().submitJob(new MSExperimentParsingJJob(files)).awaitResult()));
+        final MgfIndex stored = MgfIndex.load(file);
+        assertNotNull(stored);
+        assertTrue(stored.isGrouped());
+        final long lastModified = MgfIndex.getIndexFile(file).lastModified();
+        assertEquals(expected, describeAll(SiriusJobs.getGlobalJobManager().submitJob(new MSExperimentParsingJJob(files)).awaitResult()));
+        assertEquals("the grouped index is not stored again", lastModified, MgfIndex.getIndexFile(file).lastModified());
+    }
+
+    @Test
+    public void testKeywordsBetweenBlocksAreReadSequentially() throws Exception {
+        final File file = writeMgf(11, true);
+        final List<String> expected = describeAll(new GenericParser<Ms2Experiment>(new MgfParser()).parseFromFile(file));
+        final MgfParsingJJob job = new MgfParsingJJob(file, false, 512);
+        assertEquals(expected, describeAll(run(job)));
+        assertTrue(job.getIndex().hasKeywordsBetweenBlocks());
+        assertFalse(job.getIndex().isGrouped());
+    }
+}
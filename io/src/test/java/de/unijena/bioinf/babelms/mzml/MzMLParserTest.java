@@ -0,0 +1,142 @@
+package de.unijena.bioinf.babelms.mzml;
+
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.babelms.Parser;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MzMLParserTest {
+
+    private static final double[] MS2_MZ = {100.5, 200.25, 300.125, 400.0625};
+    private static final double[] MS2_INTENSITIES = {10, 2000, 0, 35};
+
+    private static final String MZML = "<?xml version=\"1.0\"?>\n" +
+            "<indexedmzML><mzML><referenceableParamGroupList count=\"1\"><referenceableParamGroup id=\"positive\">" +
+            "<cvParam accession=\"MS:1000130\" name=\"positive scan\" value=\"\"/></referenceableParamGroup></referenceableParamGroupList>" +
+            "<run><spectrumList count=\"5\">\n" +
+            "<spectrum index=\"0\" id=\"scan=1\" defaultArrayLength=\"2\"><referenceableParamGroupRef ref=\"positive\"/>" +
+            "<cvParam accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/><binaryDataArrayList count=\"2\">" +
+            binaryDataArray("eJxjYACCC0kOIIrhUJEDABJ+Auc=", "MS:1000514", "MS:1000523", "MS:1000574") +
+            binaryDataArray("AAB6RABQQ0c=", "MS:1000515", "MS:1000521", "MS:1000576") +
+            "</binaryDataArrayList></spectrum>\n" +
+            "<spectrum index=\"1\" id=\"scan=2\" defaultArrayLength=\"4\"><referenceableParamGroupRef ref=\"positive\"/>" +
+            "<cvParam accession=\"MS:1000511\" name=\"ms level\" value=\"2\"/>" +
+            "<scanList count=\"1\"><scan><cvParam accession=\"MS:1000016\" name=\"scan start time\" value=\"1.5\" unitAccession=\"UO:0000031\"/></scan></scanList>" +
+            "<precursorList count=\"1\"><precursor spectrumRef=\"scan=1\"><selectedIonList count=\"1\"><selectedIon>" +
+            "<cvParam accession=\"MS:1000744\" name=\"selected ion m/z\" value=\"300.125\"/><cvParam accession=\"MS:1000041\" name=\"charge state\" value=\"1\"/>" +
+            "</selectedIon></selectedIonList><activation><cvParam accession=\"MS:1000045\" name=\"collision energy\" value=\"35\"/></activation></precursor></precursorList>" +
+            "<binaryDataArrayList count=\"2\">" +
+            binaryDataArray("QPhqAAAAAADQWZkAqI4xAUTQNKaB", "MS:1000514", "MS:1002312") +
+            binaryDataArray("elDXhjI=", "MS:1000515", "MS:1002313") +
+            "</binaryDataArrayList></spectrum>\n" +
+            "<spectrum index=\"2\" id=\"scan=3\" defaultArrayLength=\"4\"><cvParam accession=\"MS:1000511\" name=\"ms level\" value=\"2\"/>" +
+            "<cvParam accession=\"MS:1000129\" name=\"negative scan\" value=\"\"/>" +
+            "<precursorList count=\"1\"><precursor><isolationWindow><cvParam accession=\"MS:1000827\" name=\"isolation window target m/z\" value=\"250.5\"/></isolationWindow></precursor></precursorList>" +
+            "<binaryDataArrayList count=\"2\">" +
+            binaryDataArray("eJxz+JHFAAIXImcyrOgzZHS5YLKsEQBIlAc8", "MS:1000514", "MS:1002746") +
+            binaryDataArray("QI9AAAAAAABeCbEdAAAADg==", "MS:1000515", "MS:1002314") +
+            "</binaryDataArrayList></spectrum>\n" +
+            "<spectrum index=\"3\" id=\"scan=4\" defaultArrayLength=\"0\"><cvParam accession=\"MS:1000511\" name=\"ms level\" value=\"3\"/></spectrum>\n" +
+            "<spectrum index=\"4\" id=\"scan=5\" defaultArrayLength=\"4\"><cvParam accession=\"MS:1000511\" name=\"ms level\" value=\"2\"/>" +
+            "<cvParam accession=\"MS:1000129\" name=\"negative scan\" value=\"\"/>" +
+            "<precursorList count=\"1\"><precursor><selectedIonList count=\"1\"><selectedIon>" +
+            "<cvParam accession=\"MS:1000744\" name=\"selected ion m/z\" value=\"300.125\"/><cvParam accession=\"MS:1000041\" name=\"charge state\" value=\"1\"/>" +
+            "</selectedIon></selectedIonList></precursor></precursorList>" +
+            "<binaryDataArrayList count=\"2\">" +
+            binaryDataArray("QPhqAAAAAADQWZkAqI4xAUTQNKaB", "MS:1000514", "MS:1002312") +
+            binaryDataArray("elDXhjI=", "MS:1000515", "MS:1002313") +
+            "</binaryDataArrayList></spectrum>\n" +
+            "</spectrumList></run></mzML></indexedmzML>\n";
+
+    private static final String MZXML = "<?xml version=\"1.0\"?>\n<mzXML><msRun scanCount=\"3\">\n" +
+            "<scan num=\"1\" msLevel=\"1\" peaksCount=\"2\" polarity=\"+\" retentionTime=\"PT1M2.5S\">" +
+            "<peaks precision=\"32\" byteOrder=\"network\" contentType=\"m/z-int\">QxaAAER6AABDlhAAR0NQAA==</peaks>\n" +
+            "<scan num=\"2\" msLevel=\"2\" peaksCount=\"4\" polarity=\"+\" retentionTime=\"PT63S\" collisionEnergy=\"20\">" +
+            "<precursorMz precursorCharge=\"1\">300.125</precursorMz>" +
+            "<peaks precision=\"64\" byteOrder=\"network\" contentType=\"m/z-int\" compressionType=\"zlib\">eJxziFRgAAEHFQYInckBoec7QOiiQwzIwKGSEUI7NoBpAM6JBh0=</peaks>" +
+            "</scan>\n<scan num=\"3\" msLevel=\"2\" peaksCount=\"4\" polarity=\"-\" retentionTime=\"PT64S\">" +
+            "<precursorMz precursorCharge=\"1\">300.125</precursorMz>" +
+            "<peaks precision=\"64\" byteOrder=\"network\" contentType=\"m/z-int\" compressionType=\"zlib\">eJxziFRgAAEHFQYInckBoec7QOiiQwzIwKGSEUI7NoBpAM6JBh0=</peaks>" +
+            "</scan></scan>\n</msRun></mzXML>\n";
+
+    private static String binaryDataArray(String base64, String... accessions) {
+        final StringBuilder buf = new StringBuilder("<binaryDataArray encodedLength=\"").append(base64.length()).append("\">");
+        for (String accession : accessions)
+            buf.append("<cvParam accession=\"").append(accession).append("\" value=\"\"/>");
+        return buf.append("<binary>").append(base64).append("</binary></binaryDataArray>").toString();
+    }
+
+    private static List<Ms2Experiment> parseAll(Parser<Ms2Experiment> parser, String content) throws IOException {
+        final BufferedReader reader = new BufferedReader(new StringReader(content));
+        final List<Ms2Experiment> experiments = new ArrayList<>();
+        Ms2Experiment exp;
+        while ((exp = parser.parse(reader, null)) != null) experiments.add(exp);
+        return experiments;
+    }
+
+    private static void assertPeaks(Spectrum<?> spectrum, double[] mz, double[] intensities, double delta) {
+        assertEquals(mz.length, spectrum.size());
+        for (int i = 0; i < mz.length; ++i) {
+            assertEquals(mz[i], spectrum.getMzAt(i), 1e-5);
+            assertEquals(intensities[i], spectrum.getIntensityAt(i), delta * Math.max(1, intensities[i]));
+        }
+    }
+
+    @Test
+    public void testMzML() throws IOException {
+        final List<Ms2Experiment> experiments = parseAll(new MzMLParser(), MZML);
+        assertEquals(3, experiments.size());
+
+        final Ms2Experiment first = experiments.get(0);
+        assertEquals("scan=2", first.getName());
+        assertEquals(300.125, first.getIonMass(), 1e-9);
+        assertEquals(1, first.getPrecursorIonType().getCharge());
+        assertEquals(90, first.getAnnotation(RetentionTime.class).getMiddleTime(), 1e-9);
+        assertEquals(35, first.getMs2Spectra().get(0).getCollisionEnergy().getMinEnergy(), 1e-9);
+        assertEquals(1, first.getMs1Spectra().size());
+        assertPeaks(first.getMs1Spectra().get(0), new double[]{150.5, 300.125}, new double[]{1000, 50000}, 0);
+        assertPeaks(first.getMs2Spectra().get(0), MS2_MZ, MS2_INTENSITIES, 0);
+
+        final Ms2Experiment second = experiments.get(1);
+        assertEquals(250.5, second.getIonMass(), 1e-9);
+        assertEquals(-1, second.getPrecursorIonType().getCharge());
+        // without spectrum reference, the last MS1 scan is the survey scan
+        assertEquals(1, second.getMs1Spectra().size());
+        assertPeaks(second.getMs2Spectra().get(0), MS2_MZ, MS2_INTENSITIES, 1e-2);
+
+        // the charge state is given without sign, the sign comes from the negative scan
+        final Ms2Experiment third = experiments.get(2);
+        assertEquals("scan=5", third.getName());
+        assertEquals(-1, third.getPrecursorIonType().getCharge());
+        assertPeaks(third.getMs2Spectra().get(0), MS2_MZ, MS2_INTENSITIES, 0);
+    }
+
+    @Test
+    public void testMzXML() throws IOException {
+        final List<Ms2Experiment> experiments = parseAll(new MzXMLParser(), MZXML);
+        assertEquals(2, experiments.size());
+        final Ms2Experiment exp = experiments.get(0);
+        assertEquals("scan=2", exp.getName());
+        assertEquals(300.125, exp.getIonMass(), 1e-9);
+        assertEquals(63, exp.getAnnotation(RetentionTime.class).getMiddleTime(), 1e-9);
+        assertEquals(20, exp.getMs2Spectra().get(0).getCollisionEnergy().getMinEnergy(), 1e-9);
+        assertEquals(1, exp.getMs1Spectra().size());
+        assertPeaks(exp.getMs1Spectra().get(0), new double[]{150.5, 300.125}, new double[]{1000, 50000}, 0);
+        assertPeaks(exp.getMs2Spectra().get(0), MS2_MZ, MS2_INTENSITIES, 0);
+        assertEquals(1, exp.getPrecursorIonType().getCharge());
+
+        final Ms2Experiment negative = experiments.get(1);
+        assertEquals("scan=3", negative.getName());
+        assertEquals(-1, negative.getPrecursorIonType().getCharge());
+        assertPeaks(negative.getMs2Spectra().get(0), MS2_MZ, MS2_INTENSITIES, 0);
+    }
+}
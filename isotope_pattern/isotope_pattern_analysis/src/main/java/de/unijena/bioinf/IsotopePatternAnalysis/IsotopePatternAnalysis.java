@@ -293,13 +293,16 @@ public class IsotopePatternAnalysis implements Parameterized {
                 allPatternVariants[k] = new SimpleSpectrum(mut);
             }
         }
-        int k = 0;
+        final List<MolecularFormula> measuredFormulas = new ArrayList<>(formulas.size());
+        for (MolecularFormula formula : formulas) measuredFormulas.add(ion.neutralMoleculeToMeasuredNeutralMolecule(formula));
+        // simulate all patterns at once, such that intermediate results can be shared between similar candidates
+        final List<SimpleSpectrum> theoreticalSpectra = patternGenerator.simulatePatterns(measuredFormulas, ion.getIonization());
         final double[] scoreBuffer = new double[allPatternVariants.length];
-        for (MolecularFormula formula : formulas) {
+        for (int i = 0; i < formulas.size(); ++i) {
+            final MolecularFormula formula = formulas.get(i);
             Arrays.fill(scoreBuffer, 0d);
-            final MolecularFormula f = ion.neutralMoleculeToMeasuredNeutralMolecule(formula);
             Spectrum<Peak> measuredOne = measuredSpectrum;
-            Spectrum<Peak> theoreticalSpectrum = patternGenerator.simulatePattern(f, ion.getIonization());
+            Spectrum<Peak> theoreticalSpectrum = theoreticalSpectra.get(i);
             if (theoreticalSpectrum.size() == 0) continue;
             if (theoreticalSpectrum.size() > 10)
                 theoreticalSpectrum = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(theoreticalSpectrum, 0, 10), Normalization.Max(1d));
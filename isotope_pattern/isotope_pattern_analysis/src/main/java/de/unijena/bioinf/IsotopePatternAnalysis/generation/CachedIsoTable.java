@@ -33,13 +33,14 @@ class CachedIsoTable {
         this.distribution = distribution;
     }
 
-    public Isotopologues getIsotopologuesFor(Element element, int numberOfAtoms) {
+    public synchronized Isotopologues getIsotopologuesFor(Element element, int numberOfAtoms) {
         IsotopologueTable[] tables = cache.get(element);
         if (tables == null) {
             tables = new IsotopologueTable[numberOfAtoms * 2];
             cache.put(element, tables);
         } else if (tables.length <= numberOfAtoms) {
             tables = Arrays.copyOf(tables, numberOfAtoms * 2);
+            cache.put(element, tables);
         }
         if (tables[numberOfAtoms] == null) {
             tables[numberOfAtoms] = new IsotopologueTable(element, numberOfAtoms, distribution);
@@ -17,6 +17,8 @@
  */
 package de.unijena.bioinf.IsotopePatternAnalysis.generation;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.Isotopes;
@@ -27,9 +29,31 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.ArrayWrapperSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
 
+    /**
+     * maximal number of folded element distributions which are kept in the cache
+     */
+    public static final String CACHE_SIZE_PROPERTY = "de.unijena.bioinf.sirius.isotopes.cacheSize";
+
+    /**
+     * The isotope distribution of n atoms of the same element is computed by folding the distribution of a single
+     * atom with itself. The result does neither depend on the formula nor on the generator, so it is cached and
+     * shared between all generators and threads. As {@link Isotopes} are immutable, they are used as key instead of
+     * the (mutable) {@link IsotopicDistribution}.
+     */
+    private static final Cache<ElementKey, ArrayWrapperSpectrum> ELEMENT_DISTRIBUTIONS = CacheBuilder.newBuilder()
+            .maximumSize(PropertyManager.getIntProperty(CACHE_SIZE_PROPERTY, 100000)).build();
+
     public FastIsotopePatternGenerator(IsotopicDistribution distribution, Normalization mode) {
         super(distribution, mode);
     }
@@ -57,6 +81,91 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
             diff = ion.getMass() - adduct.getMass();
         } else diff = ion.getMass();
         final SimpleMutableSpectrum spec = foldFormula(formula, this.maximalNumberOfPeaks, this.minimalProbabilityThreshold);
+        return toPattern(spec, formula, diff);
+    }
+
+    /**
+     * Simulates the patterns of many candidate formulas at once. Usually, the candidates for a compound differ only in
+     * a few elements (e.g. C2H4 vs. O). The elements are ordered such that the elements with the fewest different
+     * amounts come first and the candidates are sorted lexicographically by their amounts in this order. For each
+     * candidate, the partial distributions of all leading elements it shares with its predecessor are reused, so only
+     * the element distributions following the first differing element are folded again.
+     */
+    @Override
+    public List<SimpleSpectrum> simulatePatterns(List<MolecularFormula> formulas, Ionization ion) {
+        final MolecularFormula adduct = ion.getAtoms();
+        final boolean addAdduct = adduct != null && adduct.getIntMass() > 0;
+        final double diff = addAdduct ? ion.getMass() - adduct.getMass() : ion.getMass();
+        final MolecularFormula[] ionFormulas = new MolecularFormula[formulas.size()];
+        for (int i = 0; i < ionFormulas.length; ++i) {
+            ionFormulas[i] = addAdduct ? formulas.get(i).add(adduct) : formulas.get(i);
+        }
+        // order elements by their number of different amounts
+        final List<Element> elements = new ArrayList<Element>();
+        final List<TIntHashSet> amounts = new ArrayList<TIntHashSet>();
+        final TObjectIntHashMap<Element> elementIndizes = new TObjectIntHashMap<Element>(10, 0.75f, -1);
+        for (MolecularFormula f : ionFormulas) {
+            for (Element e : f) {
+                int index = elementIndizes.get(e);
+                if (index < 0) {
+                    index = elements.size();
+                    elementIndizes.put(e, index);
+                    elements.add(e);
+                    amounts.add(new TIntHashSet());
+                }
+                amounts.get(index).add(f.numberOf(e));
+            }
+        }
+        final Integer[] order = new Integer[elements.size()];
+        for (int i = 0; i < order.length; ++i) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(amounts.get(o1).size(), amounts.get(o2).size());
+            }
+        });
+        final Element[] orderedElements = new Element[order.length];
+        for (int i = 0; i < order.length; ++i) orderedElements[i] = elements.get(order[i]);
+        final int[][] atoms = new int[ionFormulas.length][orderedElements.length];
+        final Integer[] candidates = new Integer[ionFormulas.length];
+        for (int i = 0; i < ionFormulas.length; ++i) {
+            for (int j = 0; j < orderedElements.length; ++j) atoms[i][j] = ionFormulas[i].numberOf(orderedElements[j]);
+            candidates[i] = i;
+        }
+        Arrays.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                final int[] a = atoms[o1], b = atoms[o2];
+                for (int j = 0; j < a.length; ++j) {
+                    if (a[j] != b[j]) return Integer.compare(a[j], b[j]);
+                }
+                return 0;
+            }
+        });
+        // prefixes[j] is the distribution of the first j+1 elements of the previous candidate
+        final FoldBuffer[] prefixes = new FoldBuffer[orderedElements.length];
+        for (int j = 0; j < prefixes.length; ++j) prefixes[j] = new FoldBuffer(maximalNumberOfPeaks);
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[ionFormulas.length];
+        int[] previous = null;
+        for (int c : candidates) {
+            final int[] current = atoms[c];
+            int start = 0;
+            if (previous != null) {
+                while (start < current.length && current[start] == previous[start]) ++start;
+            }
+            for (int j = start; j < current.length; ++j) {
+                final ArrayWrapperSpectrum elementDistribution = getElementDistribution(orderedElements[j], current[j], maximalNumberOfPeaks);
+                if (j == 0) prefixes[j].set(elementDistribution);
+                else prefixes[j].fold(prefixes[j - 1], elementDistribution, maximalNumberOfPeaks);
+            }
+            previous = current;
+            final SimpleMutableSpectrum distribution = prefixes.length == 0 ? new SimpleMutableSpectrum() : prefixes[prefixes.length - 1].toSpectrum(minimalProbabilityThreshold);
+            patterns[c] = toPattern(distribution, ionFormulas[c], diff);
+        }
+        return Arrays.asList(patterns);
+    }
+
+    private SimpleSpectrum toPattern(SimpleMutableSpectrum spec, MolecularFormula formula, double diff) {
         Spectrums.normalize(spec, mode);
         final double mono = formula.getIntMass();
         for (int k = 0; k < spec.size(); ++k) {
@@ -66,60 +175,86 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
     }
 
     protected SimpleMutableSpectrum foldFormula(MolecularFormula formula, int maxNumberOfPeaks, double minimalIntensity) {
-        ArrayWrapperSpectrum candidateDistribution = null;
+        // the element distributions are folded into two buffers which are swapped after each fold
+        FoldBuffer candidateDistribution = new FoldBuffer(maxNumberOfPeaks), buffer = new FoldBuffer(maxNumberOfPeaks);
+        boolean empty = true;
         for (Element e : formula) {
-            final Isotopes iso = distribution.getIsotopesFor(e);
-            final int monoIsotopicMass = iso.getIntegerMass(0);
-            int maxMass = iso.getIntegerMass(iso.getNumberOfIsotopes() - 1) - monoIsotopicMass;
-            final int n = Math.max(iso.getNumberOfIsotopes() - 1, maxMass);
-            final double[] modIsoMz = new double[n + 1];
-            final double[] modIsoInt = new double[n + 1];
-            ArrayWrapperSpectrum modIsoDist = new ArrayWrapperSpectrum(modIsoMz, modIsoInt);
-            int k = 0;
-            for (int i = 0; i <= n; i++) {
-                int diff = iso.getIntegerMass(k) - monoIsotopicMass;
-                while (diff > i) {
-                    modIsoMz[i] = 0;
-                    modIsoInt[i] = 0;
-                    ++i;
-                }
-                // Florian says: minus i is because the i-th isotope nominal mass is elemental nominal mass plus i!
-                modIsoMz[i] = iso.getMass(k) - e.getIntegerMass() - i;
-                modIsoInt[i] = iso.getAbundance(k);
-                ++k;
+            final ArrayWrapperSpectrum list = getElementDistribution(e, formula.numberOf(e), maxNumberOfPeaks);
+            if (list == null) continue;
+            // folding all elements to the candidate peaks
+            if (empty) {
+                candidateDistribution.set(list);
+                empty = false;
+            } else {
+                buffer.fold(candidateDistribution, list, maxNumberOfPeaks);
+                final FoldBuffer swap = candidateDistribution;
+                candidateDistribution = buffer;
+                buffer = swap;
             }
+        }
+        if (empty) return new SimpleMutableSpectrum();
+        return candidateDistribution.toSpectrum(minimalIntensity);
+    }
 
-            //get the reverse binary string of the quantity of an element
-            int exp = formula.numberOf(e),
-                    expLength = Integer.SIZE - Integer.numberOfLeadingZeros(exp);
-
-            //folding of one element
-            ArrayWrapperSpectrum helper = modIsoDist;
-            ArrayWrapperSpectrum list = null;
+    /**
+     * @return the isotope distribution of the given number of atoms of the given element, or null if numberOfAtoms is 0
+     */
+    protected ArrayWrapperSpectrum getElementDistribution(Element e, int numberOfAtoms, int maxNumberOfPeaks) {
+        if (numberOfAtoms <= 0) return null;
+        final Isotopes iso = distribution.getIsotopesFor(e);
+        final ElementKey key = new ElementKey(e, iso, numberOfAtoms, maxNumberOfPeaks);
+        ArrayWrapperSpectrum folded = ELEMENT_DISTRIBUTIONS.getIfPresent(key);
+        if (folded == null) {
+            // several threads might compute the same distribution, but the result is always the same
+            folded = foldElement(e, iso, numberOfAtoms, maxNumberOfPeaks);
+            ELEMENT_DISTRIBUTIONS.put(key, folded);
+        }
+        return folded;
+    }
 
-            //if the first number of the binary exponent is 1,
-            if (isBitSet(exp, 0)) {
-                list = helper;
+    protected ArrayWrapperSpectrum foldElement(Element e, Isotopes iso, int numberOfAtoms, int maxNumberOfPeaks) {
+        final int monoIsotopicMass = iso.getIntegerMass(0);
+        int maxMass = iso.getIntegerMass(iso.getNumberOfIsotopes() - 1) - monoIsotopicMass;
+        final int n = Math.max(iso.getNumberOfIsotopes() - 1, maxMass);
+        final double[] modIsoMz = new double[n + 1];
+        final double[] modIsoInt = new double[n + 1];
+        ArrayWrapperSpectrum modIsoDist = new ArrayWrapperSpectrum(modIsoMz, modIsoInt);
+        int k = 0;
+        for (int i = 0; i <= n; i++) {
+            int diff = iso.getIntegerMass(k) - monoIsotopicMass;
+            while (diff > i) {
+                modIsoMz[i] = 0;
+                modIsoInt[i] = 0;
+                ++i;
             }
+            // Florian says: minus i is because the i-th isotope nominal mass is elemental nominal mass plus i!
+            modIsoMz[i] = iso.getMass(k) - e.getIntegerMass() - i;
+            modIsoInt[i] = iso.getAbundance(k);
+            ++k;
+        }
 
-            //helper list is always folded twice
-            //list is just folded if binary exponent is 1 at the current position
-            for (int i = 1; i < expLength; i++) {
-                helper = fold(helper, helper, maxNumberOfPeaks);
-                if (isBitSet(exp, i)) {
-                    list = fold(list, helper, maxNumberOfPeaks);
-                }
-            }
-            // folding all elements to the candidate peaks
-            // fold returns only list if candidatePeaks is still null
-            candidateDistribution = fold(candidateDistribution, list, maxNumberOfPeaks);
+        //get the reverse binary string of the quantity of an element
+        int exp = numberOfAtoms,
+                expLength = Integer.SIZE - Integer.numberOfLeadingZeros(exp);
+
+        //folding of one element
+        ArrayWrapperSpectrum helper = modIsoDist;
+        ArrayWrapperSpectrum list = null;
+
+        //if the first number of the binary exponent is 1,
+        if (isBitSet(exp, 0)) {
+            list = helper;
         }
-        final SimpleMutableSpectrum finalSpectrum = new SimpleMutableSpectrum(candidateDistribution);
-        for (int k = finalSpectrum.size() - 1; k >= 0; --k) {
-            if (finalSpectrum.getIntensityAt(k) < minimalIntensity)
-                finalSpectrum.removePeakAt(k);
+
+        //helper list is always folded twice
+        //list is just folded if binary exponent is 1 at the current position
+        for (int i = 1; i < expLength; i++) {
+            helper = fold(helper, helper, maxNumberOfPeaks);
+            if (isBitSet(exp, i)) {
+                list = fold(list, helper, maxNumberOfPeaks);
+            }
         }
-        return finalSpectrum;
+        return list;
     }
 
     protected ArrayWrapperSpectrum fold(ArrayWrapperSpectrum left, ArrayWrapperSpectrum right, int maxNumberOfPeaks) {
@@ -129,19 +264,117 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
         final int len = Math.min((left.size() + right.size()) - 1, maxNumberOfPeaks);
         final double[] mz = new double[len];
         final double[] intensities = new double[len];
+        fold(left.getMzs(), left.getInts(), left.size(), right.getMzs(), right.getInts(), right.size(), mz, intensities, len);
+        return new ArrayWrapperSpectrum(mz, intensities);
+    }
 
-        for (int i = 0; i < Math.min(len, left.size()); ++i) {
-            final double intensityLeft = left.getIntensityAt(i);
-            final double mzLeft = left.getMzAt(i);
-            for (int j = 0; j < Math.min(right.size(), len - i); ++j) {
-                final double intensityRight = right.getIntensityAt(j);
-                final double mzRight = right.getMzAt(j);
-                final double folded = (intensityLeft * intensityRight);
-                mz[i + j] += (mzLeft + mzRight) * folded;
+    /**
+     * folds the first leftSize peaks of the left distribution with the first rightSize peaks of the right distribution
+     * and writes the first len peaks of the result into mz and intensities. The output arrays must not be one of the
+     * input arrays.
+     */
+    private static void fold(double[] leftMz, double[] leftIntensities, int leftSize, double[] rightMz, double[] rightIntensities, int rightSize, double[] mz, double[] intensities, int len) {
+        Arrays.fill(mz, 0, len, 0d);
+        Arrays.fill(intensities, 0, len, 0d);
+        final int n = Math.min(len, leftSize);
+        for (int i = 0; i < n; ++i) {
+            final double intensityLeft = leftIntensities[i];
+            // element distributions might have gaps (e.g. Cl or Br)
+            if (intensityLeft == 0) continue;
+            final double mzLeft = leftMz[i];
+            final int m = Math.min(rightSize, len - i);
+            for (int j = 0; j < m; ++j) {
+                final double folded = intensityLeft * rightIntensities[j];
+                mz[i + j] += (mzLeft + rightMz[j]) * folded;
                 intensities[i + j] += folded;
             }
         }
-        for (int k = 0; k < intensities.length; ++k) if (intensities[k] > 0) mz[k] /= intensities[k];
-        return new ArrayWrapperSpectrum(mz, intensities);
+        for (int k = 0; k < len; ++k) if (intensities[k] > 0) mz[k] /= intensities[k];
+    }
+
+    /**
+     * Reusable buffer for a partial isotope distribution. Folding into a buffer does not allocate new arrays, as long
+     * as the distribution fits into the buffer.
+     */
+    private static final class FoldBuffer {
+        private double[] mz, intensities;
+        private int size;
+
+        private FoldBuffer(int capacity) {
+            this.mz = new double[capacity];
+            this.intensities = new double[capacity];
+            this.size = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mz.length < capacity) {
+                mz = new double[capacity];
+                intensities = new double[capacity];
+            }
+        }
+
+        private void set(ArrayWrapperSpectrum distribution) {
+            if (distribution == null) {
+                size = 0;
+                return;
+            }
+            size = distribution.size();
+            ensureCapacity(size);
+            System.arraycopy(distribution.getMzs(), 0, mz, 0, size);
+            System.arraycopy(distribution.getInts(), 0, intensities, 0, size);
+        }
+
+        /**
+         * sets this buffer to the folding of the given buffer with the given distribution
+         */
+        private void fold(FoldBuffer left, ArrayWrapperSpectrum right, int maxNumberOfPeaks) {
+            if (right == null || left.size == 0) {
+                if (left.size == 0) set(right);
+                else {
+                    size = left.size;
+                    ensureCapacity(size);
+                    System.arraycopy(left.mz, 0, mz, 0, size);
+                    System.arraycopy(left.intensities, 0, intensities, 0, size);
+                }
+                return;
+            }
+            size = Math.min((left.size + right.size()) - 1, maxNumberOfPeaks);
+            ensureCapacity(size);
+            FastIsotopePatternGenerator.fold(left.mz, left.intensities, left.size, right.getMzs(), right.getInts(), right.size(), mz, intensities, size);
+        }
+
+        private SimpleMutableSpectrum toSpectrum(double minimalIntensity) {
+            final SimpleMutableSpectrum spectrum = new SimpleMutableSpectrum(size);
+            for (int k = 0; k < size; ++k) {
+                if (intensities[k] >= minimalIntensity) spectrum.addPeak(mz[k], intensities[k]);
+            }
+            return spectrum;
+        }
+    }
+
+    private static final class ElementKey {
+        private final Element element;
+        private final Isotopes isotopes;
+        private final int numberOfAtoms, maxNumberOfPeaks;
+
+        private ElementKey(Element element, Isotopes isotopes, int numberOfAtoms, int maxNumberOfPeaks) {
+            this.element = element;
+            this.isotopes = isotopes;
+            this.numberOfAtoms = numberOfAtoms;
+            this.maxNumberOfPeaks = maxNumberOfPeaks;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ElementKey)) return false;
+            final ElementKey other = (ElementKey) o;
+            return element == other.element && isotopes == other.isotopes && numberOfAtoms == other.numberOfAtoms && maxNumberOfPeaks == other.maxNumberOfPeaks;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * element.hashCode() + System.identityHashCode(isotopes)) + numberOfAtoms) + maxNumberOfPeaks;
+        }
     }
 }
@@ -6,10 +6,10 @@ import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 
+import gnu.trove.list.array.TIntArrayList;
+
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.*;
 
 public class DNNRegressionPredictor implements ElementPredictor {
 
@@ -89,6 +89,48 @@ public class DNNRegressionPredictor implements ElementPredictor {
 
     @Override
     public FormulaConstraints predictConstraints(SimpleSpectrum pickedPattern) {
+        final int networkIndex = selectNetwork(pickedPattern);
+        return toConstraints(pickedPattern, networkIndex < 0 ? null : networks[networkIndex].predict(pickedPattern));
+    }
+
+    /**
+     * predicts the constraints of all patterns at once. Patterns are grouped by the network which is used for their
+     * number of peaks, and each network predicts all patterns of its group in a single batch.
+     */
+    @Override
+    public List<FormulaConstraints> predictConstraints(List<SimpleSpectrum> pickedPatterns) {
+        final double[][] predictions = new double[pickedPatterns.size()][];
+        for (int k=0; k < networks.length; ++k) {
+            final TIntArrayList indizes = new TIntArrayList();
+            final List<SimpleSpectrum> patterns = new ArrayList<>();
+            for (int i=0; i < pickedPatterns.size(); ++i) {
+                if (selectNetwork(pickedPatterns.get(i)) == k) {
+                    indizes.add(i);
+                    patterns.add(pickedPatterns.get(i));
+                }
+            }
+            if (patterns.isEmpty()) continue;
+            final double[][] networkPredictions = networks[k].predict(patterns);
+            for (int i=0; i < indizes.size(); ++i) predictions[indizes.get(i)] = networkPredictions[i];
+        }
+        final List<FormulaConstraints> constraints = new ArrayList<>(pickedPatterns.size());
+        for (int i=0; i < pickedPatterns.size(); ++i) {
+            constraints.add(toConstraints(pickedPatterns.get(i), predictions[i]));
+        }
+        return constraints;
+    }
+
+    /**
+     * @return index of the first network which can be applied on the given pattern or -1 if there is none
+     */
+    private int selectNetwork(SimpleSpectrum pickedPattern) {
+        for (int k=0; k < networks.length; ++k) {
+            if (networks[k].numberOfPeaks() <= pickedPattern.size()) return k;
+        }
+        return -1;
+    }
+
+    private FormulaConstraints toConstraints(SimpleSpectrum pickedPattern, double[] prediction) {
         final HashMap<Element, Integer> elements = new HashMap<>(10);
         for (Element e : FREE_ELEMENTS)
             elements.put(e, Integer.MAX_VALUE);
@@ -105,17 +147,13 @@ public class DNNRegressionPredictor implements ElementPredictor {
             intensityAfterFifth /= intensityBeforeFifth;
             if (intensityAfterFifth > 0.25) elements.put(SELENE, 1);
         }
-        for (TrainedElementDetectionNetwork network : networks) {
-            if (network.numberOfPeaks() <= pickedPattern.size() ) {
-                final double[] prediction = network.predict(pickedPattern);
-                for (int i=0; i < prediction.length; ++i) {
-                    final Element e = DETECTABLE_ELEMENTS[i];
-                    int number = (int)Math.ceil(prediction[i]-0.22);
-                    if (number > 0) number = (int)Math.ceil(prediction[i]+modifiers[i]);
-                    if (elements.containsKey(e)) elements.put(e, Math.max(elements.get(e), number));
-                    else elements.put(e, number);
-                }
-                break;
+        if (prediction != null) {
+            for (int i=0; i < prediction.length; ++i) {
+                final Element e = DETECTABLE_ELEMENTS[i];
+                int number = (int)Math.ceil(prediction[i]-0.22);
+                if (number > 0) number = (int)Math.ceil(prediction[i]+modifiers[i]);
+                if (elements.containsKey(e)) elements.put(e, Math.max(elements.get(e), number));
+                else elements.put(e, number);
             }
         }
         {
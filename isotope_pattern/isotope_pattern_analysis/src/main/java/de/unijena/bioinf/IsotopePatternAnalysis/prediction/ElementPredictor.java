@@ -5,6 +5,9 @@ import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Predicts presence of chemical elements from isotope patterns
  */
@@ -12,6 +15,16 @@ public interface ElementPredictor {
 
     FormulaConstraints predictConstraints(SimpleSpectrum pickedPattern);
 
+    /**
+     * predicts the constraints for several isotope patterns at once
+     * @return list of constraints in the same order as the given patterns
+     */
+    default List<FormulaConstraints> predictConstraints(List<SimpleSpectrum> pickedPatterns) {
+        final List<FormulaConstraints> constraints = new ArrayList<>(pickedPatterns.size());
+        for (SimpleSpectrum pattern : pickedPatterns) constraints.add(predictConstraints(pattern));
+        return constraints;
+    }
+
     ChemicalAlphabet getChemicalAlphabet();
 
     boolean isPredictable(Element element);
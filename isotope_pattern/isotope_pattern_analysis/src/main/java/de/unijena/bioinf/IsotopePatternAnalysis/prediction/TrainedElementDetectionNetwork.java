@@ -8,6 +8,9 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 class TrainedElementDetectionNetwork {
 
@@ -19,8 +22,14 @@ class TrainedElementDetectionNetwork {
         LINEAR, RELU, TANH
     }
 
+    /**
+     * A layer is applied to a batch of vectors at once. The vectors of a batch are stored row-major in a single array,
+     * i.e. the i-th input vector starts at index i*inputSize.
+     */
     protected interface Layer {
-        double[] activate(double[] vector);
+        int outputSize(int inputSize);
+
+        void activate(double[] input, int inputSize, double[] output, int numberOfVectors);
     }
 
     protected static class PreprocessingLayer implements Layer {
@@ -32,12 +41,18 @@ class TrainedElementDetectionNetwork {
         }
 
         @Override
-        public double[] activate(double[] vector) {
-            final double[] output = new double[vector.length];
-            for (int i=0; i < centering.length; ++i) {
-                output[i] = (vector[i]-centering[i])/scaling[i];
+        public int outputSize(int inputSize) {
+            return inputSize;
+        }
+
+        @Override
+        public void activate(double[] input, int inputSize, double[] output, int numberOfVectors) {
+            for (int v=0, offset=0; v < numberOfVectors; ++v, offset += inputSize) {
+                for (int i=0; i < centering.length; ++i) {
+                    output[offset+i] = (input[offset+i]-centering[i])/scaling[i];
+                }
+                for (int i=centering.length; i < inputSize; ++i) output[offset+i] = 0d;
             }
-            return output;
         }
     }
 
@@ -50,12 +65,18 @@ class TrainedElementDetectionNetwork {
         }
 
         @Override
-        public double[] activate(double[] vector) {
-            final double[] output = new double[vector.length];
-            for (int i=0; i < As.length; ++i) {
-                output[i] = sigmoid_predict(vector[i], As[i], Bs[i]);
+        public int outputSize(int inputSize) {
+            return inputSize;
+        }
+
+        @Override
+        public void activate(double[] input, int inputSize, double[] output, int numberOfVectors) {
+            for (int v=0, offset=0; v < numberOfVectors; ++v, offset += inputSize) {
+                for (int i=0; i < As.length; ++i) {
+                    output[offset+i] = sigmoid_predict(input[offset+i], As[i], Bs[i]);
+                }
+                for (int i=As.length; i < inputSize; ++i) output[offset+i] = 0d;
             }
-            return output;
         }
 
 
@@ -75,48 +96,76 @@ class TrainedElementDetectionNetwork {
 
         }
 
+        @Override
+        public int outputSize(int inputSize) {
+            return inputSize;
+        }
 
         @Override
-        public double[] activate(double[] vector) {
-            final double[] out = new double[vector.length];
-            for (int i=0; i < vector.length; ++i) {
-                out[i] = Math.exp(vector[i]);
+        public void activate(double[] input, int inputSize, double[] output, int numberOfVectors) {
+            final int n = inputSize*numberOfVectors;
+            for (int i=0; i < n; ++i) {
+                output[i] = Math.exp(input[i]);
             }
-            return out;
         }
     }
 
 
 
     protected static class FullyConnectedLayer implements Layer {
-        protected final double[][] W;
+        /**
+         * weight matrix with one row per neuron, stored row-major
+         */
+        protected final double[] W;
         protected final double[] b;
+        protected final int rows, cols;
         protected final ActivationFunction function;
 
         public FullyConnectedLayer(double[][] w, double[] b, ActivationFunction f) {
+            this(flatten(w), w.length, w.length == 0 ? 0 : w[0].length, b, f);
+        }
+
+        public FullyConnectedLayer(double[] w, int rows, int cols, double[] b, ActivationFunction f) {
+            if (w.length != rows*cols || b.length != rows)
+                throw new IllegalArgumentException("Weight matrix of size " + w.length + " and bias of size " + b.length + " do not match " + rows + " x " + cols + " neurons");
             W = w;
+            this.rows = rows;
+            this.cols = cols;
             this.b = b;
             this.function = f;
         }
 
-        public double[] activate(double[] vector) {
-            final double[] result = new double[W.length];
-            for (int row=0; row < W.length; ++row) {
-                final double[] w = W[row];
-                double score = b[row];
-                for (int i=0; i < w.length; ++i) {
-                    score += vector[i]*w[i];
-                }
-                switch (function) {
-                    case RELU:
-                        score = Math.max(0, score); break;
-                    case TANH:
-                        score = Math.tanh(score); break;
-                    case LINEAR:
+        private static double[] flatten(double[][] w) {
+            final int cols = w.length == 0 ? 0 : w[0].length;
+            final double[] flat = new double[w.length*cols];
+            for (int row=0; row < w.length; ++row) System.arraycopy(w[row], 0, flat, row*cols, cols);
+            return flat;
+        }
+
+        @Override
+        public int outputSize(int inputSize) {
+            return rows;
+        }
+
+        @Override
+        public void activate(double[] input, int inputSize, double[] output, int numberOfVectors) {
+            for (int v=0; v < numberOfVectors; ++v) {
+                final int in = v*inputSize, out = v*rows;
+                for (int row=0, w=0; row < rows; ++row, w += cols) {
+                    double score = b[row];
+                    for (int i=0; i < cols; ++i) {
+                        score += input[in+i]*W[w+i];
+                    }
+                    switch (function) {
+                        case RELU:
+                            score = Math.max(0, score); break;
+                        case TANH:
+                            score = Math.tanh(score); break;
+                        case LINEAR:
+                    }
+                    output[out+row] = score;
                 }
-                result[row] = score;
             }
-            return result;
         }
 
     }
@@ -156,19 +205,12 @@ class TrainedElementDetectionNetwork {
             layers[0] = new PreprocessingLayer(centering, normalization);
             int in = nfeatures;
             for (int l=0; l < nlayers; ++l) {
-                final double[][] W = new double[neurons[l]][in];
-                final double[] B = new double[neurons[l]];
-                for (int i=0; i < W.length; ++i) {
-                    final double[] row = W[i];
-                    for (int j=0; j < row.length; ++j) {
-                        row[j] = vec[k++];
-                    }
-                }
-                for (int i=0; i < B.length; ++i) {
-                    B[i] = vec[k++];
-                }
+                final double[] W = Arrays.copyOfRange(vec, k, k + neurons[l]*in);
+                k += W.length;
+                final double[] B = Arrays.copyOfRange(vec, k, k + neurons[l]);
+                k += B.length;
+                layers[l+1] = new FullyConnectedLayer(W, neurons[l], in, B, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
                 in = neurons[l];
-                layers[l+1] = new FullyConnectedLayer(W, B, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
             }
             layers[nlayers+1] = new ExponentialLayer();
             return new TrainedElementDetectionNetwork(npeaks, layers);
@@ -209,19 +251,12 @@ class TrainedElementDetectionNetwork {
             layers[0] = new PreprocessingLayer(centering, normalization);
             int in = nfeatures;
             for (int l=0; l < nlayers; ++l) {
-                final double[][] W = new double[neurons[l]][in];
-                final double[] B = new double[neurons[l]];
-                for (int i=0; i < W.length; ++i) {
-                    final double[] row = W[i];
-                    for (int j=0; j < row.length; ++j) {
-                        row[j] = vec[k++];
-                    }
-                }
-                for (int i=0; i < B.length; ++i) {
-                    B[i] = vec[k++];
-                }
+                final double[] W = Arrays.copyOfRange(vec, k, k + neurons[l]*in);
+                k += W.length;
+                final double[] B = Arrays.copyOfRange(vec, k, k + neurons[l]);
+                k += B.length;
+                layers[l+1] = new FullyConnectedLayer(W, neurons[l], in, B, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
                 in = neurons[l];
-                layers[l+1] = new FullyConnectedLayer(W, B, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
             }
             layers[nlayers+1] = new PlattSigmoidLayer(As, Bs);
             return new TrainedElementDetectionNetwork(npeaks, layers);
@@ -230,6 +265,11 @@ class TrainedElementDetectionNetwork {
         }
     }
 
+    /**
+     * number of spectra which are predicted together. Limits the size of the activation buffers.
+     */
+    private final static int BATCH_SIZE = 1024;
+
     private final int npeaks;
     private final Layer[] layers;
 
@@ -239,11 +279,53 @@ class TrainedElementDetectionNetwork {
     }
 
     public double[] predict(SimpleSpectrum spectrum) {
-        double[] inputVector = new FeatureVector(spectrum, npeaks).getFeatureVector(npeaks);
-        for (int i=0; i < layers.length; ++i) {
-            inputVector = layers[i].activate(inputVector);
+        return predict(Collections.singletonList(spectrum))[0];
+    }
+
+    /**
+     * predicts all given spectra. The spectra are processed in batches: the feature vectors of a batch are written
+     * into one matrix, which is then propagated through the layers using two preallocated activation buffers.
+     * @return one prediction vector for each spectrum
+     */
+    public double[][] predict(List<SimpleSpectrum> spectra) {
+        final double[][] predictions = new double[spectra.size()][];
+        if (spectra.isEmpty()) return predictions;
+        final int batchSize = Math.min(BATCH_SIZE, spectra.size());
+        double[][] features = new double[batchSize][];
+        double[] current = null, next = null;
+        for (int from=0; from < spectra.size(); from += batchSize) {
+            final int n = Math.min(batchSize, spectra.size() - from);
+            int size = 0;
+            for (int i=0; i < n; ++i) {
+                features[i] = new FeatureVector(spectra.get(from+i), npeaks).getFeatureVector(npeaks);
+                size = Math.max(size, features[i].length);
+            }
+            // allocate buffers which are large enough for the widest layer
+            int maxSize = size;
+            for (int layer=0, layerSize=size; layer < layers.length; ++layer) {
+                layerSize = layers[layer].outputSize(layerSize);
+                maxSize = Math.max(maxSize, layerSize);
+            }
+            if (current == null || current.length < maxSize*batchSize) {
+                current = new double[maxSize*batchSize];
+                next = new double[maxSize*batchSize];
+            }
+            for (int i=0; i < n; ++i) {
+                System.arraycopy(features[i], 0, current, i*size, features[i].length);
+                Arrays.fill(current, i*size + features[i].length, (i+1)*size, 0d);
+            }
+            for (Layer layer : layers) {
+                layer.activate(current, size, next, n);
+                size = layer.outputSize(size);
+                final double[] swap = current;
+                current = next;
+                next = swap;
+            }
+            for (int i=0; i < n; ++i) {
+                predictions[from+i] = Arrays.copyOfRange(current, i*size, (i+1)*size);
+            }
         }
-        return inputVector;
+        return predictions;
     }
 
 
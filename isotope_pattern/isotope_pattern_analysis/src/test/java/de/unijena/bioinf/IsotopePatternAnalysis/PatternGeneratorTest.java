@@ -18,6 +18,8 @@
 package de.unijena.bioinf.IsotopePatternAnalysis;
 
 import de.unijena.bioinf.ChemistryBase.chem.Charge;
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistributionJSONFile;
@@ -25,13 +27,20 @@ import de.unijena.bioinf.ChemistryBase.ms.MutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.Normalization;
 import de.unijena.bioinf.ChemistryBase.ms.Peak;
 import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.ArrayWrapperSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PatternGeneratorTest {
@@ -123,4 +132,153 @@ public class PatternGeneratorTest {
 		assertTrue(Spectrums.haveEqualPeaks(s, spectrum2));
 		*/
 	}
+
+	@Test
+	public void testCachedElementDistributions() throws InterruptedException {
+		final String[] formulas = new String[]{"C6H12O6", "C27H42FeN9O12", "C20H25N3O", "C12H8Cl6O", "C9H11NO2S", "C6H12O6", "C40H56"};
+		final Ionization ion = PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+		// reference generator which never uses the cache
+		final FastIsotopePatternGenerator uncached = new FastIsotopePatternGenerator(Normalization.Max(1d)) {
+			@Override
+			protected ArrayWrapperSpectrum getElementDistribution(Element e, int numberOfAtoms, int maxNumberOfPeaks) {
+				if (numberOfAtoms <= 0) return null;
+				return foldElement(e, distribution.getIsotopesFor(e), numberOfAtoms, maxNumberOfPeaks);
+			}
+		};
+		final List<SimpleSpectrum> expected = new ArrayList<SimpleSpectrum>();
+		for (String f : formulas) expected.add(uncached.simulatePattern(MolecularFormula.parse(f), ion));
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int repeat = 0; repeat < 50; ++repeat) {
+							final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+							for (int i = 0; i < formulas.length; ++i) {
+								final SimpleSpectrum simulated = generator.simulatePattern(MolecularFormula.parse(formulas[i]), ion);
+								assertEquals(expected.get(i).size(), simulated.size());
+								for (int k = 0; k < simulated.size(); ++k) {
+									assertEquals(expected.get(i).getMzAt(k), simulated.getMzAt(k), 1e-9);
+									assertEquals(expected.get(i).getIntensityAt(k), simulated.getIntensityAt(k), 1e-9);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		assertNull(String.valueOf(error.get()), error.get());
+	}
+
+	@Test
+	public void testSimulatePatternsOfSimilarCandidates() {
+		final String[] formulas = new String[]{"C20H25N3O", "C18H21N3O2", "C19H21N4O", "C21H29N2O", "C20H25N3O", "C17H17N3O3",
+				"C20H24ClN3", "C19H25N3S", "C12H8Cl6O", "C9H11NO2S", "C20H25N3O", "H2O"};
+		final List<MolecularFormula> candidates = new ArrayList<MolecularFormula>();
+		for (String f : formulas) candidates.add(MolecularFormula.parse(f));
+		for (String ionName : new String[]{"[M+H]+", "[M+Na]+", "[M-H]-"}) {
+			final Ionization ion = PeriodicTable.getInstance().ionByName(ionName).getIonization();
+			final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+			final List<SimpleSpectrum> patterns = generator.simulatePatterns(candidates, ion);
+			assertEquals(candidates.size(), patterns.size());
+			for (int i = 0; i < candidates.size(); ++i) {
+				final SimpleSpectrum expected = generator.simulatePattern(candidates.get(i), ion);
+				final SimpleSpectrum simulated = patterns.get(i);
+				assertEquals(expected.size(), simulated.size());
+				for (int k = 0; k < simulated.size(); ++k) {
+					assertEquals(expected.getMzAt(k), simulated.getMzAt(k), 1e-9);
+					assertEquals(expected.getIntensityAt(k), simulated.getIntensityAt(k), 1e-9);
+				}
+			}
+		}
+	}
+
+	/**
+	 * reference generator which folds as before the reusable buffers: every fold allocates a new distribution and
+	 * peaks below the threshold are removed afterwards
+	 */
+	private static FastIsotopePatternGenerator allocatingGenerator() {
+		return new FastIsotopePatternGenerator(Normalization.Max(1d)) {
+			@Override
+			protected ArrayWrapperSpectrum getElementDistribution(Element e, int numberOfAtoms, int maxNumberOfPeaks) {
+				if (numberOfAtoms <= 0) return null;
+				return foldElement(e, distribution.getIsotopesFor(e), numberOfAtoms, maxNumberOfPeaks);
+			}
+
+			@Override
+			protected SimpleMutableSpectrum foldFormula(MolecularFormula formula, int maxNumberOfPeaks, double minimalIntensity) {
+				ArrayWrapperSpectrum candidateDistribution = null;
+				for (Element e : formula) {
+					candidateDistribution = fold(candidateDistribution, getElementDistribution(e, formula.numberOf(e), maxNumberOfPeaks), maxNumberOfPeaks);
+				}
+				final SimpleMutableSpectrum finalSpectrum = new SimpleMutableSpectrum(candidateDistribution);
+				for (int k = finalSpectrum.size() - 1; k >= 0; --k) {
+					if (finalSpectrum.getIntensityAt(k) < minimalIntensity)
+						finalSpectrum.removePeakAt(k);
+				}
+				return finalSpectrum;
+			}
+
+			@Override
+			protected ArrayWrapperSpectrum fold(ArrayWrapperSpectrum left, ArrayWrapperSpectrum right, int maxNumberOfPeaks) {
+				if (left == null) return right;
+				if (right == null) return left;
+				final int len = Math.min((left.size() + right.size()) - 1, maxNumberOfPeaks);
+				final double[] mz = new double[len];
+				final double[] intensities = new double[len];
+				for (int i = 0; i < Math.min(len, left.size()); ++i) {
+					for (int j = 0; j < Math.min(right.size(), len - i); ++j) {
+						final double folded = left.getIntensityAt(i) * right.getIntensityAt(j);
+						mz[i + j] += (left.getMzAt(i) + right.getMzAt(j)) * folded;
+						intensities[i + j] += folded;
+					}
+				}
+				for (int k = 0; k < intensities.length; ++k) if (intensities[k] > 0) mz[k] /= intensities[k];
+				return new ArrayWrapperSpectrum(mz, intensities);
+			}
+		};
+	}
+
+	private static void assertSamePattern(String name, SimpleSpectrum expected, SimpleSpectrum simulated) {
+		assertEquals(name, expected.size(), simulated.size());
+		for (int k = 0; k < simulated.size(); ++k) {
+			assertEquals(name, expected.getMzAt(k), simulated.getMzAt(k), 1e-9);
+			assertEquals(name, expected.getIntensityAt(k), simulated.getIntensityAt(k), 1e-12);
+		}
+	}
+
+	@Test
+	public void testFoldIntoReusableBuffers() {
+		// long and short distributions alternate, such that the buffers contain peaks of the previous formula.
+		// Cl and Br distributions have gaps, single elements are never folded
+		final String[] formulas = new String[]{"C60H90N10O20S2", "H2O", "C12H8Cl6O", "C", "C27H42FeN9O12", "C6H6Br2",
+				"C20H25N3O", "Cl2", "C9H11NO2S", "C40H56", "H2", "C10H12BrClN2O2SSe", "C6H12O6"};
+		final List<MolecularFormula> candidates = new ArrayList<MolecularFormula>();
+		for (String f : formulas) candidates.add(MolecularFormula.parse(f));
+		final FastIsotopePatternGenerator reference = allocatingGenerator();
+		final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+		for (String ionName : new String[]{"[M+H]+", "[M-H]-"}) {
+			final Ionization ion = PeriodicTable.getInstance().ionByName(ionName).getIonization();
+			final List<SimpleSpectrum> expected = new ArrayList<SimpleSpectrum>();
+			for (MolecularFormula f : candidates) expected.add(reference.simulatePattern(f, ion));
+			// the same generator is used for all formulas and for repeated calls
+			for (int repeat = 0; repeat < 2; ++repeat) {
+				for (int i = 0; i < candidates.size(); ++i) {
+					assertSamePattern(formulas[i] + " " + ionName, expected.get(i), generator.simulatePattern(candidates.get(i), ion));
+				}
+				final List<SimpleSpectrum> patterns = generator.simulatePatterns(candidates, ion);
+				assertEquals(candidates.size(), patterns.size());
+				for (int i = 0; i < candidates.size(); ++i) {
+					assertSamePattern(formulas[i] + " " + ionName, expected.get(i), patterns.get(i));
+				}
+			}
+		}
+	}
 }
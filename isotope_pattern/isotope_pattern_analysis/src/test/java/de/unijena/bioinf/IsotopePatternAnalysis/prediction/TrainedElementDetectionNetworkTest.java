@@ -0,0 +1,179 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.prediction;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Predicting many isotope patterns in one batch has to give the same predictions as predicting each pattern on its own.
+ */
+public class TrainedElementDetectionNetworkTest {
+
+    /**
+     * random isotope patterns with 1 to 8 peaks
+     */
+    private static List<SimpleSpectrum> randomPatterns(Random r, int n) {
+        final List<SimpleSpectrum> patterns = new ArrayList<>();
+        for (int k = 0; k < n; ++k) {
+            final int size = 1 + r.nextInt(8);
+            final double[] mz = new double[size], intensities = new double[size];
+            final double monoisotopic = 100 + 900 * r.nextDouble();
+            for (int i = 0; i < size; ++i) {
+                mz[i] = monoisotopic + i * 1.00335 + 0.002 * r.nextGaussian();
+                intensities[i] = i == 0 ? 1d : r.nextDouble();
+            }
+            patterns.add(new SimpleSpectrum(mz, intensities));
+        }
+        return patterns;
+    }
+
+    /**
+     * layers of a random network and their prediction for a single feature vector, as it was computed before the
+     * networks predicted batches
+     */
+    private static class ReferenceNetwork {
+        private final int npeaks;
+        private final double[] centering, scaling, As, Bs;
+        private final double[][][] W;
+        private final double[][] b;
+
+        private ReferenceNetwork(Random r, int npeaks, int nfeatures, int... neurons) {
+            this.npeaks = npeaks;
+            centering = new double[nfeatures];
+            scaling = new double[nfeatures];
+            for (int i = 0; i < nfeatures; ++i) {
+                centering[i] = r.nextDouble();
+                scaling[i] = 0.1 + r.nextDouble();
+            }
+            W = new double[neurons.length][][];
+            b = new double[neurons.length][];
+            int in = nfeatures;
+            for (int l = 0; l < neurons.length; ++l) {
+                W[l] = new double[neurons[l]][in];
+                b[l] = new double[neurons[l]];
+                for (int row = 0; row < neurons[l]; ++row) {
+                    for (int i = 0; i < in; ++i) W[l][row][i] = r.nextGaussian() / Math.sqrt(in);
+                    b[l][row] = r.nextGaussian();
+                }
+                in = neurons[l];
+            }
+            As = new double[in];
+            Bs = new double[in];
+            for (int i = 0; i < in; ++i) {
+                As[i] = -1 - r.nextDouble();
+                Bs[i] = r.nextGaussian();
+            }
+        }
+
+        private TrainedElementDetectionNetwork toNetwork() {
+            final TrainedElementDetectionNetwork.Layer[] layers = new TrainedElementDetectionNetwork.Layer[W.length + 2];
+            layers[0] = new TrainedElementDetectionNetwork.PreprocessingLayer(centering, scaling);
+            for (int l = 0; l < W.length; ++l)
+                layers[l + 1] = new TrainedElementDetectionNetwork.FullyConnectedLayer(W[l], b[l], l < W.length - 1 ? TrainedElementDetectionNetwork.ActivationFunction.TANH : TrainedElementDetectionNetwork.ActivationFunction.LINEAR);
+            layers[W.length + 1] = new TrainedElementDetectionNetwork.PlattSigmoidLayer(As, Bs);
+            return new TrainedElementDetectionNetwork(npeaks, layers);
+        }
+
+        private double[] predict(SimpleSpectrum spectrum) {
+            double[] vector = new FeatureVector(spectrum, npeaks).getFeatureVector(npeaks);
+            final double[] preprocessed = new double[vector.length];
+            for (int i = 0; i < centering.length; ++i) preprocessed[i] = (vector[i] - centering[i]) / scaling[i];
+            vector = preprocessed;
+            for (int l = 0; l < W.length; ++l) {
+                final double[] result = new double[W[l].length];
+                for (int row = 0; row < W[l].length; ++row) {
+                    double score = b[l][row];
+                    for (int i = 0; i < W[l][row].length; ++i) score += vector[i] * W[l][row][i];
+                    result[row] = l < W.length - 1 ? Math.tanh(score) : score;
+                }
+                vector = result;
+            }
+            final double[] output = new double[vector.length];
+            for (int i = 0; i < As.length; ++i) {
+                final double fApB = vector[i] * As[i] + Bs[i];
+                output[i] = fApB >= 0 ? Math.exp(-fApB) / (1.0 + Math.exp(-fApB)) : 1.0 / (1 + Math.exp(fApB));
+            }
+            return output;
+        }
+    }
+
+    private static List<SimpleSpectrum> withAtLeast(List<SimpleSpectrum> patterns, int npeaks) {
+        final List<SimpleSpectrum> filtered = new ArrayList<>();
+        for (SimpleSpectrum pattern : patterns)
+            if (pattern.size() >= npeaks) filtered.add(pattern);
+        return filtered;
+    }
+
+    @Test
+    public void testBatchEqualsReferencePrediction() {
+        final Random r = new Random(1);
+        // more patterns than fit into one batch
+        final List<SimpleSpectrum> patterns = randomPatterns(r, 3000);
+        for (int npeaks = 3; npeaks <= 5; ++npeaks) {
+            final List<SimpleSpectrum> applicable = withAtLeast(patterns, npeaks);
+            final int nfeatures = new FeatureVector(applicable.get(0), npeaks).getFeatureVector(npeaks).length;
+            final ReferenceNetwork reference = new ReferenceNetwork(r, npeaks, nfeatures, 48, 32, 6);
+            final TrainedElementDetectionNetwork network = reference.toNetwork();
+            final double[][] predictions = network.predict(applicable);
+            assertEquals(applicable.size(), predictions.length);
+            for (int i = 0; i < applicable.size(); ++i) {
+                final double[] expected = reference.predict(applicable.get(i));
+                assertArrayEquals(expected, predictions[i], 0d);
+                assertArrayEquals(expected, network.predict(applicable.get(i)), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchEqualsSinglePrediction() throws IOException {
+        final List<SimpleSpectrum> patterns = randomPatterns(new Random(2), 3000);
+        for (int npeaks = 3; npeaks <= 5; ++npeaks) {
+            final TrainedElementDetectionNetwork network = TrainedElementDetectionNetwork.readRegressionNetwork(TrainedElementDetectionNetworkTest.class.getResourceAsStream("/regression" + npeaks + ".param"));
+            assertEquals(npeaks, network.numberOfPeaks());
+            final List<SimpleSpectrum> applicable = withAtLeast(patterns, npeaks);
+            final double[][] predictions = network.predict(applicable);
+            for (int i = 0; i < applicable.size(); ++i) {
+                assertArrayEquals(network.predict(applicable.get(i)), predictions[i], 0d);
+            }
+        }
+    }
+
+    /**
+     * patterns with different numbers of peaks are predicted by different networks, or not at all
+     */
+    @Test
+    public void testPredictConstraintsOfManyPatterns() {
+        final List<SimpleSpectrum> patterns = randomPatterns(new Random(3), 3000);
+        final DNNRegressionPredictor predictor = new DNNRegressionPredictor();
+        final List<FormulaConstraints> constraints = predictor.predictConstraints(patterns);
+        assertEquals(patterns.size(), constraints.size());
+        for (int i = 0; i < patterns.size(); ++i) {
+            assertEquals(predictor.predictConstraints(patterns.get(i)), constraints.get(i));
+        }
+        assertTrue(predictor.predictConstraints(new ArrayList<SimpleSpectrum>()).isEmpty());
+    }
+}
@@ -18,90 +18,235 @@
 package de.unijena.bioinf.MassDecomposer.Chemistry;
 
 import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import de.unijena.bioinf.jjobs.JobManager;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * caches decomposer and corresponding alphabet. If a dataset contains a small number of different alphabets,
  * the cache creates for each such alphabet an own decomposer instead of creating a new one each time the alphabet changes.
+ *
+ * Lookups of cached decomposers are lock-free. If several threads request the same new alphabet, only one of them
+ * builds the decomposer while the others wait for it. Threads requesting other alphabets are not blocked.
+ * The cache is bounded by the memory of the ERTs of its decomposers. If the bound is exceeded, the least recently
+ * used decomposers are removed.
+ *
+ * If the property {@value #ERT_STORE_PROPERTY} points to a directory, the ERTs of new decomposers are loaded from
+ * (and written to) an {@link ERTStore} in this directory.
  */
 public class DecomposerCache {
 
-    private ChemicalAlphabet[] alphabets;
-    private MassToFormulaDecomposer[] decomposers;
-    private AtomicInteger[] useCounter;
-    private int dirtyState;
-    private int size;
+    public static final String ERT_STORE_PROPERTY = "de.unijena.bioinf.sirius.decomposer.ertStore";
+
+    /**
+     * maximal memory of all cached ERTs in megabytes
+     */
+    public static final String CACHE_SIZE_PROPERTY = "de.unijena.bioinf.sirius.decomposer.cacheSize";
+
+    /**
+     * rough estimate of the ERT memory of a CHNOPS decomposer with all deviation tables used for MS/MS data
+     */
+    protected static final long ESTIMATED_BYTES_PER_DECOMPOSER = 1L << 21;
 
-    private ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentHashMap<ChemicalAlphabet, Entry> decomposers;
+    private final long maxBytes;
+    private final ERTStore store;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), buildTime = new AtomicLong();
+
+    public DecomposerCache() {
+        this(PropertyManager.getIntProperty(CACHE_SIZE_PROPERTY, 64) * (1L << 20), defaultStore());
+    }
 
+    /**
+     * @param size expected number of different alphabets. The memory bound of the cache is estimated from this number.
+     */
     public DecomposerCache(int size) {
-        this.alphabets = new ChemicalAlphabet[size];
-        this.decomposers = new MassToFormulaDecomposer[size];
-        this.useCounter = new AtomicInteger[size];
-        this.dirtyState = 0;
-        for (int k=0; k < size; ++k) useCounter[k] = new AtomicInteger(0);
-        this.size = 0;
+        this(size * ESTIMATED_BYTES_PER_DECOMPOSER, defaultStore());
+    }
+
+    private DecomposerCache(long maxBytes, ERTStore store) {
+        this.decomposers = new ConcurrentHashMap<>();
+        this.maxBytes = maxBytes;
+        this.store = store;
+    }
+
+    /**
+     * @param size  expected number of different alphabets. The memory bound of the cache is estimated from this number.
+     * @param store store to load ERTs from, might be null
+     */
+    public static DecomposerCache withMaxEntries(int size, ERTStore store) {
+        return new DecomposerCache(size * ESTIMATED_BYTES_PER_DECOMPOSER, store);
+    }
+
+    /**
+     * @param maxBytes maximal number of bytes used by the ERTs of all cached decomposers. At least one decomposer is
+     *                 always cached, independent of its size.
+     * @param store    store to load ERTs from, might be null
+     */
+    public static DecomposerCache withMaxBytes(long maxBytes, ERTStore store) {
+        return new DecomposerCache(maxBytes, store);
     }
 
     public MassToFormulaDecomposer getDecomposer(ChemicalAlphabet alphabet) {
-        while (true) {
-            int state = dirtyState;
-            MassToFormulaDecomposer d = findDecomposer(alphabet,state);
-            if (d == null) {
-                lock.lock();
-                try {
-                    if (state == dirtyState) {
-                        //System.err.println(this.toString() + " will decompose " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        d = addNewDecomposer(alphabet);
-                    } else {
-                        //System.err.println(this.toString() + " STATE CHANGED " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        continue;
-                    }
-                } finally {
-                    lock.unlock();
-                }
-                return d;
-            } else if (state == dirtyState) return d;
+        Entry entry = decomposers.get(alphabet);
+        if (entry == null) {
+            final Entry newEntry = new Entry(alphabet);
+            entry = decomposers.putIfAbsent(alphabet, newEntry);
+            if (entry == null) {
+                misses.incrementAndGet();
+                entry = newEntry;
+                final long start = System.nanoTime();
+                entry.task.run();
+                buildTime.addAndGet(System.nanoTime() - start);
+                entry.touch();
+                evict(entry);
+                return entry.await();
+            }
         }
+        hits.incrementAndGet();
+        entry.touch();
+        return entry.await();
     }
 
-    private MassToFormulaDecomposer findDecomposer(ChemicalAlphabet alphabet, int state) {
-        for (int i=0; i < size; ++i) {
-            if (alphabets[i].equals(alphabet)) {
-                useCounter[i].incrementAndGet();
-                return decomposers[i];
+    /**
+     * removes the least recently used decomposers until the memory bound is satisfied. The decomposer which was
+     * just inserted is never removed. Eviction only happens after building a new decomposer, so we can afford to
+     * synchronize this method.
+     */
+    private synchronized void evict(Entry inserted) {
+        while (true) {
+            long bytes = 0;
+            Entry lru = null;
+            for (Entry e : decomposers.values()) {
+                final long b = e.bytes();
+                bytes += b;
+                if (e != inserted && b > 0 && (lru == null || e.lastAccess < lru.lastAccess)) lru = e;
             }
-        }
-        //System.err.println("Search " + alphabet + " in " + Arrays.toString(alphabets) + " without success at state " + state + " in thread " + Thread.currentThread().getName() );
-        return null;
-    }
-
-    private MassToFormulaDecomposer addNewDecomposer(ChemicalAlphabet alphabet) {
-        ++dirtyState;
-        try {
-        if (size < alphabets.length) {
-            decomposers[size] = new MassToFormulaDecomposer(alphabet);
-            decomposers[size].init();
-            alphabets[size] = alphabet;
-            return decomposers[size++];
-        } else {
-            int mindex = 0;
-            for (int i=1; i < useCounter.length; ++i)
-                if (useCounter[i].get() < useCounter[mindex].get()) mindex = i;
-            decomposers[mindex] =  new MassToFormulaDecomposer(alphabet);
-            decomposers[mindex].init();
-            alphabets[mindex] = alphabet;
-            return decomposers[mindex];
-        } } finally {
-            ++dirtyState;
-            //System.err.println(alphabet.toString() + " IS ADDED BY " + Thread.currentThread().getName() + " with state " + dirtyState);
+            if (bytes <= maxBytes || lru == null) return;
+            if (decomposers.remove(lru.alphabet, lru)) evictions.incrementAndGet();
         }
     }
 
-    public DecomposerCache() {
-        this(10);
+    private MassToFormulaDecomposer newDecomposer(ChemicalAlphabet alphabet) {
+        if (store != null) return store.getDecomposer(alphabet);
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        final JobManager jobs = SiriusJobs.getGlobalJobManager();
+        jobs.submitJob(decomposer.initJob(jobs)).awaitInitialization();
+        return decomposer;
+    }
+
+    private static ERTStore defaultStore() {
+        final File directory = PropertyManager.getFile(ERT_STORE_PROPERTY);
+        return directory == null ? null : new ERTStore(directory);
+    }
+
+    public ERTStore getStore() {
+        return store;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return number of requests which were answered with an already cached (or currently built) decomposer
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests which had to build a new decomposer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return total time in nanoseconds spent for building decomposers
+     */
+    public long getBuildTime() {
+        return buildTime.get();
+    }
+
+    /**
+     * @return number of bytes currently used by the ERTs of all cached decomposers
+     */
+    public long getUsedBytes() {
+        long bytes = 0;
+        for (Entry e : decomposers.values()) bytes += e.bytes();
+        return bytes;
+    }
+
+    public int size() {
+        return decomposers.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DecomposerCache(" + size() + " decomposers, " + (getUsedBytes() >> 10) + " of " + (maxBytes >> 10) + " KB, hits = " + getHits() + ", misses = " + getMisses() + ", evictions = " + getEvictions() + ", build time = " + (getBuildTime() / 1000000) + " ms)";
+    }
+
+    private final class Entry {
+        private final ChemicalAlphabet alphabet;
+        private final FutureTask<MassToFormulaDecomposer> task;
+        private volatile long lastAccess;
+
+        private Entry(final ChemicalAlphabet alphabet) {
+            this.alphabet = alphabet;
+            this.task = new FutureTask<>(() -> newDecomposer(alphabet));
+        }
+
+        private void touch() {
+            lastAccess = System.nanoTime();
+        }
+
+        private MassToFormulaDecomposer await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        // do not cache failed decomposers
+                        decomposers.remove(alphabet, this);
+                        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                        if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return the memory of the ERTs of this decomposer or 0 if it is not built yet
+         */
+        private long bytes() {
+            if (!task.isDone()) return 0;
+            try {
+                long bytes = 0;
+                for (long[][] table : task.get().getERTs())
+                    bytes += (long) table.length * (table.length == 0 ? 0 : table[0].length) * 8;
+                return bytes;
+            } catch (InterruptedException | ExecutionException e) {
+                return 0;
+            }
+        }
     }
 
 }
@@ -0,0 +1,248 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.MassDecomposer.Chemistry;
+
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.jjobs.JobManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Persists the extended residue tables (ERTs) of {@link MassToFormulaDecomposer} instances on disk, such that
+ * they have not to be recomputed on each start of the JVM. The tables are read into the heap arrays of the decomposer,
+ * as the decomposition loops work on long[][] tables. So the store saves the time to compute the tables, but every
+ * decomposer still keeps its own copy in memory. The file is not mapped, so no memory is shared between processes
+ * which use the same store.
+ *
+ * A file is keyed by the elements of the alphabet and the precision of the decomposer. The header contains the
+ * masses of all elements, so a store is never used with a changed periodic table. The file contains all ERTs
+ * (deviation 0, 1, 2, 4, ...) which were computed at the time the file was written. ERTs for larger deviations
+ * are computed lazily by the decomposer as usual.
+ *
+ * File layout (big endian): magic, version, precision, number of elements, for each element its symbol and mass,
+ * number of tables, rows and columns per table, padding to 8 bytes and finally all tables in row-major order.
+ */
+public class ERTStore {
+
+    protected static final int MAGIC = 0x45525453; // "ERTS"
+    protected static final int VERSION = 1;
+    protected static final String SUFFIX = ".ert";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ERTStore.class);
+
+    private final Path directory;
+
+    public ERTStore(File directory) {
+        this(directory.toPath());
+    }
+
+    public ERTStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns an initialized decomposer for the given alphabet. If the store contains ERTs for this alphabet they
+     * are loaded, otherwise they are computed and written into the store.
+     */
+    public MassToFormulaDecomposer getDecomposer(ChemicalAlphabet alphabet) {
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        if (!load(decomposer)) {
+            compute(decomposer);
+            store(decomposer);
+        }
+        return decomposer;
+    }
+
+    /**
+     * Returns an initialized decomposer for the given alphabet which contains all ERTs necessary to decompose masses
+     * up to maxMass with the given deviation. Missing ERTs are computed and written back into the store.
+     */
+    public MassToFormulaDecomposer getDecomposer(ChemicalAlphabet alphabet, double maxMass, Deviation deviation) {
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        final boolean loaded = load(decomposer);
+        if (!loaded) compute(decomposer);
+        final int numberOfTables = decomposer.getERTs().length;
+        decomposer.initForDeviation(maxMass, deviation.absoluteFor(maxMass));
+        if (!loaded || decomposer.getERTs().length > numberOfTables) store(decomposer);
+        return decomposer;
+    }
+
+    /**
+     * Initializes the given (not yet initialized) decomposer with the ERTs from the store.
+     *
+     * @return true if the store contains matching ERTs, false otherwise. In the latter case the decomposer is unchanged.
+     */
+    public boolean load(MassToFormulaDecomposer decomposer) {
+        final Path file = fileFor(decomposer);
+        if (!Files.exists(file)) return false;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(headerSize(decomposer.getChemicalAlphabet()));
+            readFully(channel, header);
+            header.flip();
+            if (!readHeader(header, decomposer)) {
+                LOG.warn("Ignore ERT file " + file + " as it does not match the alphabet " + decomposer.getChemicalAlphabet());
+                return false;
+            }
+            final int numberOfTables = header.getInt();
+            final int rows = header.getInt();
+            final int cols = header.getInt();
+            if (channel.size() - channel.position() != (long) numberOfTables * rows * cols * 8) {
+                LOG.warn("Ignore truncated ERT file " + file);
+                return false;
+            }
+            // the tables are read one after another, so only one table is buffered besides the arrays
+            final ByteBuffer data = ByteBuffer.allocate(rows * cols * 8);
+            final LongBuffer longs = data.asLongBuffer();
+            final long[][][] tables = new long[numberOfTables][rows][cols];
+            for (long[][] table : tables) {
+                data.clear();
+                readFully(channel, data);
+                longs.clear();
+                for (long[] row : table) {
+                    longs.get(row);
+                }
+            }
+            decomposer.init(tables);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Cannot read ERT file " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes all ERTs of the given decomposer into the store. Files are written into a temporary file first and moved
+     * to their final destination afterwards, so concurrent readers never see an incomplete file.
+     *
+     * @return true if the ERTs were written successfully
+     */
+    public boolean store(MassToFormulaDecomposer decomposer) {
+        final Path file = fileFor(decomposer);
+        final long[][][] tables = decomposer.getERTs();
+        final ChemicalAlphabet alphabet = decomposer.getChemicalAlphabet();
+        final ByteBuffer header = ByteBuffer.allocate(headerSize(alphabet));
+        header.putInt(MAGIC).putInt(VERSION).putDouble(decomposer.discretizationPrecision());
+        header.putInt(alphabet.size());
+        for (Element e : alphabet) {
+            final byte[] symbol = e.getSymbol().getBytes(StandardCharsets.US_ASCII);
+            header.putShort((short) symbol.length).put(symbol).putDouble(e.getMass());
+        }
+        header.putInt(tables.length).putInt(tables[0].length).putInt(tables[0][0].length);
+        header.position(align(header.position()));
+        header.flip();
+        final ByteBuffer data = ByteBuffer.allocate(tables[0].length * tables[0][0].length * 8);
+        final LongBuffer longs = data.asLongBuffer();
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                for (long[][] table : tables) {
+                    longs.clear();
+                    for (long[] row : table) longs.put(row);
+                    data.clear();
+                    writeFully(channel, data);
+                }
+                channel.force(false);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Cannot write ERT file " + file + ": " + e.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+    }
+
+    protected Path fileFor(MassToFormulaDecomposer decomposer) {
+        final StringBuilder buf = new StringBuilder();
+        for (Element e : decomposer.getChemicalAlphabet()) buf.append(e.getSymbol());
+        buf.append('_').append(Long.toHexString(Double.doubleToLongBits(decomposer.discretizationPrecision())));
+        buf.append("_v").append(VERSION).append(SUFFIX);
+        return directory.resolve(buf.toString());
+    }
+
+    /**
+     * computes the ERT of the given decomposer in a job of the global job manager, which reports its progress
+     */
+    private static void compute(MassToFormulaDecomposer decomposer) {
+        final JobManager jobs = SiriusJobs.getGlobalJobManager();
+        jobs.submitJob(decomposer.initJob(jobs)).awaitInitialization();
+    }
+
+    private static boolean readHeader(ByteBuffer buffer, MassToFormulaDecomposer decomposer) {
+        final ChemicalAlphabet alphabet = decomposer.getChemicalAlphabet();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return false;
+        if (buffer.getDouble() != decomposer.discretizationPrecision()) return false;
+        if (buffer.getInt() != alphabet.size()) return false;
+        for (Element e : alphabet) {
+            final byte[] symbol = new byte[buffer.getShort()];
+            buffer.get(symbol);
+            if (!e.getSymbol().equals(new String(symbol, StandardCharsets.US_ASCII))) return false;
+            if (buffer.getDouble() != e.getMass()) return false;
+        }
+        return true;
+    }
+
+    private static int headerSize(ChemicalAlphabet alphabet) {
+        int size = 4 + 4 + 8 + 4;
+        for (Element e : alphabet) size += 2 + e.getSymbol().length() + 8;
+        return align(size + 3 * 4);
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException();
+        }
+    }
+
+}
@@ -18,12 +18,14 @@
 package de.unijena.bioinf.MassDecomposer.Chemistry;
 
 import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaEncodingError;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
+import de.unijena.bioinf.ChemistryBase.chem.utils.ValenceFilter;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
-import de.unijena.bioinf.MassDecomposer.DecompIterator;
-import de.unijena.bioinf.MassDecomposer.Interval;
-import de.unijena.bioinf.MassDecomposer.RangeMassDecomposer;
-import de.unijena.bioinf.MassDecomposer.ValencyAlphabet;
+import de.unijena.bioinf.MassDecomposer.*;
+import de.unijena.bioinf.jjobs.JobManager;
+import gnu.trove.list.array.TLongArrayList;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -45,7 +47,8 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
 
     public Iterator<MolecularFormula> formulaIterator(double mass, Deviation deviation, final FormulaConstraints constraints) {
         final Map<Element, Interval> boundaries = getBoundaries(constraints);
-        final DecompIterator<Element> decompIterator = decomposeIterator(mass, deviation, boundaries);
+        final double abs = deviation.absoluteFor(mass);
+        final DecompIterator<Element> decompIterator = decomposeIterator(Math.max(0, mass - abs), Math.max(0, mass + abs), boundaries, getRDBEBoundary(constraints, boundaries));
         return new Iterator<MolecularFormula>() {
 
             MolecularFormula current = fetchNextFormula();
@@ -83,13 +86,143 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
     }
 
     public List<MolecularFormula> decomposeToFormulas(double mass, double massTolerance, FormulaConstraints constraints) {
-
-        return decomposeToFormulas(mass, massTolerance, getBoundaries(constraints), FormulaFilterList.create(constraints.getFilters()));
+        if (mass < 0d)
+            throw new IllegalArgumentException("Expect positive mass for decomposition: " + mass);
+        return decomposeRangeToFormulas(Math.max(0, mass - massTolerance), mass + massTolerance, constraints);
     }
 
     public List<MolecularFormula> decomposeToFormulas(double mass, Deviation deviation, FormulaConstraints constraints) {
+        final double abs = deviation.absoluteFor(mass);
+        return decomposeRangeToFormulas(Math.max(0, mass - abs), Math.max(0, mass + abs), constraints);
+    }
+
+    private List<MolecularFormula> decomposeRangeToFormulas(double from, double to, FormulaConstraints constraints) {
+        final FormulaFilter filter = FormulaFilterList.create(constraints.getFilters());
+        final Map<Element, Interval> boundaries = getBoundaries(constraints);
+        final List<int[]> decompositions = super.decompose(from, to, boundaries, getRDBEBoundary(constraints, boundaries));
+        final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>(decompositions.size());
+        for (int[] ary : decompositions) {
+            final MolecularFormula formula = alphabet.decompositionToFormula(ary);
+            if (!filter.isValid(formula)) continue;
+            formulas.add(formula);
+        }
+        return formulas;
+    }
 
-        return decomposeToFormulas(mass, deviation, getBoundaries(constraints), FormulaFilterList.create(constraints.getFilters()));
+    /**
+     * Decomposes several masses at once, e.g. all fragment peaks of a spectrum.
+     * @see RangeMassDecomposer#decompose(double[], double[], Map, JobManager)
+     * @param masses masses to decompose
+     * @param massTolerances absolute mass tolerance for each mass
+     * @param jobManager job manager for parallel decomposition, might be null
+     * @return for each mass the list of formulas satisfying the constraints
+     */
+    public List<List<MolecularFormula>> decomposeToFormulas(double[] masses, double[] massTolerances, FormulaConstraints constraints, JobManager jobManager) {
+        final double[] from = new double[masses.length], to = new double[masses.length];
+        for (int i=0; i < masses.length; ++i) {
+            if (masses[i] < 0d)
+                throw new IllegalArgumentException("Expect positive mass for decomposition: " + masses[i]);
+            from[i] = Math.max(0, masses[i] - massTolerances[i]);
+            to[i] = masses[i] + massTolerances[i];
+        }
+        final FormulaFilter filter = FormulaFilterList.create(constraints.getFilters());
+        final Map<Element, Interval> boundaries = getBoundaries(constraints);
+        final List<List<int[]>> decompositions = super.decompose(from, to, boundaries, getRDBEBoundary(constraints, boundaries), jobManager);
+        final List<List<MolecularFormula>> formulas = new ArrayList<List<MolecularFormula>>(masses.length);
+        for (List<int[]> decomps : decompositions) {
+            final ArrayList<MolecularFormula> list = new ArrayList<MolecularFormula>(decomps.size());
+            for (int[] ary : decomps) {
+                final MolecularFormula formula = alphabet.decompositionToFormula(ary);
+                if (!filter.isValid(formula)) continue;
+                list.add(formula);
+            }
+            formulas.add(list);
+        }
+        return formulas;
+    }
+
+    /**
+     * Decomposes the mass and passes each decomposition which satisfies the constraints and their filters into the sink.
+     * The compomere buffer is reused and filters are applied on the compomere directly (see
+     * {@link FormulaFilter#isValid(int[], int[], ChemicalAlphabet)}), so no objects are created per decomposition.
+     */
+    public void decomposeToSink(double mass, Deviation deviation, FormulaConstraints constraints, final DecompositionSink<Element> sink) {
+        final FormulaFilter filter = FormulaFilterList.create(constraints.getFilters());
+        final double abs = deviation.absoluteFor(mass);
+        final Map<Element, Interval> boundaries = getBoundaries(constraints);
+        super.decompose(Math.max(0, mass - abs), Math.max(0, mass + abs), boundaries, getRDBEBoundary(constraints, boundaries), new DecompositionSink<Element>() {
+            @Override
+            public boolean accept(int[] compomere, int[] characterIds, Alphabet<Element> characters) {
+                if (!filter.isValid(compomere, characterIds, alphabet)) return true;
+                return sink.accept(compomere, characterIds, characters);
+            }
+        });
+    }
+
+    /**
+     * Decomposes the mass into packed molecular formulas. Use this method instead of
+     * {@link #decomposeToFormulas(double, Deviation, FormulaConstraints)} for large masses with many decompositions.
+     * @param packer packer which is able to encode all formulas within the given constraints
+     * @return list of encoded formulas
+     */
+    public TLongArrayList decomposeToPackedFormulas(double mass, Deviation deviation, FormulaConstraints constraints, MolecularFormulaPacker packer) {
+        final TLongArrayList formulas = new TLongArrayList();
+        decomposeToPackedFormulas(mass, deviation, constraints, packer, formulas);
+        return formulas;
+    }
+
+    /**
+     * Decomposes the mass into packed molecular formulas and adds them to the given list.
+     * @param packer packer which is able to encode all formulas within the given constraints
+     * @throws FormulaEncodingError if a decomposition cannot be encoded by the packer
+     */
+    public void decomposeToPackedFormulas(double mass, Deviation deviation, FormulaConstraints constraints, final MolecularFormulaPacker packer, final TLongArrayList formulas) {
+        decomposeToSink(mass, deviation, constraints, new DecompositionSink<Element>() {
+            @Override
+            public boolean accept(int[] compomere, int[] characterIds, Alphabet<Element> characters) {
+                formulas.add(packer.encode(compomere, characterIds, alphabet));
+                return true;
+            }
+        });
+    }
+
+    /**
+     * The decomposer prunes decompositions which would be rejected by the {@link ValenceFilter} of the constraints
+     * anyways. Other filters are applied after decomposing.
+     * The element bounds of the constraints bound the RDBE from both sides: as 2*RDBE = 2 + sum of (valence-2)*amount,
+     * it is maximal if all elements with a valence above 2 take their upper bound and all other elements their lower
+     * bound, and minimal in the opposite case.
+     * @return the RDBE boundary given by the valence filters and the element bounds of the constraints, or null if
+     * the RDBE is not restricted
+     */
+    private RDBEBoundary getRDBEBoundary(FormulaConstraints constraints, Map<Element, Interval> boundaries) {
+        long minDoubledRDBE = 2, maxDoubledRDBE = 2;
+        for (int i = 0; i < alphabet.size(); ++i) {
+            final int valence = alphabet.valenceOf(i) - 2;
+            final Interval interval = boundaries.get(alphabet.get(i));
+            minDoubledRDBE += valence * (valence > 0 ? interval.getMin() : interval.getMax());
+            maxDoubledRDBE += valence * (valence > 0 ? interval.getMax() : interval.getMin());
+        }
+        final RDBEBoundary boundary = new RDBEBoundary(Math.max(minDoubledRDBE / 2d, getMinRDBE(constraints.getFilters())), maxDoubledRDBE / 2d);
+        if (boundary.getMinDoubledRDBE() == Integer.MIN_VALUE && boundary.getMaxDoubledRDBE() == Integer.MAX_VALUE)
+            return null;
+        return boundary;
+    }
+
+    /**
+     * @return the highest minimal RDBE of all valence filters in the given list
+     */
+    private static double getMinRDBE(List<FormulaFilter> filters) {
+        double minRDBE = Double.NEGATIVE_INFINITY;
+        for (FormulaFilter filter : filters) {
+            // subclasses might change the semantic of the filter
+            if (filter.getClass().equals(ValenceFilter.class)) {
+                minRDBE = Math.max(minRDBE, ((ValenceFilter) filter).getMinValence());
+            } else if (filter instanceof FormulaFilterList) {
+                minRDBE = Math.max(minRDBE, getMinRDBE(((FormulaFilterList) filter).getFilters()));
+            }
+        }
+        return minRDBE;
     }
 
     private Map<Element, Interval> getBoundaries(FormulaConstraints constraints) {
@@ -148,6 +281,13 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
         return formulas;
     }
 
+    /**
+     * @return the precision the alphabet is discretized with, independent of whether the decomposer is initialized
+     */
+    double discretizationPrecision() {
+        return findOptimalPrecision();
+    }
+
     public ChemicalAlphabet getChemicalAlphabet() {
         return alphabet;
     }
@@ -100,6 +100,28 @@ public class MassDecomposer<T> {
         return new DecompIteratorImpl<T>(ERT, interval.getMin(), interval.getMax(), from, to, minValues,  boundsarray, alphabet, weights, orderedCharacterIds.clone());
     }
 
+    public void decompose(double mass, Deviation deviation, Map<T, Interval> boundaries, DecompositionSink<T> sink) {
+        final double abs = deviation.absoluteFor(mass);
+        decompose(Math.max(0,mass-abs), Math.max(0,mass+abs), boundaries, sink);
+    }
+
+    /**
+     * computes all decompositions for the given mass and passes them into the sink. In contrast to
+     * {@link #decompose(double, double, Map)} no array is allocated per decomposition and no result list is build,
+     * so this method should be preferred if the decompositions are filtered or encoded afterwards anyways.
+     *
+     * This function can be called in multiple threads in parallel, because it does not modify the decomposer
+     */
+    public void decompose(double from, double to, Map<T, Interval> boundaries, DecompositionSink<T> sink) {
+        if (to == 0d) return;
+        final DecompIterator<T> iter = decomposeIterator(from, to, boundaries);
+        final int[] compomere = iter.getCurrentCompomere();
+        final int[] characterIds = iter.getAlphabetOrder();
+        while (iter.next()) {
+            if (!sink.accept(compomere, characterIds, alphabet)) return;
+        }
+    }
+
     protected double findOptimalPrecision() {
         return 1d/5963.337687d; // TODO: check alphabet and mass deviation, define optimal blowup for given alphabet
     }
@@ -0,0 +1,244 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.MassDecomposer;
+
+import de.unijena.bioinf.jjobs.JobManager;
+
+import java.util.List;
+
+/**
+ * Computes the extended residue table (ERT) with several threads. The result is identical to
+ * {@link RangeMassDecomposer#calcERT()}.
+ *
+ * Each column of the ERT depends on the previous column, so columns are computed one after another. Within a column
+ * the residue classes modulo gcd(a, w_j) are independent and are computed in parallel. If there are only a few
+ * residue classes (usually there is exactly one), the round robin loop over a residue class is split into chunks:
+ * The loop n_k = min(n_(k-1) + w_j, ERT[r_k][j-1]) is a min-plus prefix scan. Each chunk is scanned independently,
+ * afterwards the value at the end of each chunk is propagated to its successor and the chunks are corrected in
+ * parallel. The correction of a chunk stops as soon as the propagated value is not smaller than the scanned one,
+ * which is usually after a few residues.
+ *
+ * The calling thread takes part in the computation, so the computation finishes even if all threads of the job
+ * manager are busy.
+ */
+class ParallelERTComputation {
+
+    /**
+     * minimal number of residues of a chunk in a round robin loop
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 12;
+
+    /**
+     * is informed each time a residue class of a column is computed. Calls are serialized, so the listener does not
+     * have to be thread safe.
+     */
+    interface ProgressListener {
+        /**
+         * @param computedRows number of residue rows which are computed so far, summed up over all columns
+         * @param numberOfRows number of residue rows of all columns which have to be computed
+         */
+        void rowsComputed(long computedRows, long numberOfRows);
+    }
+
+    private final long[] integerMasses;
+    private final JobManager jobManager;
+    private final int numberOfThreads;
+    private final int a;
+    private long[][] ERT;
+    private ProgressListener listener;
+    private long computedRows, numberOfRows;
+
+    ParallelERTComputation(List<? extends Weight<?>> weights, JobManager jobManager) {
+        this.integerMasses = new long[weights.size()];
+        for (int i = 0; i < integerMasses.length; ++i) integerMasses[i] = weights.get(i).getIntegerMass();
+        if (integerMasses[0] > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Integer mass of the smallest character is too large for an ERT: " + integerMasses[0]);
+        this.a = (int) integerMasses[0];
+        this.jobManager = jobManager;
+        this.numberOfThreads = jobManager == null ? 1 : Math.max(1, jobManager.getCPUThreads());
+    }
+
+    long[][] compute(ProgressListener listener) {
+        this.listener = listener;
+        this.computedRows = 0;
+        this.numberOfRows = (long) a * (integerMasses.length - 1);
+        this.ERT = new long[a][integerMasses.length];
+        ERT[0][0] = 0;
+        for (int i = 1; i < ERT.length; ++i) {
+            ERT[i][0] = Long.MAX_VALUE; // should be infinity
+        }
+        for (int j = 1; j < integerMasses.length; ++j) {
+            computeColumn(j);
+        }
+        return ERT;
+    }
+
+    private void computeColumn(final int j) {
+        final long w = integerMasses[j];
+        final int d = (int) MassDecomposer.gcd(a, w);
+        final int length = a / d;
+        ERT[0][j] = 0;
+        if (d >= numberOfThreads || length < 2 * MIN_CHUNK_SIZE) {
+            // residue classes are independent of each other
+            final int numberOfTasks = Math.min(d, numberOfThreads);
+            run(numberOfTasks, new ParallelTasks.Task() {
+                @Override
+                public void run(int task) {
+                    final int start = (int) ((long) d * task / numberOfTasks), end = (int) ((long) d * (task + 1) / numberOfTasks);
+                    for (int p = start; p < end; ++p) {
+                        roundRobin(j, p, d, length);
+                        rowsComputed(length);
+                    }
+                }
+            });
+        } else {
+            for (int p = 0; p < d; ++p) {
+                scanResidueClass(j, p, d, length);
+                rowsComputed(length);
+            }
+        }
+    }
+
+    private synchronized void rowsComputed(int rows) {
+        computedRows += rows;
+        if (listener != null) listener.rowsComputed(computedRows, numberOfRows);
+    }
+
+    /**
+     * @return position of the (first) minimum of the given residue class in column j-1
+     */
+    private int argmin(int j, int p, int d) {
+        if (p == 0) return 0; // 0 is the min in the complete RT or the first p-loop
+        long n = Long.MAX_VALUE;
+        int argmin = p;
+        for (int i = p; i < ERT.length; i += d) {
+            if (ERT[i][j - 1] < n) {
+                n = ERT[i][j - 1];
+                argmin = i;
+            }
+        }
+        return argmin;
+    }
+
+    private void fillWithInfinity(int j, int p, int d) {
+        for (int i = p; i < ERT.length; i += d) {
+            ERT[i][j] = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * sequential round robin loop over one residue class, as in {@link RangeMassDecomposer#calcERT()}
+     */
+    private void roundRobin(int j, int p, int d, int length) {
+        final long w = integerMasses[j];
+        final int step = (int) (w % a);
+        int r = argmin(j, p, d);
+        long n = ERT[r][j - 1];
+        if (n == Long.MAX_VALUE) { // Minimum of the specific part of ERT was infinity
+            fillWithInfinity(j, p, d);
+            return;
+        }
+        ERT[r][j] = n;
+        for (int k = 1; k < length; ++k) {
+            n += w;
+            if (n < 0) {
+                throw new ArithmeticException("Integer overflow occurs. DECOMP cannot calculate decompositions for the given alphabet as it exceeds the 64 bit integer space. Please use a smaller precision value.");
+            }
+            r += step;
+            if (r >= a) r -= a;
+            if (ERT[r][j - 1] < n) n = ERT[r][j - 1]; // get the min
+            ERT[r][j] = n;
+        }
+    }
+
+    /**
+     * round robin loop over one residue class, split into chunks which are computed in parallel
+     */
+    private void scanResidueClass(final int j, int p, int d, final int length) {
+        final long w = integerMasses[j];
+        final int step = (int) (w % a);
+        final int start = argmin(j, p, d);
+        final long first = ERT[start][j - 1];
+        if (first == Long.MAX_VALUE) {
+            fillWithInfinity(j, p, d);
+            return;
+        }
+        if ((Long.MAX_VALUE - first) / w < length) {
+            // values might overflow. Use the sequential loop which reports the overflow at the same position as before
+            roundRobin(j, p, d, length);
+            return;
+        }
+        // as we start at the minimum, no value can exceed first + length*w
+        final int numberOfChunks = Math.max(1, Math.min(numberOfThreads * 4, length / MIN_CHUNK_SIZE));
+        final long[] lastValue = new long[numberOfChunks];
+        // scan each chunk assuming that its preceding value is infinity
+        run(numberOfChunks, new ParallelTasks.Task() {
+            @Override
+            public void run(int chunk) {
+                final int from = chunkStart(chunk, numberOfChunks, length), to = chunkStart(chunk + 1, numberOfChunks, length);
+                int r = residue(start, from, step);
+                long n = Long.MAX_VALUE;
+                for (int k = from; k < to; ++k) {
+                    if (n != Long.MAX_VALUE) n = (n > Long.MAX_VALUE - w) ? Long.MAX_VALUE : n + w;
+                    if (ERT[r][j - 1] < n) n = ERT[r][j - 1];
+                    ERT[r][j] = n;
+                    r += step;
+                    if (r >= a) r -= a;
+                }
+                lastValue[chunk] = n;
+            }
+        });
+        // propagate the value at the end of each chunk to its successor
+        final long[] carry = new long[numberOfChunks];
+        long n = lastValue[0];
+        for (int c = 1; c < numberOfChunks; ++c) {
+            carry[c] = n;
+            final int chunkLength = chunkStart(c + 1, numberOfChunks, length) - chunkStart(c, numberOfChunks, length);
+            n = Math.min(lastValue[c], n + chunkLength * w);
+        }
+        // correct each chunk until the propagated value is no longer better than the scanned one
+        run(numberOfChunks - 1, new ParallelTasks.Task() {
+            @Override
+            public void run(int task) {
+                final int chunk = task + 1;
+                final int from = chunkStart(chunk, numberOfChunks, length), to = chunkStart(chunk + 1, numberOfChunks, length);
+                int r = residue(start, from, step);
+                long n = carry[chunk];
+                for (int k = from; k < to; ++k) {
+                    n += w;
+                    if (ERT[r][j] <= n) break;
+                    ERT[r][j] = n;
+                    r += step;
+                    if (r >= a) r -= a;
+                }
+            }
+        });
+    }
+
+    private static int chunkStart(int chunk, int numberOfChunks, int length) {
+        return (int) ((long) length * chunk / numberOfChunks);
+    }
+
+    private int residue(int start, int k, int step) {
+        return (int) ((start + (long) k * step) % a);
+    }
+
+    private void run(int numberOfTasks, ParallelTasks.Task task) {
+        ParallelTasks.run(jobManager, numberOfTasks, task);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.MassDecomposer;
+
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs independent tasks in the calling thread and in jobs of a job manager. The jobs and the calling thread take
+ * the tasks one after another, so the calling thread never waits for a job which is not started yet. Therefore, it
+ * is safe to call this from within a job of the same job manager, even if all its threads are busy.
+ */
+class ParallelTasks {
+
+    interface Task {
+        void run(int task);
+    }
+
+    private ParallelTasks() {
+    }
+
+    /**
+     * @param jobManager job manager which provides the threads, or null to run all tasks in the calling thread
+     */
+    static void run(JobManager jobManager, final int numberOfTasks, final Task task) {
+        if (numberOfTasks <= 0) return;
+        final int numberOfThreads = jobManager == null ? 1 : Math.max(1, jobManager.getCPUThreads());
+        if (numberOfTasks == 1 || numberOfThreads == 1) {
+            for (int i = 0; i < numberOfTasks; ++i) task.run(i);
+            return;
+        }
+        final AtomicInteger nextTask = new AtomicInteger(0);
+        final CountDownLatch finished = new CountDownLatch(numberOfTasks);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = nextTask.getAndIncrement()) < numberOfTasks) {
+                    try {
+                        task.run(i);
+                    } catch (RuntimeException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+        final int numberOfJobs = Math.min(numberOfTasks, numberOfThreads) - 1;
+        for (int k = 0; k < numberOfJobs; ++k) {
+            jobManager.submitJob(new BasicJJob<Object>() {
+                @Override
+                protected Object compute() throws Exception {
+                    worker.run();
+                    return null;
+                }
+            });
+        }
+        worker.run();
+        // all remaining tasks are already running, so we can wait for them
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (error.get() != null) throw error.get();
+    }
+}
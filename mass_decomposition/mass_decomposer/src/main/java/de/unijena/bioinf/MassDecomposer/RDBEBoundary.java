@@ -0,0 +1,73 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.MassDecomposer;
+
+/**
+ * Lower and upper bound for the RDBE (ring double bond equivalent) of decompositions over a {@link ValencyAlphabet}.
+ * The RDBE is computed as in {@link ValenceValidator}: rdbe*2 = 2 + sum of (valence-2) * amount over all characters.
+ *
+ * In contrast to a {@link ValenceValidator}, which rejects decompositions after they are enumerated, this boundary is
+ * used by {@link RangeMassDecomposer#decomposeIterator(double, double, java.util.Map, RDBEBoundary)} while
+ * enumerating: a partial decomposition is not extended if no completion of its remaining mass can reach the bounds.
+ * For each remaining mass M and the remaining characters c the RDBE contribution is bounded by
+ * M * max_c (valence(c)-2)/mass(c) and M * min_c (valence(c)-2)/mass(c).
+ */
+public class RDBEBoundary {
+
+    private final int minDoubledRDBE, maxDoubledRDBE;
+
+    /**
+     * @param minRDBE minimal RDBE. Is rounded as in {@link ValenceValidator}
+     * @param maxRDBE maximal RDBE or {@link Double#POSITIVE_INFINITY}
+     */
+    public RDBEBoundary(double minRDBE, double maxRDBE) {
+        this.minDoubledRDBE = (int) (2 * minRDBE);
+        this.maxDoubledRDBE = Double.isInfinite(maxRDBE) ? Integer.MAX_VALUE : (int) Math.floor(2 * maxRDBE);
+    }
+
+    /**
+     * @param minRDBE minimal RDBE. Is rounded as in {@link ValenceValidator}
+     * @return a boundary without upper bound
+     */
+    public static RDBEBoundary lowerBound(double minRDBE) {
+        return new RDBEBoundary(minRDBE, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @return the minimal value of 2*RDBE (which is an integer)
+     */
+    public int getMinDoubledRDBE() {
+        return minDoubledRDBE;
+    }
+
+    /**
+     * @return the maximal value of 2*RDBE (which is an integer)
+     */
+    public int getMaxDoubledRDBE() {
+        return maxDoubledRDBE;
+    }
+
+    public boolean isValid(int doubledRDBE) {
+        return doubledRDBE >= minDoubledRDBE && doubledRDBE <= maxDoubledRDBE;
+    }
+
+    @Override
+    public String toString() {
+        return "RDBEBoundary[" + (minDoubledRDBE / 2d) + ", " + (maxDoubledRDBE == Integer.MAX_VALUE ? "inf" : String.valueOf(maxDoubledRDBE / 2d)) + "]";
+    }
+}
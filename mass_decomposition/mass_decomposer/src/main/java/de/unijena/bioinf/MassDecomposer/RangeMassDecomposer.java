@@ -17,7 +17,11 @@
  */
 package de.unijena.bioinf.MassDecomposer;
 
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobManager;
+
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Decomposes a given mass over an alphabet, returning all decompositions which mass equals the given mass
@@ -44,6 +48,143 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         this.ERTs = new long[0][][];
     }
 
+    /**
+     * Initializes the decomposer with precomputed ERTs (e.g. loaded from an {@link de.unijena.bioinf.MassDecomposer.Chemistry.ERTStore})
+     * instead of computing them. The tables have to be computed for the same alphabet and the same precision as this
+     * decomposer. If the decomposer is already initialized, this method does nothing.
+     *
+     * @param precomputedERTs ERTs for deviation 0, 1, 2, 4, ... as returned by {@link #getERTs()}
+     */
+    public void init(long[][][] precomputedERTs) {
+        if (ERT != null) return;
+        synchronized (this) {
+            if (ERT != null) return;
+            discretizeMasses();
+            divideByGCD();
+            computeLCMs();
+            if (precomputedERTs.length == 0 || precomputedERTs[0].length != weights.get(0).getIntegerMass() || precomputedERTs[0][0].length != weights.size()) {
+                throw new IllegalArgumentException("Precomputed ERTs do not match the alphabet of the decomposer.");
+            }
+            computeErrors();
+            this.ERTs = precomputedERTs;
+            this.ERT = precomputedERTs[0];
+        }
+    }
+
+    /**
+     * Initializes the decomposer and computes the ERT with the threads of the given job manager. This is useful for
+     * large alphabets and small precision values, where the computation of the ERT takes a noticeable amount of time.
+     * The calling thread takes part in the computation. If the decomposer is already initialized, this method does nothing.
+     *
+     * @param jobManager job manager which provides the threads for the computation. If null, the ERT is computed in the
+     *                   calling thread.
+     */
+    public void init(JobManager jobManager) {
+        init(jobManager, null);
+    }
+
+    /**
+     * Returns a job which initializes the decomposer as {@link #init(JobManager)} does. The job reports the progress
+     * of the ERT computation in percent, such that long initializations of large alphabets are visible in the job UI.
+     * Submit the job to a job manager and wait for it with {@link InitializationJob#awaitInitialization()}.
+     *
+     * @param jobManager job manager which provides the threads for the computation of the ERT
+     */
+    public InitializationJob<T> initJob(JobManager jobManager) {
+        return new InitializationJob<T>(this, jobManager);
+    }
+
+    private void init(JobManager jobManager, ParallelERTComputation.ProgressListener listener) {
+        if (ERT != null) return;
+        synchronized (this) {
+            if (ERT != null) return;
+            discretizeMasses();
+            divideByGCD();
+            computeLCMs();
+            final long[][] table = new ParallelERTComputation(weights, jobManager).compute(listener);
+            computeErrors();
+            this.ERTs = new long[][][]{table};
+            this.ERT = table;
+        }
+    }
+
+    /**
+     * Job which computes the ERT of a decomposer and reports its progress in percent of the computed residue rows.
+     */
+    public static class InitializationJob<T> extends BasicJJob<RangeMassDecomposer<T>> {
+
+        private final RangeMassDecomposer<T> decomposer;
+        private final JobManager jobManager;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private int percent = 0;
+
+        protected InitializationJob(RangeMassDecomposer<T> decomposer, JobManager jobManager) {
+            super(JobType.CPU);
+            this.decomposer = decomposer;
+            this.jobManager = jobManager;
+        }
+
+        /**
+         * Waits until the decomposer is initialized. If no thread of the job manager has started this job yet, the
+         * calling thread computes the ERT itself and reports the progress of this job. Therefore, it is safe to call
+         * this from within a job of the same job manager, even if all its threads are busy.
+         */
+        public RangeMassDecomposer<T> awaitInitialization() {
+            if (started.compareAndSet(false, true)) return initialize();
+            return takeResult();
+        }
+
+        @Override
+        protected RangeMassDecomposer<T> compute() throws Exception {
+            if (started.compareAndSet(false, true)) return initialize();
+            // the thread waiting for this job computes the ERT. init returns as soon as it is finished
+            decomposer.init(jobManager, null);
+            return decomposer;
+        }
+
+        private RangeMassDecomposer<T> initialize() {
+            updateProgress(0, 100, 0, "Compute extended residue table");
+            decomposer.init(jobManager, new ParallelERTComputation.ProgressListener() {
+                @Override
+                public void rowsComputed(long computedRows, long numberOfRows) {
+                    progress((int) (100 * computedRows / numberOfRows));
+                }
+            });
+            // also reached if the decomposer was already initialized
+            progress(100);
+            return decomposer;
+        }
+
+        private void progress(int newPercent) {
+            if (newPercent <= percent) return;
+            percent = newPercent;
+            updateProgress(0, 100, percent, "Compute extended residue table");
+        }
+    }
+
+    /**
+     * Computes all ERTs which are necessary to decompose masses up to the given mass with the given
+     * absolute deviation. Usually, ERTs are computed lazily while decomposing. This method is useful if the
+     * tables should be persisted afterwards.
+     *
+     * @param maxMass      the largest mass which should be decomposed
+     * @param maxDeviation the largest absolute mass deviation
+     */
+    public void initForDeviation(double maxMass, double maxDeviation) {
+        init();
+        final Interval interval = integerBound(Math.max(0, maxMass - maxDeviation), maxMass + maxDeviation);
+        final long deviation = interval.getMax() - interval.getMin();
+        if ((1 << (ERTs.length - 1)) <= deviation) calcERT(deviation);
+    }
+
+    /**
+     * @return the ERTs for deviation 0, 1, 2, 4, ... which are computed so far. The tables must not be modified!
+     */
+    public long[][][] getERTs() {
+        init();
+        return ERTs;
+    }
+
     /**
      * Check if a mass is decomposable. This is done in constant time (especially: it is very very very fast!).
      * But it doesn't check if there is a valid decomposition. Therefore, even if the method returns true,
@@ -69,6 +210,19 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
 
     @Override
     public DecompIterator<T> decomposeIterator(double from, double to, Map<T, Interval> boundaries) {
+        return decomposeIterator(from, to, boundaries, null);
+    }
+
+    /**
+     * Returns an iterator over all decompositions of the given mass interval whose RDBE is within the given boundary.
+     * Partial decompositions which cannot be completed to a decomposition within the RDBE boundary are not extended,
+     * so whole subtrees of the enumeration are skipped.
+     *
+     * @param rdbeBoundary lower and upper bound for the RDBE, or null. Requires a {@link ValencyAlphabet}.
+     */
+    public DecompIterator<T> decomposeIterator(double from, double to, Map<T, Interval> boundaries, RDBEBoundary rdbeBoundary) {
+        if (rdbeBoundary != null && !(alphabet instanceof ValencyAlphabet))
+            throw new IllegalArgumentException("RDBE boundaries can only be used for valency alphabets");
         init();
         if (to < 0d)
             throw new IllegalArgumentException("Expect positive mass for decomposition: [" + from + ", " + to + "]");
@@ -109,7 +263,7 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         if (deviation == 0) currentERT = ERTs[0];
         else currentERT = ERTs[64 - Long.numberOfLeadingZeros(deviation)];
 
-        return new DecompIteratorImpl<>(currentERT, interval.getMin(), interval.getMax(), from, to, minValues, boundsarray, alphabet, weights, orderedCharacterIds.clone());
+        return new DecompIteratorImpl<>(currentERT, interval.getMin(), interval.getMax(), from, to, minValues, boundsarray, alphabet, weights, orderedCharacterIds.clone(), rdbeBoundary);
     }
 
     /**
@@ -169,6 +323,355 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         return results;
     }
 
+    /**
+     * computes all decompositions for the given mass interval whose RDBE is within the given boundary.
+     * @see #decomposeIterator(double, double, Map, RDBEBoundary)
+     * @param rdbeBoundary lower and upper bound for the RDBE, or null
+     */
+    public List<int[]> decompose(double from, double to, Map<T, Interval> boundaries, RDBEBoundary rdbeBoundary) {
+        if (rdbeBoundary == null) return decompose(from, to, boundaries);
+        final List<int[]> results = new ArrayList<>();
+        decompose(from, to, boundaries, rdbeBoundary, new DecompositionSink<T>() {
+            @Override
+            public boolean accept(int[] compomere, int[] characterIds, Alphabet<T> alphabet) {
+                results.add(compomere.clone());
+                return true;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * computes all decompositions for the given mass interval whose RDBE is within the given boundary and passes them
+     * into the sink.
+     * @see #decomposeIterator(double, double, Map, RDBEBoundary)
+     * @param rdbeBoundary lower and upper bound for the RDBE, or null
+     */
+    public void decompose(double from, double to, Map<T, Interval> boundaries, RDBEBoundary rdbeBoundary, DecompositionSink<T> sink) {
+        if (to == 0d) return;
+        final DecompIterator<T> iter = decomposeIterator(from, to, boundaries, rdbeBoundary);
+        final int[] compomere = iter.getCurrentCompomere();
+        final int[] characterIds = iter.getAlphabetOrder();
+        while (iter.next()) {
+            if (!sink.accept(compomere, characterIds, alphabet)) return;
+        }
+    }
+
+    /**
+     * @see #decompose(double[], double[], Map, JobManager)
+     */
+    public List<List<int[]>> decompose(double[] from, double[] to, Map<T, Interval> boundaries) {
+        return decompose(from, to, boundaries, null);
+    }
+
+    /**
+     * computes the decompositions for several mass intervals at once, e.g. for all peaks of a spectrum. The i-th list
+     * in the result contains the decompositions of the interval [from[i], to[i]].
+     * All required ERTs are computed once before the decomposition starts. Overlapping intervals (e.g. of peaks with
+     * very similar masses) are merged, each decomposition is assigned to all intervals containing its mass. All merged
+     * intervals are decomposed in a single traversal which starts at the largest upper bound: the amounts of the heavier
+     * characters are shared, and an interval is only followed as long as its remaining mass can be filled by the
+     * lighter characters. If a job manager is given, the traversal is split into tasks by the amount of the heaviest
+     * character and run in parallel. The calling thread takes part in the decomposition, so this method can be called
+     * from within a job of the same job manager. The order of the decompositions within a list is not specified.
+     *
+     * @param from       lower bounds of the mass intervals. The intervals do not have to be sorted.
+     * @param to         upper bounds of the mass intervals
+     * @param jobManager job manager for parallel decomposition. If null, all masses are decomposed in the calling thread.
+     */
+    public List<List<int[]>> decompose(final double[] from, final double[] to, final Map<T, Interval> boundaries, JobManager jobManager) {
+        return decompose(from, to, boundaries, null, jobManager);
+    }
+
+    /**
+     * @see #decompose(double[], double[], Map, JobManager)
+     * @param rdbeBoundary lower and upper bound for the RDBE of the decompositions, or null
+     */
+    public List<List<int[]>> decompose(final double[] from, final double[] to, final Map<T, Interval> boundaries, final RDBEBoundary rdbeBoundary, JobManager jobManager) {
+        if (from.length != to.length)
+            throw new IllegalArgumentException("Number of lower bounds and upper bounds differ: " + from.length + " vs. " + to.length);
+        init();
+        final List<List<int[]>> results = new ArrayList<>(from.length);
+        if (from.length == 0) return results;
+        final Integer[] order = new Integer[from.length];
+        for (int i = 0; i < from.length; ++i) {
+            if (to[i] < 0d || from[i] < 0d)
+                throw new IllegalArgumentException("Expect positive mass for decomposition: [" + from[i] + ", " + to[i] + "]");
+            if (to[i] < from[i])
+                throw new IllegalArgumentException("Negative range given: [" + from[i] + ", " + to[i] + "]");
+            order[i] = i;
+            results.add(new ArrayList<int[]>());
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(from[o1], from[o2]);
+            }
+        });
+        // merge overlapping intervals. As for a single interval, the integer deviation of a group has to be smaller than
+        // the integer mass of the lightest character, so a chain of overlapping intervals may be split into several groups
+        final List<int[]> groups = new ArrayList<>();
+        final long a = weights.get(0).getIntegerMass();
+        double maxDeviation = 0d, maxMass = 0d;
+        for (int i = 0; i < order.length; ) {
+            double groupTo = to[order[i]];
+            int j = i + 1;
+            while (j < order.length && from[order[j]] <= groupTo) {
+                final Interval merged = integerBound(from[order[i]], Math.max(groupTo, to[order[j]]));
+                // one more unit as the bounds are shifted by the minimal amounts of the characters
+                if (merged.getMax() - merged.getMin() + 1 >= a) break;
+                groupTo = Math.max(groupTo, to[order[j++]]);
+            }
+            groups.add(new int[]{i, j});
+            maxDeviation = Math.max(maxDeviation, (groupTo - from[order[i]]) / 2d);
+            maxMass = Math.max(maxMass, groupTo);
+            i = j;
+        }
+        // compute all required ERTs before the threads start to avoid concurrent computation of the same table
+        initForDeviation(maxMass, maxDeviation);
+        final SharedTraversal traversal = new SharedTraversal(groups, order, from, to, boundaries, rdbeBoundary, results);
+        ParallelTasks.run(jobManager, traversal.numberOfTasks(), new ParallelTasks.Task() {
+            @Override
+            public void run(int task) {
+                traversal.run(task);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Decomposes all groups of overlapping mass intervals in a single traversal. The traversal is the same as in
+     * {@link DecompIteratorImpl}, but each node keeps the groups whose mass interval can still be reached: the amounts of
+     * the heavier characters are shared by all groups, and a group is dropped as soon as the lighter characters cannot
+     * fill its remaining mass, which is checked with the ERT of its own deviation. At the leaves, each decomposition is
+     * added to all intervals of its group which contain its mass. So every group visits the same decompositions as its
+     * own traversal would, but nodes which are shared by several groups are visited only once.
+     * The amounts of the heaviest character modulo its lcm with the lightest character are independent tasks.
+     */
+    private final class SharedTraversal {
+        private final List<int[]> groups;
+        private final Integer[] order;
+        private final double[] from, to;
+        private final List<List<int[]>> results;
+
+        private final int k;
+        private final long a;
+        private final int[] minValues, maxValues;
+        // upper integer mass, integer deviation, ERT and its deviation of each group
+        private final long[] upper, deviation, ERTdev;
+        private final long[][][] groupERT;
+
+        // RDBE pruning. All arrays are null if no RDBE boundary is given
+        private final int[] valences;
+        private final double[] valenceRatios, maxValenceRatio, minValenceRatio;
+        private final int baseValence, minValence, maxValence;
+
+        private SharedTraversal(List<int[]> groups, Integer[] order, double[] from, double[] to, Map<T, Interval> boundaries, RDBEBoundary rdbeBoundary, List<List<int[]>> results) {
+            if (rdbeBoundary != null && !(alphabet instanceof ValencyAlphabet))
+                throw new IllegalArgumentException("RDBE boundaries can only be used for valency alphabets");
+            this.groups = groups;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+            this.k = weights.size();
+            this.a = weights.get(0).getIntegerMass();
+            this.minValues = new int[k];
+            this.maxValues = new int[k];
+            Arrays.fill(maxValues, Integer.MAX_VALUE);
+            double reduceWeightBy = 0d;
+            if (boundaries != null && !boundaries.isEmpty()) {
+                for (int i = 0; i < k; i++) {
+                    final Interval range = boundaries.get(weights.get(i).getOwner());
+                    if (range != null) {
+                        maxValues[i] = (int) (range.getMax() - range.getMin());
+                        minValues[i] = (int) range.getMin();
+                        reduceWeightBy += weights.get(i).getMass() * range.getMin();
+                    }
+                }
+            }
+            final long[][][] ERTs = RangeMassDecomposer.this.ERTs;
+            this.upper = new long[groups.size()];
+            this.deviation = new long[groups.size()];
+            this.ERTdev = new long[groups.size()];
+            this.groupERT = new long[groups.size()][][];
+            for (int g = 0; g < groups.size(); ++g) {
+                double groupFrom = Double.POSITIVE_INFINITY, groupTo = 0d;
+                for (int i = groups.get(g)[0]; i < groups.get(g)[1]; ++i) {
+                    groupFrom = Math.min(groupFrom, from[order[i]]);
+                    groupTo = Math.max(groupTo, to[order[i]]);
+                }
+                final Interval interval = integerBound(groupFrom - reduceWeightBy, groupTo - reduceWeightBy);
+                upper[g] = interval.getMax();
+                deviation[g] = interval.getMax() - interval.getMin();
+                ERTdev[g] = Long.highestOneBit(deviation[g]);
+                groupERT[g] = deviation[g] == 0 ? ERTs[0] : ERTs[64 - Long.numberOfLeadingZeros(deviation[g])];
+            }
+
+            if (rdbeBoundary == null) {
+                this.valences = null;
+                this.valenceRatios = null;
+                this.maxValenceRatio = null;
+                this.minValenceRatio = null;
+                this.baseValence = 2;
+                this.minValence = Integer.MIN_VALUE;
+                this.maxValence = Integer.MAX_VALUE;
+            } else {
+                final ValencyAlphabet<T> valencyAlphabet = (ValencyAlphabet<T>) alphabet;
+                this.valences = new int[k];
+                this.valenceRatios = new double[k];
+                this.maxValenceRatio = new double[k];
+                this.minValenceRatio = new double[k];
+                int base = 2;
+                for (int c = 0; c < k; ++c) {
+                    valences[c] = valencyAlphabet.valenceOf(orderedCharacterIds[c]) - 2;
+                    valenceRatios[c] = ((double) valences[c]) / weights.get(c).getIntegerMass();
+                    base += valences[c] * minValues[c];
+                }
+                for (int c = 1; c < k; ++c) {
+                    maxValenceRatio[c] = c == 1 ? valenceRatios[0] : Math.max(maxValenceRatio[c - 1], valenceRatios[c - 1]);
+                    minValenceRatio[c] = c == 1 ? valenceRatios[0] : Math.min(minValenceRatio[c - 1], valenceRatios[c - 1]);
+                }
+                this.baseValence = base;
+                this.minValence = rdbeBoundary.getMinDoubledRDBE();
+                this.maxValence = rdbeBoundary.getMaxDoubledRDBE();
+            }
+        }
+
+        private int numberOfTasks() {
+            return groups.isEmpty() ? 0 : (k == 1 ? 1 : (int) weights.get(k - 1).getL());
+        }
+
+        /**
+         * decomposes all groups with the given amount of the heaviest character modulo its lcm
+         */
+        private void run(int task) {
+            final int[] buffer = new int[k];
+            final int[] allGroups = new int[groups.size()];
+            for (int g = 0; g < allGroups.length; ++g) allGroups[g] = g;
+            if (k == 1) {
+                leaves(0, allGroups, allGroups.length, buffer);
+            } else {
+                chooseAmount(k - 1, task, 0, allGroups, allGroups.length, buffer, new int[k][groups.size()], new long[k][groups.size()]);
+            }
+        }
+
+        /**
+         * enumerates the amounts j, j+l, j+2l, ... of character i, where l*mass = lcm of character i and the lightest
+         * character. The characters i+1..k-1 have the mass x.
+         *
+         * @return false if the amount j exceeds the bound of character i or its mass exceeds the upper mass of all
+         * given groups, so larger amounts do not have to be tried
+         */
+        private boolean chooseAmount(int i, int j, long x, int[] groupIds, int numberOfGroups, int[] buffer, int[][] childGroups, long[][] steps) {
+            if (j > maxValues[i]) return false;
+            final Weight<T> weight = weights.get(i);
+            final long x1 = x + j * weight.getIntegerMass();
+            final long lcm = weight.getLcm();
+            final int l = (int) weight.getL();
+            final long[] maxSteps = steps[i];
+            boolean reachable = false;
+            long maxStep = -1;
+            for (int n = 0; n < numberOfGroups; ++n) {
+                final int g = groupIds[n];
+                final long m = upper[g] - x1;
+                maxSteps[g] = -1;
+                if (m < 0) continue;
+                reachable = true;
+                // the residue class does not change by adding lcm, so the lower bound is the same for all steps
+                final int r = (int) (m % a);
+                long pos = r - deviation[g] + ERTdev[g];
+                if (pos < 0) pos += a;
+                final long lbound = Math.min(groupERT[g][r][i - 1], groupERT[g][(int) pos][i - 1]);
+                if (m >= lbound) {
+                    maxSteps[g] = (m - lbound) / lcm;
+                    maxStep = Math.max(maxStep, maxSteps[g]);
+                }
+            }
+            maxStep = Math.min(maxStep, (maxValues[i] - j) / l);
+            final int[] children = childGroups[i];
+            for (long t = 0; t <= maxStep; ++t) {
+                final long x2 = x1 + t * lcm;
+                int numberOfChildren = 0;
+                long upperMass = 0, lowerMass = Long.MAX_VALUE;
+                for (int n = 0; n < numberOfGroups; ++n) {
+                    final int g = groupIds[n];
+                    if (maxSteps[g] >= t) {
+                        children[numberOfChildren++] = g;
+                        upperMass = Math.max(upperMass, upper[g] - x2);
+                        lowerMass = Math.min(lowerMass, upper[g] - x2 - deviation[g]);
+                    }
+                }
+                if (numberOfChildren == 0) break;
+                buffer[i] = (int) (j + t * l);
+                if (valences != null) {
+                    // the remaining masses of all groups together bound the RDBE of the lighter characters
+                    final int pruning = pruneRDBE(i, buffer, upperMass, Math.max(0, lowerMass));
+                    if (pruning == SKIP_ALL) break;
+                    if (pruning == SKIP) continue;
+                }
+                if (i == 1) {
+                    leaves(x2, children, numberOfChildren, buffer);
+                } else {
+                    for (int jj = 0; jj < weights.get(i - 1).getL(); ++jj) {
+                        if (!chooseAmount(i - 1, jj, x2, children, numberOfChildren, buffer, childGroups, steps)) break;
+                    }
+                }
+            }
+            buffer[i] = 0;
+            return reachable;
+        }
+
+        /**
+         * The characters 1..k-1 have the mass x. The lightest character fills the remaining mass of each group.
+         */
+        private void leaves(long x, int[] groupIds, int numberOfGroups, int[] buffer) {
+            for (int n = 0; n < numberOfGroups; ++n) {
+                final int g = groupIds[n];
+                final long m = upper[g] - x;
+                if (m < 0 || m / a > maxValues[0]) continue;
+                buffer[0] = (int) (m / a);
+                final int[] compomere = buffer.clone();
+                int rdbe = 2;
+                for (int c = 0; c < k; ++c) {
+                    compomere[c] += minValues[c];
+                    if (valences != null) rdbe += valences[c] * compomere[c];
+                }
+                if (rdbe < minValence || rdbe > maxValence) continue;
+                final double mass = calcMass(compomere);
+                for (int i = groups.get(g)[0]; i < groups.get(g)[1]; ++i) {
+                    final int index = order[i];
+                    // like decompose(from, to, ...), an interval with upper bound 0 has no decomposition
+                    if (to[index] > 0d && mass >= from[index] && mass <= to[index]) {
+                        final List<int[]> result = results.get(index);
+                        synchronized (result) {
+                            result.add(compomere.clone());
+                        }
+                    }
+                }
+            }
+            buffer[0] = 0;
+        }
+
+        /**
+         * @see DecompIteratorImpl#pruneRDBE(int)
+         */
+        private int pruneRDBE(int i, int[] buffer, long upperMass, long lowerMass) {
+            long fixed = baseValence;
+            for (int c = i; c < k; ++c) fixed += (long) valences[c] * buffer[c];
+            final double maxRatio = maxValenceRatio[i], minRatio = minValenceRatio[i];
+            if (fixed + Math.floor(maxRatio * (maxRatio >= 0 ? upperMass : lowerMass) + 1e-9) < minValence) {
+                return valenceRatios[i] <= maxRatio ? SKIP_ALL : SKIP;
+            }
+            if (fixed + Math.ceil(minRatio * (minRatio <= 0 ? upperMass : lowerMass) - 1e-9) > maxValence) {
+                return valenceRatios[i] >= minRatio ? SKIP_ALL : SKIP;
+            }
+            return FEASIBLE;
+        }
+    }
+
+    private static final int FEASIBLE = 0, SKIP = 1, SKIP_ALL = 2;
+
     /**
      * Iterator implementation of the loop
      * We do not use static classes. This gives us the possibility to make some of the variables behave thread safe
@@ -188,6 +691,13 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         protected final List<Weight<T>> weights;
         protected final int[] orderedCharacterIds;
 
+        // RDBE pruning. All arrays are null if no RDBE boundary is given
+        protected final int[] valences; // valence-2 of each character
+        protected final double[] valenceRatios; // (valence-2)/integer mass of each character
+        protected final double[] maxValenceRatio, minValenceRatio; // max and min valence ratio of the characters 0..i-1
+        protected final int baseValence; // 2 + contribution of the minimal amounts of all characters
+        protected final int minValence, maxValence;
+
         // loop variables
 
         protected final int[] j, r;
@@ -199,6 +709,10 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
 
 
         protected DecompIteratorImpl(long[][] ERT, long minIntegerMass, long maxIntegerMass, double minDoubleMass, double maxDoubleMass, int[] minValues, int[] maxValues, Alphabet<T> alphabet, List<Weight<T>> weights, int[] orderedCharacterIds) {
+            this(ERT, minIntegerMass, maxIntegerMass, minDoubleMass, maxDoubleMass, minValues, maxValues, alphabet, weights, orderedCharacterIds, null);
+        }
+
+        protected DecompIteratorImpl(long[][] ERT, long minIntegerMass, long maxIntegerMass, double minDoubleMass, double maxDoubleMass, int[] minValues, int[] maxValues, Alphabet<T> alphabet, List<Weight<T>> weights, int[] orderedCharacterIds, RDBEBoundary rdbeBoundary) {
             this.ERT = ERT;
             this.minIntegerMass = minIntegerMass;
             this.maxIntegerMass = maxIntegerMass;
@@ -234,6 +748,34 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
             this.deviation = maxIntegerMass - minIntegerMass;
             this.ERTdev = Long.highestOneBit(deviation);
 
+            if (rdbeBoundary == null) {
+                this.valences = null;
+                this.valenceRatios = null;
+                this.maxValenceRatio = null;
+                this.minValenceRatio = null;
+                this.baseValence = 2;
+                this.minValence = Integer.MIN_VALUE;
+                this.maxValence = Integer.MAX_VALUE;
+            } else {
+                final ValencyAlphabet<T> valencyAlphabet = (ValencyAlphabet<T>) alphabet;
+                this.valences = new int[k];
+                this.valenceRatios = new double[k];
+                this.maxValenceRatio = new double[k];
+                this.minValenceRatio = new double[k];
+                int base = 2;
+                for (int c = 0; c < k; ++c) {
+                    valences[c] = valencyAlphabet.valenceOf(orderedCharacterIds[c]) - 2;
+                    valenceRatios[c] = ((double) valences[c]) / weights.get(c).getIntegerMass();
+                    if (this.minValues != null) base += valences[c] * this.minValues[c];
+                }
+                for (int c = 1; c < k; ++c) {
+                    maxValenceRatio[c] = c == 1 ? valenceRatios[0] : Math.max(maxValenceRatio[c - 1], valenceRatios[c - 1]);
+                    minValenceRatio[c] = c == 1 ? valenceRatios[0] : Math.min(minValenceRatio[c - 1], valenceRatios[c - 1]);
+                }
+                this.baseValence = base;
+                this.minValence = rdbeBoundary.getMinDoubledRDBE();
+                this.maxValence = rdbeBoundary.getMaxDoubledRDBE();
+            }
         }
 
         @Override
@@ -268,11 +810,21 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 } else {
                     if (flagWhile) {
                         if (m[i - 1] >= lbound[i] && buffer[i] <= maxValues[i]) { //currently in while loop
-                            --i; // "do" recursive call
+                            final int pruning = valences == null ? FEASIBLE : pruneRDBE(i);
+                            if (pruning == FEASIBLE) {
+                                --i; // "do" recursive call
+                            } else if (pruning == SKIP) {
+                                // no completion of this partial decomposition satisfies the RDBE boundary
+                                m[i - 1] -= weights.get(i).getLcm(); // execute the rest of the while
+                                buffer[i] += weights.get(i).getL();
+                            } else {
+                                flagWhile = false; // same for all further iterations of the while loop
+                            }
                         } else {
                             flagWhile = false; //
                         }
                     } else { //we are in the for-loop
+                        if (valences != null) skipInfeasibleAmounts(i);
                         if (j[i] < weights.get(i).getL() && m[i] - j[i] * weights.get(i).getIntegerMass() >= 0) {
                             buffer[i] = j[i];
                             m[i - 1] = m[i] - j[i] * weights.get(i).getIntegerMass();
@@ -302,12 +854,68 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
             return false;
         }
 
+        /**
+         * Checks if the partial decomposition with fixed amounts for the characters i..k-1 can be completed to a
+         * decomposition within the RDBE boundary. The characters 0..i-1 have to fill the remaining mass, which is in
+         * [m[i-1]-deviation, m[i-1]]. Their RDBE contribution is bounded by the remaining mass times the largest and
+         * smallest valence ratio of these characters.
+         * If the check fails and the contribution of character i is not better than the contribution of the remaining
+         * characters, adding more of character i cannot help, so the while loop of this recursion level can be stopped.
+         */
+        private int pruneRDBE(int i) {
+            long fixed = baseValence;
+            for (int c = i; c < k; ++c) fixed += (long) valences[c] * buffer[c];
+            final long upperMass = m[i - 1], lowerMass = Math.max(0, m[i - 1] - deviation);
+            final double maxRatio = maxValenceRatio[i], minRatio = minValenceRatio[i];
+            if (fixed + Math.floor(maxRatio * (maxRatio >= 0 ? upperMass : lowerMass) + 1e-9) < minValence) {
+                return valenceRatios[i] <= maxRatio ? SKIP_ALL : SKIP;
+            }
+            if (fixed + Math.ceil(minRatio * (minRatio <= 0 ? upperMass : lowerMass) - 1e-9) > maxValence) {
+                return valenceRatios[i] >= minRatio ? SKIP_ALL : SKIP;
+            }
+            return FEASIBLE;
+        }
+
+        /**
+         * Is called in the for loop before the amount of character i is set to j[i]. Skips amounts of character i
+         * which cannot satisfy the RDBE boundary. If the RDBE bound gets worse with increasing amount, all further
+         * amounts are skipped. Otherwise, if each amount is enumerated only once (lcm {@literal >} m[i]), we jump to
+         * the first amount which might satisfy the boundary.
+         */
+        private void skipInfeasibleAmounts(int i) {
+            long fixed = baseValence;
+            for (int c = i + 1; c < k; ++c) fixed += (long) valences[c] * buffer[c];
+            final Weight<T> weight = weights.get(i);
+            final long w = weight.getIntegerMass();
+            final double maxRatio = maxValenceRatio[i], minRatio = minValenceRatio[i];
+            final long upperMass = m[i] - j[i] * w, lowerMass = Math.max(0, upperMass - deviation);
+            final long value = fixed + (long) valences[i] * j[i];
+            if (value + Math.floor(maxRatio * (maxRatio >= 0 ? upperMass : lowerMass) + 1e-9) < minValence) {
+                if (valenceRatios[i] <= maxRatio) {
+                    j[i] = (int) weight.getL(); // more of character i does not increase the RDBE
+                } else if (weight.getLcm() > m[i]) {
+                    // solve fixed + x*valence + maxRatio*(mass - x*w) >= minValence for x, keep a safety margin
+                    final double mass = maxRatio >= 0 ? m[i] : m[i] - deviation;
+                    long next = (long) Math.floor((minValence - fixed - maxRatio * mass) / (valences[i] - maxRatio * w)) - 1;
+                    if (maxRatio < 0) next = Math.min(next, (m[i] - deviation) / w);
+                    if (next > j[i]) j[i] = (int) Math.min(next, weight.getL());
+                }
+            } else if (value + Math.ceil(minRatio * (minRatio <= 0 ? upperMass : lowerMass) - 1e-9) > maxValence) {
+                if (valenceRatios[i] >= minRatio) j[i] = (int) weight.getL(); // more of character i does not decrease the RDBE
+            }
+        }
+
         private boolean checkCompomere() {
             if (minValues != null) {
                 for (int j = 0; j < minValues.length; ++j) {
                     buffer[j] += minValues[j];
                 }
             }
+            if (valences != null) {
+                int rdbe = 2;
+                for (int j = 0; j < buffer.length; ++j) rdbe += valences[j] * buffer[j];
+                if (rdbe < minValence || rdbe > maxValence) return false;
+            }
             // calculate mass of decomposition
             double exactMass = 0;
             for (int j = 0; j < buffer.length; ++j) {
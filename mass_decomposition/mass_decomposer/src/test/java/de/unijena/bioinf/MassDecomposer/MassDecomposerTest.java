@@ -1,12 +1,24 @@
 package de.unijena.bioinf.MassDecomposer;
 
 import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.MassDecomposer.Chemistry.ChemicalAlphabetWrapper;
+import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
+import de.unijena.bioinf.MassDecomposer.Chemistry.ERTStore;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import de.unijena.bioinf.jjobs.JobManager;
+import de.unijena.bioinf.jjobs.JobProgressEvent;
+import de.unijena.bioinf.jjobs.JobProgressEventListener;
+import org.junit.Rule;
 import org.junit.Test;
+import gnu.trove.list.array.TLongArrayList;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static junit.framework.Assert.*;
 
@@ -19,6 +31,259 @@ import static junit.framework.Assert.*;
  */
 public class MassDecomposerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testERTStore() throws IOException {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parse("CHNOPS").elementArray());
+        final ERTStore store = new ERTStore(folder.newFolder("ert"));
+        final MassToFormulaDecomposer computed = store.getDecomposer(alphabet, 800d, new Deviation(10));
+        final MassToFormulaDecomposer loaded = new MassToFormulaDecomposer(alphabet);
+        assertTrue("ERTs should be loaded from store", store.load(loaded));
+        assertEquals(computed.getERTs().length, loaded.getERTs().length);
+        for (int k=0; k < computed.getERTs().length; ++k) {
+            for (int i=0; i < computed.getERTs()[k].length; ++i) {
+                assertTrue(Arrays.equals(computed.getERTs()[k][i], loaded.getERTs()[k][i]));
+            }
+        }
+        final FormulaConstraints constraints = new FormulaConstraints(alphabet);
+        for (double mass : new double[]{194.08, 423.12, 781.33}) {
+            final List<MolecularFormula> expected = computed.decomposeToFormulas(mass, new Deviation(10), constraints);
+            final List<MolecularFormula> actual = loaded.decomposeToFormulas(mass, new Deviation(10), constraints);
+            assertEquals(new HashSet<MolecularFormula>(expected), new HashSet<MolecularFormula>(actual));
+        }
+        final MassToFormulaDecomposer other = new MassToFormulaDecomposer(new ChemicalAlphabet(MolecularFormula.parse("CHNO").elementArray()));
+        assertFalse("store should not contain ERTs for other alphabets", store.load(other));
+    }
+
+
+    @Test
+    public void testDecomposerCache() throws Exception {
+        final ChemicalAlphabet chnops = new ChemicalAlphabet(MolecularFormula.parse("CHNOPS").elementArray());
+        final ChemicalAlphabet chno = new ChemicalAlphabet(MolecularFormula.parse("CHNO").elementArray());
+        // a cache which is too small for two decomposers
+        final DecomposerCache cache = DecomposerCache.withMaxBytes(1, null);
+        final ExecutorService service = Executors.newFixedThreadPool(8);
+        final List<Future<MassToFormulaDecomposer>> futures = new ArrayList<Future<MassToFormulaDecomposer>>();
+        for (int i=0; i < 32; ++i) {
+            futures.add(service.submit(new Callable<MassToFormulaDecomposer>() {
+                @Override
+                public MassToFormulaDecomposer call() throws Exception {
+                    return cache.getDecomposer(chnops);
+                }
+            }));
+        }
+        final MassToFormulaDecomposer first = futures.get(0).get();
+        for (Future<MassToFormulaDecomposer> f : futures) assertSame(first, f.get());
+        service.shutdown();
+        assertEquals("decomposer should be built only once", 1, cache.getMisses());
+        assertEquals(31, cache.getHits());
+        assertEquals(chno, cache.getDecomposer(chno).getChemicalAlphabet());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotSame("evicted decomposer has to be rebuilt", first, cache.getDecomposer(chnops));
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testPackedDecomposition() {
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer();
+        final FormulaConstraints constraints = new FormulaConstraints("CHNO[1-3]PS");
+        final MolecularFormulaPacker packer = MolecularFormulaPacker.newPacker(decomposer.getChemicalAlphabet());
+        for (double mass : new double[]{212.11, 547.21, 911.43}) {
+            final List<MolecularFormula> expected = decomposer.decomposeToFormulas(mass, new Deviation(5), constraints);
+            final TLongArrayList packed = decomposer.decomposeToPackedFormulas(mass, new Deviation(5), constraints, packer);
+            final HashSet<MolecularFormula> actual = new HashSet<MolecularFormula>();
+            for (int i=0; i < packed.size(); ++i) actual.add(packer.decode(packed.get(i)));
+            assertEquals(expected.size(), packed.size());
+            assertEquals(new HashSet<MolecularFormula>(expected), actual);
+        }
+    }
+
+    @Test
+    public void testParallelERTComputation() throws Exception {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parse("CHNOPSClBrIFBSeSi").elementArray());
+        final JobManager jobs = new JobManager(4);
+        try {
+            final MassToFormulaDecomposer sequential = new MassToFormulaDecomposer(alphabet);
+            sequential.init();
+            final MassToFormulaDecomposer parallel = new MassToFormulaDecomposer(alphabet);
+            parallel.init(jobs);
+            assertTrue(Arrays.deepEquals(sequential.getERTs(), parallel.getERTs()));
+            // smaller precision, such that the round robin loops are split into chunks
+            final MassToFormulaDecomposer sequentialFine = new FinePrecisionDecomposer(alphabet);
+            sequentialFine.init();
+            final MassToFormulaDecomposer parallelFine = new FinePrecisionDecomposer(alphabet);
+            parallelFine.init(jobs);
+            assertTrue(Arrays.deepEquals(sequentialFine.getERTs(), parallelFine.getERTs()));
+            final FormulaConstraints constraints = new FormulaConstraints(alphabet);
+            for (double mass : new double[]{194.08, 423.12}) {
+                assertEquals(new HashSet<MolecularFormula>(sequential.decomposeToFormulas(mass, new Deviation(5), constraints)),
+                        new HashSet<MolecularFormula>(parallelFine.decomposeToFormulas(mass, new Deviation(5), constraints)));
+            }
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    /**
+     * @return progress values which are reported by the job
+     */
+    private static List<Integer> recordProgress(RangeMassDecomposer.InitializationJob<Element> job) {
+        final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+        job.addJobProgressListener(new JobProgressEventListener() {
+            @Override
+            public void progressChanged(JobProgressEvent progressEvent) {
+                progress.add(progressEvent.getNewValue());
+            }
+        });
+        return progress;
+    }
+
+    private static void assertProgressReaches100(List<Integer> progress) {
+        assertFalse(progress.isEmpty());
+        for (int i = 1; i < progress.size(); ++i) assertTrue(progress.get(i - 1) < progress.get(i));
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+    }
+
+    @Test
+    public void testInitializationJobProgress() throws Exception {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parse("CHNOPSClBrIFBSeSi").elementArray());
+        final MassToFormulaDecomposer sequential = new FinePrecisionDecomposer(alphabet);
+        sequential.init();
+        final JobManager jobs = new JobManager(4);
+        try {
+            // submitted job
+            final MassToFormulaDecomposer submitted = new FinePrecisionDecomposer(alphabet);
+            final RangeMassDecomposer.InitializationJob<Element> job = submitted.initJob(jobs);
+            final List<Integer> progress = recordProgress(job);
+            assertSame(submitted, jobs.submitJob(job).awaitInitialization());
+            assertTrue(Arrays.deepEquals(sequential.getERTs(), submitted.getERTs()));
+            assertProgressReaches100(progress);
+            assertTrue(progress.size() > 2);
+            // job which is not started by the job manager, such that the waiting thread computes the ERT
+            final MassToFormulaDecomposer waiting = new MassToFormulaDecomposer(alphabet);
+            final RangeMassDecomposer.InitializationJob<Element> notStarted = waiting.initJob(jobs);
+            final List<Integer> waitingProgress = recordProgress(notStarted);
+            assertSame(waiting, notStarted.awaitInitialization());
+            assertProgressReaches100(waitingProgress);
+            // already initialized decomposer
+            final RangeMassDecomposer.InitializationJob<Element> initialized = waiting.initJob(jobs);
+            final List<Integer> initializedProgress = recordProgress(initialized);
+            jobs.submitJob(initialized).awaitInitialization();
+            assertProgressReaches100(initializedProgress);
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    private static class FinePrecisionDecomposer extends MassToFormulaDecomposer {
+        private FinePrecisionDecomposer(ChemicalAlphabet alphabet) {
+            super(alphabet);
+        }
+
+        @Override
+        protected double findOptimalPrecision() {
+            return 1e-5;
+        }
+    }
+
+    @Test
+    public void testRDBEPruning() {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parse("CHNOPSClBrIF").elementArray());
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        final Map<Element, Interval> boundaries = alphabet.toMap();
+        for (Element e : alphabet) boundaries.put(e, new Interval(0, 30));
+        boundaries.put(PeriodicTable.getInstance().getByName("Cl"), new Interval(1, 3));
+        final RDBEBoundary[] rdbeBoundaries = new RDBEBoundary[]{RDBEBoundary.lowerBound(-0.5), RDBEBoundary.lowerBound(4), new RDBEBoundary(-2.5, 6)};
+        for (double mass : new double[]{152.07, 287.055, 433.9}) {
+            final double abs = new Deviation(10).absoluteFor(mass);
+            for (Map<Element, Interval> bounds : Arrays.asList(null, boundaries)) {
+                final List<int[]> all = decomposer.decompose(mass - abs, mass + abs, bounds);
+                for (RDBEBoundary rdbe : rdbeBoundaries) {
+                    final HashSet<MolecularFormula> expected = new HashSet<MolecularFormula>();
+                    for (int[] c : all) {
+                        final MolecularFormula f = alphabet.decompositionToFormula(c);
+                        if (rdbe.isValid(f.doubledRDBE())) expected.add(f);
+                    }
+                    final List<int[]> pruned = decomposer.decompose(mass - abs, mass + abs, bounds, rdbe);
+                    final HashSet<MolecularFormula> actual = new HashSet<MolecularFormula>();
+                    for (int[] c : pruned) actual.add(alphabet.decompositionToFormula(c));
+                    assertEquals(expected, actual);
+                    assertEquals(pruned.size(), actual.size());
+                }
+            }
+        }
+        // the valence filter of the constraints is applied while decomposing
+        final FormulaConstraints constraints = new FormulaConstraints(alphabet);
+        final List<MolecularFormula> filtered = decomposer.decomposeToFormulas(433.9, new Deviation(10), null, FormulaFilterList.create(constraints.getFilters()));
+        assertEquals(new HashSet<MolecularFormula>(filtered), new HashSet<MolecularFormula>(decomposer.decomposeToFormulas(433.9, new Deviation(10), constraints)));
+        // the element bounds of the constraints bound the RDBE from both sides
+        final FormulaConstraints bounded = new FormulaConstraints("C[4-12]H[6-40]N[0-4]O[0-8]P[0-1]S[0-2]Cl[0-2]");
+        final Map<Element, Interval> elementBounds = alphabet.toMap();
+        for (Element e : alphabet) elementBounds.put(e, new Interval(bounded.getLowerbound(e), bounded.getUpperbound(e)));
+        for (double mass : new double[]{152.07, 287.055, 433.9}) {
+            final List<MolecularFormula> expected = decomposer.decomposeToFormulas(mass, new Deviation(10), elementBounds, FormulaFilterList.create(bounded.getFilters()));
+            assertEquals(new HashSet<MolecularFormula>(expected), new HashSet<MolecularFormula>(decomposer.decomposeToFormulas(mass, new Deviation(10), bounded)));
+        }
+    }
+
+    @Test
+    public void testBatchDecomposition() throws Exception {
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer();
+        final FormulaConstraints constraints = new FormulaConstraints("CHNOPS");
+        // unsorted, with overlapping mass windows
+        final double[] masses = new double[]{301.141, 97.05, 301.1412, 155.032, 97.0502, 255.8};
+        final double[] tolerances = new double[masses.length];
+        for (int i=0; i < masses.length; ++i) tolerances[i] = new Deviation(10, 1e-3).absoluteFor(masses[i]);
+        final JobManager jobManager = new JobManager(3);
+        try {
+            for (JobManager jobs : Arrays.asList(null, jobManager)) {
+                final List<List<MolecularFormula>> batch = decomposer.decomposeToFormulas(masses, tolerances, constraints, jobs);
+                assertEquals(masses.length, batch.size());
+                for (int i=0; i < masses.length; ++i) {
+                    final List<MolecularFormula> expected = decomposer.decomposeToFormulas(masses[i], tolerances[i], constraints);
+                    assertEquals(new HashSet<MolecularFormula>(expected), new HashSet<MolecularFormula>(batch.get(i)));
+                    assertEquals(expected.size(), batch.get(i).size());
+                }
+            }
+        } finally {
+            jobManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testDisjointBatchWindows() throws Exception {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parse("CHNOPSCl").elementArray());
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        final Map<Element, Interval> boundaries = alphabet.toMap();
+        for (Element e : alphabet) boundaries.put(e, new Interval(0, 40));
+        boundaries.put(PeriodicTable.getInstance().getByName("Cl"), new Interval(0, 2));
+        // disjoint windows, some far apart from each other and one of them half a nominal mass wide
+        final double[] from = new double[]{412.08, 18.01, 233.1, 98.0, 233.5, 151.99};
+        final double[] to = new double[]{412.1, 18.02, 233.105, 98.5, 233.51, 152.01};
+        final JobManager jobManager = new JobManager(3);
+        try {
+            for (JobManager jobs : Arrays.asList(null, jobManager)) {
+                for (RDBEBoundary rdbe : Arrays.asList(null, RDBEBoundary.lowerBound(-0.5), new RDBEBoundary(0, 8))) {
+                    final List<List<int[]>> batch = decomposer.decompose(from, to, boundaries, rdbe, jobs);
+                    assertEquals(from.length, batch.size());
+                    for (int i=0; i < from.length; ++i) {
+                        final List<int[]> expected = rdbe == null ? decomposer.decompose(from[i], to[i], boundaries) : decomposer.decompose(from[i], to[i], boundaries, rdbe);
+                        final HashSet<MolecularFormula> expectedFormulas = new HashSet<MolecularFormula>();
+                        for (int[] c : expected) expectedFormulas.add(alphabet.decompositionToFormula(c));
+                        final HashSet<MolecularFormula> actualFormulas = new HashSet<MolecularFormula>();
+                        for (int[] c : batch.get(i)) actualFormulas.add(alphabet.decompositionToFormula(c));
+                        assertEquals(expectedFormulas, actualFormulas);
+                        assertEquals(expected.size(), batch.get(i).size());
+                    }
+                }
+            }
+        } finally {
+            jobManager.shutdown();
+        }
+    }
 
     @Test
     public void testFormulaConstraints() {
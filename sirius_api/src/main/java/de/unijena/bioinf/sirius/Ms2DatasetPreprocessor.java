@@ -299,9 +299,11 @@ public class Ms2DatasetPreprocessor {
      */
     private DatasetStatistics makeStatistics(Ms2Dataset ms2Dataset){
         //guess elements
-        for (Ms2Experiment experiment : ms2Dataset.getExperiments()) {
-            FormulaConstraints constraints = predictElements(experiment, ms2Dataset);
-            experiment.setAnnotation(FormulaConstraints.class, constraints);
+        final List<Ms2Experiment> allExperiments = ms2Dataset.getExperiments();
+        final List<FormulaConstraints> predictedConstraints = sirius.predictElementsFromMs1(allExperiments);
+        for (int i = 0; i < allExperiments.size(); ++i) {
+            FormulaConstraints constraints = predictElements(predictedConstraints.get(i), ms2Dataset);
+            allExperiments.get(i).setAnnotation(FormulaConstraints.class, constraints);
         }
 
         DatasetStatistics datasetStatistics = new DatasetStatistics();
@@ -498,8 +500,7 @@ public class Ms2DatasetPreprocessor {
         return experiment.getAnnotation(CompoundQuality.class, new CompoundQuality(SpectrumProperty.Good)).isGoodQuality();
     }
 
-    private FormulaConstraints predictElements(Ms2Experiment experiment, Ms2Dataset ms2Dataset) {
-        FormulaConstraints constraints = sirius.predictElementsFromMs1(experiment);
+    private FormulaConstraints predictElements(FormulaConstraints constraints, Ms2Dataset ms2Dataset) {
         FormulaConstraints globalConstraints = ms2Dataset.getMeasurementProfile().getFormulaConstraints();
         if (constraints==null) return globalConstraints;
 
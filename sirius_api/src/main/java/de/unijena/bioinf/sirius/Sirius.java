@@ -504,6 +504,27 @@ public class Sirius {
         return getElementPrediction().predictConstraints(pattern);
     }
 
+    /**
+     * predicts the elements of all given experiments at once. This is much faster than predicting each experiment
+     * on its own if the element predictor supports batch prediction.
+     * @return list of constraints in the same order as the experiments. Contains null for experiments without MS1 pattern
+     */
+    public List<FormulaConstraints> predictElementsFromMs1(List<Ms2Experiment> experiments) {
+        final List<SimpleSpectrum> patterns = new ArrayList<>(experiments.size());
+        final List<Integer> indizes = new ArrayList<>(experiments.size());
+        for (int i = 0; i < experiments.size(); ++i) {
+            final Ms2Experiment experiment = experiments.get(i);
+            final SimpleSpectrum pattern = getMs1Analyzer().extractPattern(experiment, experiment.getIonMass());
+            if (pattern == null) continue;
+            patterns.add(pattern);
+            indizes.add(i);
+        }
+        final List<FormulaConstraints> predicted = getElementPrediction().predictConstraints(patterns);
+        final List<FormulaConstraints> constraints = new ArrayList<>(Collections.<FormulaConstraints>nCopies(experiments.size(), null));
+        for (int i = 0; i < indizes.size(); ++i) constraints.set(indizes.get(i), predicted.get(i));
+        return constraints;
+    }
+
     public IdentificationResult compute(Ms2Experiment experiment, MolecularFormula formula) {
         return compute(experiment, formula, true);
     }